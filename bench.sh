@@ -0,0 +1,7 @@
+tmpDir=build
+
+cd $(dirname $0)
+rm -rf bench/$tmpDir
+javac -d bench/$tmpDir src/*/*.java bench/*/*.java
+java -cp bench/$tmpDir server.${1:-PersistenceBenchmark} "${@:2}"
+rm -rf bench/$tmpDir
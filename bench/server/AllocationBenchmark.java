@@ -0,0 +1,172 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark that measures bytes allocated per decoded SendMessage request
+ * by line splitting decoder used before, by text protocol's decoder and by binary protocol's decoder.
+ */
+public class AllocationBenchmark {
+    /**
+     * Decodes stream of SendMessage requests with each decoder and prints allocated bytes and time per request.
+     * Expects launching in format "AllocationBenchmark [requests] [messageLength] [iterations]".
+     *
+     * @param args number of requests, length of message in characters and measured iterations
+     * @throws IOException if request is malformed
+     */
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String msg = "m".repeat(length);
+        Encoder text = new Encoder();
+        Encoder binary = new Encoder();
+        for (int i = 0; i < count; i++) {
+            byte[] line = ("SendMessage " + i % 1000 + " " + msg + "\n").getBytes(StandardCharsets.UTF_8);
+            text.write(line, 0, line.length);
+            byte[] frame = Protocol.binary.newMessage(i % 1000, msg);
+            frame[0] = BinaryProtocol.SEND_MESSAGE;
+            binary.write(frame, 0, frame.length);
+        }
+        Decoder[] decoders = {AllocationBenchmark::decodeSplitting, Protocol.text::decode, Protocol.binary::decode};
+        Encoder[] streams = {text, text, binary};
+        String[] names = {"split", "text", "binary"};
+        System.out.printf("message body: %d bytes as string%n", length);
+        for (int i = 0; i < iterations + 2; i++) {
+            StringBuilder sb = new StringBuilder(i < 2 ? "warmup:" : "iteration " + (i - 1) + ":");
+            for (int d = 0; d < decoders.length; d++) {
+                CountingHandler handler = new CountingHandler();
+                long thread = Thread.currentThread().getId();
+                long allocated = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                decodeAll(decoders[d], streams[d], handler);
+                long time = System.nanoTime() - start;
+                allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+                if (handler.requests != count)
+                    throw new IOException("Decoded " + handler.requests + " requests instead of " + count);
+                sb.append(String.format(" %s %.1f B/req %.0f ns/req;", names[d],
+                        (double) allocated / count, (double) time / count));
+            }
+            System.out.println(sb);
+        }
+    }
+
+    /**
+     * Decoder of requests, same as Protocol's decode method.
+     */
+    private interface Decoder {
+        /**
+         * Decodes first request from received bytes and passes it to handler.
+         *
+         * @param buf     array with received bytes
+         * @param offset  position of first received byte
+         * @param length  number of received bytes
+         * @param handler handler of request
+         * @return number of bytes taken by decoded request, 0 if bytes do not contain complete request
+         * @throws IOException if request is malformed
+         */
+        int decode(byte[] buf, int offset, int length, RequestHandler handler) throws IOException;
+    }
+
+    /**
+     * Decodes all requests from stream.
+     *
+     * @param decoder decoder
+     * @param stream  encoded requests
+     * @param handler handler of requests
+     * @throws IOException if request is malformed
+     */
+    private static void decodeAll(Decoder decoder, Encoder stream, RequestHandler handler) throws IOException {
+        byte[] buf = stream.bytes();
+        int end = stream.size();
+        int position = 0;
+        int consumed;
+        while ((consumed = decoder.decode(buf, position, end - position, handler)) > 0) {
+            position += consumed;
+        }
+    }
+
+    /**
+     * Decodes SendMessage request the way it was decoded before: line is copied to string,
+     * split into fields and id is parsed with Integer.parseInt.
+     *
+     * @param buf     array with received bytes
+     * @param offset  position of first received byte
+     * @param length  number of received bytes
+     * @param handler handler of request
+     * @return number of bytes taken by decoded request, 0 if bytes do not contain complete request
+     */
+    private static int decodeSplitting(byte[] buf, int offset, int length, RequestHandler handler) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buf[i] == '\n') {
+                String msg = new String(buf, offset, i - offset, StandardCharsets.UTF_8);
+                String[] buffer = msg.split(" ", 2);
+                if (buffer[0].equals("SendMessage")) {
+                    String[] localBuffer = buffer[1].split(" ", 2);
+                    try {
+                        handler.sendMessage(Integer.parseInt(localBuffer[0]), localBuffer[1]);
+                    } catch (NumberFormatException | IOException ignored) {
+                    }
+                }
+                return i + 1 - offset;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Handler that counts sent messages.
+     */
+    private static class CountingHandler implements RequestHandler {
+        /**
+         * Number of decoded requests.
+         */
+        private int requests = 0;
+        /**
+         * Sum of friends' ids and messages' lengths, so decoded fields are used.
+         */
+        private long checksum = 0;
+
+        @Override
+        public void hello(String[] capabilities) {
+        }
+
+        @Override
+        public void authenticate(boolean register, String username, String password) {
+        }
+
+        @Override
+        public void malformed() {
+        }
+
+        @Override
+        public void getFriendsRequestsList() {
+        }
+
+        @Override
+        public void acceptRequest(int id) {
+        }
+
+        @Override
+        public void sendRequest(String username) {
+        }
+
+        @Override
+        public void sendMessage(int id, String msg) {
+            requests++;
+            checksum += id + msg.length();
+        }
+
+        @Override
+        public void getMessageFrom(int id) {
+        }
+
+        @Override
+        public void getMessagesFrom(int id, int max) {
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Suite of benchmarks of server's hot paths: handling of user's messages, sending friends list,
+ * decoding of requests, users lookup under contention and round trip of users data through file.
+ * Results can be saved to file and compared with results of previous version, so regressions are found
+ * before release.
+ */
+public class HotPathBenchmark {
+    /**
+     * Slowdown in percents that is reported as regression.
+     */
+    private static final double regressionThreshold = 10;
+    /**
+     * Number of measured iterations of each benchmark.
+     */
+    private static int iterations = 5;
+    /**
+     * Prefix of names of benchmarks that should be run.
+     */
+    private static String filter = "";
+    /**
+     * Mean time of operation in nanoseconds by benchmarks' names.
+     */
+    private static final Map<String, Double> results = new LinkedHashMap<>();
+
+    /**
+     * Runs benchmarks and prints mean time of operation, compared with baseline if it is specified.
+     * Expects launching in format
+     * "HotPathBenchmark [iterations] [--filter=prefix] [--save=file] [--baseline=file] [--users=n]".
+     *
+     * @param args measured iterations, prefix of names of benchmarks that should be run,
+     *             file results are saved to, file with previous results and number of users in saved data
+     * @throws IOException          if i/o error occurred
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String save = null;
+        String baseline = null;
+        int usersCount = 20000;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                iterations = Integer.parseInt(arg);
+                continue;
+            }
+            String[] option = arg.substring(2).split("=", 2);
+            if (option.length != 2)
+                throw new IllegalArgumentException("Wrong option format: " + arg);
+            switch (option[0]) {
+                case "filter":
+                    filter = option[1];
+                    break;
+                case "save":
+                    save = option[1];
+                    break;
+                case "baseline":
+                    baseline = option[1];
+                    break;
+                case "users":
+                    usersCount = Integer.parseInt(option[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        Path dir = Files.createTempDirectory("hotPathBenchmark");
+        try {
+            userBenchmarks(dir);
+            protocolBenchmarks();
+            serverBenchmarks(dir, usersCount);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        report(baseline);
+        if (save != null) {
+            StringBuilder sb = new StringBuilder();
+            results.forEach((name, nanos) -> sb.append(name).append(' ').append(nanos).append('\n'));
+            Files.write(Paths.get(save), sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Measures saving and taking of messages by user and sending friends lists of different sizes.
+     * Changes are appended to log, as they are in server.
+     *
+     * @param dir directory for log and cache files
+     * @throws IOException          if log or cache can not be created
+     * @throws InterruptedException never, since operations do not wait for threads
+     */
+    private static void userBenchmarks(Path dir) throws IOException, InterruptedException {
+        if (!enabled("user."))
+            return;
+        MutationLog log = new MutationLog(dir.resolve("userLog").toString(), 0);
+        List<User> users = new ArrayList<>();
+        UserStore store = new UserStore(dir.resolve("userCache").toString(), 0, users::size, users::get);
+        try {
+            CountingConnection connection = new CountingConnection();
+            User user = new User();
+            users.add(user);
+            user.attach(0, log, store, null, null);
+            user.friendsRequestAccepted(1, "friend");
+            user.setUserLoggedIn(connection, false);
+            String msg = "message of typical length from friend";
+            int batch = 100000;
+            measure("user.saveMessageFrom", () -> {
+                for (int i = 0; i < batch; i++) {
+                    user.saveMessageFrom(1, msg);
+                }
+                return batch;
+            });
+            measure("user.sendFirstMessageFrom", () -> {
+                for (int i = 0; i < batch; i++) {
+                    user.sendFirstMessageFrom(1);
+                }
+                return batch;
+            });
+            for (int friends = 10; friends <= 10000; friends *= 10) {
+                User popular = new User();
+                popular.attach(users.size(), log, store, null, null);
+                users.add(popular);
+                for (int i = 0; i < friends; i++) {
+                    popular.friendsRequestAccepted(i + 1, "friend" + i);
+                }
+                int logins = Math.max(10, 100000 / friends);
+                measure("user.sendFriendsList/" + friends, () -> {
+                    for (int i = 0; i < logins; i++) {
+                        popular.setUserLoggedIn(connection, false);
+                    }
+                    return logins;
+                });
+            }
+            if (connection.bytes == 0)
+                throw new IllegalStateException("Nothing sent");
+        } finally {
+            log.close();
+            store.close();
+        }
+    }
+
+    /**
+     * Measures decoding of requests and encoding of messages in text and binary protocols.
+     *
+     * @throws IOException          if request is malformed
+     * @throws InterruptedException never, since operations do not wait for threads
+     */
+    private static void protocolBenchmarks() throws IOException, InterruptedException {
+        if (!enabled("text.") && !enabled("binary."))
+            return;
+        int count = 200000;
+        String msg = "message of typical length from friend";
+        Encoder[] text = new Encoder[3];
+        Encoder[] binary = new Encoder[3];
+        for (int r = 0; r < 3; r++) {
+            text[r] = new Encoder();
+            binary[r] = new Encoder();
+        }
+        for (int i = 0; i < count; i++) {
+            int id = i % 1000;
+            writeLine(text[0], "SendMessage " + id + " " + msg);
+            writeLine(text[1], "GetMessagesFrom " + id + " 100");
+            writeLine(text[2], "auth user" + id + " password" + id);
+            Encoder payload = new Encoder();
+            payload.writeVarint(id);
+            payload.writeString(msg);
+            writeFrame(binary[0], BinaryProtocol.SEND_MESSAGE, payload);
+            payload.reset();
+            payload.writeVarint(id);
+            payload.writeVarint(100);
+            writeFrame(binary[1], BinaryProtocol.GET_MESSAGES_FROM, payload);
+            payload.reset();
+            payload.writeString("user" + id);
+            payload.writeString("password" + id);
+            writeFrame(binary[2], BinaryProtocol.AUTH, payload);
+        }
+        String[] requests = {"SendMessage", "GetMessagesFrom", "auth"};
+        for (int r = 0; r < requests.length; r++) {
+            Encoder textStream = text[r];
+            Encoder binaryStream = binary[r];
+            measure("text.decode/" + requests[r], () -> decodeAll(Protocol.text, textStream, count));
+            measure("binary.decode/" + requests[r], () -> decodeAll(Protocol.binary, binaryStream, count));
+        }
+        for (Protocol protocol : new Protocol[]{Protocol.text, Protocol.binary}) {
+            String name = protocol == Protocol.text ? "text" : "binary";
+            measure(name + ".encode/NewMessage", () -> {
+                long bytes = 0;
+                for (int i = 0; i < count; i++) {
+                    bytes += protocol.newMessage(i % 1000, msg).length;
+                }
+                if (bytes == 0)
+                    throw new IllegalStateException("Nothing encoded");
+                return count;
+            });
+        }
+    }
+
+    /**
+     * Measures loading of users data by server's constructor with saving it back on shutdown,
+     * saving users data by running server and users lookup with increasing number of threads.
+     *
+     * @param dir        directory for server's files
+     * @param usersCount number of users in saved data
+     * @throws IOException          if i/o error occurred
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    private static void serverBenchmarks(Path dir, int usersCount) throws IOException, InterruptedException {
+        if (!enabled("server."))
+            return;
+        Map<String, UserInfo> usernames = new HashMap<>();
+        List<User> users = new ArrayList<>();
+        PersistenceBenchmark.generate(usersCount, 10, 5, usernames, users);
+        Server.defaultUsersFileName = dir.resolve("serverUsersData").toString();
+        Server.defaultLogFileName = dir.resolve("serverUsersLog").toString();
+        Server.defaultCacheFileName = dir.resolve("serverUsersCache").toString();
+        UsersFile.write(Paths.get(Server.defaultUsersFileName), 0, usernames, users.size(), users::get);
+        users.clear();
+        usernames.clear();
+        measure("server.loadAndShutdown", () -> {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                new Server(socket).shutdown();
+            }
+            return 1;
+        });
+        try (ServerSocket socket = new ServerSocket(0)) {
+            Server server = new Server(socket);
+            try {
+                measure("server.saveUsers", () -> {
+                    server.saveUsers();
+                    return 1;
+                });
+                int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+                for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                    int threadsCount = threads;
+                    measure("server.getUser/" + threads + "threads", () -> lookup(server, usersCount, threadsCount));
+                }
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Looks up random users with specified number of threads.
+     *
+     * @param server     server
+     * @param usersCount number of users
+     * @param threads    number of threads
+     * @return total number of lookups
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    private static long lookup(Server server, int usersCount, int threads) throws InterruptedException {
+        int lookups = 1000000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < lookups; i++) {
+                    if (server.getUser(random.nextInt(usersCount)) == null)
+                        throw new IllegalStateException("User not found");
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (long) lookups * threads;
+    }
+
+    /**
+     * Returns true if benchmarks with names starting with specified prefix should be run.
+     *
+     * @param prefix prefix of benchmarks' names
+     * @return true if benchmarks should be run, otherwise false
+     */
+    private static boolean enabled(String prefix) {
+        return prefix.startsWith(filter) || filter.startsWith(prefix);
+    }
+
+    /**
+     * Measured operation.
+     */
+    private interface Operation {
+        /**
+         * Runs operation several times.
+         *
+         * @return number of runs
+         * @throws IOException          if i/o error occurred
+         * @throws InterruptedException if interrupted while waiting for threads
+         */
+        long run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs operation for two warmup iterations and measured iterations,
+     * prints and saves mean time of operation in nanoseconds.
+     * Does nothing if benchmark's name does not start with filter.
+     *
+     * @param name      benchmark's name
+     * @param operation operation
+     * @throws IOException          if i/o error occurred
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    private static void measure(String name, Operation operation) throws IOException, InterruptedException {
+        if (!name.startsWith(filter))
+            return;
+        double[] times = new double[iterations];
+        for (int i = 0; i < iterations + 2; i++) {
+            long start = System.nanoTime();
+            long runs = operation.run();
+            double time = (double) (System.nanoTime() - start) / runs;
+            if (i >= 2)
+                times[i - 2] = time;
+        }
+        double mean = 0;
+        for (double time : times) {
+            mean += time / iterations;
+        }
+        double variance = 0;
+        for (double time : times) {
+            variance += (time - mean) * (time - mean) / iterations;
+        }
+        System.out.printf("%-36s %12s/op +- %s%n", name, format(mean), format(Math.sqrt(variance)));
+        results.put(name, mean);
+    }
+
+    /**
+     * Prints results compared with baseline results if file with them is specified.
+     * Marks benchmarks that became slower than regression threshold.
+     *
+     * @param baseline file with previous results or null
+     * @throws IOException if file can not be read
+     */
+    private static void report(String baseline) throws IOException {
+        if (baseline == null)
+            return;
+        Map<String, Double> previous = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(baseline), StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ");
+            if (fields.length == 2)
+                previous.put(fields[0], Double.parseDouble(fields[1]));
+        }
+        System.out.println("compared with " + baseline + ":");
+        int regressions = 0;
+        for (Map.Entry<String, Double> result : results.entrySet()) {
+            Double before = previous.get(result.getKey());
+            if (before == null)
+                continue;
+            double change = (result.getValue() - before) / before * 100;
+            boolean regression = change > regressionThreshold;
+            if (regression)
+                regressions++;
+            System.out.printf("%-36s %12s -> %12s %+7.1f%%%s%n", result.getKey(), format(before),
+                    format(result.getValue()), change, regression ? "  REGRESSION" : "");
+        }
+        System.out.println("regressions: " + regressions);
+    }
+
+    /**
+     * Formats time with suitable unit.
+     *
+     * @param nanos time in nanoseconds
+     * @return formatted time
+     */
+    private static String format(double nanos) {
+        if (nanos >= 1e6)
+            return String.format("%.2f ms", nanos / 1e6);
+        if (nanos >= 1e3)
+            return String.format("%.2f us", nanos / 1e3);
+        return String.format("%.1f ns", nanos);
+    }
+
+    /**
+     * Decodes all requests from stream.
+     *
+     * @param protocol protocol
+     * @param stream   encoded requests
+     * @param count    number of requests
+     * @return number of decoded requests
+     * @throws IOException if request is malformed or not all requests were decoded
+     */
+    private static long decodeAll(Protocol protocol, Encoder stream, int count) throws IOException {
+        CountingHandler handler = new CountingHandler();
+        byte[] buf = stream.bytes();
+        int end = stream.size();
+        int position = 0;
+        int consumed;
+        while ((consumed = protocol.decode(buf, position, end - position, handler)) > 0) {
+            position += consumed;
+        }
+        if (handler.requests != count)
+            throw new IOException("Decoded " + handler.requests + " requests instead of " + count);
+        return count;
+    }
+
+    /**
+     * Appends line to stream.
+     *
+     * @param out  stream
+     * @param line line without line break
+     */
+    private static void writeLine(Encoder out, String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends frame with specified opcode and payload to stream.
+     *
+     * @param out     stream
+     * @param opcode  request's opcode
+     * @param payload encoder with payload
+     */
+    private static void writeFrame(Encoder out, byte opcode, Encoder payload) {
+        out.write(opcode);
+        out.writeVarint(payload.size());
+        out.write(payload.bytes(), 0, payload.size());
+    }
+
+    /**
+     * Connection that counts sent bytes.
+     */
+    private static class CountingConnection implements Connection {
+        /**
+         * Number of sent bytes.
+         */
+        private long bytes = 0;
+
+        @Override
+        public void send(byte[] msg) {
+            bytes += msg.length;
+        }
+
+        @Override
+        public Protocol protocol() {
+            return Protocol.text;
+        }
+
+        @Override
+        public void setProtocol(Protocol protocol) {
+        }
+
+        @Override
+        public void startCompression() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Handler that counts decoded requests.
+     */
+    private static class CountingHandler implements RequestHandler {
+        /**
+         * Number of decoded requests.
+         */
+        private int requests = 0;
+
+        @Override
+        public void hello(String[] capabilities) {
+        }
+
+        @Override
+        public void authenticate(boolean register, String username, String password) {
+            requests++;
+        }
+
+        @Override
+        public void malformed() {
+        }
+
+        @Override
+        public void getFriendsRequestsList() {
+        }
+
+        @Override
+        public void acceptRequest(int id) {
+        }
+
+        @Override
+        public void sendRequest(String username) {
+        }
+
+        @Override
+        public void sendMessage(int id, String msg) {
+            requests++;
+        }
+
+        @Override
+        public void getMessageFrom(int id) {
+        }
+
+        @Override
+        public void getMessagesFrom(int id, int max) {
+            requests++;
+        }
+    }
+}
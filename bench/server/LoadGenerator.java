@@ -0,0 +1,777 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Load generator that simulates many users speaking text protocol to server on localhost without GUI.
+ * Registers users, makes them friends according to chosen graph's shape and sends messages at fixed total rate.
+ * Each message carries time it was sent, so its end-to-end delivery latency is measured when friend receives it.
+ * Reports throughput, delivery latency percentiles and number of connections.
+ */
+public class LoadGenerator {
+    /**
+     * Host of server.
+     */
+    private static String host = "127.0.0.1";
+    /**
+     * Port of server.
+     */
+    private static int port = Server.defaultServerPort;
+    /**
+     * Number of simulated users.
+     */
+    private static int usersCount = 1000;
+    /**
+     * Number of friends requests sent by each user.
+     */
+    private static int requestsPerUser = 5;
+    /**
+     * Shape of friends graph: "ring", "random" or "star".
+     */
+    private static String graph = "ring";
+    /**
+     * Number of users everybody makes friends with in star graph.
+     */
+    private static int hubs = 10;
+    /**
+     * Total number of messages sent per second.
+     */
+    private static double rate = 1000;
+    /**
+     * Length of message in characters.
+     */
+    private static int messageLength = 64;
+    /**
+     * Duration of warmup in seconds, latencies are not recorded during warmup.
+     */
+    private static int warmup = 5;
+    /**
+     * Duration of measurement in seconds.
+     */
+    private static int seconds = 30;
+    /**
+     * True if messages are pushed by server, otherwise they are requested after unread messages counter update.
+     */
+    private static boolean push = true;
+    /**
+     * Prefix of usernames, so different runs can use different users.
+     */
+    private static String prefix = "load";
+
+    /**
+     * Latencies of delivered messages in microseconds.
+     */
+    private static final Histogram latencies = new Histogram();
+    /**
+     * True while latencies are recorded.
+     */
+    private static volatile boolean measuring = false;
+    /**
+     * Number of sent messages.
+     */
+    private static final LongAdder sent = new LongAdder();
+    /**
+     * Number of delivered messages.
+     */
+    private static final LongAdder delivered = new LongAdder();
+    /**
+     * Number of requests acknowledged with "ok".
+     */
+    private static final LongAdder acknowledged = new LongAdder();
+    /**
+     * Number of requests acknowledged with other statuses.
+     */
+    private static final LongAdder rejected = new LongAdder();
+    /**
+     * Number of requests with ids that are not acknowledged yet.
+     */
+    private static final AtomicLong unacknowledged = new AtomicLong();
+    /**
+     * Number of users that received their friends requests list.
+     */
+    private static final AtomicInteger requestsListsReceived = new AtomicInteger();
+    /**
+     * Number of open connections.
+     */
+    private static final AtomicInteger connections = new AtomicInteger();
+    /**
+     * Number of connections that could not be opened or authenticated.
+     */
+    private static final AtomicInteger failedConnections = new AtomicInteger();
+    /**
+     * Number of connections closed by server.
+     */
+    private static final AtomicInteger closedConnections = new AtomicInteger();
+
+    /**
+     * Runs load.
+     * Expects launching in format "LoadGenerator [--option=value]...", options: "host", "port", "users",
+     * "requests" (friends requests sent by each user), "graph" (ring, random or star), "hubs" (for star graph),
+     * "rate" (messages per second in total), "size" (message length), "warmup" and "seconds" (durations),
+     * "push" (true or false), "prefix" (usernames prefix) and "embedded" (blocking or selector) that starts server
+     * in the same process with data in temporary directory.
+     *
+     * @param args options
+     * @throws IOException          if embedded server can not be started
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String embedded = null;
+        for (String arg : args) {
+            String[] option = arg.startsWith("--") ? arg.substring(2).split("=", 2) : new String[0];
+            if (option.length != 2)
+                throw new IllegalArgumentException("Wrong option format: " + arg);
+            switch (option[0]) {
+                case "host":
+                    host = option[1];
+                    break;
+                case "port":
+                    port = Integer.parseInt(option[1]);
+                    break;
+                case "users":
+                    usersCount = Integer.parseInt(option[1]);
+                    break;
+                case "requests":
+                    requestsPerUser = Integer.parseInt(option[1]);
+                    break;
+                case "graph":
+                    graph = option[1];
+                    break;
+                case "hubs":
+                    hubs = Integer.parseInt(option[1]);
+                    break;
+                case "rate":
+                    rate = Double.parseDouble(option[1]);
+                    break;
+                case "size":
+                    messageLength = Integer.parseInt(option[1]);
+                    break;
+                case "warmup":
+                    warmup = Integer.parseInt(option[1]);
+                    break;
+                case "seconds":
+                    seconds = Integer.parseInt(option[1]);
+                    break;
+                case "push":
+                    push = Boolean.parseBoolean(option[1]);
+                    break;
+                case "prefix":
+                    prefix = option[1];
+                    break;
+                case "embedded":
+                    embedded = option[1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (!graph.equals("ring") && !graph.equals("random") && !graph.equals("star"))
+            throw new IllegalArgumentException("Unknown graph: " + graph);
+        Path dir = null;
+        Server server = null;
+        if (embedded != null) {
+            dir = Files.createTempDirectory("loadGenerator");
+            server = startServer(embedded, dir);
+        }
+        try {
+            run();
+        } finally {
+            if (server != null) {
+                server.stop();
+                deleteDirectory(dir);
+            }
+        }
+    }
+
+    /**
+     * Starts server in specified mode with data files in specified directory.
+     *
+     * @param mode "blocking" or "selector"
+     * @param dir  directory for server's files
+     * @return running server
+     * @throws IOException if server can not be started
+     */
+    private static Server startServer(String mode, Path dir) throws IOException {
+        Server.defaultUsersFileName = dir.resolve("serverUsersData").toString();
+        Server.defaultLogFileName = dir.resolve("serverUsersLog").toString();
+        Server.defaultCacheFileName = dir.resolve("serverUsersCache").toString();
+        Server server;
+        switch (mode) {
+            case "blocking":
+                server = new Server(new ServerSocket(port));
+                break;
+            case "selector":
+                server = new Server(ServerSocketChannel.open().bind(new InetSocketAddress(port)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        server.run();
+        return server;
+    }
+
+    /**
+     * Deletes directory with its files.
+     *
+     * @param dir directory
+     * @throws IOException if directory can not be deleted
+     */
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Connects users, builds friends graph, sends messages during warmup and measurement and prints results.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void run() throws InterruptedException {
+        long start = System.nanoTime();
+        List<SimulatedUser> users = new ArrayList<>();
+        for (int i = 0; i < usersCount; i++) {
+            SimulatedUser user = new SimulatedUser(prefix + i);
+            if (user.connect())
+                users.add(user);
+        }
+        System.out.printf("connected %d users in %.1f s, failed %d%n", users.size(),
+                (System.nanoTime() - start) / 1e9, failedConnections.get());
+        if (users.isEmpty())
+            return;
+
+        start = System.nanoTime();
+        for (int i = 0; i < users.size(); i++) {
+            for (int friend : friendsOf(i, users.size())) {
+                users.get(i).send("SendRequest " + users.get(friend).username, true);
+            }
+        }
+        awaitAcknowledgements();
+        for (SimulatedUser user : users) {
+            user.send("GetFriendsRequestsList", false);
+        }
+        while (requestsListsReceived.get() < users.size() && connections.get() > 0) {
+            Thread.sleep(10);
+        }
+        awaitAcknowledgements();
+        long friendships = 0;
+        for (SimulatedUser user : users) {
+            friendships += user.friends.size();
+        }
+        System.out.printf("made %d friendships (%s graph) in %.1f s%n", friendships / 2, graph,
+                (System.nanoTime() - start) / 1e9);
+
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), task -> {
+                    Thread thread = new Thread(task, "load-sender");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        long interval = (long) (users.size() / rate * 1e9);
+        for (SimulatedUser user : users) {
+            senders.scheduleAtFixedRate(user::sendMessage, ThreadLocalRandom.current().nextLong(interval + 1),
+                    interval, TimeUnit.NANOSECONDS);
+        }
+        long previousSent = 0;
+        long previousDelivered = 0;
+        for (int second = 1; second <= warmup + seconds; second++) {
+            if (second == warmup + 1) {
+                latencies.reset();
+                measuring = true;
+                start = System.nanoTime();
+                previousSent = sent.sum();
+                previousDelivered = delivered.sum();
+            }
+            Thread.sleep(1000);
+            System.out.printf("%s %d s: sent %d, delivered %d, connections %d, latency p50 %s p99 %s%n",
+                    second <= warmup ? "warmup" : "load", second <= warmup ? second : second - warmup,
+                    sent.sum(), delivered.sum(), connections.get(),
+                    format(latencies.percentile(0.5)), format(latencies.percentile(0.99)));
+        }
+        measuring = false;
+        double time = (System.nanoTime() - start) / 1e9;
+        senders.shutdownNow();
+        System.out.printf("throughput: sent %.0f msg/s, delivered %.0f msg/s (target %.0f msg/s)%n",
+                (sent.sum() - previousSent) / time, (delivered.sum() - previousDelivered) / time, rate);
+        System.out.printf("delivery latency: p50 %s, p99 %s, p999 %s, max %s (%d messages)%n",
+                format(latencies.percentile(0.5)), format(latencies.percentile(0.99)),
+                format(latencies.percentile(0.999)), format(latencies.max()), latencies.count());
+        System.out.printf("acknowledgements: ok %d, rejected %d, pending %d%n",
+                acknowledged.sum(), rejected.sum(), unacknowledged.get());
+        System.out.printf("connections: open %d, failed %d, closed by server %d%n",
+                connections.get(), failedConnections.get(), closedConnections.get());
+        for (SimulatedUser user : users) {
+            user.close();
+        }
+    }
+
+    /**
+     * Returns indices of users that user with specified index sends friends requests to.
+     *
+     * @param index user's index
+     * @param count number of users
+     * @return indices of users
+     */
+    private static Set<Integer> friendsOf(int index, int count) {
+        Set<Integer> friends = ConcurrentHashMap.newKeySet();
+        switch (graph) {
+            case "ring":
+                for (int i = 1; i <= requestsPerUser && i < count; i++) {
+                    friends.add((index + i) % count);
+                }
+                break;
+            case "random":
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < requestsPerUser && i < count - 1; i++) {
+                    int friend;
+                    do {
+                        friend = random.nextInt(count);
+                    } while (friend == index || !friends.add(friend));
+                }
+                break;
+            case "star":
+                if (index >= hubs) {
+                    for (int i = 0; i < hubs && i < count; i++) {
+                        friends.add(i);
+                    }
+                }
+                break;
+        }
+        return friends;
+    }
+
+    /**
+     * Waits until all requests with ids are acknowledged or all connections are closed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void awaitAcknowledgements() throws InterruptedException {
+        while (unacknowledged.get() > 0 && connections.get() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Records delivery of message and its latency if it carries time it was sent.
+     *
+     * @param msg received message
+     */
+    private static void delivered(String msg) {
+        delivered.increment();
+        if (!measuring || !msg.startsWith("t"))
+            return;
+        int end = msg.indexOf(' ');
+        try {
+            long sentTime = Long.parseLong(end < 0 ? msg.substring(1) : msg.substring(1, end));
+            latencies.record((System.nanoTime() - sentTime) / 1000);
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    /**
+     * Formats latency in microseconds with suitable unit.
+     *
+     * @param micros latency in microseconds
+     * @return formatted latency
+     */
+    private static String format(long micros) {
+        if (micros >= 1000)
+            return String.format("%.2f ms", micros / 1e3);
+        return micros + " us";
+    }
+
+    /**
+     * User that speaks text protocol over its own connection.
+     * Received messages are read by separate daemon thread.
+     */
+    private static class SimulatedUser {
+        /**
+         * User's username.
+         */
+        private final String username;
+        /**
+         * Ids of user's friends.
+         */
+        private final List<Integer> friends = new ArrayList<>();
+        /**
+         * Ids of friends which messages are requested and not received yet.
+         */
+        private final Set<Integer> requested = ConcurrentHashMap.newKeySet();
+        /**
+         * Id of last request with id.
+         */
+        private final AtomicInteger lastRequestId = new AtomicInteger();
+        /**
+         * Message's filler after its sending time.
+         */
+        private final String filler;
+        /**
+         * User's socket.
+         */
+        private Socket socket;
+        /**
+         * Socket's output stream, guarded by itself.
+         */
+        private OutputStream out;
+        /**
+         * Socket's reader.
+         */
+        private BufferedReader in;
+
+        /**
+         * Constructs user with specified username.
+         *
+         * @param username user's username
+         */
+        SimulatedUser(String username) {
+            this.username = username;
+            filler = "m".repeat(Math.max(0, messageLength - 21));
+        }
+
+        /**
+         * Connects to server, negotiates pushes, acknowledgements and heartbeats, registers user or logs in if user exists,
+         * follows redirects to node of cluster that owns user and starts reader thread.
+         *
+         * @return true if user is authenticated, otherwise false
+         */
+        boolean connect() {
+            try {
+                open(host, port);
+                writeLine("reg " + username + " password");
+                String answer = in.readLine();
+                if (answer.equals("Username exists")) {
+                    writeLine("auth " + username + " password");
+                    answer = in.readLine();
+                }
+                while (answer.startsWith("Redirect ")) {
+                    String[] address = answer.split(" ");
+                    socket.close();
+                    open(address[1], Integer.parseInt(address[2]));
+                    writeLine("auth " + username + " password");
+                    answer = in.readLine();
+                }
+                if (!answer.equals("Accepted"))
+                    throw new IOException(answer);
+            } catch (IOException | RuntimeException e) {
+                failedConnections.incrementAndGet();
+                close();
+                return false;
+            }
+            connections.incrementAndGet();
+            Thread reader = new Thread(null, this::read, "load-reader", 256 << 10);
+            reader.setDaemon(true);
+            reader.start();
+            return true;
+        }
+
+        /**
+         * Opens connection to specified server and negotiates pushes, acknowledgements and heartbeats.
+         *
+         * @param host server's host
+         * @param port server's port
+         * @throws IOException if connection can not be opened or server does not support negotiation
+         */
+        private void open(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writeLine(push ? "Hello push ack ping" : "Hello ack ping");
+            if (!in.readLine().startsWith("Hello"))
+                throw new IOException("Server does not support capabilities negotiation");
+        }
+
+        /**
+         * Sends request, with id if specified. Closes connection if request can not be sent.
+         *
+         * @param request request
+         * @param withId  true if request should be acknowledged
+         */
+        void send(String request, boolean withId) {
+            try {
+                if (withId) {
+                    unacknowledged.incrementAndGet();
+                    writeLine("#" + lastRequestId.incrementAndGet() + " " + request);
+                } else {
+                    writeLine(request);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Sends message with current time to random friend. Does nothing if user has no friends.
+         */
+        void sendMessage() {
+            int friend;
+            synchronized (friends) {
+                if (friends.isEmpty())
+                    return;
+                friend = friends.get(ThreadLocalRandom.current().nextInt(friends.size()));
+            }
+            send("SendMessage " + friend + " t" + System.nanoTime() + " " + filler, true);
+            sent.increment();
+        }
+
+        /**
+         * Writes line to socket.
+         *
+         * @param line line without line break
+         * @throws IOException if i/o error occurred
+         */
+        private void writeLine(String line) throws IOException {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            synchronized (out) {
+                out.write(bytes);
+                out.flush();
+            }
+        }
+
+        /**
+         * Reader's loop, processes received messages until connection is closed.
+         */
+        private void read() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    process(line);
+                }
+            } catch (IOException | RuntimeException ignored) {
+            }
+            if (!socket.isClosed())
+                closedConnections.incrementAndGet();
+            connections.decrementAndGet();
+            close();
+        }
+
+        /**
+         * Processes received message.
+         *
+         * @param line message
+         */
+        private void process(String line) {
+            String[] buffer = line.split(" ", 2);
+            switch (buffer[0]) {
+                case "FriendsList": {
+                    String[] fields = buffer[1].split(" ");
+                    for (int i = 1; i + 2 < fields.length; i += 3) {
+                        addFriend(Integer.parseInt(fields[i + 1]));
+                    }
+                    break;
+                }
+                case "NewFriend":
+                    addFriend(Integer.parseInt(buffer[1].substring(buffer[1].lastIndexOf(' ') + 1)));
+                    break;
+                case "RequestsList": {
+                    String[] fields = buffer[1].split(" ");
+                    for (int i = 1; i + 1 < fields.length; i += 2) {
+                        send("AcceptRequest " + fields[i + 1], true);
+                    }
+                    requestsListsReceived.incrementAndGet();
+                    break;
+                }
+                case "NewMessage":
+                    delivered(buffer[1].substring(buffer[1].indexOf(' ') + 1));
+                    break;
+                case "NewMessages":
+                    receiveBatch(buffer[1]);
+                    break;
+                case "UnreadMessages": {
+                    String[] fields = buffer[1].split(" ");
+                    int friend = Integer.parseInt(fields[0]);
+                    if (!fields[1].equals("0") && requested.add(friend))
+                        send("GetMessagesFrom " + friend + " 100", false);
+                    break;
+                }
+                case "Ping":
+                    send("Pong", false);
+                    break;
+                case "Ack":
+                    if (buffer[1].endsWith(" ok"))
+                        acknowledged.increment();
+                    else
+                        rejected.increment();
+                    unacknowledged.decrementAndGet();
+                    break;
+            }
+        }
+
+        /**
+         * Adds friend with specified id if it is not added yet.
+         *
+         * @param id friend's id
+         */
+        private void addFriend(int id) {
+            synchronized (friends) {
+                if (!friends.contains(id))
+                    friends.add(id);
+            }
+        }
+
+        /**
+         * Receives batch of messages in format "id n( length message){n}".
+         *
+         * @param batch batch
+         */
+        private void receiveBatch(String batch) {
+            int end = batch.indexOf(' ');
+            int friend = Integer.parseInt(batch.substring(0, end));
+            int start = end + 1;
+            end = batch.indexOf(' ', start);
+            int n = Integer.parseInt(end < 0 ? batch.substring(start) : batch.substring(start, end));
+            for (int i = 0; i < n; i++) {
+                start = end + 1;
+                end = batch.indexOf(' ', start);
+                int length = Integer.parseInt(batch.substring(start, end));
+                delivered(batch.substring(end + 1, end + 1 + length));
+                end += 1 + length;
+            }
+            requested.remove(friend);
+        }
+
+        /**
+         * Closes user's connection.
+         */
+        void close() {
+            try {
+                if (socket != null)
+                    socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Histogram of non-negative values with buckets of relative width of 1/16,
+     * so percentiles are computed with bounded memory and error.
+     */
+    private static class Histogram {
+        /**
+         * Number of sub-buckets in each power of two.
+         */
+        private static final int subBuckets = 16;
+        /**
+         * Counts of values by buckets.
+         */
+        private final AtomicLongArray counts = new AtomicLongArray(64 * subBuckets);
+        /**
+         * Maximum recorded value.
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records value.
+         *
+         * @param value non-negative value
+         */
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        /**
+         * Returns index of bucket with specified value.
+         *
+         * @param value non-negative value
+         * @return bucket's index
+         */
+        private static int index(long value) {
+            if (value < subBuckets)
+                return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+            return (shift + 1) * subBuckets + (int) ((value >> shift) & (subBuckets - 1));
+        }
+
+        /**
+         * Returns lowest value of bucket with specified index.
+         *
+         * @param index bucket's index
+         * @return value
+         */
+        private static long value(int index) {
+            if (index < subBuckets)
+                return index;
+            int shift = index / subBuckets - 1;
+            return (long) (subBuckets + index % subBuckets) << shift;
+        }
+
+        /**
+         * Returns value that specified fraction of recorded values does not exceed, within bucket's precision.
+         *
+         * @param fraction fraction from 0 to 1
+         * @return value or 0 if nothing recorded
+         */
+        long percentile(double fraction) {
+            long total = count();
+            long target = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target && seen > 0)
+                    return value(i);
+            }
+            return 0;
+        }
+
+        /**
+         * Returns number of recorded values.
+         *
+         * @return number of values
+         */
+        long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * Returns maximum recorded value.
+         *
+         * @return maximum value
+         */
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * Forgets recorded values.
+         */
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            max.set(0);
+        }
+    }
+}
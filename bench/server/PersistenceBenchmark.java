@@ -0,0 +1,135 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmark that compares startup load time of users data saved with java serialization,
+ * with binary users file decoded to memory and with binary users file copied to users storage.
+ */
+public class PersistenceBenchmark {
+    /**
+     * Generates users data, saves it in both formats and measures their load time.
+     * Expects launching in format "PersistenceBenchmark [users] [friends] [messages] [iterations]".
+     *
+     * @param args number of users, friends per user, unread messages per friend and measured iterations
+     * @throws IOException if i/o error occurred
+     */
+    public static void main(String[] args) throws IOException {
+        int usersCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int friendsCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int messagesCount = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        Map<String, UserInfo> usernames = new HashMap<>();
+        List<User> users = new ArrayList<>();
+        generate(usersCount, friendsCount, messagesCount, usernames, users);
+        Path dir = Files.createTempDirectory("persistenceBenchmark");
+        Path serialized = dir.resolve("serialized");
+        Path binary = dir.resolve("binary");
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(serialized)))) {
+                out.writeObject(usernames);
+                out.writeObject(0L);
+                out.writeInt(users.size());
+                for (User user : users) {
+                    out.writeObject(user);
+                    out.reset();
+                }
+            }
+            long start = System.nanoTime();
+            UsersFile.write(binary, 0, usernames, users.size(), users::get);
+            System.out.printf("binary save: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+            System.out.printf("serialized size: %d bytes, binary size: %d bytes%n",
+                    Files.size(serialized), Files.size(binary));
+            for (int i = 0; i < iterations + 2; i++) {
+                String phase = i < 2 ? "warmup" : "iteration " + (i - 1);
+                System.out.printf("%s: serialized load %.1f ms, binary load %.1f ms, lazy load %.1f ms%n", phase,
+                        measure(() -> {
+                            try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(serialized))) {
+                                return UsersFile.readSerialized(in, new HashMap<>(), new ArrayList<>());
+                            }
+                        }),
+                        measure(() -> UsersFile.read(binary, new HashMap<>(), new ArrayList<>(), null)),
+                        measure(() -> {
+                            List<User> loaded = new ArrayList<>();
+                            UserStore store = new UserStore(dir.resolve("cache").toString(), 0,
+                                    loaded::size, loaded::get);
+                            try {
+                                return UsersFile.read(binary, new HashMap<>(), loaded, store);
+                            } finally {
+                                store.close();
+                            }
+                        }));
+            }
+        } finally {
+            Files.deleteIfExists(serialized);
+            Files.deleteIfExists(binary);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * Generates users with specified number of friends and unread messages from each friend.
+     *
+     * @param usersCount    number of users
+     * @param friendsCount  number of friends per user
+     * @param messagesCount number of unread messages per friend
+     * @param usernames     container for information about registered users
+     * @param users         container for users
+     * @throws IOException never, since users are not connected
+     */
+    static void generate(int usersCount, int friendsCount, int messagesCount,
+                         Map<String, UserInfo> usernames, List<User> users) throws IOException {
+        for (int id = 0; id < usersCount; id++) {
+            usernames.put("user" + id, new UserInfo(id, "password" + id));
+            users.add(new User());
+        }
+        for (int id = 0; id < usersCount; id++) {
+            for (int i = 1; i <= friendsCount / 2; i++) {
+                int friendId = (id + i) % usersCount;
+                users.get(friendId).addNewFriendsRequest(id, "user" + id);
+                users.get(friendId).acceptFriendsRequest(id);
+                users.get(id).friendsRequestAccepted(friendId, "user" + friendId);
+                for (int j = 0; j < messagesCount; j++) {
+                    users.get(friendId).saveMessageFrom(id, "message " + j + " from user" + id);
+                    users.get(id).saveMessageFrom(friendId, "message " + j + " from user" + friendId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loader of users data.
+     */
+    private interface Loader {
+        /**
+         * Loads users data.
+         *
+         * @return sequence number of loaded data
+         * @throws IOException if i/o error occurred
+         */
+        long load() throws IOException;
+    }
+
+    /**
+     * Returns time spent by loader in milliseconds.
+     *
+     * @param loader loader
+     * @return time in milliseconds
+     * @throws IOException if i/o error occurred
+     */
+    private static double measure(Loader loader) throws IOException {
+        long start = System.nanoTime();
+        loader.load();
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
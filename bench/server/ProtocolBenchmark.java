@@ -0,0 +1,147 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark that compares throughput of decoding requests and encoding messages
+ * in text and binary protocols.
+ */
+public class ProtocolBenchmark {
+    /**
+     * Encodes stream of SendMessage requests in both protocols and measures their decoding
+     * and encoding of NewMessage messages.
+     * Expects launching in format "ProtocolBenchmark [requests] [messageLength] [iterations]".
+     *
+     * @param args number of requests, length of message in characters and measured iterations
+     * @throws IOException if request is malformed
+     */
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String msg = "m".repeat(length);
+        Encoder text = new Encoder();
+        Encoder binary = new Encoder();
+        for (int i = 0; i < count; i++) {
+            byte[] line = ("SendMessage " + i % 1000 + " " + msg + "\n").getBytes(StandardCharsets.UTF_8);
+            text.write(line, 0, line.length);
+            Encoder payload = new Encoder(length + 8);
+            payload.writeVarint(i % 1000);
+            payload.writeString(msg);
+            binary.write(BinaryProtocol.SEND_MESSAGE);
+            binary.writeVarint(payload.size());
+            binary.write(payload.bytes(), 0, payload.size());
+        }
+        System.out.printf("stream size: text %d bytes, binary %d bytes%n", text.size(), binary.size());
+        for (int i = 0; i < iterations + 2; i++) {
+            String phase = i < 2 ? "warmup" : "iteration " + (i - 1);
+            double textDecode = decode(Protocol.text, text, count);
+            double binaryDecode = decode(Protocol.binary, binary, count);
+            double textEncode = encode(Protocol.text, msg, count);
+            double binaryEncode = encode(Protocol.binary, msg, count);
+            System.out.printf("%s: decode text %.2f Mreq/s (%.0f MB/s), binary %.2f Mreq/s (%.0f MB/s); " +
+                            "encode text %.2f Mmsg/s, binary %.2f Mmsg/s%n", phase,
+                    count / textDecode / 1e6, text.size() / textDecode / 1e6,
+                    count / binaryDecode / 1e6, binary.size() / binaryDecode / 1e6,
+                    count / textEncode / 1e6, count / binaryEncode / 1e6);
+        }
+    }
+
+    /**
+     * Decodes all requests from stream and returns spent time in seconds.
+     *
+     * @param protocol protocol
+     * @param stream   encoded requests
+     * @param count    number of requests
+     * @return time in seconds
+     * @throws IOException if request is malformed or not all requests were decoded
+     */
+    private static double decode(Protocol protocol, Encoder stream, int count) throws IOException {
+        CountingHandler handler = new CountingHandler();
+        byte[] buf = stream.bytes();
+        int end = stream.size();
+        long start = System.nanoTime();
+        int position = 0;
+        int consumed;
+        while ((consumed = protocol.decode(buf, position, end - position, handler)) > 0) {
+            position += consumed;
+        }
+        double time = (System.nanoTime() - start) / 1e9;
+        if (handler.requests != count)
+            throw new IOException("Decoded " + handler.requests + " requests instead of " + count);
+        return time;
+    }
+
+    /**
+     * Encodes messages and returns spent time in seconds.
+     *
+     * @param protocol protocol
+     * @param msg      message
+     * @param count    number of messages
+     * @return time in seconds
+     */
+    private static double encode(Protocol protocol, String msg, int count) {
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            bytes += protocol.newMessage(i % 1000, msg).length;
+        }
+        double time = (System.nanoTime() - start) / 1e9;
+        if (bytes == 0)
+            throw new IllegalStateException("Nothing encoded");
+        return time;
+    }
+
+    /**
+     * Handler that counts sent messages.
+     */
+    private static class CountingHandler implements RequestHandler {
+        /**
+         * Number of decoded requests.
+         */
+        private int requests = 0;
+        /**
+         * Sum of friends' ids and messages' lengths, so decoded fields are used.
+         */
+        private long checksum = 0;
+
+        @Override
+        public void hello(String[] capabilities) {
+        }
+
+        @Override
+        public void authenticate(boolean register, String username, String password) {
+        }
+
+        @Override
+        public void malformed() {
+        }
+
+        @Override
+        public void getFriendsRequestsList() {
+        }
+
+        @Override
+        public void acceptRequest(int id) {
+        }
+
+        @Override
+        public void sendRequest(String username) {
+        }
+
+        @Override
+        public void sendMessage(int id, String msg) {
+            requests++;
+            checksum += id + msg.length();
+        }
+
+        @Override
+        public void getMessageFrom(int id) {
+        }
+
+        @Override
+        public void getMessagesFrom(int id, int max) {
+        }
+    }
+}
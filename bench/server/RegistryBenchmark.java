@@ -0,0 +1,232 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Benchmark that compares throughput of users lookups mixed with registrations
+ * for containers guarded by monitors, by read-write locks and for lock-free registry
+ * with increasing number of threads.
+ */
+public class RegistryBenchmark {
+    /**
+     * Runs benchmark.
+     * Expects launching in format "RegistryBenchmark [users] [seconds] [maxThreads] [registrationsPerMille]".
+     *
+     * @param args number of initially registered users, duration of each run in seconds,
+     *             maximum number of threads and number of registrations per thousand operations
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int usersCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+        int registrations = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        String[] names = new String[usersCount];
+        for (int i = 0; i < usersCount; i++) {
+            names[i] = "user" + i;
+        }
+        System.out.println("processors: " + Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.printf("threads %d: monitor %.2f Mops/s, locks %.2f Mops/s, lock-free %.2f Mops/s%n", threads,
+                    run(new MonitorDirectory(), names, threads, seconds, registrations),
+                    run(new LocksDirectory(), names, threads, seconds, registrations),
+                    run(new LockFreeDirectory(), names, threads, seconds, registrations));
+        }
+    }
+
+    /**
+     * Fills directory with users and runs mixed workload with specified number of threads.
+     *
+     * @param directory     directory
+     * @param names         initial usernames
+     * @param threads       number of threads
+     * @param seconds       duration of run in seconds
+     * @param registrations number of registrations per thousand operations
+     * @return millions of operations per second
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    private static double run(Directory directory, String[] names, int threads, double seconds, int registrations)
+            throws InterruptedException {
+        for (String name : names) {
+            directory.register(name, "password");
+        }
+        AtomicInteger nextName = new AtomicInteger();
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + (long) (seconds * 1e9) + 100_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                    if (random.nextInt(1000) < registrations) {
+                        directory.register("new" + nextName.getAndIncrement(), "password");
+                    } else {
+                        UserInfo info = directory.lookup(names[random.nextInt(names.length)]);
+                        if (directory.get(info.id) == null)
+                            throw new IllegalStateException("User not found");
+                    }
+                    count++;
+                }
+                operations.add(count);
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / ((System.nanoTime() - begin) / 1e9) / 1e6;
+    }
+
+    /**
+     * Container of users and their usernames.
+     */
+    private interface Directory {
+        /**
+         * Returns user with specified id.
+         *
+         * @param id user's id
+         * @return user
+         */
+        User get(int id);
+
+        /**
+         * Returns information about user with specified username.
+         *
+         * @param username user's username
+         * @return information about user
+         */
+        UserInfo lookup(String username);
+
+        /**
+         * Registers new user.
+         *
+         * @param username user's username
+         * @param password user's password
+         */
+        void register(String username, String password);
+    }
+
+    /**
+     * Containers guarded by their monitors.
+     */
+    private static class MonitorDirectory implements Directory {
+        private final ArrayList<User> users = new ArrayList<>();
+        private final Map<String, UserInfo> usernames = new HashMap<>();
+
+        @Override
+        public User get(int id) {
+            synchronized (users) {
+                return users.get(id);
+            }
+        }
+
+        @Override
+        public UserInfo lookup(String username) {
+            synchronized (usernames) {
+                return usernames.get(username);
+            }
+        }
+
+        @Override
+        public void register(String username, String password) {
+            int id;
+            synchronized (users) {
+                id = users.size();
+                users.add(new User());
+            }
+            synchronized (usernames) {
+                usernames.put(username, new UserInfo(id, password));
+            }
+        }
+    }
+
+    /**
+     * Containers guarded by read-write locks.
+     */
+    private static class LocksDirectory implements Directory {
+        private final ArrayList<User> users = new ArrayList<>();
+        private final ReentrantReadWriteLock usersLock = new ReentrantReadWriteLock();
+        private final Map<String, UserInfo> usernames = new HashMap<>();
+        private final ReentrantReadWriteLock usernamesLock = new ReentrantReadWriteLock();
+
+        @Override
+        public User get(int id) {
+            usersLock.readLock().lock();
+            try {
+                return users.get(id);
+            } finally {
+                usersLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public UserInfo lookup(String username) {
+            usernamesLock.readLock().lock();
+            try {
+                return usernames.get(username);
+            } finally {
+                usernamesLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void register(String username, String password) {
+            int id;
+            usersLock.writeLock().lock();
+            try {
+                id = users.size();
+                users.add(new User());
+            } finally {
+                usersLock.writeLock().unlock();
+            }
+            usernamesLock.writeLock().lock();
+            try {
+                usernames.put(username, new UserInfo(id, password));
+            } finally {
+                usernamesLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Lock-free registry with concurrent usernames index, as used by server.
+     */
+    private static class LockFreeDirectory implements Directory {
+        private final UserRegistry users = new UserRegistry();
+        private final ConcurrentHashMap<String, UserInfo> usernames = new ConcurrentHashMap<>();
+
+        @Override
+        public User get(int id) {
+            return users.get(id);
+        }
+
+        @Override
+        public UserInfo lookup(String username) {
+            return usernames.get(username);
+        }
+
+        @Override
+        public void register(String username, String password) {
+            usernames.computeIfAbsent(username, name -> new UserInfo(users.add(id -> new User()), password));
+        }
+    }
+}
@@ -55,9 +55,17 @@ public class AuthenticationDialog extends JDialog {
      */
     private int selectedMethod = 0;
     /**
-     * Server connection socket.
+     * Server connection socket, replaced when server redirects client to other node of cluster.
      */
-    private final Socket newSocket;
+    private Socket newSocket;
+    /**
+     * True if server pushes new messages to client.
+     */
+    private boolean push = false;
+    /**
+     * True if server acknowledges requests with ids.
+     */
+    private boolean ack = false;
 
     /**
      * Authentication window Initializer.
@@ -124,12 +132,37 @@ public class AuthenticationDialog extends JDialog {
         try {
             out = new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8);
             in = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), StandardCharsets.UTF_8));
+            negotiate();
             setVisible(true);
         } catch (IOException e) {
             error("Error occurred creating connection");
         }
     }
 
+    /**
+     * Requests server to push new messages, to compress its stream, to acknowledge requests
+     * and to ping connection when it is idle.
+     * Servers that do not support handshake answer with error and keep pull mode without compression.
+     *
+     * @throws IOException if i/o error occurred or connection closed
+     */
+    private void negotiate() throws IOException {
+        out.write("Hello push deflate ack ping\n");
+        out.flush();
+        String answer = in.readLine();
+        if (answer == null)
+            throw new IOException("Connection closed");
+        for (String capability : answer.split(" ")) {
+            if (capability.equals("push"))
+                push = true;
+            else if (capability.equals("ack"))
+                ack = true;
+            else if (capability.equals("deflate"))
+                in = new BufferedReader(new InputStreamReader(
+                        new InflatingInputStream(newSocket.getInputStream()), StandardCharsets.UTF_8));
+        }
+    }
+
     /**
      * Called when authentication method changed.
      * Changes authentication method.
@@ -174,10 +207,13 @@ public class AuthenticationDialog extends JDialog {
             out.flush();
             try {
                 String buffer = in.readLine();
+                while (buffer != null && buffer.startsWith("Redirect ")) {
+                    buffer = redirect(buffer, username, password);
+                }
                 if (buffer != null) {
                     if (buffer.equals("Accepted")) {
                         dispose();
-                        new Client(newSocket, username, in);
+                        new Client(newSocket, username, in, push, ack);
                     } else {
                         JOptionPane.showMessageDialog(this, buffer,
                                 "Access denied",
@@ -196,6 +232,32 @@ public class AuthenticationDialog extends JDialog {
         }
     }
 
+    /**
+     * Connects to node of cluster specified in server's redirect answer and logs in there,
+     * since registered user already exists on all nodes.
+     *
+     * @param answer   redirect answer in format "Redirect host port"
+     * @param username user's username
+     * @param password user's password
+     * @return new node's answer or null if connection closed
+     * @throws IOException if i/o error occurred
+     */
+    private String redirect(String answer, String username, String password) throws IOException {
+        String[] address = answer.split(" ");
+        if (address.length != 3)
+            throw new IOException("Wrong redirect answer: " + answer);
+        newSocket.close();
+        newSocket = new Socket(address[1], Integer.parseInt(address[2]));
+        out = new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8);
+        in = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), StandardCharsets.UTF_8));
+        push = false;
+        ack = false;
+        negotiate();
+        out.write("auth " + username + " " + password + "\n");
+        out.flush();
+        return in.readLine();
+    }
+
     /**
      * Called when cancel button pressed.
      * Closes window.
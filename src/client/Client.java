@@ -29,9 +29,15 @@ import java.io.IOException;
 import java.io.BufferedReader;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
 public class Client extends JFrame {
+    /**
+     * Maximum number of new messages requested from server at once.
+     */
+    private static final int messagesBatchSize = 100;
     /**
      * Messages area.
      */
@@ -68,6 +74,22 @@ public class Client extends JFrame {
      * Server output stream.
      */
     private OutputStreamWriter out = null;
+    /**
+     * True if server pushes new messages to client.
+     */
+    private final boolean push;
+    /**
+     * True if server acknowledges requests with ids.
+     */
+    private final boolean ack;
+    /**
+     * Id of last sent request.
+     */
+    private int lastRequestId = 0;
+    /**
+     * Sent messages waiting for acknowledgement by request ids.
+     */
+    private final Map<Integer, Message> unacknowledged = new HashMap<>();
 
     /**
      * Main window initializer.
@@ -76,14 +98,18 @@ public class Client extends JFrame {
      * @param socket   server connection socket
      * @param username user's username
      * @param in       server input stream
+     * @param push     true if server pushes new messages to client
+     * @param ack      true if server acknowledges requests with ids
      */
-    Client(Socket socket, String username, BufferedReader in) {
+    Client(Socket socket, String username, BufferedReader in, boolean push, boolean ack) {
         super("Messenger (" + username + ")");
         if (socket == null || socket.isClosed() ||
                 username == null || username.isBlank())
             throw new IllegalArgumentException("Illegal arguments passed");
         clientSocket = socket;
         clientUsername = username;
+        this.push = push;
+        this.ack = ack;
         // setting up messages area
         msgArea.setEditable(false);
         JScrollPane msgAreaScrollPane = new JScrollPane(
@@ -193,6 +219,8 @@ public class Client extends JFrame {
             selectedFriend = newSelection;
             reloadMessages();
         }
+        if (push && selectedFriend != null)
+            friends.setUnreadMessagesToId(selectedFriend.id, 0);
         getNewMessagesFromSelected();
     }
 
@@ -226,6 +254,7 @@ public class Client extends JFrame {
      * Sends message to current selected friend if selected and message isn't blank.
      * Sets message input field empty, adds message to memory
      * and prints message to message area on success.
+     * If server acknowledges requests, message is sent with id and waits for acknowledgement.
      *
      * @param event ignored
      */
@@ -233,8 +262,13 @@ public class Client extends JFrame {
         if (textField.getText().isBlank() || selectedFriend == null) return;
         try {
             String msg = textField.getText().trim();
-            send("SendMessage " + selectedFriend.id + " " + msg + "\n");
-            Message newMsg = new Message(textField.getText().trim(), true);
+            Message newMsg = new Message(msg, true);
+            if (ack) {
+                send("#" + ++lastRequestId + " SendMessage " + selectedFriend.id + " " + msg + "\n");
+                unacknowledged.put(lastRequestId, newMsg);
+            } else {
+                send("SendMessage " + selectedFriend.id + " " + msg + "\n");
+            }
             selectedFriend.messages.add(newMsg);
             printMsg(newMsg);
             textField.setText(null);
@@ -464,13 +498,13 @@ public class Client extends JFrame {
     }
 
     /**
-     * Sends server request for new messages from selected user.
+     * Sends server request for batch of new messages from selected user.
      * Does nothing if no friend selected.
      */
     private void getNewMessagesFromSelected() {
         if (selectedFriend != null)
             try {
-                send("GetMessageFrom " + selectedFriend.id + "\n");
+                send("GetMessagesFrom " + selectedFriend.id + " " + messagesBatchSize + "\n");
             } catch (IOException e) {
                 error("Error occurred while sending message: " + e.getMessage());
             }
@@ -510,7 +544,7 @@ public class Client extends JFrame {
                 case "UnreadMessages":
                     localBuffer = buffer[1].split(" ", 2);
                     friendId = Integer.parseInt(localBuffer[0]);
-                    if (selectedFriend != null && selectedFriend.id == friendId) {
+                    if (selectedFriend != null && selectedFriend.id == friendId && !localBuffer[1].equals("0")) {
                         getNewMessagesFromSelected();
                     }
                     friends.setUnreadMessagesToId(Integer.parseInt(localBuffer[0]), Integer.parseInt(localBuffer[1]));
@@ -522,7 +556,26 @@ public class Client extends JFrame {
                         selectedFriend.messages.add(new Message(localBuffer[1], false));
                         printMsg(selectedFriend.messages.getLast());
                     } else {
-                        friends.getFriendWithId(friendId).addNewMessage(localBuffer[1], false);
+                        Friend friend = friends.getFriendWithId(friendId);
+                        friend.addNewMessage(localBuffer[1], false);
+                        friends.setUnreadMessagesToId(friendId, friend.unreadMessages);
+                    }
+                    break;
+                case "NewMessages":
+                    addNewMessages(buffer[1]);
+                    break;
+                case "Ping":
+                    try {
+                        send("Pong\n");
+                    } catch (IOException ignored) {
+                    }
+                    break;
+                case "Ack":
+                    localBuffer = buffer[1].split(" ", 2);
+                    Message acknowledged = unacknowledged.remove(Integer.parseInt(localBuffer[0]));
+                    if (acknowledged != null && !localBuffer[1].equals("ok")) {
+                        acknowledged.undelivered = true;
+                        reloadMessages();
                     }
                     break;
             }
@@ -530,6 +583,41 @@ public class Client extends JFrame {
         }
     }
 
+    /**
+     * Adds messages from batch received from server in format "id n( length message){n}".
+     *
+     * @param batch batch of messages
+     * @throws NumberFormatException if batch is malformed
+     */
+    private void addNewMessages(String batch) {
+        int end = batch.indexOf(' ');
+        int friendId = Integer.parseInt(batch.substring(0, end));
+        int start = end + 1;
+        end = batch.indexOf(' ', start);
+        int n = Integer.parseInt(end < 0 ? batch.substring(start) : batch.substring(start, end));
+        Friend friend = selectedFriend != null && selectedFriend.id == friendId
+                ? selectedFriend : friends.getFriendWithId(friendId);
+        for (int i = 0; i < n; i++) {
+            start = end + 1;
+            end = batch.indexOf(' ', start);
+            if (end < 0)
+                throw new NumberFormatException("Malformed messages batch");
+            int length = Integer.parseInt(batch.substring(start, end));
+            if (length < 0 || end + 1 + length > batch.length())
+                throw new NumberFormatException("Malformed messages batch");
+            String msg = batch.substring(end + 1, end + 1 + length);
+            end += 1 + length;
+            if (friend == null)
+                continue;
+            if (friend == selectedFriend) {
+                selectedFriend.messages.add(new Message(msg, false));
+                printMsg(selectedFriend.messages.getLast());
+            } else {
+                friend.addNewMessage(msg, false);
+            }
+        }
+    }
+
     /**
      * Sends passed string to server.
      *
@@ -564,7 +652,10 @@ public class Client extends JFrame {
         } else {
             appendToMsgArea(selectedFriend.username + ": ", Color.blue);
         }
-        appendToMsgArea(msg.msg + "\n", Color.black);
+        appendToMsgArea(msg.msg, Color.black);
+        if (msg.undelivered)
+            appendToMsgArea(" (not delivered)", Color.red);
+        appendToMsgArea("\n", Color.black);
         msgArea.setEditable(false);
     }
 
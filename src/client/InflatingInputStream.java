@@ -0,0 +1,113 @@
+package client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream that decodes server's compressed stream.
+ * Stream consists of blocks in format "[flag][varint length][data]": flag 0 means that data is sent as is,
+ * flag 1 means that data is continuation of DEFLATE stream ended by sync flush.
+ */
+public class InflatingInputStream extends InputStream {
+    /**
+     * Server input stream.
+     */
+    private final InputStream in;
+    /**
+     * Inflater of compressed blocks.
+     */
+    private final Inflater inflater = new Inflater(true);
+    /**
+     * Buffer for compressed data.
+     */
+    private final byte[] buf = new byte[8192];
+    /**
+     * True if current block is compressed.
+     */
+    private boolean deflated = false;
+    /**
+     * Number of current block's bytes that are not read from server input stream yet.
+     */
+    private int remaining = 0;
+
+    /**
+     * Initializes stream that decodes passed server input stream.
+     *
+     * @param in server input stream
+     */
+    public InflatingInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (true) {
+            if (deflated) {
+                try {
+                    int n = inflater.inflate(b, off, len);
+                    if (n > 0)
+                        return n;
+                } catch (DataFormatException e) {
+                    throw new IOException("Malformed compressed block", e);
+                }
+                if (remaining > 0) {
+                    int n = in.read(buf, 0, Math.min(buf.length, remaining));
+                    if (n < 0)
+                        throw new EOFException("Connection closed");
+                    remaining -= n;
+                    inflater.setInput(buf, 0, n);
+                    continue;
+                }
+            } else if (remaining > 0) {
+                int n = in.read(b, off, Math.min(len, remaining));
+                if (n < 0)
+                    throw new EOFException("Connection closed");
+                remaining -= n;
+                return n;
+            }
+            int flag = in.read();
+            if (flag < 0)
+                return -1;
+            if (flag > 1)
+                throw new IOException("Unknown block flag: " + flag);
+            deflated = flag == 1;
+            remaining = readVarint();
+        }
+    }
+
+    /**
+     * Reads block's length written as varint.
+     *
+     * @return length
+     * @throws IOException if i/o error occurred, connection closed or length is malformed
+     */
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Connection closed");
+            value |= (b & 0x7f) << shift;
+            if (b < 0x80)
+                return value;
+        }
+        throw new IOException("Malformed block length");
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -12,6 +12,10 @@ public class Message {
      * String with message.
      */
     String msg;
+    /**
+     * Flag that indicates that server did not accept client's message.
+     */
+    boolean undelivered = false;
 
     /**
      * Constructs new message with specified message and flag.
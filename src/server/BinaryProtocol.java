@@ -0,0 +1,417 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protocol with requests and messages as frames: opcode byte, varint payload length and payload.
+ * Payload consists of varint numbers and strings written as varint length followed by UTF-8 bytes,
+ * so messages can contain any characters and are decoded without splitting lines into fields.
+ */
+public class BinaryProtocol extends Protocol {
+    /**
+     * Request opcodes.
+     */
+    public static final byte AUTH = 1;
+    public static final byte REG = 2;
+    public static final byte GET_FRIENDS_REQUESTS_LIST = 3;
+    public static final byte ACCEPT_REQUEST = 4;
+    public static final byte SEND_REQUEST = 5;
+    public static final byte SEND_MESSAGE = 6;
+    public static final byte GET_MESSAGE_FROM = 7;
+    public static final byte GET_MESSAGES_FROM = 8;
+    public static final byte PING = 9;
+    public static final byte PONG = 10;
+    public static final byte SET_RETENTION = 11;
+    public static final byte CREATE_GROUP = 12;
+    public static final byte ADD_TO_GROUP = 13;
+    public static final byte REMOVE_FROM_GROUP = 14;
+    public static final byte SEND_GROUP_MESSAGE = 15;
+    public static final byte GET_GROUP_MESSAGES = 16;
+    public static final byte GET_GROUP_MEMBERS = 17;
+    public static final byte SET_PRESENCE = 18;
+    /**
+     * Flag of request opcode that means that payload starts with request's id.
+     */
+    public static final byte REQUEST_ID = (byte) 0x80;
+    /**
+     * Message opcodes.
+     */
+    public static final byte ACCEPTED = 1;
+    public static final byte ERROR = 2;
+    public static final byte FRIENDS_LIST = 3;
+    public static final byte REQUESTS_LIST = 4;
+    public static final byte NUMBER_OF_REQUESTS = 5;
+    public static final byte NEW_FRIEND = 6;
+    public static final byte UNREAD_MESSAGES = 7;
+    public static final byte NEW_MESSAGE = 8;
+    public static final byte NEW_MESSAGES = 9;
+    public static final byte NOTIFICATION = 10;
+    public static final byte ACK = 11;
+    public static final byte SERVER_PING = 12;
+    public static final byte SERVER_PONG = 13;
+    public static final byte REDIRECT = 14;
+    public static final byte GROUPS_LIST = 15;
+    public static final byte NEW_GROUP = 16;
+    public static final byte LEFT_GROUP = 17;
+    public static final byte GROUP_MEMBERS = 18;
+    public static final byte UNREAD_GROUP_MESSAGES = 19;
+    public static final byte NEW_GROUP_MESSAGE = 20;
+    public static final byte NEW_GROUP_MESSAGES = 21;
+    public static final byte PRESENCE = 22;
+    /**
+     * Maximum length of frame's header.
+     */
+    private static final int maxHeaderLength = 6;
+
+    @Override
+    public int decode(byte[] buf, int offset, int length, RequestHandler handler) throws IOException {
+        if (length < 2)
+            return 0;
+        int end = offset + length;
+        int position = offset + 1;
+        long payloadLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position == end)
+                return 0;
+            if (shift > 28)
+                throw new IOException("Malformed frame length");
+            byte b = buf[position++];
+            payloadLength |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                break;
+        }
+        if (payloadLength > RequestBuffer.maxRequestLength - (position - offset))
+            throw new IOException("Request is too long");
+        if (payloadLength > end - position)
+            return 0;
+        process(buf[offset], new Decoder(buf, position, (int) payloadLength), handler);
+        return position - offset + (int) payloadLength;
+    }
+
+    /**
+     * Parses request's payload and passes request to handler.
+     * If opcode has request id flag, payload starts with request's id.
+     * Requests with unknown opcodes are ignored.
+     *
+     * @param opcode  request's opcode
+     * @param in      decoder of request's payload
+     * @param handler handler of request
+     * @throws IOException if payload is malformed or handler failed
+     */
+    private static void process(byte opcode, Decoder in, RequestHandler handler) throws IOException {
+        handler.requestId((opcode & REQUEST_ID) != 0 ? in.readVarintInt() : -1);
+        switch ((byte) (opcode & ~REQUEST_ID)) {
+            case AUTH:
+            case REG:
+                handler.authenticate(opcode == REG, in.readString(), in.readString());
+                break;
+            case GET_FRIENDS_REQUESTS_LIST:
+                handler.getFriendsRequestsList();
+                break;
+            case ACCEPT_REQUEST:
+                handler.acceptRequest(in.readVarintInt());
+                break;
+            case SEND_REQUEST:
+                handler.sendRequest(in.readString());
+                break;
+            case SEND_MESSAGE:
+                handler.sendMessage(in.readVarintInt(), in.readString());
+                break;
+            case GET_MESSAGE_FROM:
+                handler.getMessageFrom(in.readVarintInt());
+                break;
+            case GET_MESSAGES_FROM:
+                handler.getMessagesFrom(in.readVarintInt(), in.readVarintInt());
+                break;
+            case SET_RETENTION:
+                handler.setRetention(in.readVarintInt(), in.readVarintInt(), in.readVarintInt());
+                break;
+            case CREATE_GROUP:
+                handler.createGroup(in.readString());
+                break;
+            case ADD_TO_GROUP:
+                handler.addToGroup(in.readVarintInt(), in.readVarintInt());
+                break;
+            case REMOVE_FROM_GROUP:
+                handler.removeFromGroup(in.readVarintInt(), in.readVarintInt());
+                break;
+            case SEND_GROUP_MESSAGE:
+                handler.sendGroupMessage(in.readVarintInt(), in.readString());
+                break;
+            case GET_GROUP_MESSAGES:
+                handler.getGroupMessages(in.readVarintInt(), in.readVarintInt());
+                break;
+            case GET_GROUP_MEMBERS:
+                handler.getGroupMembers(in.readVarintInt());
+                break;
+            case SET_PRESENCE:
+                handler.setPresence(in.readByte());
+                break;
+            case PING:
+                handler.ping();
+                break;
+            case PONG:
+                handler.pong();
+                break;
+        }
+    }
+
+    /**
+     * Returns encoder for frame's payload with space reserved for header.
+     *
+     * @param capacity expected length of payload
+     * @return encoder
+     */
+    private static Encoder payload(int capacity) {
+        Encoder out = new Encoder(capacity + maxHeaderLength);
+        for (int i = 0; i < maxHeaderLength; i++) {
+            out.write(0);
+        }
+        return out;
+    }
+
+    /**
+     * Writes header before payload written to encoder returned by payload method and returns frame.
+     *
+     * @param opcode message's opcode
+     * @param out    encoder with payload
+     * @return frame
+     */
+    private static byte[] frame(byte opcode, Encoder out) {
+        int length = out.size() - maxHeaderLength;
+        byte[] buf = out.bytes();
+        int start = maxHeaderLength - 1 - varintSize(length);
+        buf[start] = opcode;
+        putVarint(buf, start + 1, length);
+        return Arrays.copyOfRange(buf, start, out.size());
+    }
+
+    /**
+     * Returns number of bytes taken by value written as varint.
+     *
+     * @param v non-negative value
+     * @return number of bytes
+     */
+    private static int varintSize(int v) {
+        int size = 1;
+        for (v >>>= 7; v != 0; v >>>= 7) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes non-negative value as varint to array.
+     *
+     * @param buf      array
+     * @param position position of first byte
+     * @param v        non-negative value
+     * @return position after last written byte
+     */
+    private static int putVarint(byte[] buf, int position, int v) {
+        while ((v & ~0x7f) != 0) {
+            buf[position++] = (byte) (v & 0x7f | 0x80);
+            v >>>= 7;
+        }
+        buf[position++] = (byte) v;
+        return position;
+    }
+
+    @Override
+    public byte[] accepted() {
+        return new byte[]{ACCEPTED, 0};
+    }
+
+    @Override
+    public byte[] redirect(String host, int port) {
+        Encoder out = payload(host.length() + 8);
+        out.writeString(host);
+        out.writeVarint(port);
+        return frame(REDIRECT, out);
+    }
+
+    @Override
+    public byte[] error(String msg) {
+        Encoder out = payload(msg.length() + 4);
+        out.writeString(msg);
+        return frame(ERROR, out);
+    }
+
+    @Override
+    public byte[] friendsList(Collection<Friend> friends) {
+        Encoder out = payload(friends.size() * 16 + 4);
+        out.writeVarint(friends.size());
+        for (Friend friend : friends) {
+            out.writeString(friend.username);
+            out.writeVarint(friend.id);
+            out.writeVarint(friend.messages.size());
+        }
+        return frame(FRIENDS_LIST, out);
+    }
+
+    @Override
+    public byte[] requestsList(Map<Integer, String> requests) {
+        Encoder out = payload(requests.size() * 16 + 4);
+        out.writeVarint(requests.size());
+        requests.forEach((id, username) -> {
+            out.writeString(username);
+            out.writeVarint(id);
+        });
+        return frame(REQUESTS_LIST, out);
+    }
+
+    @Override
+    public byte[] numberOfRequests(int count) {
+        Encoder out = payload(8);
+        out.writeVarint(count);
+        return frame(NUMBER_OF_REQUESTS, out);
+    }
+
+    @Override
+    public byte[] newFriend(String username, int id) {
+        Encoder out = payload(username.length() + 8);
+        out.writeString(username);
+        out.writeVarint(id);
+        return frame(NEW_FRIEND, out);
+    }
+
+    @Override
+    public byte[] unreadMessages(int id, int count) {
+        Encoder out = payload(12);
+        out.writeVarint(id);
+        out.writeVarint(count);
+        return frame(UNREAD_MESSAGES, out);
+    }
+
+    @Override
+    public byte[] newMessage(int id, String msg) {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        int length = varintSize(id) + varintSize(bytes.length) + bytes.length;
+        byte[] frame = new byte[1 + varintSize(length) + length];
+        frame[0] = NEW_MESSAGE;
+        int position = putVarint(frame, 1, length);
+        position = putVarint(frame, position, id);
+        position = putVarint(frame, position, bytes.length);
+        System.arraycopy(bytes, 0, frame, position, bytes.length);
+        return frame;
+    }
+
+    @Override
+    public byte[] newMessages(int id, List<String> messages) {
+        Encoder out = payload(4096);
+        out.writeVarint(id);
+        out.writeVarint(messages.size());
+        for (String msg : messages) {
+            out.writeString(msg);
+        }
+        return frame(NEW_MESSAGES, out);
+    }
+
+    @Override
+    public byte[] presence(Map<Integer, Byte> changes) {
+        Encoder out = payload(changes.size() * 6 + 4);
+        out.writeVarint(changes.size());
+        changes.forEach((id, state) -> {
+            out.writeVarint(id);
+            out.write(state);
+        });
+        return frame(PRESENCE, out);
+    }
+
+    @Override
+    public byte[] groupsList(Collection<Group> groups, int memberId) {
+        Encoder out = payload(groups.size() * 16 + 4);
+        out.writeVarint(groups.size());
+        for (Group group : groups) {
+            out.writeString(group.name);
+            out.writeVarint(group.id);
+            out.writeVarint(Math.max(group.unread(memberId), 0));
+        }
+        return frame(GROUPS_LIST, out);
+    }
+
+    @Override
+    public byte[] newGroup(String name, int id) {
+        Encoder out = payload(name.length() + 8);
+        out.writeString(name);
+        out.writeVarint(id);
+        return frame(NEW_GROUP, out);
+    }
+
+    @Override
+    public byte[] leftGroup(int id) {
+        Encoder out = payload(8);
+        out.writeVarint(id);
+        return frame(LEFT_GROUP, out);
+    }
+
+    @Override
+    public byte[] groupMembers(int id, List<Integer> members) {
+        Encoder out = payload(members.size() * 4 + 8);
+        out.writeVarint(id);
+        out.writeVarint(members.size());
+        for (int memberId : members) {
+            out.writeVarint(memberId);
+        }
+        return frame(GROUP_MEMBERS, out);
+    }
+
+    @Override
+    public byte[] unreadGroupMessages(int id, int count) {
+        Encoder out = payload(12);
+        out.writeVarint(id);
+        out.writeVarint(count);
+        return frame(UNREAD_GROUP_MESSAGES, out);
+    }
+
+    @Override
+    public byte[] newGroupMessage(int id, int fromId, String msg) {
+        Encoder out = payload(msg.length() + 12);
+        out.writeVarint(id);
+        out.writeVarint(fromId);
+        out.writeString(msg);
+        return frame(NEW_GROUP_MESSAGE, out);
+    }
+
+    @Override
+    public byte[] newGroupMessages(int id, List<Group.Message> messages) {
+        Encoder out = payload(4096);
+        out.writeVarint(id);
+        out.writeVarint(messages.size());
+        for (Group.Message message : messages) {
+            out.writeVarint(message.fromId);
+            out.writeString(message.text);
+        }
+        return frame(NEW_GROUP_MESSAGES, out);
+    }
+
+    @Override
+    public byte[] notification(String msg) {
+        Encoder out = payload(msg.length() + 4);
+        out.writeString(msg);
+        return frame(NOTIFICATION, out);
+    }
+
+    @Override
+    public byte[] ack(int requestId, String status) {
+        Encoder out = payload(status.length() + 8);
+        out.writeVarint(requestId);
+        out.writeString(status);
+        return frame(ACK, out);
+    }
+
+    @Override
+    public byte[] ping() {
+        return new byte[]{SERVER_PING, 0};
+    }
+
+    @Override
+    public byte[] pong() {
+        return new byte[]{SERVER_PONG, 0};
+    }
+}
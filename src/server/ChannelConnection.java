@@ -0,0 +1,169 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection over non-blocking socket channel served by event loop.
+ * Decodes received bytes into requests and passes them to listener.
+ * Queued messages are written from event loop's thread.
+ */
+public class ChannelConnection extends QueuedConnection implements EventLoop.Handler {
+    /**
+     * Connection's channel.
+     */
+    private final SocketChannel channel;
+    /**
+     * Event loop that serves channel.
+     */
+    private final EventLoop loop;
+    /**
+     * Listener that processes received lines.
+     */
+    private Server.Listener listener;
+    /**
+     * Channel's selection key, set when channel registered to event loop.
+     */
+    private SelectionKey key = null;
+    /**
+     * Buffer with received bytes that are not processed yet.
+     */
+    private final RequestBuffer in = new RequestBuffer();
+    /**
+     * Messages taken from queue that are being written to channel.
+     */
+    private final ByteBuffer[] batch = new ByteBuffer[64];
+    /**
+     * Index of first message in batch that is not written completely.
+     */
+    private int batchStart = 0;
+    /**
+     * Index after last message in batch.
+     */
+    private int batchEnd = 0;
+
+    /**
+     * Constructs connection with specified channel served by specified loop.
+     *
+     * @param channel non-blocking channel
+     * @param loop    event loop
+     */
+    public ChannelConnection(SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /**
+     * Sets listener and registers channel to event loop.
+     *
+     * @param listener listener that processes received requests
+     */
+    void start(Server.Listener listener) {
+        this.listener = listener;
+        loop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void registered(SelectionKey key) {
+        synchronized (this) {
+            this.key = key;
+            if (closed) {
+                key.cancel();
+                return;
+            }
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isWritable())
+            flush();
+        if (key.isReadable())
+            read();
+    }
+
+    /**
+     * Reads available bytes from channel and passes complete requests to listener.
+     *
+     * @throws IOException if i/o error occurred or connection closed
+     */
+    private void read() throws IOException {
+        int n = channel.read(in.buffer());
+        if (n < 0)
+            throw new IOException("Connection closed");
+        Metrics.bytesIn.add(n);
+        listener.received();
+        in.process(this, listener);
+    }
+
+    @Override
+    protected void scheduleFlush() {
+        loop.execute(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Writes queued messages to channel with gathering writes, called only from event loop's thread.
+     * Waits for channel to become writable if not all bytes were written,
+     * stops waiting when all messages are written.
+     *
+     * @throws IOException if i/o error occurred while writing to channel
+     */
+    private void flush() throws IOException {
+        if (closed || key == null)
+            return;
+        while (true) {
+            if (batchStart == batchEnd) {
+                batchStart = batchEnd = 0;
+                byte[] msg;
+                while (batchEnd < batch.length && (msg = poll()) != null) {
+                    batch[batchEnd++] = ByteBuffer.wrap(msg);
+                }
+                if (batchEnd == 0) {
+                    key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                    if (!flushed())
+                        return;
+                    continue;
+                }
+            }
+            written(channel.write(batch, batchStart, batchEnd - batchStart));
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                batch[batchStart++] = null;
+            }
+            if (batchStart < batchEnd) {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            clear();
+            if (key != null)
+                key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (listener != null)
+            listener.closed();
+    }
+}
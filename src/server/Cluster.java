@@ -0,0 +1,1172 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Server's membership in cluster of nodes that split users by consistent-hash ring of their ids.
+ * Every node knows all registered users, so client can connect to any node:
+ * login is checked locally and client is redirected to node that owns user.
+ * Requests that change users owned by other nodes are forwarded to owners over pooled connections
+ * between nodes, connection is chosen by receiver's id, so requests to one user stay in order.
+ * First node of cluster is its coordinator: it allocates ids of new users, sends registrations to other nodes
+ * and admits joining nodes. Joining node receives all registrations, then new membership is sent to all nodes.
+ * Each node hands off data of users that moved to new node while it keeps serving others,
+ * new node holds requests to such users until their data arrives.
+ * Frames to other node are written by sender thread of connection they go through,
+ * so mailboxes and coordinator never wait for slow or unreachable node.
+ * Frames between nodes are opcode, varint payload length and payload.
+ * Frames that depend on membership carry its epoch and are handled after receiver applies that epoch.
+ */
+public class Cluster {
+    /**
+     * Port for other nodes, 0 disables cluster mode.
+     */
+    public static int port = 0;
+    /**
+     * Host that other nodes and redirected clients use to connect to this node.
+     */
+    public static String host = "localhost";
+    /**
+     * Address "host:port" of any node of cluster that new node joins, null for first node of cluster.
+     */
+    public static String seed = null;
+    /**
+     * Number of connections to each other node.
+     */
+    public static int peerConnections = 2;
+    /**
+     * Frame opcodes.
+     */
+    static final byte JOIN = 1;
+    static final byte NODES = 2;
+    static final byte USER_ADDED = 3;
+    static final byte REGISTER = 4;
+    static final byte MESSAGE = 5;
+    static final byte FRIENDS_REQUEST = 6;
+    static final byte REQUEST_ACCEPTED = 7;
+    static final byte USER_DATA = 8;
+    static final byte RESULT = 9;
+    /**
+     * Maximum length of frame's payload.
+     */
+    private static final int maxFrameLength = 1 << 25;
+    /**
+     * Time in milliseconds to wait for connection to other node.
+     */
+    private static final int connectTimeout = 3000;
+    /**
+     * Time in seconds new node waits to be admitted.
+     */
+    private static final int joinTimeout = 10;
+    /**
+     * Time in milliseconds after which failed hand-off is retried.
+     */
+    private static final long retryDelay = 1000;
+    /**
+     * Number of registrations written to joining node with one flush.
+     */
+    private static final int registrationsBatchSize = 1024;
+
+    /**
+     * Server of this node.
+     */
+    private final Server server;
+    /**
+     * This node.
+     */
+    private final NodeInfo self;
+    /**
+     * File membership is saved to.
+     */
+    private final Path path;
+    /**
+     * Lock that serializes changes of membership, registrations on coordinator and held requests.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Condition that is signalled when membership changes.
+     */
+    private final Condition viewChanged = lock.newCondition();
+    /**
+     * Current membership.
+     */
+    private volatile View view;
+    /**
+     * Requests held by ids of users that moved to this node until their data arrives.
+     */
+    private final ConcurrentHashMap<Integer, List<Runnable>> pending = new ConcurrentHashMap<>();
+    /**
+     * Frames from newer epochs by epochs they wait for, guarded by lock.
+     */
+    private final TreeMap<Long, List<Runnable>> waiting = new TreeMap<>();
+    /**
+     * Connections to other nodes by their names.
+     */
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    /**
+     * Id of last forwarded request that waits for result.
+     */
+    private final AtomicLong lastCorrelation = new AtomicLong();
+    /**
+     * Thread that retries failed hand-offs.
+     */
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "cluster-retries");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Socket that accepts connections from other nodes, null until cluster is started.
+     */
+    private ServerSocket serverSocket = null;
+
+    /**
+     * Membership of cluster: its nodes with their ring and epoch that grows with each change.
+     */
+    private static class View {
+        /**
+         * Number of membership's change.
+         */
+        private final long epoch;
+        /**
+         * Ring of nodes in order they joined cluster.
+         */
+        private final HashRing ring;
+
+        private View(long epoch, List<NodeInfo> nodes) {
+            this.epoch = epoch;
+            ring = new HashRing(nodes);
+        }
+
+        /**
+         * Returns nodes in order they joined cluster.
+         *
+         * @return nodes
+         */
+        private List<NodeInfo> nodes() {
+            return ring.nodes();
+        }
+    }
+
+    /**
+     * Creates node of cluster with membership loaded from file if it was saved before.
+     *
+     * @param server server of this node
+     * @param self   this node
+     * @param path   file membership is saved to
+     * @throws IOException if membership can not be read
+     */
+    public Cluster(Server server, NodeInfo self, Path path) throws IOException {
+        this.server = server;
+        this.self = self;
+        this.path = path;
+        view = Files.exists(path) ? load(path) : new View(0, List.of());
+    }
+
+    /**
+     * Starts accepting connections from other nodes and joins cluster.
+     * First node of cluster founds it, new node waits until coordinator admits it,
+     * restarted node asks coordinator for registrations it missed.
+     *
+     * @throws IOException if socket can not be opened or node is not admitted in time
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(self.clusterPort);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread thread = new Thread(() -> serve(socket), "cluster-peer");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ignored) {
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        if (view.epoch == 0 && seed == null) {
+            update(new View(1, List.of(self)));
+            return;
+        }
+        if (view.epoch > 0) {
+            if (!isCoordinator())
+                join(view.nodes().get(0));
+            return;
+        }
+        String[] address = seed.split(":", 2);
+        if (address.length != 2)
+            throw new IllegalArgumentException("Wrong node's address: " + seed);
+        join(new NodeInfo(address[0], 0, Integer.parseInt(address[1])));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(joinTimeout);
+        lock.lock();
+        try {
+            while (!view.nodes().contains(self)) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    throw new IOException("Unable to join cluster via " + seed);
+                try {
+                    viewChanged.awaitNanos(left);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while joining cluster");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting connections from other nodes and closes connections to them.
+     */
+    public void stop() {
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        retries.shutdown();
+    }
+
+    /**
+     * Returns true if this node is coordinator of cluster.
+     *
+     * @return true if this node is first node of cluster, otherwise false
+     */
+    public boolean isCoordinator() {
+        List<NodeInfo> nodes = view.nodes();
+        return !nodes.isEmpty() && nodes.get(0).equals(self);
+    }
+
+    /**
+     * Returns true if this node owns user with specified id.
+     *
+     * @param id user's id
+     * @return true if user belongs to this node, otherwise false
+     */
+    public boolean owns(int id) {
+        return self.equals(view.ring.owner(id));
+    }
+
+    /**
+     * Returns node that client of user with specified id should be redirected to.
+     *
+     * @param id user's id
+     * @return node that owns user or null if user belongs to this node
+     */
+    public NodeInfo redirect(int id) {
+        NodeInfo owner = view.ring.owner(id);
+        return owner == null || owner.equals(self) ? null : owner;
+    }
+
+    /**
+     * Runs task that accesses user owned by this node at once
+     * or after user's data arrives if user is moving to this node.
+     *
+     * @param id   user's id
+     * @param task task that should not block
+     */
+    public void whenLocal(int id, Runnable task) {
+        if (!pending.isEmpty()) {
+            lock.lock();
+            try {
+                List<Runnable> held = pending.get(id);
+                if (held != null) {
+                    held.add(task);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Registers new user: allocates its id on this node if it is coordinator, otherwise asks coordinator.
+     * Registration is sent to all other nodes.
+     *
+     * @param username new user's username
+     * @param password new user's password
+     * @param done     receives new user's id, -1 if username is taken or -2 if coordinator is unavailable,
+     *                 may be called from other thread
+     */
+    public void register(String username, String password, IntConsumer done) {
+        if (isCoordinator()) {
+            done.accept(register(username, password));
+            return;
+        }
+        long correlation = lastCorrelation.incrementAndGet();
+        Encoder payload = new Encoder();
+        payload.writeVarint(correlation);
+        payload.writeString(username);
+        payload.writeString(password);
+        peer(view.nodes().get(0)).call(0, REGISTER, payload, correlation, status -> {
+            int id;
+            try {
+                id = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                id = -2;
+            }
+            if (id >= 0)
+                server.addRemoteUser(id, username, password);
+            done.accept(id);
+        });
+    }
+
+    /**
+     * Registers new user on coordinator and sends registration to all other nodes.
+     * Id is allocated under lock together with snapshot of membership, so node that is admitted concurrently
+     * either receives registration from this method or finds it among registrations streamed to it.
+     *
+     * @param username new user's username
+     * @param password new user's password
+     * @return new user's id or -1 if username is taken
+     */
+    private int register(String username, String password) {
+        int id;
+        List<NodeInfo> nodes;
+        lock.lock();
+        try {
+            id = server.addUser(username, password);
+            nodes = view.nodes();
+        } finally {
+            lock.unlock();
+        }
+        if (id != -1) {
+            Encoder payload = new Encoder();
+            payload.writeVarint(id);
+            payload.writeString(username);
+            payload.writeString(password);
+            broadcast(nodes, USER_ADDED, payload);
+        }
+        return id;
+    }
+
+    /**
+     * Forwards request to node that owns its receiver.
+     *
+     * @param operation request's opcode: MESSAGE, FRIENDS_REQUEST or REQUEST_ACCEPTED
+     * @param toId      receiver's id
+     * @param fromId    sender's id
+     * @param text      message or sender's username
+     * @param done      receives request's status from owner, "unavailable" if owner can not be reached,
+     *                  null if status is not needed
+     */
+    public void forward(byte operation, int toId, int fromId, String text, Consumer<String> done) {
+        View view = this.view;
+        long correlation = done != null ? lastCorrelation.incrementAndGet() : 0;
+        Encoder payload = new Encoder(text.length() + 24);
+        payload.writeVarint(correlation);
+        payload.writeVarint(view.epoch);
+        payload.writeVarint(toId);
+        payload.writeVarint(fromId);
+        payload.writeString(text);
+        peer(view.ring.owner(toId)).call(toId, operation, payload, correlation, done);
+        Metrics.requestsForwarded.increment();
+    }
+
+    /**
+     * Asks coordinator to admit this node or to send registrations it missed.
+     *
+     * @param node coordinator or any node that forwards request to it
+     */
+    private void join(NodeInfo node) {
+        Encoder payload = new Encoder();
+        writeNode(payload, self);
+        payload.writeVarint(server.usersCount());
+        peer(node).send(0, JOIN, payload,
+                e -> System.out.println("Unable to reach node " + node.name() + ": " + e.getMessage()));
+    }
+
+    /**
+     * Admits node to cluster on coordinator: sends current membership and registrations
+     * starting with specified id to node, then sends new membership with this node to all nodes.
+     * Node that is already member only receives registrations.
+     * Only new membership is applied under lock, frames are queued after it is released
+     * and registrations are streamed by sender of node's connection.
+     *
+     * @param node   joining node
+     * @param fromId first id of registrations node misses
+     */
+    private void admit(NodeInfo node, int fromId) {
+        View current;
+        View next = null;
+        lock.lock();
+        try {
+            current = view;
+            if (!current.nodes().contains(node)) {
+                List<NodeInfo> nodes = new ArrayList<>(current.nodes());
+                nodes.add(node);
+                next = new View(current.epoch + 1, nodes);
+                update(next);
+            }
+        } finally {
+            lock.unlock();
+        }
+        Peer peer = peer(node);
+        Consumer<IOException> failed =
+                e -> System.out.println("Unable to admit node " + node.name() + ": " + e.getMessage());
+        peer.send(0, NODES, encode(current), failed);
+        peer.submit(0, link -> {
+            List<Map.Entry<String, UserInfo>> registrations = server.registrations(fromId);
+            List<Encoder> batch = new ArrayList<>(registrationsBatchSize);
+            for (Map.Entry<String, UserInfo> user : registrations) {
+                Encoder payload = new Encoder();
+                payload.writeVarint(user.getValue().id);
+                payload.writeString(user.getKey());
+                payload.writeString(user.getValue().password);
+                batch.add(payload);
+                if (batch.size() == registrationsBatchSize) {
+                    link.send(USER_ADDED, batch);
+                    batch.clear();
+                }
+            }
+            link.send(USER_ADDED, batch);
+        }, failed);
+        if (next == null)
+            return;
+        broadcast(next.nodes(), NODES, encode(next));
+        System.out.println("Node " + node.name() + " joined cluster");
+    }
+
+    /**
+     * Queues frame to all specified nodes except this one. Nodes that can not be reached are skipped.
+     *
+     * @param nodes   nodes
+     * @param opcode  frame's opcode
+     * @param payload frame's payload
+     */
+    private void broadcast(List<NodeInfo> nodes, byte opcode, Encoder payload) {
+        for (NodeInfo node : nodes) {
+            if (!node.equals(self))
+                peer(node).send(0, opcode, payload,
+                        e -> System.out.println("Unable to reach node " + node.name() + ": " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Applies newer membership: saves it, holds requests to users that move to this node until their data arrives,
+     * hands off users that move from this node and runs frames that waited for this epoch.
+     *
+     * @param next new membership
+     */
+    private void update(View next) {
+        List<Runnable> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            View previous = view;
+            if (next.epoch <= previous.epoch)
+                return;
+            List<Integer> moved = new ArrayList<>();
+            int count = server.usersCount();
+            for (int id = 0; id < count; id++) {
+                NodeInfo owner = previous.ring.owner(id);
+                boolean owned = self.equals(owner);
+                boolean owns = self.equals(next.ring.owner(id));
+                if (owned && !owns)
+                    moved.add(id);
+                else if (owns && !owned && owner != null)
+                    pending.put(id, new ArrayList<>());
+            }
+            view = next;
+            save(next);
+            for (int id : moved) {
+                handOff(id);
+            }
+            SortedMap<Long, List<Runnable>> due = waiting.headMap(next.epoch, true);
+            due.values().forEach(ready::addAll);
+            due.clear();
+            viewChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        ready.forEach(Runnable::run);
+    }
+
+    /**
+     * Runs task after this node applies membership with specified epoch.
+     *
+     * @param epoch epoch
+     * @param task  task
+     */
+    private void afterEpoch(long epoch, Runnable task) {
+        if (view.epoch < epoch) {
+            lock.lock();
+            try {
+                if (view.epoch < epoch) {
+                    waiting.computeIfAbsent(epoch, e -> new ArrayList<>()).add(task);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Posts hand-off of user to its new owner into user's mailbox, so it follows user's earlier actions.
+     * Mailbox closes user's connection and passes user's data to sender of new owner's connection,
+     * user's later actions are forwarded by ring. User's data is forgotten in mailbox after new owner
+     * acknowledges that data is written to its disk. Hand-off is retried if owner can not be reached.
+     *
+     * @param id user's id
+     */
+    private void handOff(int id) {
+        server.getUser(id).post(user -> {
+            View view = this.view;
+            NodeInfo owner = view.ring.owner(id);
+            if (self.equals(owner))
+                return;
+            List<Integer> friends = user.friendIds();
+            user.disconnect();
+            server.userLeft(id, friends);
+            long correlation = lastCorrelation.incrementAndGet();
+            Encoder payload = new Encoder();
+            byte[] data = user.encode();
+            payload.writeVarint(correlation);
+            payload.writeVarint(view.epoch);
+            payload.writeVarint(id);
+            payload.writeVarint(data.length);
+            payload.write(data, 0, data.length);
+            peer(owner).call(id, USER_DATA, payload, correlation, status -> {
+                if (status.equals("ok")) {
+                    user.post(User::handOff);
+                    return;
+                }
+                System.out.println("Unable to hand off user " + id + " to " + owner.name() + ": " + status);
+                try {
+                    retries.schedule(() -> handOff(id), retryDelay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ignored) {
+                }
+            });
+        });
+    }
+
+    /**
+     * Replaces data of user that moved to this node with data handed off by its previous owner
+     * and releases requests held for this user after it.
+     *
+     * @param id   user's id
+     * @param data user's data
+     * @param done receives "ok" after user's data is written to disk or "rejected" if data can not be taken over
+     */
+    private void takeOver(int id, byte[] data, Consumer<String> done) {
+        User user = server.getUser(id);
+        if (user == null) {
+            done.accept("rejected");
+            return;
+        }
+        lock.lock();
+        try {
+            user.post(u -> {
+                try {
+                    u.takeOver(data);
+                } catch (IOException e) {
+                    done.accept("rejected");
+                    throw e;
+                }
+                u.whenDurable(() -> done.accept("ok"), () -> done.accept("failed"));
+            });
+            List<Runnable> held = pending.remove(id);
+            if (held != null)
+                held.forEach(Runnable::run);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads frames from other node's connection and handles them until connection is closed.
+     *
+     * @param socket connection from other node
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            Results out = new Results(new BufferedOutputStream(s.getOutputStream()));
+            int opcode;
+            while ((opcode = in.read()) >= 0) {
+                handle((byte) opcode, new Decoder(readPayload(in)), out);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Handles frame received from other node.
+     *
+     * @param opcode frame's opcode
+     * @param in     frame's payload
+     * @param out    connection that results are written to
+     * @throws IOException if frame is malformed
+     */
+    private void handle(byte opcode, Decoder in, Results out) throws IOException {
+        switch (opcode) {
+            case JOIN: {
+                NodeInfo node = readNode(in);
+                int fromId = in.readVarintInt();
+                if (isCoordinator()) {
+                    admit(node, fromId);
+                } else {
+                    Encoder payload = new Encoder();
+                    writeNode(payload, node);
+                    payload.writeVarint(fromId);
+                    NodeInfo coordinator = view.nodes().get(0);
+                    peer(coordinator).send(0, JOIN, payload, e -> System.out.println(
+                            "Unable to reach node " + coordinator.name() + ": " + e.getMessage()));
+                }
+                break;
+            }
+            case NODES: {
+                long epoch = in.readVarint();
+                int count = in.readVarintInt();
+                List<NodeInfo> nodes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    nodes.add(readNode(in));
+                }
+                update(new View(epoch, nodes));
+                break;
+            }
+            case USER_ADDED:
+                server.addRemoteUser(in.readVarintInt(), in.readString(), in.readString());
+                break;
+            case REGISTER: {
+                long correlation = in.readVarint();
+                String username = in.readString();
+                String password = in.readString();
+                out.reply(correlation, isCoordinator() ? String.valueOf(register(username, password)) : "unavailable");
+                break;
+            }
+            case MESSAGE:
+            case FRIENDS_REQUEST:
+            case REQUEST_ACCEPTED: {
+                long correlation = in.readVarint();
+                long epoch = in.readVarint();
+                int toId = in.readVarintInt();
+                int fromId = in.readVarintInt();
+                String text = in.readString();
+                afterEpoch(epoch, () -> server.deliver(opcode, toId, fromId, text,
+                        correlation != 0 ? status -> out.reply(correlation, status) : null));
+                break;
+            }
+            case USER_DATA: {
+                long correlation = in.readVarint();
+                long epoch = in.readVarint();
+                int id = in.readVarintInt();
+                byte[] data = in.readBytes(in.readVarintInt());
+                afterEpoch(epoch, () -> takeOver(id, data, status -> out.reply(correlation, status)));
+                break;
+            }
+            default:
+                throw new IOException("Unknown frame: " + opcode);
+        }
+    }
+
+    /**
+     * Connection from other node that results of its requests are written to.
+     */
+    private static class Results {
+        /**
+         * Connection's output stream, guarded by lock.
+         */
+        private final OutputStream out;
+        /**
+         * Lock that serializes results written from different threads.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private Results(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Writes result of forwarded request. Errors are ignored,
+         * since sender fails its requests when connection is closed.
+         *
+         * @param correlation request's correlation id
+         * @param status      request's status
+         */
+        private void reply(long correlation, String status) {
+            Encoder payload = new Encoder(status.length() + 12);
+            payload.writeVarint(correlation);
+            payload.writeString(status);
+            lock.lock();
+            try {
+                writeFrame(out, RESULT, payload);
+                out.flush();
+            } catch (IOException ignored) {
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns connections to specified node, creating them on first use.
+     *
+     * @param node node
+     * @return node's connections
+     */
+    private Peer peer(NodeInfo node) {
+        return peers.computeIfAbsent(node.name(), name -> new Peer(node));
+    }
+
+    /**
+     * Pool of connections to other node, connections are opened on first use and reopened after failure.
+     * Each connection has its own sender thread that opens it and writes its frames in order they were queued.
+     */
+    private static class Peer {
+        /**
+         * Node.
+         */
+        private final NodeInfo node;
+        /**
+         * Connections, null until first use, each is accessed only by its sender.
+         */
+        private final Link[] links = new Link[Math.max(1, peerConnections)];
+        /**
+         * Times in nanoseconds before which failed connections are not reopened, frames queued meanwhile fail at once.
+         */
+        private final long[] reconnectAt = new long[links.length];
+        /**
+         * Senders of connections.
+         */
+        private final ExecutorService[] senders = new ExecutorService[links.length];
+        /**
+         * Lock that guards connections.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private Peer(NodeInfo node) {
+            this.node = node;
+            for (int i = 0; i < senders.length; i++) {
+                senders[i] = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "cluster-sender");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        /**
+         * Queues frame that does not wait for result.
+         *
+         * @param key     key, usually user's id, frames with same key always go through same connection
+         * @param opcode  frame's opcode
+         * @param payload frame's payload
+         * @param failed  receives error if frame can not be sent, called from other thread
+         */
+        private void send(int key, byte opcode, Encoder payload, Consumer<IOException> failed) {
+            submit(key, link -> link.send(opcode, payload), failed);
+        }
+
+        /**
+         * Queues request and registers callback that receives its result.
+         *
+         * @param key         key, usually user's id, frames with same key always go through same connection
+         * @param opcode      frame's opcode
+         * @param payload     frame's payload that starts with correlation id
+         * @param correlation correlation id
+         * @param done        receives result or "unavailable" if node can not be reached, called from other thread,
+         *                    null if result is not needed
+         */
+        private void call(int key, byte opcode, Encoder payload, long correlation, Consumer<String> done) {
+            submit(key, link -> link.call(opcode, payload, correlation, done), e -> {
+                if (done != null)
+                    done.accept("unavailable");
+            });
+        }
+
+        /**
+         * Queues task to sender of connection for specified key.
+         *
+         * @param key    key
+         * @param task   task that writes to connection
+         * @param failed receives error if connection can not be opened or written
+         */
+        private void submit(int key, LinkTask task, Consumer<IOException> failed) {
+            int i = Math.floorMod(key, links.length);
+            try {
+                senders[i].execute(() -> {
+                    try {
+                        task.run(link(i));
+                    } catch (IOException e) {
+                        failed.accept(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                failed.accept(new IOException("Cluster is stopped"));
+            }
+        }
+
+        /**
+         * Returns connection with specified index, opening it if it is closed. Called from its sender.
+         *
+         * @param i connection's index
+         * @return connection
+         * @throws IOException if connection can not be opened or failed to open recently
+         */
+        private Link link(int i) throws IOException {
+            lock.lock();
+            try {
+                if (links[i] != null && !links[i].closed)
+                    return links[i];
+            } finally {
+                lock.unlock();
+            }
+            if (System.nanoTime() - reconnectAt[i] < 0)
+                throw new IOException("Node " + node.name() + " is unreachable");
+            Link link;
+            try {
+                link = new Link(node);
+            } catch (IOException e) {
+                reconnectAt[i] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelay);
+                throw e;
+            }
+            lock.lock();
+            try {
+                links[i] = link;
+                if (senders[i].isShutdown())
+                    link.close();
+            } finally {
+                lock.unlock();
+            }
+            return link;
+        }
+
+        /**
+         * Closes all connections and stops senders.
+         */
+        private void close() {
+            lock.lock();
+            try {
+                for (ExecutorService sender : senders) {
+                    sender.shutdown();
+                }
+                for (Link link : links) {
+                    if (link != null)
+                        link.close();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Task that writes to connection to other node.
+     */
+    private interface LinkTask {
+        /**
+         * Writes to connection.
+         *
+         * @param link connection
+         * @throws IOException if connection fails
+         */
+        void run(Link link) throws IOException;
+    }
+
+    /**
+     * Connection to other node that sends frames and receives results of forwarded requests.
+     */
+    private static class Link {
+        /**
+         * Connection's socket.
+         */
+        private final Socket socket;
+        /**
+         * Socket's output stream, guarded by lock.
+         */
+        private final OutputStream out;
+        /**
+         * Lock that serializes frames written to connection.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * Callbacks of forwarded requests that wait for results by correlation ids.
+         */
+        private final ConcurrentHashMap<Long, Consumer<String>> calls = new ConcurrentHashMap<>();
+        /**
+         * Flag that indicates that connection was closed.
+         */
+        private volatile boolean closed = false;
+
+        /**
+         * Opens connection to node and starts thread that reads results.
+         *
+         * @param node node
+         * @throws IOException if connection can not be opened
+         */
+        private Link(NodeInfo node) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(node.host, node.clusterPort), connectTimeout);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            Thread reader = new Thread(this::read, "cluster-link");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Sends frame, closes connection if it can not be sent.
+         *
+         * @param opcode  frame's opcode
+         * @param payload frame's payload
+         * @throws IOException if frame can not be sent
+         */
+        private void send(byte opcode, Encoder payload) throws IOException {
+            lock.lock();
+            try {
+                writeFrame(out, opcode, payload);
+                out.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Sends frames with same opcode with one flush, closes connection if they can not be sent.
+         *
+         * @param opcode   frames' opcode
+         * @param payloads frames' payloads
+         * @throws IOException if frames can not be sent
+         */
+        private void send(byte opcode, List<Encoder> payloads) throws IOException {
+            lock.lock();
+            try {
+                for (Encoder payload : payloads) {
+                    writeFrame(out, opcode, payload);
+                }
+                out.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Sends request and registers callback that receives its result.
+         *
+         * @param opcode      frame's opcode
+         * @param payload     frame's payload that starts with correlation id
+         * @param correlation correlation id
+         * @param done        callback or null if result is not needed
+         * @throws IOException if frame can not be sent
+         */
+        private void call(byte opcode, Encoder payload, long correlation, Consumer<String> done) throws IOException {
+            if (done == null) {
+                send(opcode, payload);
+                return;
+            }
+            calls.put(correlation, done);
+            try {
+                send(opcode, payload);
+            } catch (IOException e) {
+                calls.remove(correlation);
+                throw e;
+            }
+            if (closed && calls.remove(correlation) != null)
+                done.accept("unavailable");
+        }
+
+        /**
+         * Reads results until connection is closed, then fails requests that wait for results.
+         */
+        private void read() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                int opcode;
+                while ((opcode = in.read()) >= 0) {
+                    Decoder payload = new Decoder(readPayload(in));
+                    if (opcode != RESULT)
+                        continue;
+                    Consumer<String> done = calls.remove(payload.readVarint());
+                    if (done != null)
+                        done.accept(payload.readString());
+                }
+            } catch (IOException ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Closes connection and fails requests that wait for results.
+         */
+        private void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (Long correlation : calls.keySet()) {
+                Consumer<String> done = calls.remove(correlation);
+                if (done != null)
+                    done.accept("unavailable");
+            }
+        }
+    }
+
+    /**
+     * Writes frame to stream without flushing it.
+     *
+     * @param out     stream
+     * @param opcode  frame's opcode
+     * @param payload frame's payload
+     * @throws IOException if frame can not be written
+     */
+    static void writeFrame(OutputStream out, byte opcode, Encoder payload) throws IOException {
+        out.write(opcode);
+        int length = payload.size();
+        while ((length & ~0x7f) != 0) {
+            out.write(length & 0x7f | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        payload.writeTo(out);
+    }
+
+    /**
+     * Reads frame's payload that follows its opcode.
+     *
+     * @param in stream
+     * @return payload
+     * @throws IOException if stream ended or frame is too long
+     */
+    static byte[] readPayload(DataInputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                break;
+            if (shift >= 21)
+                throw new IOException("Malformed frame's length");
+        }
+        if (length > maxFrameLength)
+            throw new IOException("Frame is too long: " + length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Writes node's address.
+     *
+     * @param out  encoder
+     * @param node node
+     */
+    private static void writeNode(Encoder out, NodeInfo node) {
+        out.writeString(node.host);
+        out.writeVarint(node.port);
+        out.writeVarint(node.clusterPort);
+    }
+
+    /**
+     * Reads node's address written by writeNode method.
+     *
+     * @param in decoder
+     * @return node
+     * @throws IOException if payload is malformed
+     */
+    private static NodeInfo readNode(Decoder in) throws IOException {
+        return new NodeInfo(in.readString(), in.readVarintInt(), in.readVarintInt());
+    }
+
+    /**
+     * Encodes membership as payload of NODES frame.
+     *
+     * @param view membership
+     * @return payload
+     */
+    private static Encoder encode(View view) {
+        Encoder out = new Encoder();
+        out.writeVarint(view.epoch);
+        out.writeVarint(view.nodes().size());
+        for (NodeInfo node : view.nodes()) {
+            writeNode(out, node);
+        }
+        return out;
+    }
+
+    /**
+     * Saves membership to file as its epoch followed by line per node, previous file is replaced atomically.
+     * Must be called under lock.
+     *
+     * @param view membership
+     */
+    private void save(View view) {
+        StringBuilder sb = new StringBuilder().append(view.epoch).append("\n");
+        for (NodeInfo node : view.nodes()) {
+            sb.append(node).append("\n");
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Unable to save cluster's membership: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads membership saved by save method.
+     *
+     * @param path file
+     * @return membership
+     * @throws IOException if file can not be read or is malformed
+     */
+    private static View load(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        try {
+            long epoch = Long.parseLong(lines.get(0).trim());
+            List<NodeInfo> nodes = new ArrayList<>();
+            for (String line : lines.subList(1, lines.size())) {
+                if (line.isBlank())
+                    continue;
+                String[] fields = line.trim().split(" ");
+                nodes.add(new NodeInfo(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            }
+            return new View(epoch, nodes);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed cluster's membership file: " + path);
+        }
+    }
+}
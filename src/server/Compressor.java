@@ -0,0 +1,146 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Compressor of connection's outgoing stream.
+ * Stream is split into blocks in format "[flag][varint length][data]": flag 0 means that data is sent as is,
+ * flag 1 means that data is continuation of DEFLATE stream ended by sync flush, so client can inflate every block
+ * as soon as it is received, while compression uses history of all previous compressed blocks.
+ * Batches shorter than threshold are sent as is, since compression would not pay off.
+ */
+public class Compressor {
+    /**
+     * Block flags.
+     */
+    public static final byte RAW = 0;
+    public static final byte DEFLATED = 1;
+    /**
+     * Minimum length of batch in bytes that is compressed.
+     */
+    public static int minCompressedBytes = 256;
+    /**
+     * Compression level from 1 (fastest) to 9 (best compression).
+     */
+    public static int level = Deflater.BEST_SPEED;
+    /**
+     * Maximum length of block's header.
+     */
+    private static final int maxHeaderLength = 6;
+
+    /**
+     * Total length of compressed batches.
+     */
+    private static final LongAdder inputBytes = new LongAdder();
+    /**
+     * Total length of compressed blocks, including headers.
+     */
+    private static final LongAdder outputBytes = new LongAdder();
+    /**
+     * Total length of batches sent as is.
+     */
+    private static final LongAdder rawBytes = new LongAdder();
+    /**
+     * Total time spent compressing in nanoseconds.
+     */
+    private static final LongAdder compressionNanos = new LongAdder();
+    /**
+     * Number of compressed blocks.
+     */
+    private static final LongAdder compressedBlocks = new LongAdder();
+    /**
+     * Number of blocks sent as is.
+     */
+    private static final LongAdder rawBlocks = new LongAdder();
+
+    /**
+     * Connection's deflater, null if compressor was ended.
+     */
+    private Deflater deflater = new Deflater(level, true);
+    /**
+     * Buffer for compressed data.
+     */
+    private byte[] buf = new byte[maxHeaderLength + 4096];
+
+    /**
+     * Encodes batch as block, compressing it if it is long enough.
+     *
+     * @param batch encoder with batch
+     * @return block
+     * @throws IOException if compressor was ended
+     */
+    public synchronized byte[] block(Encoder batch) throws IOException {
+        if (deflater == null)
+            throw new IOException("Connection closed");
+        int length = batch.size();
+        if (length < minCompressedBytes) {
+            rawBlocks.increment();
+            rawBytes.add(length);
+            return frame(RAW, batch.bytes(), length);
+        }
+        long start = System.nanoTime();
+        deflater.setInput(batch.bytes(), 0, length);
+        int position = maxHeaderLength;
+        while (true) {
+            position += deflater.deflate(buf, position, buf.length - position, Deflater.SYNC_FLUSH);
+            if (position < buf.length)
+                break;
+            byte[] bigger = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, bigger, 0, position);
+            buf = bigger;
+        }
+        compressionNanos.add(System.nanoTime() - start);
+        compressedBlocks.increment();
+        inputBytes.add(length);
+        byte[] block = frame(DEFLATED, buf, position);
+        outputBytes.add(block.length);
+        return block;
+    }
+
+    /**
+     * Returns block with specified flag and data.
+     * If data is compressor's buffer, it starts after reserved header.
+     *
+     * @param flag block's flag
+     * @param data array with data
+     * @param end  position after data's last byte
+     * @return block
+     */
+    private byte[] frame(byte flag, byte[] data, int end) {
+        int start = data == buf ? maxHeaderLength : 0;
+        int length = end - start;
+        Encoder out = new Encoder(length + maxHeaderLength);
+        out.write(flag);
+        out.writeVarint(length);
+        out.write(data, start, length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Releases deflater's memory, called when connection is closed.
+     */
+    public synchronized void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /**
+     * Returns statistics of all connections' compression: ratio of compressed blocks' and batches' length,
+     * time spent compressing and speed of compression, number of blocks and length of batches sent as is.
+     *
+     * @return statistics in readable form
+     */
+    public static String stats() {
+        long input = inputBytes.sum();
+        long output = outputBytes.sum();
+        long nanos = compressionNanos.sum();
+        return String.format("compression: %d blocks %d -> %d bytes (ratio %.3f), cpu %.1f ms (%.1f MB/s); " +
+                        "raw: %d blocks %d bytes",
+                compressedBlocks.sum(), input, output, input == 0 ? 1.0 : (double) output / input, nanos / 1e6,
+                nanos == 0 ? 0.0 : input * 1e3 / nanos, rawBlocks.sum(), rawBytes.sum());
+    }
+}
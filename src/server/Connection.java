@@ -0,0 +1,42 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Connection to user that server can send messages through.
+ */
+public interface Connection {
+    /**
+     * Sends passed message encoded by connection's protocol to user.
+     *
+     * @param msg encoded message
+     * @throws IOException if i/o error occurred while sending message.
+     */
+    void send(byte[] msg) throws IOException;
+
+    /**
+     * Returns protocol that messages to user should be encoded by.
+     *
+     * @return connection's protocol
+     */
+    Protocol protocol();
+
+    /**
+     * Switches connection to specified protocol for following requests and messages.
+     *
+     * @param protocol new protocol
+     */
+    void setProtocol(Protocol protocol);
+
+    /**
+     * Starts compression of messages sent after this call.
+     *
+     * @throws IOException if connection is closed
+     */
+    void startCompression() throws IOException;
+
+    /**
+     * Closes connection.
+     */
+    void close();
+}
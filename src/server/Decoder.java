@@ -0,0 +1,167 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reader of binary records' fields written by Encoder.
+ */
+public class Decoder {
+    /**
+     * Array with record's bytes.
+     */
+    private final byte[] buf;
+    /**
+     * Position of next byte to read.
+     */
+    private int position;
+    /**
+     * Position after last byte of record.
+     */
+    private final int limit;
+
+    /**
+     * Constructs decoder of specified part of array.
+     *
+     * @param buf    array
+     * @param offset position of first byte
+     * @param length number of bytes
+     */
+    public Decoder(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        position = offset;
+        limit = offset + length;
+    }
+
+    /**
+     * Constructs decoder of whole array.
+     *
+     * @param buf array
+     */
+    public Decoder(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    /**
+     * Returns true if there are unread bytes.
+     *
+     * @return true if there are unread bytes, otherwise false
+     */
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    /**
+     * Returns position of next byte to read.
+     *
+     * @return position in array
+     */
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Skips specified number of bytes.
+     *
+     * @param length number of bytes
+     * @throws IOException if record ends earlier
+     */
+    public void skip(int length) throws IOException {
+        if (length < 0 || length > limit - position)
+            throw new IOException("Unexpected end of record");
+        position += length;
+    }
+
+    /**
+     * Reads specified number of bytes.
+     *
+     * @param length number of bytes
+     * @return bytes
+     * @throws IOException if record ends earlier
+     */
+    public byte[] readBytes(int length) throws IOException {
+        if (length < 0 || length > limit - position)
+            throw new IOException("Unexpected end of record");
+        byte[] bytes = Arrays.copyOfRange(buf, position, position + length);
+        position += length;
+        return bytes;
+    }
+
+    /**
+     * Reads one byte.
+     *
+     * @return byte
+     * @throws IOException if record ended
+     */
+    public byte readByte() throws IOException {
+        if (position >= limit)
+            throw new IOException("Unexpected end of record");
+        return buf[position++];
+    }
+
+    /**
+     * Reads big-endian int.
+     *
+     * @return value
+     * @throws IOException if record ended
+     */
+    public int readInt() throws IOException {
+        return (readByte() & 0xff) << 24 | (readByte() & 0xff) << 16 | (readByte() & 0xff) << 8 | readByte() & 0xff;
+    }
+
+    /**
+     * Reads big-endian long.
+     *
+     * @return value
+     * @throws IOException if record ended
+     */
+    public long readLong() throws IOException {
+        return (long) readInt() << 32 | readInt() & 0xffffffffL;
+    }
+
+    /**
+     * Reads unsigned varint.
+     *
+     * @return value
+     * @throws IOException if record ended or varint is too long
+     */
+    public long readVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads unsigned varint that should fit into int.
+     *
+     * @return value
+     * @throws IOException if record ended or value does not fit into int
+     */
+    public int readVarintInt() throws IOException {
+        long v = readVarint();
+        if (v > Integer.MAX_VALUE)
+            throw new IOException("Malformed varint");
+        return (int) v;
+    }
+
+    /**
+     * Reads string written as varint length followed by UTF-8 bytes.
+     *
+     * @return string
+     * @throws IOException if record ended
+     */
+    public String readString() throws IOException {
+        int length = readVarintInt();
+        if (length > limit - position)
+            throw new IOException("Unexpected end of record");
+        String s = new String(buf, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return s;
+    }
+}
@@ -0,0 +1,82 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable byte buffer with methods for writing fields of binary records.
+ * Numbers are written either in fixed big-endian form or as unsigned varints,
+ * strings are written as varint length followed by UTF-8 bytes.
+ */
+public class Encoder extends ByteArrayOutputStream {
+    /**
+     * Constructs encoder with default initial capacity.
+     */
+    public Encoder() {
+        super(4096);
+    }
+
+    /**
+     * Constructs encoder with specified initial capacity.
+     *
+     * @param size initial capacity
+     */
+    public Encoder(int size) {
+        super(size);
+    }
+
+    /**
+     * Returns internal array, first size() bytes of which are written data.
+     *
+     * @return internal array
+     */
+    public byte[] bytes() {
+        return buf;
+    }
+
+    /**
+     * Writes int in big-endian form.
+     *
+     * @param v value
+     */
+    public void writeInt(int v) {
+        write(v >>> 24);
+        write(v >>> 16);
+        write(v >>> 8);
+        write(v);
+    }
+
+    /**
+     * Writes long in big-endian form.
+     *
+     * @param v value
+     */
+    public void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    /**
+     * Writes non-negative number as unsigned varint: 7 bits per byte, high bit set on all bytes but last.
+     *
+     * @param v non-negative value
+     */
+    public void writeVarint(long v) {
+        while ((v & ~0x7fL) != 0) {
+            write((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        write((int) v);
+    }
+
+    /**
+     * Writes string as varint length of its UTF-8 form followed by UTF-8 bytes.
+     *
+     * @param s string
+     */
+    public void writeString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        write(bytes, 0, bytes.length);
+    }
+}
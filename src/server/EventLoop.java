@@ -0,0 +1,163 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread that serves non-blocking channels registered to its selector.
+ */
+public class EventLoop implements Runnable {
+    /**
+     * Handler of channel's readiness events.
+     */
+    public interface Handler {
+        /**
+         * Called from event loop's thread when channel is ready for selected operations.
+         *
+         * @param key channel's selection key
+         * @throws IOException if i/o error occurred while working with channel
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called from event loop's thread when channel registered to loop's selector.
+         *
+         * @param key channel's selection key
+         */
+        default void registered(SelectionKey key) {
+        }
+
+        /**
+         * Called from event loop's thread when handling failed or event loop stopped.
+         */
+        void close();
+    }
+
+    /**
+     * Loop's selector.
+     */
+    private final Selector selector;
+    /**
+     * Tasks that should be run in loop's thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * Loop's thread.
+     */
+    private final Thread thread;
+
+    /**
+     * Constructs event loop with new selector and thread with specified name.
+     *
+     * @param name thread's name
+     * @throws IOException if selector can not be opened
+     */
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts loop's thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops loop's thread and closes all registered channels.
+     */
+    public void stop() {
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                ((Handler) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    /**
+     * Waits for loop's thread to die.
+     *
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    /**
+     * Runs passed task in loop's thread.
+     *
+     * @param task task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Registers channel to loop's selector from loop's thread.
+     *
+     * @param channel non-blocking channel
+     * @param ops     interest operations
+     * @param handler channel's handler
+     */
+    public void register(SelectableChannel channel, int ops, Handler handler) {
+        execute(() -> {
+            try {
+                handler.registered(channel.register(selector, ops, handler));
+            } catch (ClosedChannelException e) {
+                handler.close();
+            }
+        });
+    }
+
+    /**
+     * Wakes up loop's selector so changed interest operations are applied and tasks are run.
+     * Does nothing in loop's thread, since tasks are run right after selected keys are processed.
+     */
+    public void wakeup() {
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select(this::process);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Event loop died: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Passes selected key to its handler.
+     * Closes handler if it failed.
+     *
+     * @param key selected key
+     */
+    private void process(SelectionKey key) {
+        Handler handler = (Handler) key.attachment();
+        try {
+            if (key.isValid())
+                handler.ready(key);
+        } catch (IOException | RuntimeException e) {
+            handler.close();
+        }
+    }
+}
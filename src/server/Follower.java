@@ -0,0 +1,423 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Follower's side of replication: copies primary's log to server's own log and applies it to users data,
+ * so server keeps up-to-date copy of primary's users in memory while it does not serve clients.
+ * If follower's log does not match primary's one, follower receives primary's saved users data
+ * and restarts its server with them.
+ * Follower is promoted to primary by "promote" console command or automatically when primary
+ * was not heard for failover timeout: it starts new term of log and starts serving clients and own followers,
+ * users data are already in memory, so promotion takes about as long as opening server's socket.
+ */
+public class Follower {
+    /**
+     * Address "host:port" of primary's replication port, null if server is not follower.
+     */
+    public static String primary = null;
+    /**
+     * Time in seconds without primary after which follower promotes itself, 0 disables automatic promotion.
+     */
+    public static int failoverTimeout = 0;
+    /**
+     * Time in milliseconds to wait for connection to primary.
+     */
+    private static final int connectTimeout = 1000;
+    /**
+     * Time in milliseconds without frames from primary after which connection is considered lost.
+     */
+    private static final int readTimeout = 10 * Replication.heartbeatInterval;
+    /**
+     * Time in milliseconds between attempts to reconnect to primary.
+     */
+    private static final long retryDelay = 500;
+    /**
+     * Follower of this process, null if server is not follower.
+     */
+    private static volatile Follower current = null;
+
+    /**
+     * Factory that restarts server after users data copied from primary are installed.
+     */
+    private final ServerFactory factory;
+    /**
+     * Primary's host.
+     */
+    private final String host;
+    /**
+     * Primary's replication port.
+     */
+    private final int port;
+    /**
+     * Following server, null while it is restarted.
+     */
+    private volatile Server server;
+    /**
+     * Thread that follows primary.
+     */
+    private final Thread thread;
+    /**
+     * Socket connected to primary, null while not connected.
+     */
+    private volatile Socket socket = null;
+    /**
+     * Lock that guards flag of stopped following.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when following is stopped, wakes up follower that waits to reconnect.
+     */
+    private final Condition stopping = lock.newCondition();
+    /**
+     * Flag that indicates that following is stopped, guarded by lock.
+     */
+    private boolean stopped = false;
+    /**
+     * Time in milliseconds since epoch frame was last received from primary, 0 if primary was never reached.
+     */
+    private volatile long lastHeard = 0;
+    /**
+     * Lag in bytes last reported by primary.
+     */
+    private volatile long lagBytes = 0;
+    /**
+     * Lag in milliseconds last reported by primary.
+     */
+    private volatile long lagMillis = 0;
+
+    /**
+     * Factory of server that reads users data from default files.
+     */
+    public interface ServerFactory {
+        /**
+         * Creates server.
+         *
+         * @return server
+         * @throws IOException if server can not be created
+         */
+        Server create() throws IOException;
+    }
+
+    /**
+     * Constructs follower of primary from options.
+     *
+     * @param server  server that follows primary, created in follower mode
+     * @param factory factory that creates server in follower mode again
+     */
+    public Follower(Server server, ServerFactory factory) {
+        String[] address = primary.split(":", 2);
+        if (address.length != 2)
+            throw new IllegalArgumentException("Wrong primary's address: " + primary);
+        host = address[0];
+        port = Integer.parseInt(address[1]);
+        this.server = server;
+        this.factory = factory;
+        thread = new Thread(this::follow, "replication-follower");
+    }
+
+    /**
+     * Starts following primary.
+     */
+    public void start() {
+        current = this;
+        server.follow();
+        thread.start();
+    }
+
+    /**
+     * Stops following primary and promotes server to primary.
+     * Does nothing if follower is stopped or already promoted.
+     *
+     * @throws IOException if server can not be started
+     */
+    public void promote() throws IOException {
+        if (!stopFollowing())
+            return;
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while promoting");
+            }
+        }
+        if (server == null)
+            server = factory.create();
+        long sequence = server.lastSequence();
+        server.promote();
+        System.out.println("Promoted to primary after record " + sequence);
+    }
+
+    /**
+     * Stops following primary if server is still follower, then stops server.
+     */
+    public void stop() {
+        stopFollowing();
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+        }
+        if (server != null)
+            server.stop();
+    }
+
+    /**
+     * Stops following primary and disconnects from it.
+     *
+     * @return false if following was already stopped, otherwise true
+     */
+    private boolean stopFollowing() {
+        lock.lock();
+        try {
+            if (stopped)
+                return false;
+            stopped = true;
+            stopping.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        current = null;
+        lagBytes = 0;
+        lagMillis = 0;
+        Socket connected = socket;
+        if (connected != null) {
+            try {
+                connected.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if following is stopped.
+     *
+     * @return true if following is stopped
+     */
+    private boolean isStopped() {
+        lock.lock();
+        try {
+            return stopped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits before reconnecting to primary until delay passes or following is stopped.
+     *
+     * @throws InterruptedException if thread is interrupted while waiting
+     */
+    private void awaitRetry() throws InterruptedException {
+        lock.lock();
+        try {
+            long left = TimeUnit.MILLISECONDS.toNanos(retryDelay);
+            while (!stopped && left > 0) {
+                left = stopping.awaitNanos(left);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Follower's loop: connects to primary and applies its records until following is stopped.
+     * Promotes server if primary was reached before and has not been heard for failover timeout.
+     */
+    private void follow() {
+        boolean reported = false;
+        while (!isStopped()) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                if (isStopped())
+                    break;
+                connection.connect(new InetSocketAddress(host, port), connectTimeout);
+                connection.setTcpNoDelay(true);
+                connection.setSoTimeout(readTimeout);
+                reported = false;
+                sync(connection);
+            } catch (EOFException e) {
+                if (!reported && !isStopped())
+                    System.out.println("Primary " + primary + " closed connection");
+                reported = true;
+            } catch (IOException e) {
+                if (!reported && !isStopped())
+                    System.out.println("Unable to follow primary " + primary + ": " + e.getMessage());
+                reported = true;
+            } finally {
+                socket = null;
+            }
+            if (server == null) {
+                try {
+                    server = factory.create();
+                    server.follow();
+                } catch (IOException e) {
+                    System.out.println("Unable to restart server: " + e.getMessage());
+                    break;
+                }
+            }
+            if (failoverTimeout > 0 && lastHeard > 0
+                    && System.currentTimeMillis() - lastHeard >= failoverTimeout * 1000L) {
+                System.out.println("Primary " + primary + " is not heard for " + failoverTimeout + " seconds");
+                try {
+                    promote();
+                } catch (IOException e) {
+                    System.out.println("Unable to promote server: " + e.getMessage());
+                }
+                break;
+            }
+            try {
+                awaitRetry();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Handshakes with primary, installs its users data if primary sends them
+     * and applies primary's records until connection is lost.
+     *
+     * @param connection socket connected to primary
+     * @throws IOException if connection is lost or records can not be applied
+     */
+    private void sync(Socket connection) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16));
+        OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+        long sequence = server.lastSequence();
+        Encoder payload = new Encoder();
+        payload.writeVarint(sequence);
+        payload.writeVarint(server.history().termAt(sequence));
+        Cluster.writeFrame(out, Replication.FOLLOW, payload);
+        out.flush();
+        if (in.readUnsignedByte() != Replication.HISTORY)
+            throw new IOException("Unexpected frame");
+        TreeMap<Long, Long> terms = ReplicationHistory.read(new Decoder(Cluster.readPayload(in)));
+        int opcode = in.readUnsignedByte();
+        byte[] frame = Cluster.readPayload(in);
+        lastHeard = System.currentTimeMillis();
+        if (opcode == Replication.SNAPSHOT) {
+            install(in, frame, terms);
+            opcode = in.readUnsignedByte();
+            frame = Cluster.readPayload(in);
+        } else {
+            server.history().replace(terms);
+        }
+        System.out.println("Following primary " + primary + " after record " + server.lastSequence());
+        long appliedBytes = 0;
+        while (true) {
+            if (opcode == Replication.RECORDS) {
+                Metrics.recordsApplied.add(server.replicate(frame));
+                appliedBytes += frame.length;
+                payload.reset();
+                payload.writeVarint(server.lastSequence());
+                payload.writeVarint(appliedBytes);
+                Cluster.writeFrame(out, Replication.APPLIED, payload);
+                out.flush();
+            } else if (opcode == Replication.HEARTBEAT) {
+                Decoder heartbeat = new Decoder(frame);
+                lagBytes = heartbeat.readVarint();
+                lagMillis = heartbeat.readVarint();
+            } else {
+                throw new IOException("Unexpected frame: " + opcode);
+            }
+            lastHeard = System.currentTimeMillis();
+            opcode = in.readUnsignedByte();
+            frame = Cluster.readPayload(in);
+        }
+    }
+
+    /**
+     * Stops server, receives primary's users data to temporary file, replaces server's users data and log with them
+     * and restarts server. Server's own users data stay in place if they are not received completely.
+     * Users data are replaced before log is deleted, so if process crashes in between, records of old log
+     * that users data already contain are skipped on replay by their sequence numbers,
+     * and records that diverge from primary's log are still marked with old terms, so primary sends users data again.
+     *
+     * @param in    primary's stream
+     * @param chunk first chunk of users data
+     * @param terms primary's history of terms
+     * @throws IOException if users data can not be received or installed
+     */
+    private void install(DataInputStream in, byte[] chunk, TreeMap<Long, Long> terms) throws IOException {
+        System.out.println("Copying users data from primary " + primary);
+        ReplicationHistory history = server.history();
+        server.stop();
+        server = null;
+        Path temp = Paths.get(Server.defaultUsersFileName + ".replica");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            while (true) {
+                file.write(chunk);
+                int opcode = in.readUnsignedByte();
+                chunk = Cluster.readPayload(in);
+                if (opcode == Replication.SNAPSHOT_END)
+                    break;
+                if (opcode != Replication.SNAPSHOT)
+                    throw new IOException("Unexpected frame: " + opcode);
+                lastHeard = System.currentTimeMillis();
+            }
+            file.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, Paths.get(Server.defaultUsersFileName),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        MutationLog.deleteSegments(Server.defaultLogFileName);
+        history.replace(terms);
+        server = factory.create();
+        server.follow();
+        Metrics.snapshotsCopied.increment();
+    }
+
+    /**
+     * Returns lag in bytes reported by primary to follower of this process.
+     *
+     * @return lag in bytes, 0 if server is not follower
+     */
+    public static long lagBytes() {
+        Follower follower = current;
+        return follower != null ? follower.lagBytes : 0;
+    }
+
+    /**
+     * Returns lag in milliseconds reported by primary to follower of this process.
+     *
+     * @return lag in milliseconds, 0 if server is not follower
+     */
+    public static long lagMillis() {
+        Follower follower = current;
+        return follower != null ? follower.lagMillis : 0;
+    }
+
+    /**
+     * Returns state of follower of this process in readable form.
+     *
+     * @return state or null if server is not follower
+     */
+    public static String status() {
+        Follower follower = current;
+        if (follower == null)
+            return null;
+        Server following = follower.server;
+        return "following " + primary + (follower.socket != null ? "" : " (disconnected)")
+                + " applied " + (following != null ? following.lastSequence() : 0)
+                + " lag " + follower.lagBytes + " bytes " + follower.lagMillis + " ms";
+    }
+}
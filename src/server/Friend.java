@@ -1,12 +1,30 @@
 package server;
 
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Class that represents user's friend for server.
  */
 public class Friend implements Serializable {
+    /**
+     * Version of friend's serialized form, same as in users data saved with java serialization by older versions.
+     */
+    private static final long serialVersionUID = -8868844221814370260L;
+    /**
+     * Fields of friend's serialized form, where messages are list of strings.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", int.class),
+            new ObjectStreamField("username", String.class),
+            new ObjectStreamField("messages", LinkedList.class)
+    };
     /**
      * Friend's id.
      */
@@ -15,10 +33,18 @@ public class Friend implements Serializable {
      * Friend's username.
      */
     public String username;
+    /**
+     * Maximum age in seconds of messages from friend, 0 if only server's limit applies.
+     */
+    public transient int maxAge = 0;
+    /**
+     * Maximum number of unread messages from friend, 0 if only server's limit applies.
+     */
+    public transient int maxCount = 0;
     /**
      * Messages from friend.
      */
-    public final LinkedList<String> messages = new LinkedList<>();
+    public transient MessageQueue messages = new MessageQueue();
 
     /**
      * Constructs new friend with specified username and id.
@@ -30,4 +56,74 @@ public class Friend implements Serializable {
         this.id = id;
         this.username = username;
     }
+
+    /**
+     * Writes friend with its retention settings and messages to encoder.
+     *
+     * @param out   encoder
+     * @param store storage with spilled messages
+     * @throws IOException if spilled messages can not be read
+     */
+    public void write(Encoder out, UserStore store) throws IOException {
+        out.writeVarint(id);
+        out.writeString(username);
+        out.writeVarint(maxAge);
+        out.writeVarint(maxCount);
+        messages.write(out, store);
+    }
+
+    /**
+     * Reads friend with its messages written by write method to users data of specified version.
+     * Versions before 3 have no retention settings.
+     *
+     * @param in      decoder
+     * @param version version of users data's format
+     * @return friend
+     * @throws IOException if record is malformed
+     */
+    public static Friend read(Decoder in, int version) throws IOException {
+        Friend friend = new Friend(in.readVarintInt(), in.readString());
+        if (version > 2) {
+            friend.maxAge = in.readVarintInt();
+            friend.maxCount = in.readVarintInt();
+        }
+        friend.messages.read(in, version);
+        return friend;
+    }
+
+    /**
+     * Writes friend in serialized form of older versions without retention settings and times of messages,
+     * messages must not be spilled.
+     *
+     * @param out stream
+     * @throws IOException if i/o error occurred or messages are spilled
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (messages.spilled())
+            throw new NotSerializableException("Spilled messages can not be serialized");
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", id);
+        fields.put("username", username);
+        fields.put("messages", new LinkedList<>(messages.peek(messages.size(), Long.MAX_VALUE, null)));
+        out.writeFields();
+    }
+
+    /**
+     * Reads friend saved with java serialization by older versions, its messages are treated as saved now.
+     *
+     * @param in stream
+     * @throws IOException            if i/o error occurred
+     * @throws ClassNotFoundException if class of field is not found
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = fields.get("id", 0);
+        username = (String) fields.get("username", null);
+        messages = new MessageQueue();
+        long now = System.currentTimeMillis();
+        for (String msg : (List<String>) fields.get("messages", new LinkedList<String>())) {
+            messages.add(msg, now);
+        }
+    }
 }
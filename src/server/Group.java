@@ -0,0 +1,809 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group conversation: its members and one log of messages shared by all of them.
+ * Each message is stored once and each member keeps cursor, number of last message delivered to member,
+ * so members that are offline or read messages later do not get private copies of messages.
+ * Messages delivered to all members are dropped, as well as oldest messages over server's retention limits.
+ * Members are kept in order they joined group, first member is group's owner.
+ * State is guarded by group's lock, since it is accessed from mailboxes of all members,
+ * actions are posted to members' mailboxes under lock, so they run in order of messages.
+ */
+public class Group {
+    /**
+     * Group's id.
+     */
+    public final int id;
+    /**
+     * Group's name.
+     */
+    public final String name;
+    /**
+     * Members by their ids in order they joined group.
+     */
+    private final LinkedHashMap<Integer, Member> members = new LinkedHashMap<>();
+    /**
+     * Numbers of members by their cursors, so messages delivered to all members are found without scanning members.
+     */
+    private final TreeMap<Long, Integer> cursors = new TreeMap<>();
+    /**
+     * Ids of members which are connected to server.
+     */
+    private final Set<Integer> online = new HashSet<>();
+    /**
+     * Messages that are not delivered to all members, starting at first index.
+     */
+    private final ArrayList<Message> messages = new ArrayList<>();
+    /**
+     * Index of first message, messages before it are dropped.
+     */
+    private int first = 0;
+    /**
+     * Number of last message sent to group, messages are numbered from 1.
+     */
+    private long lastMessage = 0;
+    /**
+     * Sequence number of log's record of last change of group.
+     */
+    private long sequence = 0;
+    /**
+     * Registry of groups this group belongs to.
+     */
+    private Groups groups = null;
+    /**
+     * Lock that guards group's state.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Member of group.
+     */
+    private static class Member {
+        /**
+         * Number of last message delivered to member.
+         */
+        long cursor;
+        /**
+         * True if messages were pushed to member after cursor was logged.
+         */
+        boolean pushed = false;
+
+        /**
+         * Creates member with specified cursor.
+         *
+         * @param cursor number of last message delivered to member
+         */
+        Member(long cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * Message sent to group.
+     */
+    public static class Message {
+        /**
+         * Message's number in group.
+         */
+        public final long number;
+        /**
+         * Sender's id.
+         */
+        public final int fromId;
+        /**
+         * Message's text.
+         */
+        public final String text;
+        /**
+         * Time message was saved at in milliseconds since epoch.
+         */
+        public final long time;
+
+        /**
+         * Creates message.
+         *
+         * @param number message's number in group
+         * @param fromId sender's id
+         * @param text   message's text
+         * @param time   time message was saved at in milliseconds since epoch
+         */
+        public Message(long number, int fromId, String text, long time) {
+            this.number = number;
+            this.fromId = fromId;
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Message pushed to online members of group.
+     * Message is encoded at most once by each protocol, the same frame is sent to connections of all members.
+     */
+    public static class Delivery {
+        /**
+         * Group message was sent to.
+         */
+        public final Group group;
+        /**
+         * Pushed message.
+         */
+        public final Message message;
+        /**
+         * Frames of message by protocols that encoded it.
+         */
+        private final Map<Protocol, byte[]> frames = new IdentityHashMap<>(2);
+
+        /**
+         * Creates delivery of message.
+         *
+         * @param group   group message was sent to
+         * @param message pushed message
+         */
+        Delivery(Group group, Message message) {
+            this.group = group;
+            this.message = message;
+        }
+
+        /**
+         * Returns message encoded by specified protocol, encodes it on first call for protocol.
+         *
+         * @param protocol member's protocol
+         * @return encoded message shared by all members that use protocol
+         */
+        public synchronized byte[] frame(Protocol protocol) {
+            byte[] frame = frames.get(protocol);
+            if (frame == null) {
+                frame = protocol.newGroupMessage(group.id, message.fromId, message.text);
+                frames.put(protocol, frame);
+                Metrics.groupFramesEncoded.increment();
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Creates group with its owner as only member.
+     *
+     * @param id      group's id
+     * @param name    group's name
+     * @param ownerId owner's id
+     */
+    public Group(int id, String name, int ownerId) {
+        this(id, name);
+        addMember(ownerId, 0);
+    }
+
+    /**
+     * Creates group without members.
+     *
+     * @param id   group's id
+     * @param name group's name
+     */
+    private Group(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Returns true if specified name can be group's name.
+     *
+     * @param name name
+     * @return true if name consists of 1 to 32 letters, digits or underscores, otherwise false
+     */
+    public static boolean isValidName(String name) {
+        return name.matches("^\\w{1,32}$");
+    }
+
+    /**
+     * Attaches group to registry and adds its members to registry's index.
+     *
+     * @param groups registry of groups
+     */
+    void attach(Groups groups) {
+        lock.lock();
+        try {
+            this.groups = groups;
+            for (int memberId : members.keySet()) {
+                groups.joined(memberId, this);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logs creation of group and notifies its owner.
+     */
+    void created() {
+        lock.lock();
+        try {
+            int ownerId = ownerId();
+            MutationLog log = groups.log();
+            if (log != null)
+                sequence = log.groupCreated(id, ownerId, name);
+            notifyJoined(ownerId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds member to group on request of other member.
+     * Notifies new member about group if member is connected.
+     *
+     * @param byId     requester's id
+     * @param memberId new member's id
+     * @return true if member was added, false if requester is not member or user is already member
+     */
+    public boolean add(int byId, int memberId) {
+        lock.lock();
+        try {
+            if (!members.containsKey(byId) || members.containsKey(memberId))
+                return false;
+            addMember(memberId, lastMessage);
+            groups.joined(memberId, this);
+            MutationLog log = groups.log();
+            if (log != null)
+                sequence = log.groupMemberAdded(id, memberId);
+            notifyJoined(memberId);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes member from group on request of group's owner or member itself.
+     * Ownership passes to member that joined group first, group without members is removed from registry.
+     * Notifies removed member if member is connected.
+     *
+     * @param byId     requester's id
+     * @param memberId removed member's id
+     * @return true if member was removed, false if user is not member or requester is neither owner nor member
+     */
+    public boolean remove(int byId, int memberId) {
+        lock.lock();
+        try {
+            if (!members.containsKey(memberId) || byId != memberId && byId != ownerId())
+                return false;
+            removeMember(memberId);
+            MutationLog log = groups.log();
+            if (log != null)
+                sequence = log.groupMemberRemoved(id, memberId);
+            groups.user(memberId).post(user -> user.leftGroup(id));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves message sent to group by member and pushes it to other online members.
+     * Message counts as delivered to sender if all previous messages were delivered to sender.
+     *
+     * @param fromId sender's id
+     * @param msg    message
+     * @param time   time message was received at in milliseconds since epoch
+     * @return true if message was saved, false if sender is not member
+     */
+    public boolean send(int fromId, String msg, long time) {
+        lock.lock();
+        try {
+            if (!members.containsKey(fromId))
+                return false;
+            Message message = append(fromId, msg, time);
+            MutationLog log = groups.log();
+            if (log != null) {
+                sequence = log.groupMessageSaved(id, fromId, msg, time);
+                Metrics.groupMessages.increment();
+            }
+            Delivery delivery = new Delivery(this, message);
+            for (int memberId : online) {
+                if (memberId != fromId)
+                    groups.user(memberId).post(user -> user.receiveGroupMessage(delivery));
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns number of last message delivered to member.
+     * Messages dropped by retention limits count as delivered.
+     *
+     * @param memberId member's id
+     * @return message's number or -1 if user is not member
+     */
+    public long cursor(int memberId) {
+        lock.lock();
+        try {
+            Member member = members.get(memberId);
+            return member == null ? -1 : Math.max(member.cursor, firstNumber() - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks message pushed to member as delivered.
+     * Cursor is logged when member disconnects, so pushed messages do not add records to log.
+     *
+     * @param memberId member's id
+     * @param number   message's number
+     */
+    public void delivered(int memberId, long number) {
+        lock.lock();
+        try {
+            Member member = members.get(memberId);
+            if (member != null && member.cursor < number) {
+                advance(member, number);
+                member.pushed = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns first messages that are not delivered to member without marking them delivered.
+     *
+     * @param memberId  member's id
+     * @param max       maximum number of messages
+     * @param maxLength total length after which no more messages are returned
+     * @return first undelivered messages or null if user is not member
+     */
+    public List<Message> peek(int memberId, int max, long maxLength) {
+        lock.lock();
+        try {
+            Member member = members.get(memberId);
+            if (member == null)
+                return null;
+            List<Message> batch = new ArrayList<>();
+            long length = 0;
+            int index = first + (int) Math.max(member.cursor - firstNumber() + 1, 0);
+            for (; index < messages.size() && batch.size() < max && length < maxLength; index++) {
+                Message message = messages.get(index);
+                batch.add(message);
+                length += message.text.length();
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks messages up to specified one as read by member.
+     *
+     * @param memberId member's id
+     * @param number   number of last read message
+     */
+    public void read(int memberId, long number) {
+        lock.lock();
+        try {
+            Member member = members.get(memberId);
+            if (member == null)
+                return;
+            if (member.cursor < number)
+                advance(member, number);
+            member.pushed = false;
+            MutationLog log = groups.log();
+            if (log != null)
+                sequence = log.groupMessagesRead(id, memberId, member.cursor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns number of messages that are not delivered to member.
+     *
+     * @param memberId member's id
+     * @return number of messages or -1 if user is not member
+     */
+    public int unread(int memberId) {
+        lock.lock();
+        try {
+            Member member = members.get(memberId);
+            if (member == null)
+                return -1;
+            return (int) (lastMessage - Math.max(member.cursor, firstNumber() - 1));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns ids of group's members, owner first.
+     *
+     * @return members' ids in order they joined group
+     */
+    public List<Integer> members() {
+        lock.lock();
+        try {
+            return new ArrayList<>(members.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if user is group's member.
+     *
+     * @param memberId user's id
+     * @return true if user is member, otherwise false
+     */
+    public boolean isMember(int memberId) {
+        lock.lock();
+        try {
+            return members.containsKey(memberId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks member connected, so new messages are pushed to member.
+     * Called from member's mailbox.
+     *
+     * @param memberId member's id
+     */
+    public void online(int memberId) {
+        lock.lock();
+        try {
+            if (members.containsKey(memberId))
+                online.add(memberId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks member disconnected and logs its cursor if messages were pushed to member.
+     * Called from member's mailbox.
+     *
+     * @param memberId member's id
+     */
+    public void offline(int memberId) {
+        lock.lock();
+        try {
+            online.remove(memberId);
+            Member member = members.get(memberId);
+            MutationLog log = groups.log();
+            if (member != null && member.pushed && log != null) {
+                member.pushed = false;
+                sequence = log.groupMessagesRead(id, memberId, member.cursor);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs action when group's last change is written to disk.
+     * Action is run at once while changes are replayed from log.
+     *
+     * @param action action that should not block
+     * @param failed action that is run instead if change will not be written because log failed
+     */
+    public void whenDurable(Runnable action, Runnable failed) {
+        long sequence;
+        lock.lock();
+        try {
+            sequence = this.sequence;
+        } finally {
+            lock.unlock();
+        }
+        MutationLog log = groups.log();
+        if (log == null)
+            action.run();
+        else
+            log.whenDurable(sequence, action, failed);
+    }
+
+    /**
+     * Marks group as created by log's record with specified sequence number while it is replayed.
+     *
+     * @param sequence record's sequence number
+     */
+    void replayCreated(long sequence) {
+        lock.lock();
+        try {
+            replay(sequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replays addition of member logged with specified sequence number.
+     *
+     * @param sequence record's sequence number
+     * @param memberId new member's id
+     */
+    void replayAdded(long sequence, int memberId) {
+        lock.lock();
+        try {
+            if (replay(sequence) && !members.containsKey(memberId)) {
+                addMember(memberId, lastMessage);
+                groups.joined(memberId, this);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replays removal of member logged with specified sequence number.
+     *
+     * @param sequence record's sequence number
+     * @param memberId removed member's id
+     */
+    void replayRemoved(long sequence, int memberId) {
+        lock.lock();
+        try {
+            if (replay(sequence) && members.containsKey(memberId))
+                removeMember(memberId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replays message logged with specified sequence number.
+     *
+     * @param sequence record's sequence number
+     * @param fromId   sender's id
+     * @param msg      message
+     * @param time     time message was saved at in milliseconds since epoch
+     */
+    void replaySaved(long sequence, int fromId, String msg, long time) {
+        lock.lock();
+        try {
+            if (replay(sequence) && members.containsKey(fromId))
+                append(fromId, msg, time);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replays read messages logged with specified sequence number.
+     *
+     * @param sequence record's sequence number
+     * @param memberId member's id
+     * @param number   number of last read message
+     */
+    void replayRead(long sequence, int memberId, long number) {
+        lock.lock();
+        try {
+            Member member = members.get(memberId);
+            if (replay(sequence) && member != null && member.cursor < number)
+                advance(member, number);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes group's record.
+     * Members are written with their cursors and messages without their numbers,
+     * since messages are numbered consecutively up to last message.
+     *
+     * @param out encoder
+     */
+    void write(Encoder out) {
+        lock.lock();
+        try {
+            out.writeVarint(id);
+            out.writeString(name);
+            out.writeVarint(sequence);
+            out.writeVarint(lastMessage);
+            out.writeVarint(members.size());
+            for (Map.Entry<Integer, Member> entry : members.entrySet()) {
+                out.writeVarint(entry.getKey());
+                out.writeVarint(entry.getValue().cursor);
+            }
+            out.writeVarint(messages.size() - first);
+            for (int i = first; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                out.writeVarint(message.fromId);
+                out.writeString(message.text);
+                out.writeVarint(message.time);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decodes group's record written by write method.
+     *
+     * @param in decoder
+     * @return group that is not attached to registry
+     * @throws IOException if record is malformed
+     */
+    static Group read(Decoder in) throws IOException {
+        Group group = new Group(in.readVarintInt(), in.readString());
+        group.sequence = in.readVarint();
+        group.lastMessage = in.readVarint();
+        int membersCount = in.readVarintInt();
+        for (int i = 0; i < membersCount; i++) {
+            group.addMember(in.readVarintInt(), in.readVarint());
+        }
+        int messagesCount = in.readVarintInt();
+        long number = group.lastMessage - messagesCount;
+        for (int i = 0; i < messagesCount; i++) {
+            group.messages.add(new Message(++number, in.readVarintInt(), in.readString(), in.readVarint()));
+        }
+        return group;
+    }
+
+    /**
+     * Returns true if group has no members.
+     *
+     * @return true if group has no members, otherwise false
+     */
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return members.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if change with specified sequence number is not contained in group's state yet
+     * and marks group as changed by it in that case.
+     * Must be called under lock.
+     *
+     * @param sequence record's sequence number
+     * @return true if change should be replayed, otherwise false
+     */
+    private boolean replay(long sequence) {
+        if (sequence <= this.sequence)
+            return false;
+        this.sequence = sequence;
+        return true;
+    }
+
+    /**
+     * Returns owner's id.
+     * Must be called under lock.
+     *
+     * @return id of member that joined group first
+     */
+    private int ownerId() {
+        return members.keySet().iterator().next();
+    }
+
+    /**
+     * Returns number of first message kept in group.
+     * Must be called under lock.
+     *
+     * @return message's number, number after last message if group has no messages
+     */
+    private long firstNumber() {
+        return lastMessage - (messages.size() - first) + 1;
+    }
+
+    /**
+     * Notifies member about group posting to member's mailbox and marks member online if member is connected.
+     * Must be called under lock.
+     *
+     * @param memberId member's id
+     */
+    private void notifyJoined(int memberId) {
+        groups.user(memberId).post(user -> {
+            if (user.joinedGroup(this))
+                online(memberId);
+        });
+    }
+
+    /**
+     * Adds member with specified cursor.
+     * Must be called under lock.
+     *
+     * @param memberId member's id
+     * @param cursor   number of last message delivered to member
+     */
+    private void addMember(int memberId, long cursor) {
+        members.put(memberId, new Member(cursor));
+        cursors.merge(cursor, 1, Integer::sum);
+    }
+
+    /**
+     * Removes member, passes ownership to next member and removes group without members from registry.
+     * Must be called under lock.
+     *
+     * @param memberId member's id
+     */
+    private void removeMember(int memberId) {
+        Member member = members.remove(memberId);
+        cursors.computeIfPresent(member.cursor, (cursor, count) -> count == 1 ? null : count - 1);
+        online.remove(memberId);
+        groups.left(memberId, this);
+        if (members.isEmpty())
+            groups.removed(this);
+        dropDelivered();
+    }
+
+    /**
+     * Appends message and drops oldest messages over server's retention limits.
+     * Must be called under lock.
+     *
+     * @param fromId sender's id
+     * @param msg    message
+     * @param time   time message was saved at in milliseconds since epoch
+     * @return appended message
+     */
+    private Message append(int fromId, String msg, long time) {
+        Message message = new Message(++lastMessage, fromId, msg, time);
+        messages.add(message);
+        int maxCount = MessageSweeper.maxCount(0);
+        long maxAge = MessageSweeper.maxAgeMillis(0);
+        while (messages.size() - first > maxCount
+                || maxAge > 0 && messages.get(first).time + maxAge <= time) {
+            messages.set(first++, null);
+        }
+        Member sender = members.get(fromId);
+        if (Math.max(sender.cursor, firstNumber() - 1) == message.number - 1)
+            advance(sender, message.number);
+        else
+            compact();
+        return message;
+    }
+
+    /**
+     * Moves member's cursor forward and drops messages delivered to all members.
+     * Must be called under lock.
+     *
+     * @param member member
+     * @param number number of last message delivered to member
+     */
+    private void advance(Member member, long number) {
+        cursors.computeIfPresent(member.cursor, (cursor, count) -> count == 1 ? null : count - 1);
+        member.cursor = number;
+        cursors.merge(number, 1, Integer::sum);
+        dropDelivered();
+    }
+
+    /**
+     * Drops messages delivered to all members.
+     * Must be called under lock.
+     */
+    private void dropDelivered() {
+        long delivered = cursors.isEmpty() ? lastMessage : cursors.firstKey();
+        while (first < messages.size() && messages.get(first).number <= delivered) {
+            messages.set(first++, null);
+        }
+        compact();
+    }
+
+    /**
+     * Releases space of dropped messages once they take half of messages' list.
+     * Must be called under lock.
+     */
+    private void compact() {
+        if (first == messages.size()) {
+            messages.clear();
+            first = 0;
+        } else if (first > 64 && first > messages.size() / 2) {
+            messages.subList(0, first).clear();
+            first = 0;
+        }
+    }
+}
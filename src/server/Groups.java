@@ -0,0 +1,256 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Registry of group conversations by their ids with index of groups by their members.
+ * Groups are created under server's registration lock, so saved users data contain every group
+ * which creation was logged before log's rotation.
+ * Changes replayed from log are applied to groups directly, since groups do not have mailboxes.
+ */
+public class Groups {
+    /**
+     * Groups by their ids.
+     */
+    private final ConcurrentHashMap<Integer, Group> groups = new ConcurrentHashMap<>();
+    /**
+     * Groups by ids of their members.
+     */
+    private final ConcurrentHashMap<Integer, Set<Group>> memberships = new ConcurrentHashMap<>();
+    /**
+     * Id that will be allocated to next created group.
+     */
+    private final AtomicInteger nextId = new AtomicInteger();
+    /**
+     * Function that returns user with specified id.
+     */
+    private final IntFunction<User> users;
+    /**
+     * Log of changes or null while changes are replayed or server follows primary.
+     */
+    private volatile MutationLog log = null;
+
+    /**
+     * Creates empty registry.
+     *
+     * @param users function that returns user with specified id
+     */
+    public Groups(IntFunction<User> users) {
+        this.users = users;
+    }
+
+    /**
+     * Sets log that groups' changes are appended to.
+     *
+     * @param log log of changes or null if changes should not be logged
+     */
+    public void setLog(MutationLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Returns log that groups' changes are appended to.
+     *
+     * @return log of changes or null if changes should not be logged
+     */
+    MutationLog log() {
+        return log;
+    }
+
+    /**
+     * Returns user with specified id.
+     *
+     * @param id user's id
+     * @return user
+     */
+    User user(int id) {
+        return users.apply(id);
+    }
+
+    /**
+     * Adds group loaded from users data.
+     * Ignores group without members, since it was removed while users data were saved.
+     *
+     * @param group group that is not attached to registry
+     */
+    public void add(Group group) {
+        if (group.isEmpty())
+            return;
+        nextId.accumulateAndGet(group.id + 1, Math::max);
+        group.attach(this);
+        groups.put(group.id, group);
+    }
+
+    /**
+     * Creates group with specified owner and notifies owner about it.
+     * Must be called under server's registration lock.
+     *
+     * @param ownerId owner's id
+     * @param name    group's name
+     * @return new group
+     */
+    public Group create(int ownerId, String name) {
+        Group group = new Group(nextId.getAndIncrement(), name, ownerId);
+        group.attach(this);
+        group.created();
+        groups.put(group.id, group);
+        return group;
+    }
+
+    /**
+     * Returns group with specified id.
+     *
+     * @param id group's id
+     * @return group or null if there is no such group
+     */
+    public Group get(int id) {
+        return groups.get(id);
+    }
+
+    /**
+     * Returns all groups.
+     *
+     * @return view of groups
+     */
+    public Collection<Group> all() {
+        return groups.values();
+    }
+
+    /**
+     * Marks user connected in all its groups.
+     * Called from user's mailbox.
+     *
+     * @param userId user's id
+     * @return groups user is member of
+     */
+    public List<Group> online(int userId) {
+        List<Group> groups = new ArrayList<>(memberships.getOrDefault(userId, Set.of()));
+        for (Group group : groups) {
+            group.online(userId);
+        }
+        return groups;
+    }
+
+    /**
+     * Marks user disconnected in all its groups.
+     * Called from user's mailbox.
+     *
+     * @param userId user's id
+     */
+    public void offline(int userId) {
+        for (Group group : memberships.getOrDefault(userId, Set.of())) {
+            group.offline(userId);
+        }
+    }
+
+    /**
+     * Adds group to index of member's groups.
+     *
+     * @param memberId member's id
+     * @param group    group
+     */
+    void joined(int memberId, Group group) {
+        memberships.computeIfAbsent(memberId, id -> ConcurrentHashMap.newKeySet()).add(group);
+    }
+
+    /**
+     * Removes group from index of former member's groups.
+     *
+     * @param memberId former member's id
+     * @param group    group
+     */
+    void left(int memberId, Group group) {
+        memberships.computeIfPresent(memberId, (id, groups) -> {
+            groups.remove(group);
+            return groups.isEmpty() ? null : groups;
+        });
+    }
+
+    /**
+     * Removes group without members from registry.
+     *
+     * @param group group
+     */
+    void removed(Group group) {
+        groups.remove(group.id, group);
+    }
+
+    /**
+     * Replays creation of group.
+     *
+     * @param sequence record's sequence number
+     * @param id       group's id
+     * @param ownerId  owner's id
+     * @param name     group's name
+     */
+    public void created(long sequence, int id, int ownerId, String name) {
+        nextId.accumulateAndGet(id + 1, Math::max);
+        if (groups.containsKey(id))
+            return;
+        Group group = new Group(id, name, ownerId);
+        group.replayCreated(sequence);
+        group.attach(this);
+        groups.put(id, group);
+    }
+
+    /**
+     * Replays addition of member to group.
+     *
+     * @param sequence record's sequence number
+     * @param id       group's id
+     * @param memberId new member's id
+     */
+    public void memberAdded(long sequence, int id, int memberId) {
+        Group group = groups.get(id);
+        if (group != null)
+            group.replayAdded(sequence, memberId);
+    }
+
+    /**
+     * Replays removal of member from group.
+     *
+     * @param sequence record's sequence number
+     * @param id       group's id
+     * @param memberId removed member's id
+     */
+    public void memberRemoved(long sequence, int id, int memberId) {
+        Group group = groups.get(id);
+        if (group != null)
+            group.replayRemoved(sequence, memberId);
+    }
+
+    /**
+     * Replays message sent to group.
+     *
+     * @param sequence record's sequence number
+     * @param id       group's id
+     * @param fromId   sender's id
+     * @param msg      message
+     * @param time     time message was saved at in milliseconds since epoch
+     */
+    public void messageSaved(long sequence, int id, int fromId, String msg, long time) {
+        Group group = groups.get(id);
+        if (group != null)
+            group.replaySaved(sequence, fromId, msg, time);
+    }
+
+    /**
+     * Replays messages of group read by member.
+     *
+     * @param sequence record's sequence number
+     * @param id       group's id
+     * @param memberId member's id
+     * @param number   number of last read message
+     */
+    public void messagesRead(long sequence, int id, int memberId, long number) {
+        Group group = groups.get(id);
+        if (group != null)
+            group.replayRead(sequence, memberId, number);
+    }
+}
@@ -0,0 +1,115 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring that assigns users to nodes of cluster by their ids.
+ * Each node is placed on ring at many points derived from its name,
+ * user belongs to node of first point at or after hash of user's id.
+ * When node joins, it takes about equal share of users from every other node and other users stay in place.
+ * Ring is immutable, so lookups need no locks.
+ */
+public class HashRing {
+    /**
+     * Number of points of each node on ring.
+     */
+    private static final int pointsPerNode = 160;
+
+    /**
+     * Nodes of ring in order they joined cluster.
+     */
+    private final List<NodeInfo> nodes;
+    /**
+     * Sorted points of all nodes.
+     */
+    private final long[] points;
+    /**
+     * Nodes by indexes of their points.
+     */
+    private final NodeInfo[] owners;
+
+    /**
+     * Builds ring of specified nodes.
+     *
+     * @param nodes nodes in order they joined cluster
+     */
+    public HashRing(List<NodeInfo> nodes) {
+        this.nodes = List.copyOf(nodes);
+        TreeMap<Long, NodeInfo> ring = new TreeMap<>();
+        for (NodeInfo node : nodes) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                ring.putIfAbsent(hash(node.name() + "#" + i), node);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new NodeInfo[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, NodeInfo> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i++] = point.getValue();
+        }
+    }
+
+    /**
+     * Returns nodes of ring in order they joined cluster.
+     *
+     * @return nodes
+     */
+    public List<NodeInfo> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns node that owns user with specified id.
+     *
+     * @param id user's id
+     * @return node or null if ring is empty
+     */
+    public NodeInfo owner(int id) {
+        if (points.length == 0)
+            return null;
+        long hash = mix(id);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (points[middle] < hash)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    /**
+     * Returns hash of string: FNV-1a of its UTF-8 form with mixed bits.
+     *
+     * @param s string
+     * @return hash
+     */
+    private static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Spreads bits of value over all bits of hash, finalizer of MurmurHash3.
+     *
+     * @param v value
+     * @return hash
+     */
+    private static long mix(long v) {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values that many threads record concurrently without contention.
+ * Each power of two is split into 16 buckets, so percentiles are computed with relative error below 1/16.
+ * Buckets are striped counters, values are never forgotten.
+ */
+public class Histogram {
+    /**
+     * Number of buckets in each power of two.
+     */
+    private static final int subBuckets = 16;
+
+    /**
+     * Counts of values by buckets.
+     */
+    private final LongAdder[] counts = new LongAdder[64 * subBuckets];
+    /**
+     * Sum of recorded values.
+     */
+    private final LongAdder sum = new LongAdder();
+    /**
+     * Maximum recorded value.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Constructs empty histogram.
+     */
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records value, negative values are recorded as 0.
+     *
+     * @param value value
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[index(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records time elapsed since specified moment in microseconds.
+     *
+     * @param startNanos moment returned by {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Returns index of bucket with specified value.
+     *
+     * @param value non-negative value
+     * @return bucket's index
+     */
+    private static int index(long value) {
+        if (value < subBuckets)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return (shift + 1) * subBuckets + (int) ((value >> shift) & (subBuckets - 1));
+    }
+
+    /**
+     * Returns highest value of bucket with specified index.
+     *
+     * @param index bucket's index
+     * @return value
+     */
+    private static long highest(int index) {
+        if (index < subBuckets)
+            return index;
+        int shift = index / subBuckets - 1;
+        return ((long) (subBuckets + index % subBuckets + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns number of recorded values.
+     *
+     * @return number of values
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Returns mean of recorded values.
+     *
+     * @return mean or 0 if nothing is recorded
+     */
+    public long mean() {
+        long count = count();
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    /**
+     * Returns maximum recorded value.
+     *
+     * @return maximum value or 0 if nothing is recorded
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns value that specified fraction of recorded values does not exceed, within bucket's precision.
+     * Never exceeds maximum recorded value.
+     *
+     * @param fraction fraction from 0 to 1
+     * @return value or 0 if nothing is recorded
+     */
+    public long percentile(double fraction) {
+        long[] snapshot = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return Math.min(highest(i), max());
+        }
+        return 0;
+    }
+}
@@ -1,9 +1,12 @@
 package server;
 
+import javax.management.JMException;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * Class that starts server.
@@ -11,27 +14,210 @@ import java.net.ServerSocket;
 public class Main {
     /**
      * Starts server at optionally specified port.
+     * Expects launching in format "server [port] [--option=value]...".
+     * Option "--mode" selects connections handling mode:
+     * "blocking" (default) for thread per connection, "virtual" for virtual thread per connection
+     * or "selector" for event loops.
+     * Option "--threads" sets number of event loops in selector mode.
+     * Option "--workers" sets number of threads that run users' mailboxes.
+     * Option "--snapshot-interval" sets interval in seconds between background saves of users data.
+     * Option "--cache-size" sets maximum estimated size in megabytes of users data kept in memory,
+     * 0 keeps all users data in memory.
+     * Option "--max-pending" sets maximum size in kilobytes of messages queued for connection,
+     * slower clients are disconnected.
+     * Option "--compress-min" sets minimum size in bytes of batch of messages that is compressed
+     * for connections that negotiated compression.
+     * Option "--compress-level" sets compression level from 1 (fastest) to 9 (best compression).
+     * Option "--ping-interval" sets time in seconds after which idle connection that negotiated heartbeats
+     * is pinged, 0 disables heartbeats.
+     * Option "--pong-timeout" sets time in seconds within which pinged connection should answer.
+     * Option "--login-timeout" sets time in seconds within which connection should authenticate,
+     * 0 disables the limit.
+     * Option "--messages-user-budget" sets maximum estimated size in kilobytes of user's unread messages
+     * kept in memory, longer queues are spilled to cache file, 0 disables the limit.
+     * Option "--messages-global-budget" sets maximum estimated size in megabytes of all unread messages
+     * kept in memory, 0 disables the limit.
+     * Option "--message-max-age" sets maximum age in seconds of unread messages, older messages are expired,
+     * 0 keeps messages until they are read.
+     * Option "--message-max-count" sets maximum number of unread messages in conversation,
+     * oldest messages over it are expired, 0 disables the limit.
+     * Option "--messages-head" sets estimated size in kilobytes of first messages of spilled queue
+     * kept in memory.
+     * Option "--cluster-port" enables cluster mode and sets port for other nodes of cluster.
+     * Option "--cluster-host" sets host that other nodes and redirected clients use to connect to this node.
+     * Option "--join" sets address "host:port" of any node of cluster that this node joins,
+     * first node of cluster is started without it.
+     * Option "--peer-connections" sets number of connections to each other node.
+     * Option "--replication-port" sets port that followers connect to, 0 (default) disables replication.
+     * Option "--follow" sets address "host:port" of primary's replication port and starts server as its follower,
+     * which applies primary's log and does not serve clients until it is promoted.
+     * Option "--failover-timeout" sets time in seconds without primary after which follower promotes itself,
+     * 0 (default) leaves promotion to "promote" command.
+     * Option "--presence-window" sets time in milliseconds over which friends' presence changes are collected
+     * and sent to each user as one message.
+     * Registers server's metrics as JMX MBean "server:type=Metrics".
+     * Prints metrics if "stats" message read from standard input stream
+     * and compression statistics if "compression" message read.
+     * Prints followers and their lag if "replication" message read
+     * and promotes follower to primary if "promote" message read.
      * Stops server if "stop" message read from standard input stream.
      *
-     * @param args server's port
+     * @param args server's port and options
      */
     public static void main(String[] args) {
         try {
             int port = Server.defaultServerPort;
-            if (args.length > 0) {
-                port = Integer.parseInt(args[0]);
+            String mode = "blocking";
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    port = Integer.parseInt(arg);
+                    continue;
+                }
+                String[] option = arg.substring(2).split("=", 2);
+                if (option.length != 2)
+                    throw new IllegalArgumentException("Wrong option format: " + arg);
+                switch (option[0]) {
+                    case "mode":
+                        mode = option[1];
+                        break;
+                    case "threads":
+                        Server.eventLoopsCount = Integer.parseInt(option[1]);
+                        break;
+                    case "workers":
+                        Server.workersCount = Integer.parseInt(option[1]);
+                        break;
+                    case "snapshot-interval":
+                        Server.snapshotInterval = Integer.parseInt(option[1]);
+                        break;
+                    case "cache-size":
+                        Server.usersCacheSize = Long.parseLong(option[1]) << 20;
+                        break;
+                    case "max-pending":
+                        QueuedConnection.maxPendingBytes = Integer.parseInt(option[1]) << 10;
+                        break;
+                    case "compress-min":
+                        Compressor.minCompressedBytes = Integer.parseInt(option[1]);
+                        break;
+                    case "compress-level":
+                        Compressor.level = Integer.parseInt(option[1]);
+                        if (Compressor.level < 1 || Compressor.level > 9)
+                            throw new IllegalArgumentException("Wrong compression level: " + option[1]);
+                        break;
+                    case "ping-interval":
+                        Server.pingInterval = Integer.parseInt(option[1]);
+                        break;
+                    case "pong-timeout":
+                        Server.pongTimeout = Integer.parseInt(option[1]);
+                        break;
+                    case "login-timeout":
+                        Server.loginTimeout = Integer.parseInt(option[1]);
+                        break;
+                    case "messages-user-budget":
+                        MessageQueue.userBudget = Long.parseLong(option[1]) << 10;
+                        break;
+                    case "messages-global-budget":
+                        MessageQueue.globalBudget = Long.parseLong(option[1]) << 20;
+                        break;
+                    case "message-max-age":
+                        MessageSweeper.maxAge = Integer.parseInt(option[1]);
+                        break;
+                    case "message-max-count":
+                        MessageSweeper.maxCount = Integer.parseInt(option[1]);
+                        break;
+                    case "messages-head":
+                        MessageQueue.headBytes = Integer.parseInt(option[1]) << 10;
+                        break;
+                    case "cluster-port":
+                        Cluster.port = Integer.parseInt(option[1]);
+                        break;
+                    case "cluster-host":
+                        Cluster.host = option[1];
+                        break;
+                    case "join":
+                        Cluster.seed = option[1];
+                        break;
+                    case "peer-connections":
+                        Cluster.peerConnections = Integer.parseInt(option[1]);
+                        break;
+                    case "replication-port":
+                        Replication.port = Integer.parseInt(option[1]);
+                        break;
+                    case "follow":
+                        Follower.primary = option[1];
+                        break;
+                    case "failover-timeout":
+                        Follower.failoverTimeout = Integer.parseInt(option[1]);
+                        break;
+                    case "presence-window":
+                        Presence.window = Integer.parseInt(option[1]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
             }
-            Server server = new Server(new ServerSocket(port));
-            server.run();
+            if (Follower.primary != null && Cluster.port > 0)
+                throw new IllegalArgumentException("Node of cluster can not follow primary");
+            String serverMode = mode;
+            int serverPort = port;
+            Server server = newServer(mode, port);
+            Follower follower = null;
+            if (Follower.primary != null) {
+                follower = new Follower(server, () -> newServer(serverMode, serverPort));
+                follower.start();
+            } else {
+                server.run();
+            }
+            Metrics.registerMBean();
             BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
             while (true) {
-                if (in.readLine().equals("stop"))
+                String command = in.readLine();
+                if (command.equals("stop"))
                     break;
+                if (command.equals("stats"))
+                    System.out.println(Metrics.report());
+                if (command.equals("compression"))
+                    System.out.println(Compressor.stats());
+                if (command.equals("replication"))
+                    System.out.print(Replication.status());
+                if (command.equals("promote")) {
+                    if (follower == null)
+                        System.out.println("Server is not a follower");
+                    else
+                        follower.promote();
+                }
             }
-            server.stop();
-        } catch (IOException | IllegalArgumentException e) {
+            if (follower != null)
+                follower.stop();
+            else
+                server.stop();
+        } catch (IOException | IllegalArgumentException | UnsupportedOperationException | JMException e) {
             System.out.println("Unable to start Server: " +
                     e.getMessage());
         }
     }
+
+    /**
+     * Creates server in specified connections handling mode.
+     * Socket of follower is not bound until it is promoted, so its clients are refused at once.
+     *
+     * @param mode "blocking", "virtual" or "selector"
+     * @param port server's port
+     * @return server
+     * @throws IOException if socket can not be opened or users data can not be loaded
+     */
+    private static Server newServer(String mode, int port) throws IOException {
+        boolean bind = Follower.primary == null;
+        switch (mode) {
+            case "blocking":
+                return new Server(bind ? new ServerSocket(port) : new ServerSocket(), null, port);
+            case "virtual":
+                return new Server(bind ? new ServerSocket(port) : new ServerSocket(),
+                        Server.newVirtualThreadExecutor(), port);
+            case "selector":
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                return new Server(bind ? channel.bind(new InetSocketAddress(port)) : channel, port);
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
 }
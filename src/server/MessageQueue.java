@@ -0,0 +1,460 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queue of unread messages from friend that keeps only its head in memory when it grows.
+ * Queue consists of head in memory, chunks of following messages spilled to users storage
+ * and tail in memory with messages added after last spill.
+ * Spilling moves all messages after head to storage, when head is emptied by taking messages,
+ * first chunk is paged back into it. Queue is accessed only by its user's mailbox.
+ * Spilled chunks are not needed for recovery, since users data and log contain all messages.
+ * Each message keeps time it was saved at, so queue's oldest messages can be expired.
+ */
+public class MessageQueue {
+    /**
+     * Estimated memory size in bytes of message without its text.
+     */
+    public static final int messageSize = 64;
+    /**
+     * Maximum estimated size in bytes of first messages kept in memory after queue is spilled.
+     */
+    public static int headBytes = 16 << 10;
+    /**
+     * Maximum length in bytes of spilled chunk.
+     */
+    public static int chunkBytes = 64 << 10;
+    /**
+     * Minimum estimated size in bytes of messages after head for queue to be spilled.
+     */
+    public static int minSpillBytes = 4 << 10;
+    /**
+     * Maximum estimated size in bytes of messages in memory of one user, 0 disables spilling.
+     */
+    public static long userBudget = 256 << 10;
+    /**
+     * Maximum estimated size in bytes of messages in memory of all users, 0 disables spilling.
+     */
+    public static long globalBudget = 64L << 20;
+    /**
+     * Estimated size in bytes of messages in memory of all queues.
+     */
+    private static final LongAdder globalResident = new LongAdder();
+
+    /**
+     * First messages in memory.
+     */
+    private final ArrayDeque<Message> head = new ArrayDeque<>();
+    /**
+     * Spilled chunks of messages that follow head.
+     */
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    /**
+     * Messages added after last spill, empty if there are no spilled chunks.
+     */
+    private final ArrayDeque<Message> tail = new ArrayDeque<>();
+    /**
+     * Number of messages in queue.
+     */
+    private int size = 0;
+    /**
+     * Estimated size in bytes of head's messages.
+     */
+    private long headResident = 0;
+    /**
+     * Estimated size in bytes of tail's messages.
+     */
+    private long tailResident = 0;
+
+    /**
+     * Message with time it was saved at.
+     */
+    private static class Message {
+        /**
+         * Message's text.
+         */
+        private final String text;
+        /**
+         * Time message was saved at in milliseconds since epoch.
+         */
+        private final long time;
+
+        private Message(String text, long time) {
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Spilled chunk of messages.
+     */
+    private static class Chunk {
+        /**
+         * Chunk's record in storage with messages written as times followed by strings.
+         */
+        private UserStore.Record record;
+        /**
+         * Number of messages in chunk.
+         */
+        private final int count;
+        /**
+         * Time chunk's first message was saved at.
+         */
+        private final long firstTime;
+        /**
+         * Time chunk's last message was saved at.
+         */
+        private final long lastTime;
+
+        private Chunk(UserStore.Record record, int count, long firstTime, long lastTime) {
+            this.record = record;
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+        }
+    }
+
+    /**
+     * Returns true if estimated size of messages in memory of all users exceeds global budget.
+     *
+     * @return true if global budget is exceeded, otherwise false
+     */
+    public static boolean overGlobalBudget() {
+        return globalBudget > 0 && residentBytes() > globalBudget;
+    }
+
+    /**
+     * Returns estimated size in bytes of messages in memory of all queues.
+     *
+     * @return size in bytes
+     */
+    public static long residentBytes() {
+        return globalResident.sum();
+    }
+
+    /**
+     * Returns estimated memory size of message.
+     *
+     * @param msg message
+     * @return size in bytes
+     */
+    private static long sizeOf(Message msg) {
+        return messageSize + msg.text.length();
+    }
+
+    /**
+     * Returns number of messages in queue.
+     *
+     * @return number of messages
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if queue has no messages.
+     *
+     * @return true if queue is empty, otherwise false
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns true if some messages are spilled to storage.
+     *
+     * @return true if queue has spilled chunks, otherwise false
+     */
+    public boolean spilled() {
+        return !chunks.isEmpty();
+    }
+
+    /**
+     * Returns time first message was saved at.
+     *
+     * @return time in milliseconds since epoch or Long.MAX_VALUE if queue is empty
+     */
+    public long firstTime() {
+        if (!head.isEmpty())
+            return head.getFirst().time;
+        return chunks.isEmpty() ? Long.MAX_VALUE : chunks.getFirst().firstTime;
+    }
+
+    /**
+     * Returns estimated size in bytes of messages in memory.
+     *
+     * @return size in bytes
+     */
+    public long resident() {
+        return headResident + tailResident;
+    }
+
+    /**
+     * Returns estimated size in bytes of messages in memory that spilling would move to storage.
+     *
+     * @return size in bytes
+     */
+    public long spillable() {
+        return chunks.isEmpty() ? Math.max(0, headResident - headBytes) : tailResident;
+    }
+
+    /**
+     * Adds message to the end of queue.
+     *
+     * @param text message
+     * @param time time message was saved at in milliseconds since epoch
+     */
+    public void add(String text, long time) {
+        Message msg = new Message(text, time);
+        long size = sizeOf(msg);
+        if (chunks.isEmpty()) {
+            head.addLast(msg);
+            headResident += size;
+        } else {
+            tail.addLast(msg);
+            tailResident += size;
+        }
+        this.size++;
+        globalResident.add(size);
+    }
+
+    /**
+     * Returns first messages while their number does not exceed maximum and their total length
+     * is below specified length, but at least one message if queue is not empty.
+     * Pages spilled chunks into head if head does not contain enough messages.
+     *
+     * @param max       maximum number of messages
+     * @param maxLength total length after which no more messages are returned
+     * @param store     storage with spilled chunks
+     * @return first messages, they stay in queue
+     * @throws IOException if spilled chunk can not be read
+     */
+    public List<String> peek(int max, long maxLength, UserStore store) throws IOException {
+        List<String> batch = new ArrayList<>(Math.min(max, size));
+        long length = 0;
+        Iterator<Message> messages = head.iterator();
+        while (batch.size() < max && length < maxLength) {
+            if (!messages.hasNext()) {
+                if (!pageIn(store))
+                    break;
+                messages = head.iterator();
+                for (int i = 0; i < batch.size(); i++) {
+                    messages.next();
+                }
+            }
+            String text = messages.next().text;
+            batch.add(text);
+            length += text.length();
+        }
+        return batch;
+    }
+
+    /**
+     * Removes specified number of first messages, which must be returned by previous peek.
+     *
+     * @param count number of messages
+     */
+    public void remove(int count) {
+        for (int i = 0; i < count; i++) {
+            removeFirst();
+        }
+    }
+
+    /**
+     * Removes first messages saved not later than specified time and first messages over specified number.
+     * Spilled chunks that are removed entirely are released without reading them.
+     *
+     * @param cutoff latest time of removed messages, Long.MIN_VALUE to remove messages only by number
+     * @param keep   maximum number of messages that are left in queue
+     * @param store  storage with spilled chunks
+     * @return number of removed messages
+     * @throws IOException if spilled chunk can not be read
+     */
+    public int expire(long cutoff, int keep, UserStore store) throws IOException {
+        int removed = 0;
+        while (size > 0) {
+            if (head.isEmpty()) {
+                Chunk chunk = chunks.getFirst();
+                if (size - chunk.count >= keep || chunk.lastTime <= cutoff) {
+                    chunks.removeFirst();
+                    store.release(chunk.record);
+                    size -= chunk.count;
+                    removed += chunk.count;
+                    if (chunks.isEmpty())
+                        mergeTail();
+                } else {
+                    pageIn(store);
+                }
+                continue;
+            }
+            if (size <= keep && head.getFirst().time > cutoff)
+                break;
+            removeFirst();
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Removes first message of head.
+     */
+    private void removeFirst() {
+        long size = sizeOf(head.removeFirst());
+        headResident -= size;
+        globalResident.add(-size);
+        this.size--;
+    }
+
+    /**
+     * Moves first spilled chunk into head, followed by tail if it was the last chunk.
+     *
+     * @param store storage with spilled chunks
+     * @return true if messages were moved, otherwise false
+     * @throws IOException if spilled chunk can not be read
+     */
+    private boolean pageIn(UserStore store) throws IOException {
+        Chunk chunk = chunks.peekFirst();
+        if (chunk == null)
+            return false;
+        Decoder in = new Decoder(chunk.record.read());
+        for (int i = 0; i < chunk.count; i++) {
+            long time = in.readVarint();
+            Message msg = new Message(in.readString(), time);
+            head.addLast(msg);
+            headResident += sizeOf(msg);
+            globalResident.add(sizeOf(msg));
+        }
+        chunks.removeFirst();
+        store.release(chunk.record);
+        Metrics.messagesPagedIn.add(chunk.count);
+        if (chunks.isEmpty())
+            mergeTail();
+        return true;
+    }
+
+    /**
+     * Writes all messages after head's budget to storage as chunks, so only head stays in memory.
+     * If chunk can not be written, messages that are not spilled yet stay in memory.
+     *
+     * @param store storage for spilled chunks
+     * @throws IOException if chunk can not be written
+     */
+    public void spill(UserStore store) throws IOException {
+        if (chunks.isEmpty()) {
+            while (headResident > headBytes && head.size() > 1) {
+                Message msg = head.removeLast();
+                tail.addFirst(msg);
+                headResident -= sizeOf(msg);
+                tailResident += sizeOf(msg);
+            }
+        }
+        Encoder out = new Encoder(chunkBytes + 16);
+        try {
+            while (!tail.isEmpty()) {
+                out.reset();
+                int count = 0;
+                long resident = 0;
+                long firstTime = tail.getFirst().time;
+                long lastTime = firstTime;
+                for (Iterator<Message> messages = tail.iterator(); messages.hasNext() && out.size() < chunkBytes; ) {
+                    Message msg = messages.next();
+                    out.writeVarint(msg.time);
+                    out.writeString(msg.text);
+                    count++;
+                    resident += sizeOf(msg);
+                    lastTime = msg.time;
+                }
+                chunks.addLast(new Chunk(store.write(out), count, firstTime, lastTime));
+                for (int i = 0; i < count; i++) {
+                    tail.removeFirst();
+                }
+                tailResident -= resident;
+                globalResident.add(-resident);
+                Metrics.messagesSpilled.add(count);
+            }
+        } finally {
+            if (chunks.isEmpty())
+                mergeTail();
+        }
+    }
+
+    /**
+     * Moves tail's messages to the end of head, called when there are no spilled chunks between them.
+     */
+    private void mergeTail() {
+        head.addAll(tail);
+        headResident += tailResident;
+        tail.clear();
+        tailResident = 0;
+    }
+
+    /**
+     * Writes number of messages followed by all messages as times they were saved at and strings,
+     * spilled chunks are copied from storage.
+     *
+     * @param out   encoder
+     * @param store storage with spilled chunks
+     * @throws IOException if spilled chunk can not be read
+     */
+    public void write(Encoder out, UserStore store) throws IOException {
+        out.writeVarint(size);
+        for (Message msg : head) {
+            out.writeVarint(msg.time);
+            out.writeString(msg.text);
+        }
+        for (Chunk chunk : chunks) {
+            byte[] bytes = chunk.record.read();
+            out.write(bytes, 0, bytes.length);
+        }
+        for (Message msg : tail) {
+            out.writeVarint(msg.time);
+            out.writeString(msg.text);
+        }
+    }
+
+    /**
+     * Adds messages written by write method to users data of specified version.
+     * Versions before 3 have no times of messages, such messages are treated as saved now.
+     *
+     * @param in      decoder
+     * @param version version of users data's format
+     * @throws IOException if record is malformed
+     */
+    public void read(Decoder in, int version) throws IOException {
+        int count = in.readVarintInt();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            long time = version > 2 ? in.readVarint() : now;
+            add(in.readString(), time);
+        }
+    }
+
+    /**
+     * Moves spilled chunks to storage's file that new records are appended to.
+     *
+     * @param store storage with spilled chunks
+     * @throws IOException if chunk can not be copied
+     */
+    public void relocate(UserStore store) throws IOException {
+        for (Chunk chunk : chunks) {
+            chunk.record = store.relocate(chunk.record);
+        }
+    }
+
+    /**
+     * Releases spilled chunks and forgets messages in memory, called when user's data is evicted.
+     *
+     * @param store storage with spilled chunks
+     */
+    public void release(UserStore store) {
+        for (Chunk chunk : chunks) {
+            store.release(chunk.record);
+        }
+        globalResident.add(-resident());
+    }
+}
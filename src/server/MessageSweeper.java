@@ -0,0 +1,153 @@
+package server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Background sweeper that expires unread messages by retention policy.
+ * Each user with messages that can expire is indexed once by the earliest time any of them expires,
+ * index is ordered by time, so sweep visits only users with expired messages instead of all users.
+ * Sweep posts expiry to mailboxes of due users, which remove expired messages and index themselves again.
+ * Users index themselves when their queues or retention settings change, stale entries are skipped.
+ */
+public class MessageSweeper {
+    /**
+     * Maximum age in seconds of unread message for all conversations, 0 keeps messages until they are read.
+     */
+    public static int maxAge = 0;
+    /**
+     * Maximum number of unread messages in conversation for all conversations, 0 disables the limit.
+     */
+    public static int maxCount = 0;
+    /**
+     * Interval between sweeps in milliseconds.
+     */
+    private static final long sweepInterval = 1000;
+
+    /**
+     * Entries of index ordered by time messages expire at.
+     */
+    private final ConcurrentSkipListSet<Entry> index = new ConcurrentSkipListSet<>();
+    /**
+     * Time each indexed user is due at, entries of index with other times are stale.
+     */
+    private final ConcurrentHashMap<Integer, Long> deadlines = new ConcurrentHashMap<>();
+    /**
+     * Returns user with specified id.
+     */
+    private final IntFunction<User> users;
+    /**
+     * Sweeper's thread, null until sweeper is started.
+     */
+    private ScheduledExecutorService executor = null;
+
+    /**
+     * Entry of index.
+     */
+    private static class Entry implements Comparable<Entry> {
+        /**
+         * Time user's first messages expire at in milliseconds since epoch.
+         */
+        private final long deadline;
+        /**
+         * User's id.
+         */
+        private final int userId;
+
+        private Entry(long deadline, int userId) {
+            this.deadline = deadline;
+            this.userId = userId;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = Long.compare(deadline, other.deadline);
+            return result != 0 ? result : Integer.compare(userId, other.userId);
+        }
+    }
+
+    /**
+     * Creates sweeper with empty index.
+     *
+     * @param users function that returns user with specified id
+     */
+    public MessageSweeper(IntFunction<User> users) {
+        this.users = users;
+    }
+
+    /**
+     * Returns maximum age of messages in conversation with specified own limit.
+     * Own limit can only shorten server's limit.
+     *
+     * @param own conversation's maximum age in seconds, 0 if conversation has no own limit
+     * @return age in milliseconds or 0 if messages never expire by age
+     */
+    public static long maxAgeMillis(int own) {
+        int age = own > 0 && (maxAge <= 0 || own < maxAge) ? own : maxAge;
+        return TimeUnit.SECONDS.toMillis(Math.max(0, age));
+    }
+
+    /**
+     * Returns maximum number of messages in conversation with specified own limit.
+     * Own limit can only lower server's limit.
+     *
+     * @param own conversation's maximum number of messages, 0 if conversation has no own limit
+     * @return number of messages or Integer.MAX_VALUE if number is not limited
+     */
+    public static int maxCount(int own) {
+        int count = own > 0 && (maxCount <= 0 || own < maxCount) ? own : maxCount;
+        return count > 0 ? count : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Indexes user by time its first messages expire at, unless user is already indexed by earlier time.
+     * Does nothing if user has no messages that can expire.
+     *
+     * @param userId   user's id
+     * @param deadline time in milliseconds since epoch or Long.MAX_VALUE
+     */
+    public void schedule(int userId, long deadline) {
+        if (deadline == Long.MAX_VALUE)
+            return;
+        if (deadlines.merge(userId, deadline, Math::min) == deadline)
+            index.add(new Entry(deadline, userId));
+    }
+
+    /**
+     * Starts sweeper's thread.
+     */
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "message-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sweeper's thread, index is kept.
+     */
+    public void stop() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * Removes due entries from index and posts expiry to their users.
+     */
+    private void sweep() {
+        Entry now = new Entry(System.currentTimeMillis(), Integer.MAX_VALUE);
+        for (Iterator<Entry> due = index.headSet(now, true).iterator(); due.hasNext(); ) {
+            Entry entry = due.next();
+            due.remove();
+            if (deadlines.remove(entry.userId, entry.deadline))
+                users.apply(entry.userId).post(User::expireMessages);
+        }
+    }
+}
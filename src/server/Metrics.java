@@ -0,0 +1,334 @@
+package server;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server's metrics: striped counters and histograms that are updated from any thread without contention.
+ * Metrics are cumulative since start of process and are shared by all servers in it.
+ * They are printed by "stats" console command and exported as attributes of JMX MBean "server:type=Metrics".
+ */
+public final class Metrics {
+    /**
+     * Requests counted by their types.
+     */
+    public enum Command {
+        HELLO("hello"),
+        LOGIN("auth"),
+        REGISTRATION("reg"),
+        GET_FRIENDS_REQUESTS_LIST("getFriendsRequestsList"),
+        ACCEPT_REQUEST("acceptRequest"),
+        SEND_REQUEST("sendRequest"),
+        SEND_MESSAGE("sendMessage"),
+        GET_MESSAGE_FROM("getMessageFrom"),
+        GET_MESSAGES_FROM("getMessagesFrom"),
+        SET_RETENTION("setRetention"),
+        CREATE_GROUP("createGroup"),
+        ADD_TO_GROUP("addToGroup"),
+        REMOVE_FROM_GROUP("removeFromGroup"),
+        SEND_GROUP_MESSAGE("sendGroupMessage"),
+        GET_GROUP_MESSAGES("getGroupMessages"),
+        GET_GROUP_MEMBERS("getGroupMembers"),
+        SET_PRESENCE("setPresence"),
+        PING("ping"),
+        PONG("pong"),
+        MALFORMED("malformed");
+
+        /**
+         * Name of command in metrics.
+         */
+        private final String label;
+        /**
+         * Number of received requests of this type.
+         */
+        private final LongAdder count = new LongAdder();
+
+        Command(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Counts received request of this type.
+         */
+        public void received() {
+            count.increment();
+        }
+    }
+
+    /**
+     * Number of opened connections.
+     */
+    public static final LongAdder connectionsOpened = new LongAdder();
+    /**
+     * Number of closed connections.
+     */
+    public static final LongAdder connectionsClosed = new LongAdder();
+    /**
+     * Number of connections closed because their clients read too slowly.
+     */
+    public static final LongAdder slowConnections = new LongAdder();
+    /**
+     * Number of connections closed because they were idle or did not answer ping.
+     */
+    public static final LongAdder idleConnections = new LongAdder();
+    /**
+     * Number of pings sent to idle connections.
+     */
+    public static final LongAdder pingsSent = new LongAdder();
+    /**
+     * Number of failed logins and registrations.
+     */
+    public static final LongAdder authFailures = new LongAdder();
+    /**
+     * Number of bytes received from clients.
+     */
+    public static final LongAdder bytesIn = new LongAdder();
+    /**
+     * Number of bytes written to clients.
+     */
+    public static final LongAdder bytesOut = new LongAdder();
+    /**
+     * Number of messages pushed to recipients at once.
+     */
+    public static final LongAdder messagesPushed = new LongAdder();
+    /**
+     * Number of messages queued for recipients until they request them.
+     */
+    public static final LongAdder messagesQueued = new LongAdder();
+    /**
+     * Number of queued messages taken by recipients.
+     */
+    public static final LongAdder messagesTaken = new LongAdder();
+    /**
+     * Number of queued messages removed by retention policy.
+     */
+    public static final LongAdder messagesExpired = new LongAdder();
+    /**
+     * Number of messages spilled from queues to storage.
+     */
+    public static final LongAdder messagesSpilled = new LongAdder();
+    /**
+     * Number of spilled messages paged back into queues.
+     */
+    public static final LongAdder messagesPagedIn = new LongAdder();
+    /**
+     * Number of messages sent to groups.
+     */
+    public static final LongAdder groupMessages = new LongAdder();
+    /**
+     * Number of group messages pushed to members.
+     */
+    public static final LongAdder groupMessagesPushed = new LongAdder();
+    /**
+     * Number of frames encoded for pushed group messages, at most one per message and protocol.
+     */
+    public static final LongAdder groupFramesEncoded = new LongAdder();
+    /**
+     * Number of presence changes published to friends.
+     */
+    public static final LongAdder presenceChanges = new LongAdder();
+    /**
+     * Number of presence changes queued for recipients before they are coalesced.
+     */
+    public static final LongAdder presenceUpdates = new LongAdder();
+    /**
+     * Number of batched presence messages sent to recipients.
+     */
+    public static final LongAdder presenceFrames = new LongAdder();
+    /**
+     * Number of requests forwarded to users owned by other nodes of cluster.
+     */
+    public static final LongAdder requestsForwarded = new LongAdder();
+    /**
+     * Number of users whose data was handed off to other nodes of cluster.
+     */
+    public static final LongAdder usersHandedOff = new LongAdder();
+    /**
+     * Number of users whose data was taken over from other nodes of cluster.
+     */
+    public static final LongAdder usersTakenOver = new LongAdder();
+    /**
+     * Number of log's records shipped to followers.
+     */
+    public static final LongAdder recordsShipped = new LongAdder();
+    /**
+     * Number of log's records received from primary and applied.
+     */
+    public static final LongAdder recordsApplied = new LongAdder();
+    /**
+     * Number of copies of saved users data shipped to followers or installed from primary.
+     */
+    public static final LongAdder snapshotsCopied = new LongAdder();
+    /**
+     * Number of bytes queued for all connections that are not written yet.
+     */
+    public static final LongAdder outboundBytes = new LongAdder();
+    /**
+     * Number of bytes queued for connection, recorded each time message is queued.
+     */
+    public static final Histogram outboundDepth = new Histogram();
+    /**
+     * Time of writing group of log's records and forcing it to disk in microseconds.
+     */
+    public static final Histogram logCommit = new Histogram();
+    /**
+     * Time of saving users data in microseconds.
+     */
+    public static final Histogram snapshot = new Histogram();
+    /**
+     * Time of loading evicted user's data from cache file in microseconds.
+     */
+    public static final Histogram userLoad = new Histogram();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns current values of all metrics by their names.
+     * Histograms are represented by number of values, mean, maximum and percentiles.
+     *
+     * @return values of metrics in stable order
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        long opened = connectionsOpened.sum();
+        long closed = connectionsClosed.sum();
+        values.put("connections.open", opened - closed);
+        values.put("connections.opened", opened);
+        values.put("connections.closed", closed);
+        values.put("connections.slow", slowConnections.sum());
+        values.put("connections.idle", idleConnections.sum());
+        values.put("heartbeats.pings", pingsSent.sum());
+        values.put("auth.failures", authFailures.sum());
+        for (Command command : Command.values()) {
+            values.put("commands." + command.label, command.count.sum());
+        }
+        values.put("bytes.in", bytesIn.sum());
+        values.put("bytes.out", bytesOut.sum());
+        values.put("messages.pushed", messagesPushed.sum());
+        values.put("messages.queued", messagesQueued.sum());
+        values.put("messages.taken", messagesTaken.sum());
+        values.put("messages.expired", messagesExpired.sum());
+        values.put("messages.spilled", messagesSpilled.sum());
+        values.put("messages.pagedIn", messagesPagedIn.sum());
+        values.put("messages.residentBytes", MessageQueue.residentBytes());
+        values.put("groups.messages", groupMessages.sum());
+        values.put("groups.pushed", groupMessagesPushed.sum());
+        values.put("groups.framesEncoded", groupFramesEncoded.sum());
+        values.put("presence.changes", presenceChanges.sum());
+        values.put("presence.updates", presenceUpdates.sum());
+        values.put("presence.frames", presenceFrames.sum());
+        values.put("cluster.forwarded", requestsForwarded.sum());
+        values.put("cluster.handedOff", usersHandedOff.sum());
+        values.put("cluster.takenOver", usersTakenOver.sum());
+        values.put("replication.followers", Replication.followers());
+        values.put("replication.shipped", recordsShipped.sum());
+        values.put("replication.applied", recordsApplied.sum());
+        values.put("replication.snapshots", snapshotsCopied.sum());
+        values.put("replication.lagBytes", Replication.lagBytes());
+        values.put("replication.lagMillis", Replication.lagMillis());
+        values.put("outbound.bytes", outboundBytes.sum());
+        put(values, "outbound.depthBytes", outboundDepth);
+        put(values, "persistence.logCommitMicros", logCommit);
+        put(values, "persistence.snapshotMicros", snapshot);
+        put(values, "persistence.userLoadMicros", userLoad);
+        return values;
+    }
+
+    /**
+     * Puts values representing histogram with specified name.
+     *
+     * @param values    values of metrics
+     * @param name      histogram's name
+     * @param histogram histogram
+     */
+    private static void put(Map<String, Long> values, String name, Histogram histogram) {
+        values.put(name + ".count", histogram.count());
+        values.put(name + ".mean", histogram.mean());
+        values.put(name + ".p50", histogram.percentile(0.5));
+        values.put(name + ".p99", histogram.percentile(0.99));
+        values.put(name + ".p999", histogram.percentile(0.999));
+        values.put(name + ".max", histogram.max());
+    }
+
+    /**
+     * Returns metrics in readable form, one metric per line.
+     *
+     * @return metrics
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        snapshot().forEach((name, value) -> sb.append(name).append(" = ").append(value).append("\n"));
+        return sb.append(Compressor.stats()).toString();
+    }
+
+    /**
+     * Registers metrics in platform MBean server as MBean "server:type=Metrics" with read-only attributes.
+     * Does nothing if it is already registered.
+     *
+     * @throws JMException if MBean can not be registered
+     */
+    public static void registerMBean() throws JMException {
+        ObjectName name = new ObjectName("server:type=Metrics");
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+    }
+
+    /**
+     * MBean which attributes are metrics, their set is fixed, values are read on each request.
+     */
+    private static class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = values.get(attribute);
+                if (value != null)
+                    list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = snapshot().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(MBean.class.getName(), "Server's metrics", attributes, null, null, null);
+        }
+    }
+}
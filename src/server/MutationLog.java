@@ -0,0 +1,1290 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of changes of users data.
+ * Records are appended to memory buffer and written to file with one fsync per group of records
+ * by separate committer thread, so appending threads never wait for disk.
+ * Each record is stored as its length, its checksum and payload that starts with record's sequence number.
+ * Log is split into segments named after sequence number of their first record,
+ * so segments with changes that are already saved to users data can be deleted.
+ * Records written to disk are read from segments by tails that ship them to followers,
+ * segments that tails have not read yet are retained.
+ */
+public class MutationLog {
+    private static final byte USER_ADDED = 1;
+    private static final byte FRIENDS_REQUEST_ADDED = 2;
+    private static final byte FRIENDS_REQUEST_ACCEPTED = 3;
+    private static final byte FRIEND_ADDED = 4;
+    private static final byte MESSAGE_SAVED = 5;
+    private static final byte MESSAGE_TAKEN = 6;
+    private static final byte MESSAGES_TAKEN = 7;
+    private static final byte MESSAGE_SAVED_AT = 8;
+    private static final byte MESSAGES_EXPIRED = 9;
+    private static final byte RETENTION_SET = 10;
+    private static final byte USER_HANDED_OFF = 11;
+    private static final byte USER_TAKEN_OVER = 12;
+    private static final byte GROUP_CREATED = 13;
+    private static final byte GROUP_MEMBER_ADDED = 14;
+    private static final byte GROUP_MEMBER_REMOVED = 15;
+    private static final byte GROUP_MESSAGE_SAVED = 16;
+    private static final byte GROUP_MESSAGES_READ = 17;
+    /**
+     * Maximum length of record's payload, longer lengths are treated as corrupted records.
+     */
+    private static final int maxRecordLength = 1 << 24;
+
+    /**
+     * Path that segments' names start with.
+     */
+    private final String basePath;
+    /**
+     * Segments' paths by sequence numbers of their first records.
+     */
+    private final TreeMap<Long, Path> segments;
+    /**
+     * Current segment's file channel.
+     */
+    private FileChannel channel;
+    /**
+     * Lock that guards buffers, segments and sequence numbers.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when records appended, segment switched or log closed.
+     */
+    private final Condition appended = lock.newCondition();
+    /**
+     * Signalled when group of records written to disk.
+     */
+    private final Condition committed = lock.newCondition();
+    /**
+     * Buffer that records are appended to.
+     */
+    private Encoder buffer = new Encoder();
+    /**
+     * Buffer that is being written to disk.
+     */
+    private Encoder spare = new Encoder();
+    /**
+     * Records of previous segment that are not written yet, null if there are no such records.
+     */
+    private Encoder sealed = null;
+    /**
+     * Previous segment's file channel that should be closed after sealed records written.
+     */
+    private FileChannel sealedChannel = null;
+    /**
+     * Sequence number of last record of previous segment.
+     */
+    private long sealedSequence;
+    /**
+     * Buffer with current record's payload.
+     */
+    private final Encoder payload = new Encoder();
+    /**
+     * Sequence number of last appended record.
+     */
+    private long lastSequence;
+    /**
+     * Sequence number of last record written to disk.
+     */
+    private long durableSequence;
+    /**
+     * Flag that indicates that log is closed.
+     */
+    private boolean closed = false;
+    /**
+     * Flag that indicates that committer stopped, so records that are not written to disk yet never will be.
+     */
+    private boolean stopped = false;
+    /**
+     * Handler that is run in its own thread if records fail to be written to disk, null if there is no handler.
+     */
+    private volatile Runnable failureHandler = null;
+    /**
+     * Actions waiting for records to be written to disk, ordered by records' sequence numbers.
+     */
+    private final PriorityQueue<DurableAction> durableActions = new PriorityQueue<>();
+    /**
+     * Sequence numbers of last records that holders do not need anymore, by holders.
+     * Segments with records after them are not deleted.
+     */
+    private final Map<Object, Long> retained = new HashMap<>();
+    /**
+     * Thread that writes appended records to disk.
+     */
+    private final Thread committer;
+
+    /**
+     * Opens log with segments starting with specified path
+     * for appending records after specified sequence number.
+     *
+     * @param basePath     path that segments' names start with
+     * @param lastSequence sequence number of last record in log
+     * @throws IOException if log can not be opened
+     */
+    public MutationLog(String basePath, long lastSequence) throws IOException {
+        this.basePath = basePath;
+        segments = findSegments(basePath);
+        this.lastSequence = lastSequence;
+        durableSequence = lastSequence;
+        channel = openSegment(lastSequence + 1);
+        committer = new Thread(this::commit, "log-committer");
+        committer.start();
+    }
+
+    /**
+     * Returns paths of log's segments by sequence numbers of their first records.
+     *
+     * @param basePath path that segments' names start with
+     * @return segments' paths
+     * @throws IOException if segments' directory can not be read
+     */
+    private static TreeMap<Long, Path> findSegments(String basePath) throws IOException {
+        Path base = Paths.get(basePath).toAbsolutePath();
+        String prefix = base.getFileName() + ".";
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(base.getParent(), prefix + "*")) {
+            for (Path path : stream) {
+                try {
+                    segments.put(Long.parseLong(path.getFileName().toString().substring(prefix.length())), path);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Opens segment which first record has specified sequence number for appending.
+     * Must be called under lock or from constructor.
+     *
+     * @param firstSequence sequence number of segment's first record
+     * @return segment's channel
+     * @throws IOException if segment can not be opened
+     */
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        Path path = Paths.get(basePath + "." + firstSequence);
+        FileChannel segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.position(segment.size());
+        segments.put(firstSequence, path);
+        return segment;
+    }
+
+    /**
+     * Passes records with sequence numbers greater than specified one from all log's segments to visitor.
+     * Truncates segment after last correct record if its tail is corrupted.
+     *
+     * @param basePath path that segments' names start with
+     * @param sequence sequence number of last change that should not be passed
+     * @param visitor  changes handler
+     * @return sequence number of last correct record or passed sequence number if it is greater
+     * @throws IOException if log can not be read or visitor failed
+     */
+    public static long replay(String basePath, long sequence, MutationVisitor visitor) throws IOException {
+        for (Path path : findSegments(basePath).values()) {
+            sequence = replaySegment(path, sequence, visitor);
+        }
+        return sequence;
+    }
+
+    /**
+     * Passes records with sequence numbers greater than specified one from segment to visitor.
+     * Truncates segment after last correct record if its tail is corrupted.
+     *
+     * @param path     segment's path
+     * @param sequence sequence number of last change that should not be passed
+     * @param visitor  changes handler
+     * @return sequence number of last correct record or passed sequence number if it is greater
+     * @throws IOException if segment can not be read or visitor failed
+     */
+    private static long replaySegment(Path path, long sequence, MutationVisitor visitor) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long checksum = in.readInt() & 0xffffffffL;
+                if (length < 0 || length > maxRecordLength)
+                    break;
+                byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if (crc.getValue() != checksum)
+                    break;
+                long recordSequence = apply(new Decoder(record), sequence, visitor);
+                sequence = Math.max(sequence, recordSequence);
+                position += 8 + length;
+            }
+        } catch (EOFException ignored) {
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            if (channel.size() > position) {
+                System.out.println("Truncating corrupted log tail of " + path.getFileName() + " at " + position);
+                channel.truncate(position);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Passes record to visitor if its sequence number is greater than specified one.
+     *
+     * @param in       decoder of record's payload
+     * @param sequence sequence number of last change that should not be passed
+     * @param visitor  changes handler
+     * @return record's sequence number
+     * @throws IOException if record is malformed or visitor failed
+     */
+    private static long apply(Decoder in, long sequence, MutationVisitor visitor) throws IOException {
+        long recordSequence = in.readLong();
+        if (recordSequence <= sequence)
+            return recordSequence;
+        byte type = in.readByte();
+        int id = in.readVarintInt();
+        visitor.begin(recordSequence);
+        switch (type) {
+            case USER_ADDED:
+                visitor.userAdded(id, in.readString(), in.readString());
+                break;
+            case FRIENDS_REQUEST_ADDED:
+                visitor.friendsRequestAdded(id, in.readVarintInt(), in.readString());
+                break;
+            case FRIENDS_REQUEST_ACCEPTED:
+                visitor.friendsRequestAccepted(id, in.readVarintInt());
+                break;
+            case FRIEND_ADDED:
+                visitor.friendAdded(id, in.readVarintInt(), in.readString());
+                break;
+            case MESSAGE_SAVED:
+                // logged by older versions without time
+                visitor.messageSaved(id, in.readVarintInt(), in.readString(), System.currentTimeMillis());
+                break;
+            case MESSAGE_SAVED_AT:
+                visitor.messageSaved(id, in.readVarintInt(), in.readString(), in.readVarint());
+                break;
+            case MESSAGE_TAKEN:
+                visitor.messageTaken(id, in.readVarintInt());
+                break;
+            case MESSAGES_TAKEN:
+                visitor.messagesTaken(id, in.readVarintInt(), in.readVarintInt());
+                break;
+            case MESSAGES_EXPIRED:
+                visitor.messagesExpired(id, in.readVarintInt(), in.readVarintInt());
+                break;
+            case RETENTION_SET:
+                visitor.retentionSet(id, in.readVarintInt(), in.readVarintInt(), in.readVarintInt());
+                break;
+            case USER_HANDED_OFF:
+                visitor.userHandedOff(id);
+                break;
+            case USER_TAKEN_OVER:
+                visitor.userTakenOver(id, in.readBytes(in.readVarintInt()));
+                break;
+            case GROUP_CREATED:
+                visitor.groupCreated(id, in.readVarintInt(), in.readString());
+                break;
+            case GROUP_MEMBER_ADDED:
+                visitor.groupMemberAdded(id, in.readVarintInt());
+                break;
+            case GROUP_MEMBER_REMOVED:
+                visitor.groupMemberRemoved(id, in.readVarintInt());
+                break;
+            case GROUP_MESSAGE_SAVED:
+                visitor.groupMessageSaved(id, in.readVarintInt(), in.readString(), in.readVarint());
+                break;
+            case GROUP_MESSAGES_READ:
+                visitor.groupMessagesRead(id, in.readVarintInt(), in.readVarint());
+                break;
+            default:
+                throw new IOException("Unknown log record type: " + type);
+        }
+        return recordSequence;
+    }
+
+    /**
+     * Deletes all segments of log, so it starts from scratch.
+     *
+     * @param basePath path that segments' names start with
+     * @throws IOException if segment can not be deleted
+     */
+    public static void deleteSegments(String basePath) throws IOException {
+        for (Path path : findSegments(basePath).values()) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Appends records received from primary to log and passes them to visitor.
+     * Records have the same form as in segments and must continue log's sequence numbers,
+     * so follower's log is a copy of primary's one.
+     *
+     * @param records records with their lengths and checksums
+     * @param visitor changes handler
+     * @return number of records
+     * @throws IOException if records are malformed or do not continue log, log is closed or visitor failed
+     */
+    public int replicate(byte[] records, MutationVisitor visitor) throws IOException {
+        Decoder in = new Decoder(records);
+        CRC32 crc = new CRC32();
+        int count = 0;
+        while (in.hasRemaining()) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            int offset = in.position();
+            if (length < 8 || length > maxRecordLength)
+                throw new IOException("Malformed replicated record");
+            in.skip(length);
+            crc.reset();
+            crc.update(records, offset, length);
+            if ((int) crc.getValue() != checksum)
+                throw new IOException("Corrupted replicated record");
+            Decoder record = new Decoder(records, offset, length);
+            long sequence = record.readLong();
+            lock.lock();
+            try {
+                if (closed)
+                    throw new IOException("Log is closed");
+                if (sequence != lastSequence + 1)
+                    throw new IOException("Replicated record " + sequence + " does not follow record " + lastSequence);
+                lastSequence = sequence;
+                buffer.writeInt(length);
+                buffer.writeInt(checksum);
+                buffer.write(records, offset, length);
+                appended.signal();
+            } finally {
+                lock.unlock();
+            }
+            apply(new Decoder(records, offset, length), sequence - 1, visitor);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Appends record about new registered user.
+     *
+     * @param id       user's id
+     * @param username user's username
+     * @param password user's password
+     * @return record's sequence number
+     */
+    public long userAdded(int id, String username, String password) {
+        lock.lock();
+        try {
+            if (begin(USER_ADDED, id)) {
+                payload.writeString(username);
+                payload.writeString(password);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about new friends request received by user.
+     *
+     * @param id       receiver's id
+     * @param fromId   sender's id
+     * @param username sender's username
+     * @return record's sequence number
+     */
+    public long friendsRequestAdded(int id, int fromId, String username) {
+        lock.lock();
+        try {
+            if (begin(FRIENDS_REQUEST_ADDED, id)) {
+                payload.writeVarint(fromId);
+                payload.writeString(username);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about friends request accepted by user.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @return record's sequence number
+     */
+    public long friendsRequestAccepted(int id, int fromId) {
+        lock.lock();
+        try {
+            if (begin(FRIENDS_REQUEST_ACCEPTED, id)) {
+                payload.writeVarint(fromId);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about new friend added to user that sent friends request.
+     *
+     * @param id       sender's id
+     * @param friendId new friend's id
+     * @param username new friend's username
+     * @return record's sequence number
+     */
+    public long friendAdded(int id, int friendId, String username) {
+        lock.lock();
+        try {
+            if (begin(FRIEND_ADDED, id)) {
+                payload.writeVarint(friendId);
+                payload.writeString(username);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about message saved for user.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @param msg    message
+     * @param time   time message was saved at in milliseconds since epoch
+     * @return record's sequence number
+     */
+    public long messageSaved(int id, int fromId, String msg, long time) {
+        lock.lock();
+        try {
+            if (begin(MESSAGE_SAVED_AT, id)) {
+                payload.writeVarint(fromId);
+                payload.writeString(msg);
+                payload.writeVarint(time);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about first message from sender sent to user.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @return record's sequence number
+     */
+    public long messageTaken(int id, int fromId) {
+        lock.lock();
+        try {
+            if (begin(MESSAGE_TAKEN, id)) {
+                payload.writeVarint(fromId);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about first messages from sender sent to user at once.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @param count  number of messages
+     * @return record's sequence number
+     */
+    public long messagesTaken(int id, int fromId, int count) {
+        lock.lock();
+        try {
+            if (begin(MESSAGES_TAKEN, id)) {
+                payload.writeVarint(fromId);
+                payload.writeVarint(count);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about first messages from sender removed by retention policy.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @param count  number of messages
+     * @return record's sequence number
+     */
+    public long messagesExpired(int id, int fromId, int count) {
+        lock.lock();
+        try {
+            if (begin(MESSAGES_EXPIRED, id)) {
+                payload.writeVarint(fromId);
+                payload.writeVarint(count);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about retention settings of messages from friend changed by user.
+     *
+     * @param id       user's id
+     * @param friendId friend's id
+     * @param maxAge   maximum age of messages in seconds, 0 if only server's limit applies
+     * @param maxCount maximum number of messages, 0 if only server's limit applies
+     * @return record's sequence number
+     */
+    public long retentionSet(int id, int friendId, int maxAge, int maxCount) {
+        lock.lock();
+        try {
+            if (begin(RETENTION_SET, id)) {
+                payload.writeVarint(friendId);
+                payload.writeVarint(maxAge);
+                payload.writeVarint(maxCount);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about user whose data was handed off to other node of cluster.
+     *
+     * @param id user's id
+     * @return record's sequence number
+     */
+    public long userHandedOff(int id) {
+        lock.lock();
+        try {
+            if (begin(USER_HANDED_OFF, id))
+                end();
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about user whose data was taken over from other node of cluster.
+     *
+     * @param id   user's id
+     * @param data user's data in format written by User.encode
+     * @return record's sequence number
+     */
+    public long userTakenOver(int id, byte[] data) {
+        lock.lock();
+        try {
+            if (begin(USER_TAKEN_OVER, id)) {
+                payload.writeVarint(data.length);
+                payload.write(data, 0, data.length);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about new group created by user.
+     *
+     * @param groupId group's id
+     * @param ownerId creator's id
+     * @param name    group's name
+     * @return record's sequence number
+     */
+    public long groupCreated(int groupId, int ownerId, String name) {
+        lock.lock();
+        try {
+            if (begin(GROUP_CREATED, groupId)) {
+                payload.writeVarint(ownerId);
+                payload.writeString(name);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about member added to group.
+     *
+     * @param groupId  group's id
+     * @param memberId new member's id
+     * @return record's sequence number
+     */
+    public long groupMemberAdded(int groupId, int memberId) {
+        lock.lock();
+        try {
+            if (begin(GROUP_MEMBER_ADDED, groupId)) {
+                payload.writeVarint(memberId);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about member removed from group.
+     *
+     * @param groupId  group's id
+     * @param memberId removed member's id
+     * @return record's sequence number
+     */
+    public long groupMemberRemoved(int groupId, int memberId) {
+        lock.lock();
+        try {
+            if (begin(GROUP_MEMBER_REMOVED, groupId)) {
+                payload.writeVarint(memberId);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about message saved to group.
+     *
+     * @param groupId group's id
+     * @param fromId  sender's id
+     * @param msg     message
+     * @param time    time message was saved at in milliseconds since epoch
+     * @return record's sequence number
+     */
+    public long groupMessageSaved(int groupId, int fromId, String msg, long time) {
+        lock.lock();
+        try {
+            if (begin(GROUP_MESSAGE_SAVED, groupId)) {
+                payload.writeVarint(fromId);
+                payload.writeString(msg);
+                payload.writeVarint(time);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends record about messages of group read by member.
+     *
+     * @param groupId  group's id
+     * @param memberId member's id
+     * @param number   number of last message read by member
+     * @return record's sequence number
+     */
+    public long groupMessagesRead(int groupId, int memberId, long number) {
+        lock.lock();
+        try {
+            if (begin(GROUP_MESSAGES_READ, groupId)) {
+                payload.writeVarint(memberId);
+                payload.writeVarint(number);
+                end();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns sequence number of last appended record.
+     *
+     * @return sequence number of last appended record
+     */
+    public long lastSequence() {
+        lock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts new segment for records appended after this call.
+     * Does nothing if log is closed or current segment is empty.
+     *
+     * @return sequence number of last record of previous segment
+     * @throws IOException if new segment can not be opened
+     */
+    public long rotate() throws IOException {
+        lock.lock();
+        try {
+            if (closed || sealed != null || segments.lastKey() == lastSequence + 1)
+                return lastSequence;
+            FileChannel next = openSegment(lastSequence + 1);
+            sealed = buffer;
+            sealedChannel = channel;
+            sealedSequence = lastSequence;
+            buffer = new Encoder();
+            channel = next;
+            appended.signal();
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes segments which records all have sequence numbers not greater than specified one.
+     * Current segment is deleted only if log is closed.
+     *
+     * @param sequence sequence number of last record which change is saved
+     */
+    public void truncate(long sequence) {
+        lock.lock();
+        try {
+            for (long position : retained.values()) {
+                sequence = Math.min(sequence, position);
+            }
+            while (!segments.isEmpty()) {
+                Map.Entry<Long, Path> first = segments.firstEntry();
+                Long next = segments.higherKey(first.getKey());
+                boolean deletable;
+                if (next == null)
+                    deletable = closed && lastSequence <= sequence;
+                else
+                    deletable = next - 1 <= sequence && (sealed == null || !next.equals(segments.lastKey()));
+                if (!deletable)
+                    break;
+                try {
+                    Files.deleteIfExists(first.getValue());
+                } catch (IOException e) {
+                    break;
+                }
+                segments.pollFirstEntry();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps segments with records after specified one from being deleted until holder releases them.
+     * Replaces records retained by holder before.
+     *
+     * @param holder   holder
+     * @param sequence sequence number of last record that holder does not need
+     */
+    public void retain(Object holder, long sequence) {
+        lock.lock();
+        try {
+            retained.put(holder, sequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets segments retained by holder be deleted.
+     *
+     * @param holder holder
+     */
+    public void release(Object holder) {
+        lock.lock();
+        try {
+            retained.remove(holder);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens tail that reads records written to disk after record with specified sequence number.
+     * Segments with records that tail has not read yet are retained until it is closed.
+     *
+     * @param sequence sequence number of last record that should not be read
+     * @return tail or null if some of these records are already deleted or were never appended
+     */
+    public Tail tail(long sequence) {
+        lock.lock();
+        try {
+            if (sequence > lastSequence || segments.floorKey(sequence + 1) == null)
+                return null;
+            Tail tail = new Tail(sequence);
+            retained.put(tail, sequence);
+            return tail;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reader of records written to disk, which follows log's segments as they are switched.
+     * Records are read with their lengths and checksums, as they are stored in segments.
+     */
+    public class Tail implements Closeable {
+        /**
+         * Sequence number of next record to read.
+         */
+        private long next;
+        /**
+         * Sequence number of first record of open segment, -1 if no segment is open.
+         */
+        private long segment = -1;
+        /**
+         * Open segment's channel.
+         */
+        private FileChannel channel = null;
+        /**
+         * Position of next record in open segment.
+         */
+        private long position = 0;
+        /**
+         * Buffer for record's length and checksum.
+         */
+        private final ByteBuffer header = ByteBuffer.allocate(8);
+
+        /**
+         * Constructs tail that reads records after specified one.
+         *
+         * @param sequence sequence number of last record that should not be read
+         */
+        private Tail(long sequence) {
+            next = sequence + 1;
+        }
+
+        /**
+         * Returns sequence number of last read record.
+         *
+         * @return sequence number
+         */
+        public long lastSequence() {
+            return next - 1;
+        }
+
+        /**
+         * Appends records written to disk to buffer until it reaches specified size,
+         * waits specified time for first of them if there are none.
+         * Records of one call are read from one segment.
+         *
+         * @param out      buffer
+         * @param maxBytes size of buffer after which records are not appended
+         * @param timeout  time in milliseconds to wait for record
+         * @return number of appended records, 0 if no record was written to disk in time
+         * or -1 if log is closed and all records are read
+         * @throws IOException          if segment can not be read or record is missing
+         * @throws InterruptedException if current thread was interrupted while waiting
+         */
+        public int read(Encoder out, int maxBytes, long timeout) throws IOException, InterruptedException {
+            long limit;
+            Path path = null;
+            lock.lock();
+            try {
+                retained.put(this, next - 1);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (durableSequence < next) {
+                    if (closed && !committer.isAlive())
+                        return -1;
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        return 0;
+                    committed.awaitNanos(left);
+                }
+                Long first = segments.floorKey(next);
+                if (first == null)
+                    throw new IOException("Log's record " + next + " is deleted");
+                if (first != segment) {
+                    path = segments.get(first);
+                    segment = first;
+                }
+                Long following = segments.higherKey(first);
+                limit = following != null ? Math.min(durableSequence, following - 1) : durableSequence;
+            } finally {
+                lock.unlock();
+            }
+            if (path != null) {
+                if (channel != null)
+                    channel.close();
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                position = 0;
+            }
+            int count = 0;
+            while (next <= limit && out.size() < maxBytes) {
+                header.clear();
+                readFully(header);
+                header.flip();
+                int length = header.getInt();
+                if (length < 8 || length > maxRecordLength)
+                    throw new IOException("Malformed log's record at " + position);
+                position += 8;
+                ByteBuffer record = ByteBuffer.allocate(length);
+                readFully(record);
+                long sequence = record.getLong(0);
+                position += length;
+                if (sequence < next)
+                    continue;
+                if (sequence != next)
+                    throw new IOException("Log's record " + next + " is missing");
+                out.write(header.array(), 0, 8);
+                out.write(record.array(), 0, length);
+                next++;
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * Reads bytes of open segment at current position until buffer is full.
+         *
+         * @param buffer buffer
+         * @throws IOException if segment ended or can not be read
+         */
+        private void readFully(ByteBuffer buffer) throws IOException {
+            long at = position;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, at);
+                if (read < 0)
+                    throw new IOException("Log's segment ended before record " + next);
+                at += read;
+            }
+        }
+
+        /**
+         * Returns estimated number of bytes written to log's segments that tail has not read yet.
+         *
+         * @return number of bytes
+         */
+        public long unread() {
+            lock.lock();
+            try {
+                Long first = segment >= 0 ? Long.valueOf(segment) : segments.floorKey(next);
+                if (first == null)
+                    return 0;
+                long bytes = 0;
+                for (Map.Entry<Long, Path> entry : segments.tailMap(first, true).entrySet()) {
+                    try {
+                        bytes += entry.getKey() == segment ? channel.size() - position : Files.size(entry.getValue());
+                    } catch (IOException ignored) {
+                    }
+                }
+                return bytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Closes open segment and lets log delete segments that tail has not read.
+         */
+        @Override
+        public void close() {
+            release(this);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until record with specified sequence number is written to disk or log is closed.
+     *
+     * @param sequence record's sequence number
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    public void awaitDurable(long sequence) throws InterruptedException {
+        lock.lock();
+        try {
+            while (durableSequence < sequence && !closed) {
+                committed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets handler that is run in its own thread once if records fail to be written to disk.
+     * Log accepts no records after failure.
+     *
+     * @param handler handler
+     */
+    public void onFailure(Runnable handler) {
+        failureHandler = handler;
+    }
+
+    /**
+     * Runs action when record with specified sequence number is written to disk.
+     * Action is run in calling thread if record is already written, otherwise in committer's thread,
+     * so it should not block. If log fails or is closed before record is written, failure action is run instead.
+     *
+     * @param sequence record's sequence number
+     * @param action   action
+     * @param failed   action that is run if record will not be written
+     */
+    public void whenDurable(long sequence, Runnable action, Runnable failed) {
+        lock.lock();
+        try {
+            if (durableSequence < sequence) {
+                if (!stopped) {
+                    durableActions.add(new DurableAction(sequence, action, failed));
+                    return;
+                }
+                action = failed;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+
+    /**
+     * Removes actions which records are written to disk from queue.
+     * Must be called under lock.
+     *
+     * @return actions that should be run
+     */
+    private List<Runnable> takeDurableActions() {
+        List<Runnable> actions = new ArrayList<>();
+        while (!durableActions.isEmpty() && durableActions.peek().sequence <= durableSequence) {
+            actions.add(durableActions.poll().action);
+        }
+        return actions;
+    }
+
+    /**
+     * Stops committer and removes all actions from queue, since their records will not be written.
+     * Must be called under lock.
+     *
+     * @return failure actions that should be run
+     */
+    private List<Runnable> stop() {
+        closed = true;
+        stopped = true;
+        sealed = null;
+        List<Runnable> actions = new ArrayList<>(durableActions.size());
+        while (!durableActions.isEmpty()) {
+            actions.add(durableActions.poll().failed);
+        }
+        committed.signalAll();
+        return actions;
+    }
+
+    /**
+     * Action waiting for record to be written to disk.
+     */
+    private static class DurableAction implements Comparable<DurableAction> {
+        /**
+         * Record's sequence number.
+         */
+        private final long sequence;
+        /**
+         * Action.
+         */
+        private final Runnable action;
+        /**
+         * Action that is run if record will not be written.
+         */
+        private final Runnable failed;
+
+        /**
+         * Constructs action waiting for record with specified sequence number.
+         *
+         * @param sequence record's sequence number
+         * @param action   action
+         * @param failed   action that is run if record will not be written
+         */
+        private DurableAction(long sequence, Runnable action, Runnable failed) {
+            this.sequence = sequence;
+            this.action = action;
+            this.failed = failed;
+        }
+
+        @Override
+        public int compareTo(DurableAction other) {
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Stops accepting new records, waits for appended records to be written to disk and closes log's file.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException ignored) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Starts new record with specified type about user with specified id.
+     * Must be called under lock.
+     *
+     * @param type record's type
+     * @param id   user's id
+     * @return false if log is closed and record should not be written, otherwise true
+     */
+    private boolean begin(byte type, int id) {
+        if (closed)
+            return false;
+        payload.reset();
+        payload.writeLong(++lastSequence);
+        payload.write(type);
+        payload.writeVarint(id);
+        return true;
+    }
+
+    /**
+     * Appends current record with its length and checksum to buffer and wakes committer up.
+     * Must be called under lock.
+     */
+    private void end() {
+        CRC32 crc = new CRC32();
+        crc.update(payload.bytes(), 0, payload.size());
+        buffer.writeInt(payload.size());
+        buffer.writeInt((int) crc.getValue());
+        buffer.write(payload.bytes(), 0, payload.size());
+        appended.signal();
+    }
+
+    /**
+     * Committer's loop.
+     * Writes records of previous segment if there are any,
+     * otherwise swaps buffers, writes all records appended since previous write and forces them to disk.
+     * If records fail to be written, runs failure actions of waiting records, stops accepting records
+     * and runs failure handler.
+     */
+    private void commit() {
+        while (true) {
+            Encoder data;
+            FileChannel target;
+            boolean seal;
+            long sequence;
+            lock.lock();
+            try {
+                while (buffer.size() == 0 && sealed == null && !closed) {
+                    appended.awaitUninterruptibly();
+                }
+                if (sealed != null) {
+                    data = sealed;
+                    target = sealedChannel;
+                    sequence = sealedSequence;
+                    seal = true;
+                } else if (buffer.size() > 0) {
+                    data = buffer;
+                    buffer = spare;
+                    spare = data;
+                    target = channel;
+                    sequence = lastSequence;
+                    seal = false;
+                } else {
+                    break;
+                }
+            } finally {
+                lock.unlock();
+            }
+            long start = System.nanoTime();
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(data.bytes(), 0, data.size());
+                while (bytes.hasRemaining()) {
+                    target.write(bytes);
+                }
+                target.force(false);
+                Metrics.logCommit.recordSince(start);
+                if (seal)
+                    target.close();
+            } catch (IOException e) {
+                System.out.println("Log failed: " + e.getMessage());
+                List<Runnable> failed;
+                lock.lock();
+                try {
+                    failed = stop();
+                } finally {
+                    lock.unlock();
+                }
+                failed.forEach(Runnable::run);
+                Runnable handler = failureHandler;
+                if (handler != null)
+                    new Thread(handler, "log-failure").start();
+                return;
+            }
+            data.reset();
+            List<Runnable> actions;
+            lock.lock();
+            try {
+                if (seal) {
+                    sealed = null;
+                    sealedChannel = null;
+                }
+                durableSequence = Math.max(durableSequence, sequence);
+                actions = takeDurableActions();
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+        List<Runnable> failed;
+        lock.lock();
+        try {
+            failed = stop();
+        } finally {
+            lock.unlock();
+        }
+        failed.forEach(Runnable::run);
+    }
+}
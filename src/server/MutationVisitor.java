@@ -0,0 +1,172 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Handler of changes of users data stored in log.
+ */
+public interface MutationVisitor {
+    /**
+     * Called before each change with sequence number of its record.
+     *
+     * @param sequence record's sequence number
+     */
+    default void begin(long sequence) {
+    }
+
+    /**
+     * Called for new registered user.
+     *
+     * @param id       user's id
+     * @param username user's username
+     * @param password user's password
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void userAdded(int id, String username, String password) throws IOException;
+
+    /**
+     * Called for new friends request received by user.
+     *
+     * @param id       receiver's id
+     * @param fromId   sender's id
+     * @param username sender's username
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void friendsRequestAdded(int id, int fromId, String username) throws IOException;
+
+    /**
+     * Called for friends request accepted by user.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void friendsRequestAccepted(int id, int fromId) throws IOException;
+
+    /**
+     * Called for new friend added to user that sent friends request.
+     *
+     * @param id       sender's id
+     * @param friendId new friend's id
+     * @param username new friend's username
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void friendAdded(int id, int friendId, String username) throws IOException;
+
+    /**
+     * Called for message saved for user.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @param msg    message
+     * @param time   time message was saved at in milliseconds since epoch
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void messageSaved(int id, int fromId, String msg, long time) throws IOException;
+
+    /**
+     * Called for first message from sender sent to user.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void messageTaken(int id, int fromId) throws IOException;
+
+    /**
+     * Called for first messages from sender sent to user at once.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @param count  number of messages
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void messagesTaken(int id, int fromId, int count) throws IOException;
+
+    /**
+     * Called for first messages from sender removed by retention policy.
+     *
+     * @param id     receiver's id
+     * @param fromId sender's id
+     * @param count  number of messages
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void messagesExpired(int id, int fromId, int count) throws IOException;
+
+    /**
+     * Called for retention settings of messages from friend changed by user.
+     *
+     * @param id       user's id
+     * @param friendId friend's id
+     * @param maxAge   maximum age of messages in seconds, 0 if only server's limit applies
+     * @param maxCount maximum number of messages, 0 if only server's limit applies
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void retentionSet(int id, int friendId, int maxAge, int maxCount) throws IOException;
+
+    /**
+     * Called for user whose data was handed off to other node of cluster.
+     *
+     * @param id user's id
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void userHandedOff(int id) throws IOException;
+
+    /**
+     * Called for user whose data was taken over from other node of cluster.
+     *
+     * @param id   user's id
+     * @param data user's data in format written by User.encode
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void userTakenOver(int id, byte[] data) throws IOException;
+
+    /**
+     * Called for new group created by user.
+     *
+     * @param groupId group's id
+     * @param ownerId creator's id
+     * @param name    group's name
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void groupCreated(int groupId, int ownerId, String name) throws IOException;
+
+    /**
+     * Called for member added to group.
+     *
+     * @param groupId  group's id
+     * @param memberId new member's id
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void groupMemberAdded(int groupId, int memberId) throws IOException;
+
+    /**
+     * Called for member removed from group.
+     *
+     * @param groupId  group's id
+     * @param memberId removed member's id
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void groupMemberRemoved(int groupId, int memberId) throws IOException;
+
+    /**
+     * Called for message saved to group.
+     *
+     * @param groupId group's id
+     * @param fromId  sender's id
+     * @param msg     message
+     * @param time    time message was saved at in milliseconds since epoch
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void groupMessageSaved(int groupId, int fromId, String msg, long time) throws IOException;
+
+    /**
+     * Called for messages of group read by member.
+     *
+     * @param groupId  group's id
+     * @param memberId member's id
+     * @param number   number of last message read by member
+     * @throws IOException if i/o error occurred while handling change
+     */
+    void groupMessagesRead(int groupId, int memberId, long number) throws IOException;
+}
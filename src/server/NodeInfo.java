@@ -0,0 +1,60 @@
+package server;
+
+/**
+ * Address of cluster's node: host with port for clients and port for other nodes.
+ * Node is identified by its host and port for other nodes.
+ */
+public class NodeInfo {
+    /**
+     * Node's host, used by clients and other nodes.
+     */
+    public final String host;
+    /**
+     * Node's port for clients.
+     */
+    public final int port;
+    /**
+     * Node's port for other nodes.
+     */
+    public final int clusterPort;
+
+    /**
+     * Constructs node's address.
+     *
+     * @param host        node's host
+     * @param port        node's port for clients
+     * @param clusterPort node's port for other nodes
+     */
+    public NodeInfo(String host, int port, int clusterPort) {
+        this.host = host;
+        this.port = port;
+        this.clusterPort = clusterPort;
+    }
+
+    /**
+     * Returns node's name that identifies it in cluster.
+     *
+     * @return name in format "host:clusterPort"
+     */
+    public String name() {
+        return host + ":" + clusterPort;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof NodeInfo))
+            return false;
+        NodeInfo other = (NodeInfo) o;
+        return host.equals(other.host) && clusterPort == other.clusterPort;
+    }
+
+    @Override
+    public int hashCode() {
+        return host.hashCode() * 31 + clusterPort;
+    }
+
+    @Override
+    public String toString() {
+        return host + " " + port + " " + clusterPort;
+    }
+}
@@ -0,0 +1,247 @@
+package server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+/**
+ * Presence of connected users published to their friends.
+ * Changes are not sent at once: they are collected by recipients and flushed once per window,
+ * so each recipient gets one batched message with the last state of each friend that changed.
+ * When many users reconnect at once, each of them costs one update per online friend instead of one message,
+ * and updates of the same friend within window are coalesced.
+ * Only connections that negotiated presence receive updates. Presence is kept in memory only,
+ * in cluster mode only friends owned by the same node see each other's presence.
+ */
+public class Presence {
+    /**
+     * States of user.
+     */
+    public static final byte OFFLINE = 0;
+    public static final byte ONLINE = 1;
+    public static final byte AWAY = 2;
+    /**
+     * Window in milliseconds over which changes are collected before they are sent.
+     */
+    public static int window = 200;
+
+    /**
+     * States of connected users by their ids, users that are not present are offline.
+     */
+    private final ConcurrentHashMap<Integer, Byte> states = new ConcurrentHashMap<>();
+    /**
+     * Ids of connected users whose connections receive presence updates.
+     */
+    private final Set<Integer> subscribers = ConcurrentHashMap.newKeySet();
+    /**
+     * Changes that are not sent yet by ids of their recipients, changes are states by ids of friends.
+     * Maps of changes are modified only inside compute of this map, so flush removes them atomically.
+     */
+    private final ConcurrentHashMap<Integer, Map<Integer, Byte>> pending = new ConcurrentHashMap<>();
+    /**
+     * Flag that indicates that flush is scheduled.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * Function that returns user with specified id.
+     */
+    private final IntFunction<User> users;
+    /**
+     * Executor that runs flushes, null until publisher is started.
+     */
+    private volatile ScheduledExecutorService executor = null;
+
+    /**
+     * Creates publisher without connected users.
+     *
+     * @param users function that returns user with specified id
+     */
+    public Presence(IntFunction<User> users) {
+        this.users = users;
+    }
+
+    /**
+     * Returns name of state used in text protocol.
+     *
+     * @param state state
+     * @return "online", "away" or "offline"
+     */
+    public static String name(byte state) {
+        switch (state) {
+            case ONLINE:
+                return "online";
+            case AWAY:
+                return "away";
+            default:
+                return "offline";
+        }
+    }
+
+    /**
+     * Returns state that client can set by its name.
+     *
+     * @param state "online" or "away"
+     * @return state or -1 if client can not set such state
+     */
+    public static byte parse(String state) {
+        switch (state) {
+            case "online":
+                return ONLINE;
+            case "away":
+                return AWAY;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Starts publisher's thread.
+     */
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops publisher's thread, changes that are not sent yet are dropped.
+     */
+    public void stop() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * Marks user online after login, publishes it to friends
+     * and queues current states of friends that are not offline for user if its connection receives updates.
+     * Called from user's mailbox.
+     *
+     * @param userId    user's id
+     * @param friends   ids of user's friends
+     * @param subscribe true if user's connection receives presence updates
+     */
+    public void online(int userId, Collection<Integer> friends, boolean subscribe) {
+        if (subscribe) {
+            subscribers.add(userId);
+            for (int friendId : friends) {
+                Byte state = states.get(friendId);
+                if (state != null)
+                    queue(userId, friendId, state);
+            }
+        } else {
+            subscribers.remove(userId);
+        }
+        set(userId, ONLINE, friends);
+    }
+
+    /**
+     * Changes state of user and publishes it to friends if it differs from previous one.
+     * Only ONLINE state can be set for user that is not connected.
+     * Called from user's mailbox.
+     *
+     * @param userId  user's id
+     * @param state   ONLINE or AWAY
+     * @param friends ids of user's friends
+     * @return true if user is connected, otherwise false
+     */
+    public boolean set(int userId, byte state, Collection<Integer> friends) {
+        if (state != ONLINE && !states.containsKey(userId))
+            return false;
+        Byte previous = states.put(userId, state);
+        if (previous == null || previous != state)
+            publish(userId, state, friends);
+        return true;
+    }
+
+    /**
+     * Marks user offline after its connection is closed and publishes it to friends.
+     * Called from user's mailbox.
+     *
+     * @param userId  user's id
+     * @param friends ids of user's friends
+     */
+    public void offline(int userId, Collection<Integer> friends) {
+        subscribers.remove(userId);
+        pending.remove(userId);
+        if (states.remove(userId) != null)
+            publish(userId, OFFLINE, friends);
+    }
+
+    /**
+     * Lets users that just became friends see each other's state.
+     *
+     * @param userId   user's id
+     * @param friendId new friend's id
+     */
+    public void befriended(int userId, int friendId) {
+        Byte state = states.get(userId);
+        Byte friendState = states.get(friendId);
+        if (state != null && friendState != null) {
+            queue(friendId, userId, state);
+            queue(userId, friendId, friendState);
+        }
+    }
+
+    /**
+     * Queues user's new state for its friends that receive presence updates.
+     *
+     * @param userId  user's id
+     * @param state   user's state
+     * @param friends ids of user's friends
+     */
+    private void publish(int userId, byte state, Collection<Integer> friends) {
+        Metrics.presenceChanges.increment();
+        for (int friendId : friends) {
+            queue(friendId, userId, state);
+        }
+    }
+
+    /**
+     * Queues friend's state for recipient if recipient receives presence updates and schedules flush.
+     * Replaces state of the same friend queued earlier within window.
+     *
+     * @param recipientId recipient's id
+     * @param friendId    friend's id
+     * @param state       friend's state
+     */
+    private void queue(int recipientId, int friendId, byte state) {
+        if (!subscribers.contains(recipientId))
+            return;
+        pending.compute(recipientId, (id, changes) -> {
+            if (changes == null)
+                changes = new HashMap<>();
+            changes.put(friendId, state);
+            return changes;
+        });
+        Metrics.presenceUpdates.increment();
+        ScheduledExecutorService executor = this.executor;
+        if (executor != null && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Posts queued changes to mailboxes of their recipients, one batch per recipient.
+     */
+    private void flush() {
+        scheduled.set(false);
+        for (Integer recipientId : pending.keySet()) {
+            Map<Integer, Byte> changes = pending.remove(recipientId);
+            if (changes != null)
+                users.apply(recipientId).post(user -> user.sendPresence(changes));
+        }
+    }
+}
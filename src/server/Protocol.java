@@ -0,0 +1,220 @@
+package server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wire format of connection: decodes requests from received bytes and encodes messages sent to user.
+ * Connection starts with text protocol and switches to other protocol if it is negotiated.
+ */
+public abstract class Protocol {
+    /**
+     * Newline-terminated text protocol.
+     */
+    public static final Protocol text = new TextProtocol();
+    /**
+     * Length-prefixed binary protocol.
+     */
+    public static final Protocol binary = new BinaryProtocol();
+
+    /**
+     * Decodes first request from received bytes and passes it to handler.
+     *
+     * @param buf     array with received bytes
+     * @param offset  position of first received byte
+     * @param length  number of received bytes
+     * @param handler handler of request
+     * @return number of bytes taken by decoded request, 0 if bytes do not contain complete request
+     * @throws IOException if request is malformed beyond recovery or handler failed
+     */
+    public abstract int decode(byte[] buf, int offset, int length, RequestHandler handler) throws IOException;
+
+    /**
+     * Encodes successful authentication answer.
+     *
+     * @return encoded message
+     */
+    public abstract byte[] accepted();
+
+    /**
+     * Encodes authentication answer that redirects client to node of cluster that owns user,
+     * client should connect to it and log in there.
+     *
+     * @param host node's host
+     * @param port node's port for clients
+     * @return encoded message
+     */
+    public abstract byte[] redirect(String host, int port);
+
+    /**
+     * Encodes failed authentication answer.
+     *
+     * @param msg error's description
+     * @return encoded message
+     */
+    public abstract byte[] error(String msg);
+
+    /**
+     * Encodes friends list with numbers of unread messages.
+     *
+     * @param friends friends
+     * @return encoded message
+     */
+    public abstract byte[] friendsList(Collection<Friend> friends);
+
+    /**
+     * Encodes friends requests list.
+     *
+     * @param requests usernames of users who sent requests by their ids
+     * @return encoded message
+     */
+    public abstract byte[] requestsList(Map<Integer, String> requests);
+
+    /**
+     * Encodes number of friends requests.
+     *
+     * @param count number of requests
+     * @return encoded message
+     */
+    public abstract byte[] numberOfRequests(int count);
+
+    /**
+     * Encodes new friend notification.
+     *
+     * @param username friend's username
+     * @param id       friend's id
+     * @return encoded message
+     */
+    public abstract byte[] newFriend(String username, int id);
+
+    /**
+     * Encodes number of unread messages from friend.
+     *
+     * @param id    friend's id
+     * @param count number of messages
+     * @return encoded message
+     */
+    public abstract byte[] unreadMessages(int id, int count);
+
+    /**
+     * Encodes message from friend.
+     *
+     * @param id  friend's id
+     * @param msg message
+     * @return encoded message
+     */
+    public abstract byte[] newMessage(int id, String msg);
+
+    /**
+     * Encodes batch of messages from friend.
+     *
+     * @param id       friend's id
+     * @param messages messages
+     * @return encoded message
+     */
+    public abstract byte[] newMessages(int id, List<String> messages);
+
+    /**
+     * Encodes batch of friends' presence changes.
+     *
+     * @param changes states by friends' ids
+     * @return encoded message
+     */
+    public abstract byte[] presence(Map<Integer, Byte> changes);
+
+    /**
+     * Encodes list of user's groups with numbers of unread messages.
+     *
+     * @param groups   groups
+     * @param memberId user's id
+     * @return encoded message
+     */
+    public abstract byte[] groupsList(Collection<Group> groups, int memberId);
+
+    /**
+     * Encodes notification about group user joined.
+     *
+     * @param name group's name
+     * @param id   group's id
+     * @return encoded message
+     */
+    public abstract byte[] newGroup(String name, int id);
+
+    /**
+     * Encodes notification about group user left or was removed from.
+     *
+     * @param id group's id
+     * @return encoded message
+     */
+    public abstract byte[] leftGroup(int id);
+
+    /**
+     * Encodes list of group's members.
+     *
+     * @param id      group's id
+     * @param members members' ids, owner first
+     * @return encoded message
+     */
+    public abstract byte[] groupMembers(int id, List<Integer> members);
+
+    /**
+     * Encodes number of unread messages of group.
+     *
+     * @param id    group's id
+     * @param count number of messages
+     * @return encoded message
+     */
+    public abstract byte[] unreadGroupMessages(int id, int count);
+
+    /**
+     * Encodes message sent to group.
+     *
+     * @param id     group's id
+     * @param fromId sender's id
+     * @param msg    message
+     * @return encoded message
+     */
+    public abstract byte[] newGroupMessage(int id, int fromId, String msg);
+
+    /**
+     * Encodes batch of messages sent to group.
+     *
+     * @param id       group's id
+     * @param messages messages
+     * @return encoded message
+     */
+    public abstract byte[] newGroupMessages(int id, List<Group.Message> messages);
+
+    /**
+     * Encodes informational message.
+     *
+     * @param msg message
+     * @return encoded message
+     */
+    public abstract byte[] notification(String msg);
+
+    /**
+     * Encodes acknowledgement of request with id.
+     *
+     * @param requestId request's id
+     * @param status    request's status
+     * @return encoded message
+     */
+    public abstract byte[] ack(int requestId, String status);
+
+    /**
+     * Encodes heartbeat request that client should answer with pong.
+     *
+     * @return encoded message
+     */
+    public abstract byte[] ping();
+
+    /**
+     * Encodes answer to client's heartbeat request.
+     *
+     * @return encoded message
+     */
+    public abstract byte[] pong();
+}
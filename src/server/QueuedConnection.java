@@ -0,0 +1,234 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection that queues sent messages and writes them from i/o layer, so senders never wait for socket.
+ * Messages queued while previous ones are written are coalesced into one write.
+ * Connection is closed if its client reads so slowly that queued bytes exceed high-water mark.
+ * After compression is started, batches of messages are written as blocks encoded by connection's compressor.
+ */
+public abstract class QueuedConnection implements Connection {
+    /**
+     * Maximum number of queued bytes that are not written to socket yet.
+     */
+    public static int maxPendingBytes = 1 << 20;
+    /**
+     * Maximum number of bytes written at once.
+     */
+    protected static final int maxBatchBytes = 1 << 16;
+    /**
+     * Mark queued among messages, messages queued after it are compressed.
+     */
+    private static final byte[] compressionStart = new byte[0];
+
+    /**
+     * Messages that are not taken for writing yet.
+     */
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * Number of queued bytes that are not written yet.
+     */
+    private final AtomicLong pendingBytes = new AtomicLong();
+    /**
+     * True while flush is scheduled or running.
+     */
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    /**
+     * Flag that indicates that connection was closed.
+     */
+    protected volatile boolean closed = false;
+    /**
+     * Connection's protocol.
+     */
+    private volatile Protocol protocol = Protocol.text;
+    /**
+     * Compressor of written messages, set by flush when it reaches compression start mark.
+     */
+    private volatile Compressor compressor = null;
+    /**
+     * Encoder for batch of messages that is compressed, used only by flush.
+     */
+    private Encoder uncompressed = null;
+
+    /**
+     * Queues message and schedules flush if it is not scheduled yet.
+     * Closes connection if queued bytes exceed high-water mark.
+     *
+     * @param bytes encoded message
+     * @throws IOException if connection is closed or client reads too slowly
+     */
+    @Override
+    public void send(byte[] bytes) throws IOException {
+        if (closed)
+            throw new IOException("Connection closed");
+        long pending = pendingBytes.addAndGet(bytes.length);
+        Metrics.outboundBytes.add(bytes.length);
+        Metrics.outboundDepth.record(pending);
+        if (pending > maxPendingBytes) {
+            Metrics.slowConnections.increment();
+            close();
+            throw new IOException("Client reads too slowly");
+        }
+        queue.add(bytes);
+        if (flushing.compareAndSet(false, true))
+            scheduleFlush();
+    }
+
+    @Override
+    public void startCompression() throws IOException {
+        send(compressionStart);
+    }
+
+    @Override
+    public Protocol protocol() {
+        return protocol;
+    }
+
+    @Override
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Returns true if connection was closed.
+     *
+     * @return true if connection was closed, otherwise false
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Schedules flush in i/o layer.
+     */
+    protected abstract void scheduleFlush();
+
+    /**
+     * Takes next queued message for writing, called only by flush.
+     * If compression is started, takes batch of messages and returns it as compressor's block.
+     *
+     * @return message or null if queue is empty
+     * @throws IOException if connection is closed
+     */
+    protected byte[] poll() throws IOException {
+        if (compressor == null) {
+            byte[] msg = queue.poll();
+            if (msg != compressionStart)
+                return msg;
+            startCompressor();
+        }
+        uncompressed.reset();
+        pollBatch(uncompressed);
+        return uncompressed.size() == 0 ? null : compress(uncompressed);
+    }
+
+    /**
+     * Takes queued messages for writing while their total length does not exceed batch size,
+     * but at least one message if queue is not empty. Called only by flush.
+     * If compression is started, appends them as compressor's block.
+     *
+     * @param out encoder that messages are appended to
+     * @throws IOException if connection is closed
+     */
+    protected void poll(Encoder out) throws IOException {
+        if (compressor == null) {
+            pollBatch(out);
+            if (compressor == null || out.size() != 0)
+                return;
+        }
+        byte[] block = poll();
+        if (block != null)
+            out.write(block, 0, block.length);
+    }
+
+    /**
+     * Takes queued messages while their total length does not exceed batch size, but at least one message
+     * if queue is not empty. Stops at compression start mark and starts compression.
+     *
+     * @param out encoder that messages are appended to
+     */
+    private void pollBatch(Encoder out) {
+        byte[] msg;
+        while ((out.size() == 0 || out.size() + peekLength() <= maxBatchBytes) && (msg = queue.peek()) != null) {
+            if (msg == compressionStart && compressor == null) {
+                queue.poll();
+                startCompressor();
+                return;
+            }
+            queue.poll();
+            out.write(msg, 0, msg.length);
+        }
+    }
+
+    /**
+     * Creates compressor when flush reaches compression start mark.
+     * Releases it at once if connection was closed meanwhile.
+     */
+    private void startCompressor() {
+        compressor = new Compressor();
+        uncompressed = new Encoder();
+        if (closed)
+            compressor.end();
+    }
+
+    /**
+     * Encodes batch as compressor's block and accounts difference of block's and batch's length in queued bytes.
+     *
+     * @param batch encoder with batch
+     * @return block
+     * @throws IOException if connection is closed
+     */
+    private byte[] compress(Encoder batch) throws IOException {
+        byte[] block = compressor.block(batch);
+        pendingBytes.addAndGet(block.length - batch.size());
+        Metrics.outboundBytes.add(block.length - batch.size());
+        return block;
+    }
+
+    /**
+     * Returns length of first queued message or 0 if queue is empty.
+     *
+     * @return length of message
+     */
+    private int peekLength() {
+        byte[] msg = queue.peek();
+        return msg == null ? 0 : msg.length;
+    }
+
+    /**
+     * Marks specified number of bytes as written.
+     *
+     * @param bytes number of bytes
+     */
+    protected void written(long bytes) {
+        pendingBytes.addAndGet(-bytes);
+        Metrics.outboundBytes.add(-bytes);
+        Metrics.bytesOut.add(bytes);
+    }
+
+    /**
+     * Finishes flush after queue became empty.
+     * Returns true if messages were queued meanwhile and flush should continue.
+     *
+     * @return true if flush should continue, otherwise false
+     */
+    protected boolean flushed() {
+        flushing.set(false);
+        return !queue.isEmpty() && flushing.compareAndSet(false, true);
+    }
+
+    /**
+     * Drops queued messages and releases compressor, called when connection is closed.
+     */
+    protected void clear() {
+        queue.clear();
+        Metrics.outboundBytes.add(-pendingBytes.getAndSet(0));
+        Compressor compressor = this.compressor;
+        if (compressor != null)
+            compressor.end();
+    }
+}
@@ -0,0 +1,460 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Primary's side of replication: ships log's records written to disk to followers that connect to replication port.
+ * Follower sends sequence number of its last record with its term and primary answers with history of terms.
+ * If follower's log matches primary's one and records after it are still retained, primary streams them,
+ * otherwise it saves users data, copies them to follower and streams records made after they were saved.
+ * Segments that follower has not received are retained while it is connected.
+ * Follower acknowledges applied records, so primary knows how far behind follower is:
+ * lag in bytes is size of records follower has not applied, lag in time is age of oldest of them.
+ * While there are no new records primary sends heartbeats with follower's lag.
+ * Replication is asynchronous: client's request is acknowledged when its record is written to primary's disk.
+ */
+public class Replication {
+    /**
+     * Port for followers, 0 disables replication.
+     */
+    public static int port = 0;
+    /**
+     * Frame opcodes.
+     */
+    static final byte FOLLOW = 1;
+    static final byte HISTORY = 2;
+    static final byte SNAPSHOT = 3;
+    static final byte SNAPSHOT_END = 4;
+    static final byte RECORDS = 5;
+    static final byte HEARTBEAT = 6;
+    static final byte APPLIED = 7;
+    /**
+     * Time in milliseconds between heartbeats sent to follower while there are no new records.
+     */
+    static final int heartbeatInterval = 200;
+    /**
+     * Maximum size in bytes of records or users data sent in one frame.
+     */
+    private static final int chunkSize = 64 << 10;
+    /**
+     * Time in milliseconds stopping primary waits for followers to apply last records.
+     */
+    private static final long stopTimeout = 5000;
+    /**
+     * Replication of primary of this process, null if replication is not started.
+     */
+    private static volatile Replication current = null;
+
+    /**
+     * Server which log is shipped.
+     */
+    private final Server server;
+    /**
+     * Log that is shipped.
+     */
+    private final MutationLog log;
+    /**
+     * Socket followers connect to, null until replication is started.
+     */
+    private ServerSocket serverSocket = null;
+    /**
+     * Connected followers.
+     */
+    private final Set<Sender> senders = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs replication of server's log.
+     *
+     * @param server server
+     * @param log    server's log
+     */
+    public Replication(Server server, MutationLog log) {
+        this.server = server;
+        this.log = log;
+    }
+
+    /**
+     * Starts accepting connections from followers.
+     *
+     * @throws IOException if socket can not be opened
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        current = this;
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread thread = new Thread(new Sender(socket), "replication-sender");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ignored) {
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops accepting followers, waits until connected followers apply records written before log was closed
+     * and disconnects them. Must be called after log is closed.
+     */
+    public void stop() {
+        if (current == this)
+            current = null;
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        long deadline = System.currentTimeMillis() + stopTimeout;
+        for (Sender sender : senders) {
+            sender.finish(deadline);
+        }
+    }
+
+    /**
+     * Returns number of followers connected to primary of this process.
+     *
+     * @return number of followers
+     */
+    public static long followers() {
+        Replication replication = current;
+        return replication != null ? replication.senders.size() : 0;
+    }
+
+    /**
+     * Returns lag in bytes of the most lagging follower of primary of this process,
+     * or follower's own lag reported by its primary.
+     *
+     * @return lag in bytes
+     */
+    public static long lagBytes() {
+        long lag = Follower.lagBytes();
+        Replication replication = current;
+        if (replication != null) {
+            for (Sender sender : replication.senders) {
+                lag = Math.max(lag, sender.lagBytes);
+            }
+        }
+        return lag;
+    }
+
+    /**
+     * Returns lag in milliseconds of the most lagging follower of primary of this process,
+     * or follower's own lag reported by its primary.
+     *
+     * @return lag in milliseconds
+     */
+    public static long lagMillis() {
+        long lag = Follower.lagMillis();
+        Replication replication = current;
+        if (replication != null) {
+            for (Sender sender : replication.senders) {
+                lag = Math.max(lag, sender.lagMillis);
+            }
+        }
+        return lag;
+    }
+
+    /**
+     * Returns state of replication of this process in readable form: line per follower connected to primary
+     * and line with primary if server follows it.
+     *
+     * @return state of replication
+     */
+    public static String status() {
+        StringBuilder sb = new StringBuilder();
+        Replication replication = current;
+        if (replication != null) {
+            for (Sender sender : replication.senders) {
+                sb.append("follower ").append(sender.address)
+                        .append(" applied ").append(sender.appliedSequence)
+                        .append(" lag ").append(sender.lagBytes).append(" bytes ")
+                        .append(sender.lagMillis).append(" ms\n");
+            }
+        }
+        String following = Follower.status();
+        if (following != null)
+            sb.append(following).append("\n");
+        return sb.length() > 0 ? sb.toString() : "no followers\n";
+    }
+
+    /**
+     * Connection with one follower, ships records from its own tail of log.
+     */
+    private class Sender implements Runnable {
+        /**
+         * Follower's socket.
+         */
+        private final Socket socket;
+        /**
+         * Follower's address for status.
+         */
+        private final String address;
+        /**
+         * Number of bytes of records sent to follower.
+         */
+        private long sentBytes = 0;
+        /**
+         * Number of bytes of records follower applied.
+         */
+        private volatile long appliedBytes = 0;
+        /**
+         * Sequence number of last record follower applied.
+         */
+        private volatile long appliedSequence = 0;
+        /**
+         * Sent frames of records that follower has not applied yet:
+         * number of bytes sent up to end of frame and time frame was sent at.
+         */
+        private final ArrayDeque<long[]> unapplied = new ArrayDeque<>();
+        /**
+         * Lock that guards frames that follower has not applied yet.
+         */
+        private final ReentrantLock unappliedLock = new ReentrantLock();
+        /**
+         * Lock that guards waiting for follower's acknowledgements and for sender to stop.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * Signalled when follower applies records, disconnects or sender stops.
+         */
+        private final Condition applied = lock.newCondition();
+        /**
+         * Follower's lag in bytes, updated with each heartbeat.
+         */
+        private volatile long lagBytes = 0;
+        /**
+         * Follower's lag in milliseconds, updated with each heartbeat.
+         */
+        private volatile long lagMillis = 0;
+
+        /**
+         * Constructs connection with follower.
+         *
+         * @param socket follower's socket
+         */
+        private Sender(Socket socket) {
+            this.socket = socket;
+            address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        /**
+         * Handshakes with follower, copies users data if follower needs them
+         * and sends records as they are written to disk until log is closed or follower disconnects.
+         */
+        @Override
+        public void run() {
+            MutationLog.Tail tail = null;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), chunkSize);
+                if (in.readUnsignedByte() != FOLLOW)
+                    throw new IOException("Unexpected frame");
+                Decoder request = new Decoder(Cluster.readPayload(in));
+                long sequence = request.readVarint();
+                long term = request.readVarint();
+                Encoder payload = new Encoder();
+                server.history().write(payload);
+                Cluster.writeFrame(out, HISTORY, payload);
+                if (server.history().termAt(sequence) == term)
+                    tail = log.tail(sequence);
+                if (tail == null)
+                    tail = sendSnapshot(out);
+                System.out.println("Follower " + address + " connected from record " + tail.lastSequence());
+                senders.add(this);
+                Thread reader = new Thread(() -> readAcknowledgements(in), "replication-acks");
+                reader.setDaemon(true);
+                reader.start();
+                Encoder records = new Encoder(chunkSize + 1024);
+                long heartbeat = 0;
+                while (true) {
+                    records.reset();
+                    int count = tail.read(records, chunkSize, heartbeatInterval);
+                    if (count < 0)
+                        break;
+                    if (count > 0) {
+                        Cluster.writeFrame(out, RECORDS, records);
+                        sentBytes += records.size();
+                        unappliedLock.lock();
+                        try {
+                            unapplied.add(new long[]{sentBytes, System.currentTimeMillis()});
+                        } finally {
+                            unappliedLock.unlock();
+                        }
+                        Metrics.recordsShipped.add(count);
+                    }
+                    if (count == 0 || System.currentTimeMillis() - heartbeat >= heartbeatInterval) {
+                        heartbeat = System.currentTimeMillis();
+                        updateLag(tail);
+                        payload.reset();
+                        payload.writeVarint(lagBytes);
+                        payload.writeVarint(lagMillis);
+                        Cluster.writeFrame(out, HEARTBEAT, payload);
+                    }
+                    out.flush();
+                }
+                out.flush();
+                lock.lock();
+                try {
+                    while (appliedBytes < sentBytes && !socket.isClosed()) {
+                        applied.await(heartbeatInterval, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                System.out.println("Follower " + address + " disconnected: " + e.getMessage());
+            } catch (InterruptedException ignored) {
+            } finally {
+                senders.remove(this);
+                signalApplied();
+                if (tail != null)
+                    tail.close();
+                log.release(this);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Saves users data and copies them to follower in frames followed by end frame.
+         *
+         * @param out follower's stream
+         * @return tail that reads records made after users data were saved
+         * @throws IOException if users data can not be saved or sent
+         */
+        private MutationLog.Tail sendSnapshot(OutputStream out) throws IOException {
+            MutationLog.Tail tail;
+            try (FileChannel channel = server.openSnapshot(this)) {
+                long sequence = UsersFile.readSequence(channel);
+                if (sequence < 0)
+                    throw new IOException("Users data are not saved in binary format");
+                Encoder chunk = new Encoder(chunkSize);
+                byte[] bytes = new byte[chunkSize];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long position = 0;
+                int read;
+                while ((read = channel.read(buffer, position)) >= 0) {
+                    position += read;
+                    chunk.reset();
+                    chunk.write(bytes, 0, read);
+                    Cluster.writeFrame(out, SNAPSHOT, chunk);
+                    buffer.clear();
+                }
+                chunk.reset();
+                Cluster.writeFrame(out, SNAPSHOT_END, chunk);
+                tail = log.tail(sequence);
+            } finally {
+                log.release(this);
+            }
+            if (tail == null)
+                throw new IOException("Log after saved users data is deleted");
+            Metrics.snapshotsCopied.increment();
+            return tail;
+        }
+
+        /**
+         * Reads follower's acknowledgements of applied records until follower disconnects.
+         *
+         * @param in follower's stream
+         */
+        private void readAcknowledgements(DataInputStream in) {
+            try {
+                while (true) {
+                    int opcode = in.readUnsignedByte();
+                    Decoder payload = new Decoder(Cluster.readPayload(in));
+                    if (opcode != APPLIED)
+                        throw new IOException("Unexpected frame: " + opcode);
+                    appliedSequence = payload.readVarint();
+                    long bytes = payload.readVarint();
+                    unappliedLock.lock();
+                    try {
+                        while (!unapplied.isEmpty() && unapplied.peek()[0] <= bytes) {
+                            unapplied.poll();
+                        }
+                    } finally {
+                        unappliedLock.unlock();
+                    }
+                    appliedBytes = bytes;
+                    signalApplied();
+                }
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                signalApplied();
+            }
+        }
+
+        /**
+         * Wakes up threads that wait for follower's acknowledgements or for sender to stop.
+         */
+        private void signalApplied() {
+            lock.lock();
+            try {
+                applied.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Updates follower's lag: records sent but not applied and records written to disk but not sent.
+         *
+         * @param tail follower's tail
+         */
+        private void updateLag(MutationLog.Tail tail) {
+            lagBytes = sentBytes - appliedBytes + tail.unread();
+            unappliedLock.lock();
+            try {
+                long[] oldest = unapplied.peek();
+                lagMillis = oldest != null ? System.currentTimeMillis() - oldest[1] : 0;
+            } finally {
+                unappliedLock.unlock();
+            }
+        }
+
+        /**
+         * Waits until follower applies sent records or deadline passes, then disconnects it.
+         *
+         * @param deadline time in milliseconds since epoch
+         */
+        private void finish(long deadline) {
+            lock.lock();
+            try {
+                long left;
+                while (senders.contains(this) && (left = deadline - System.currentTimeMillis()) > 0) {
+                    applied.await(left, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                lock.unlock();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * History of terms of log: each promotion of follower to primary starts new term
+ * at record that follows last replicated one, term is identified by time of promotion.
+ * Records with the same sequence number and term were appended by the same primary,
+ * so follower's log matches primary's one up to its last record if both have the same term for it,
+ * otherwise follower diverged, for example it is former primary, and must copy primary's users data.
+ * History is saved to file as line per term: sequence number of its first record and term.
+ */
+public class ReplicationHistory {
+    /**
+     * File history is saved to.
+     */
+    private final Path path;
+    /**
+     * Terms by sequence numbers of their first records.
+     */
+    private TreeMap<Long, Long> terms = new TreeMap<>();
+
+    /**
+     * Loads history from specified file, history is empty if file does not exist.
+     *
+     * @param path file
+     * @throws IOException if file can not be read or is malformed
+     */
+    public ReplicationHistory(Path path) throws IOException {
+        this.path = path;
+        if (!Files.exists(path))
+            return;
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (line.isBlank())
+                    continue;
+                String[] fields = line.trim().split(" ");
+                terms.put(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed replication history file: " + path);
+        }
+    }
+
+    /**
+     * Returns term of record with specified sequence number.
+     *
+     * @param sequence record's sequence number
+     * @return term, 0 if record was appended before first promotion
+     */
+    public synchronized long termAt(long sequence) {
+        Map.Entry<Long, Long> term = terms.floorEntry(sequence);
+        return term != null ? term.getValue() : 0;
+    }
+
+    /**
+     * Starts new term at specified record and saves history.
+     *
+     * @param firstSequence sequence number of first record of new term
+     * @throws IOException if history can not be saved
+     */
+    public synchronized void startTerm(long firstSequence) throws IOException {
+        long term = System.currentTimeMillis();
+        if (!terms.isEmpty())
+            term = Math.max(term, terms.lastEntry().getValue() + 1);
+        terms.tailMap(firstSequence, true).clear();
+        terms.put(firstSequence, term);
+        save();
+    }
+
+    /**
+     * Writes history as number of terms followed by sequence number of first record and term of each.
+     *
+     * @param out encoder
+     */
+    public synchronized void write(Encoder out) {
+        out.writeVarint(terms.size());
+        for (Map.Entry<Long, Long> term : terms.entrySet()) {
+            out.writeVarint(term.getKey());
+            out.writeVarint(term.getValue());
+        }
+    }
+
+    /**
+     * Reads history written by write method.
+     *
+     * @param in decoder
+     * @return terms by sequence numbers of their first records
+     * @throws IOException if history is malformed
+     */
+    public static TreeMap<Long, Long> read(Decoder in) throws IOException {
+        TreeMap<Long, Long> terms = new TreeMap<>();
+        for (int count = in.readVarintInt(); count > 0; count--) {
+            terms.put(in.readVarint(), in.readVarint());
+        }
+        return terms;
+    }
+
+    /**
+     * Replaces history with primary's one and saves it if it differs.
+     *
+     * @param primary primary's terms by sequence numbers of their first records
+     * @throws IOException if history can not be saved
+     */
+    public synchronized void replace(TreeMap<Long, Long> primary) throws IOException {
+        if (terms.equals(primary))
+            return;
+        terms = primary;
+        save();
+    }
+
+    /**
+     * Saves history to file, previous file is replaced atomically.
+     * Must be called under lock.
+     *
+     * @throws IOException if file can not be written
+     */
+    private void save() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, Long> term : terms.entrySet()) {
+            sb.append(term.getKey()).append(" ").append(term.getValue()).append("\n");
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
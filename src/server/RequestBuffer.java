@@ -0,0 +1,57 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffer with bytes received from connection that decodes complete requests
+ * with connection's current protocol, so protocol can change between requests.
+ */
+public class RequestBuffer {
+    /**
+     * Maximum length of request in bytes.
+     */
+    public static int maxRequestLength = 1 << 20;
+
+    /**
+     * Buffer with received bytes that are not processed yet, in write mode.
+     */
+    private ByteBuffer in = ByteBuffer.allocate(8192);
+
+    /**
+     * Returns buffer that received bytes should be put to, grows it if it is full.
+     *
+     * @return buffer in write mode
+     * @throws IOException if request does not fit into maximum length
+     */
+    public ByteBuffer buffer() throws IOException {
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= maxRequestLength)
+                throw new IOException("Request is too long");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, maxRequestLength));
+            in.flip();
+            in = bigger.put(in);
+        }
+        return in;
+    }
+
+    /**
+     * Decodes complete requests from received bytes and passes them to handler
+     * until connection is closed. Keeps incomplete request in buffer.
+     *
+     * @param connection connection which protocol decodes requests
+     * @param handler    handler of requests
+     * @throws IOException if request is malformed or handler failed
+     */
+    public void process(QueuedConnection connection, RequestHandler handler) throws IOException {
+        byte[] buf = in.array();
+        int start = 0;
+        int consumed;
+        while (!connection.isClosed() && (consumed =
+                connection.protocol().decode(buf, start, in.position() - start, handler)) > 0) {
+            start += consumed;
+        }
+        in.limit(in.position()).position(start);
+        in.compact();
+    }
+}
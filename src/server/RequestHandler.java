@@ -0,0 +1,182 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Handler of requests decoded from connection by its protocol.
+ */
+public interface RequestHandler {
+    /**
+     * Called before each request with id that client assigned to it for correlating acknowledgement.
+     *
+     * @param id request's id or -1 if request has no id
+     */
+    default void requestId(int id) {
+    }
+
+    /**
+     * Called for capabilities negotiation request.
+     *
+     * @param capabilities requested capabilities
+     * @throws IOException if i/o error occurred while answering
+     */
+    void hello(String[] capabilities) throws IOException;
+
+    /**
+     * Called for login or registration request.
+     *
+     * @param register true for registration, false for login
+     * @param username user's username
+     * @param password user's password
+     * @throws IOException if i/o error occurred while answering
+     */
+    void authenticate(boolean register, String username, String password) throws IOException;
+
+    /**
+     * Called for request that can not be parsed.
+     *
+     * @throws IOException if i/o error occurred while answering
+     */
+    void malformed() throws IOException;
+
+    /**
+     * Called for friends requests list request.
+     *
+     * @throws IOException if i/o error occurred while answering
+     */
+    void getFriendsRequestsList() throws IOException;
+
+    /**
+     * Called for accepting friends request.
+     *
+     * @param id id of user who sent request
+     * @throws IOException if i/o error occurred while answering
+     */
+    void acceptRequest(int id) throws IOException;
+
+    /**
+     * Called for sending friends request.
+     *
+     * @param username username of user the request is sent to
+     * @throws IOException if i/o error occurred while answering
+     */
+    void sendRequest(String username) throws IOException;
+
+    /**
+     * Called for sending message to friend.
+     *
+     * @param id  friend's id
+     * @param msg message
+     * @throws IOException if i/o error occurred while answering
+     */
+    void sendMessage(int id, String msg) throws IOException;
+
+    /**
+     * Called for first new message request.
+     *
+     * @param id friend's id
+     * @throws IOException if i/o error occurred while answering
+     */
+    void getMessageFrom(int id) throws IOException;
+
+    /**
+     * Called for batch of new messages request.
+     *
+     * @param id  friend's id
+     * @param max maximum number of messages
+     * @throws IOException if i/o error occurred while answering
+     */
+    void getMessagesFrom(int id, int max) throws IOException;
+
+    /**
+     * Called for changing retention settings of messages from friend.
+     *
+     * @param id       friend's id
+     * @param maxAge   maximum age of messages in seconds, 0 to use server's limit
+     * @param maxCount maximum number of messages, 0 to use server's limit
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void setRetention(int id, int maxAge, int maxCount) throws IOException {
+    }
+
+    /**
+     * Called for creating group with user as its owner.
+     *
+     * @param name group's name
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void createGroup(String name) throws IOException {
+    }
+
+    /**
+     * Called for adding friend to group.
+     *
+     * @param groupId  group's id
+     * @param memberId friend's id
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void addToGroup(int groupId, int memberId) throws IOException {
+    }
+
+    /**
+     * Called for removing member from group or leaving group if member is user.
+     *
+     * @param groupId  group's id
+     * @param memberId member's id
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void removeFromGroup(int groupId, int memberId) throws IOException {
+    }
+
+    /**
+     * Called for sending message to group.
+     *
+     * @param groupId group's id
+     * @param msg     message
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void sendGroupMessage(int groupId, String msg) throws IOException {
+    }
+
+    /**
+     * Called for batch of unread messages of group request.
+     *
+     * @param groupId group's id
+     * @param max     maximum number of messages
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void getGroupMessages(int groupId, int max) throws IOException {
+    }
+
+    /**
+     * Called for list of group's members request.
+     *
+     * @param groupId group's id
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void getGroupMembers(int groupId) throws IOException {
+    }
+
+    /**
+     * Called for changing user's presence shown to friends.
+     *
+     * @param state Presence.ONLINE or Presence.AWAY
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void setPresence(byte state) throws IOException {
+    }
+
+    /**
+     * Called for heartbeat request that should be answered with pong.
+     *
+     * @throws IOException if i/o error occurred while answering
+     */
+    default void ping() throws IOException {
+    }
+
+    /**
+     * Called for answer to server's heartbeat request.
+     */
+    default void pong() {
+    }
+}
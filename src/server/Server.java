@@ -1,15 +1,33 @@
 package server;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * Server's main class
@@ -24,286 +42,1725 @@ public class Server {
      */
     public static String defaultUsersFileName = ".serverUsersData";
     /**
-     * Server's socket.
+     * Default file's path for log of users data changes made after users data were saved.
+     */
+    public static String defaultLogFileName = ".serverUsersLog";
+    /**
+     * Default file's path for cache of users data evicted from memory.
+     */
+    public static String defaultCacheFileName = ".serverUsersCache";
+    /**
+     * Default file's path for membership of cluster in cluster mode.
+     */
+    public static String defaultClusterFileName = ".serverCluster";
+    /**
+     * Default file's path for history of terms of replicated log.
+     */
+    public static String defaultHistoryFileName = ".serverReplication";
+    /**
+     * Maximum estimated size in bytes of users data kept in memory, 0 to keep all users data in memory.
+     */
+    public static long usersCacheSize = 256L << 20;
+    /**
+     * Interval in seconds between background saves of users data, 0 disables them.
+     */
+    public static int snapshotInterval = 60;
+    /**
+     * Number of event loops serving connections in selector mode.
+     */
+    public static int eventLoopsCount = Runtime.getRuntime().availableProcessors();
+    /**
+     * Number of threads that run users' mailboxes.
+     */
+    public static int workersCount = Runtime.getRuntime().availableProcessors();
+    /**
+     * Time in seconds after which connection that negotiated heartbeats and sent nothing is pinged,
+     * 0 disables heartbeats.
+     */
+    public static int pingInterval = 10;
+    /**
+     * Time in seconds after ping within which client should answer, otherwise connection is closed.
+     */
+    public static int pongTimeout = 5;
+    /**
+     * Time in seconds after which connection that is not authenticated is closed, 0 disables the limit.
+     */
+    public static int loginTimeout = 300;
+    /**
+     * Server's socket, null in selector mode.
      */
     private final ServerSocket serverSocket;
+    /**
+     * Server's channel, null in blocking mode.
+     */
+    private final ServerSocketChannel serverChannel;
+    /**
+     * Port for clients that server's socket or channel is bound to when server starts serving clients
+     * if it is not bound yet, so clients of follower are refused instead of waiting for it.
+     */
+    private final int port;
     /**
      * Container with information about registered users.
      */
-    private final Map<String, UserInfo> usernames;
+    private final ConcurrentHashMap<String, UserInfo> usernames;
     /**
      * Container with users data.
      */
-    private final ArrayList<User> users;
+    private final UserRegistry users;
+    /**
+     * Lock that is held for reading while user is registered and for writing while users data is being saved,
+     * so saved users data contains all users which registration is logged before log's rotation.
+     * Users lookups do not take this lock.
+     */
+    private final ReentrantReadWriteLock registrationLock = new ReentrantReadWriteLock();
+    /**
+     * Lock that serializes users registered by coordinator of cluster, since they may extend users with skipped ids.
+     */
+    private final ReentrantLock remoteRegistrationLock = new ReentrantLock();
+    /**
+     * Group conversations.
+     */
+    private final Groups groups;
+    /**
+     * Presence of connected users published to their friends.
+     */
+    private final Presence presence;
+    /**
+     * Storage that users data not used recently is evicted to.
+     */
+    private final UserStore store;
+    /**
+     * Sweeper that expires unread messages by retention policy.
+     */
+    private final MessageSweeper sweeper;
+    /**
+     * Executor that runs users' mailboxes.
+     */
+    private final ExecutorService workers;
+    /**
+     * Membership in cluster that owns part of users, null if server is not in cluster mode.
+     */
+    private final Cluster cluster;
+    /**
+     * Replication of log to followers, null if replication is disabled.
+     */
+    private final Replication replication;
+    /**
+     * History of terms of log.
+     */
+    private final ReplicationHistory history;
+    /**
+     * Flag that indicates that server follows primary: users do not log changes,
+     * since changes are applied from primary's records, and clients are not served.
+     */
+    private volatile boolean following;
+    /**
+     * Flag that indicates that log failed to write records to disk, so users data contain changes that are not logged.
+     */
+    private volatile boolean logFailed = false;
+    /**
+     * Executor that runs listeners of new sockets in blocking mode,
+     * null if each listener should get its own thread.
+     */
+    private final ExecutorService executor;
+    /**
+     * Executor that runs writers of sockets in blocking mode.
+     */
+    private final ExecutorService writers;
+    /**
+     * Log that all changes of users data are appended to.
+     */
+    private final MutationLog log;
+    /**
+     * Lock that prevents users data from being saved by several threads at once.
+     */
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    /**
+     * Sequence number of last log's record which change is contained in saved users data.
+     */
+    private volatile long snapshotSequence = 0;
+    /**
+     * Thread that periodically saves users data in background.
+     */
+    private ScheduledExecutorService snapshotter = null;
     /**
      * Thread that listens to server socket for new connections.
      */
     private Thread mainThread = null;
+    /**
+     * Event loops serving connections in selector mode.
+     */
+    private EventLoop[] loops = null;
+    /**
+     * Timer wheel that checks connections for idleness, started by run.
+     */
+    private TimerWheel timers = null;
 
     /**
      * Server that waits for user to connect to server socket.
-     * Creates new Listener for each new socket.
-     * Loads users data from default file if presented.
+     * Creates new thread with Listener for each new socket.
+     * Loads users data from default file and replays log if presented.
      * Saves users data to default file.
      *
      * @param ss server socket that server should listen
+     * @throws IOException if log can not be opened
      */
-    @SuppressWarnings("unchecked")
-    public Server(ServerSocket ss) {
-        serverSocket = ss;
-        Path path = Paths.get(defaultUsersFileName);
-        Map<String, UserInfo> usernamesTmp;
-        ArrayList<User> usersTmp;
-        try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(path))) {
-            usernamesTmp = (Map<String, UserInfo>) in.readObject();
-            usersTmp = (ArrayList<User>) in.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            usernamesTmp = new HashMap<>();
-            usersTmp = new ArrayList<>();
-        }
-        usernames = usernamesTmp;
-        users = usersTmp;
+    public Server(ServerSocket ss) throws IOException {
+        this(ss, null);
     }
 
     /**
-     * Creates thread that listens server socket.
+     * Server that waits for user to connect to server socket.
+     * Runs Listener for each new socket with specified executor.
+     * Loads users data from default file and replays log if presented.
+     * Saves users data to default file.
+     *
+     * @param ss       server socket that server should listen
+     * @param executor executor for listeners, if null new thread is created for each listener
+     * @throws IOException if log can not be opened
      */
-    public void run() {
-        mainThread = new Thread(() -> {
-            try {
-                while (true) {
-                    Socket newSocket = serverSocket.accept();
-                    Thread thread = new Thread(new Listener(newSocket));
-                    thread.setDaemon(true);
-                    thread.start();
-                }
-            } catch (IOException e) {
-                saveUsers();
-                System.out.println("Server died: " + e.getMessage());
-            }
+    public Server(ServerSocket ss, ExecutorService executor) throws IOException {
+        this(ss, executor, ss.getLocalPort());
+    }
+
+    /**
+     * Server that waits for user to connect to server socket which is bound when server starts serving clients.
+     * Runs Listener for each new socket with specified executor.
+     * Loads users data from default file and replays log if presented.
+     * Saves users data to default file.
+     *
+     * @param ss       server socket that server should listen, may be not bound yet
+     * @param executor executor for listeners, if null new thread is created for each listener
+     * @param port     port for clients
+     * @throws IOException if log can not be opened
+     */
+    public Server(ServerSocket ss, ExecutorService executor, int port) throws IOException {
+        serverSocket = ss;
+        serverChannel = null;
+        this.port = port;
+        this.executor = executor;
+        writers = executor != null ? executor : Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "socket-writer");
+            thread.setDaemon(true);
+            return thread;
         });
-        mainThread.start();
+        usernames = new ConcurrentHashMap<>();
+        users = new UserRegistry();
+        groups = new Groups(users::get);
+        presence = new Presence(users::get);
+        workers = new ForkJoinPool(Math.max(1, workersCount), ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                null, true);
+        store = new UserStore(defaultCacheFileName, usersCacheSize, users::size, users::get);
+        sweeper = new MessageSweeper(users::get);
+        following = Follower.primary != null;
+        history = new ReplicationHistory(Paths.get(defaultHistoryFileName));
+        log = loadUsers();
+        replication = Replication.port > 0 ? new Replication(this, log) : null;
+        cluster = newCluster(port);
     }
 
     /**
-     * Stops thread that listens server socket.
+     * Server that serves connections to server channel with fixed number of event loops.
+     * Creates new Listener for each new connection.
+     * Loads users data from default file and replays log if presented.
+     * Saves users data to default file.
+     *
+     * @param channel server channel that server should listen
+     * @throws IOException if log can not be opened
      */
-    public void stop() {
-        if (mainThread != null) {
-            try {
-                serverSocket.close();
-            } catch (IOException ignored) {
-            }
+    public Server(ServerSocketChannel channel) throws IOException {
+        this(channel, ((InetSocketAddress) channel.getLocalAddress()).getPort());
+    }
+
+    /**
+     * Server that serves connections to server channel which is bound when server starts serving clients
+     * with fixed number of event loops.
+     * Creates new Listener for each new connection.
+     * Loads users data from default file and replays log if presented.
+     * Saves users data to default file.
+     *
+     * @param channel server channel that server should listen, may be not bound yet
+     * @param port    port for clients
+     * @throws IOException if log can not be opened
+     */
+    public Server(ServerSocketChannel channel, int port) throws IOException {
+        serverSocket = null;
+        serverChannel = channel;
+        this.port = port;
+        executor = null;
+        writers = null;
+        usernames = new ConcurrentHashMap<>();
+        users = new UserRegistry();
+        groups = new Groups(users::get);
+        presence = new Presence(users::get);
+        workers = new ForkJoinPool(Math.max(1, workersCount), ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                null, true);
+        store = new UserStore(defaultCacheFileName, usersCacheSize, users::size, users::get);
+        sweeper = new MessageSweeper(users::get);
+        following = Follower.primary != null;
+        history = new ReplicationHistory(Paths.get(defaultHistoryFileName));
+        log = loadUsers();
+        replication = Replication.port > 0 ? new Replication(this, log) : null;
+        cluster = newCluster(port);
+    }
+
+    /**
+     * Creates membership in cluster if cluster mode is enabled.
+     *
+     * @param port server's port for clients
+     * @return membership or null if cluster mode is disabled
+     * @throws IOException if saved membership can not be read
+     */
+    private Cluster newCluster(int port) throws IOException {
+        if (Cluster.port <= 0)
+            return null;
+        return new Cluster(this, new NodeInfo(Cluster.host, port, Cluster.port), Paths.get(defaultClusterFileName));
+    }
+
+    /**
+     * Returns executor that runs each task in new virtual thread.
+     * Virtual threads are looked up reflectively so server still runs on JVMs without them.
+     *
+     * @return executor with virtual thread per task
+     * @throws UnsupportedOperationException if JVM does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
         }
     }
 
     /**
-     * This class is constructed for each new socket to listen it.
+     * Loads users data from default file if presented,
+     * replays changes from log made after users data were saved and opens log for new changes.
+     *
+     * @return log opened for new changes
+     * @throws IOException if users data or log can not be read or log can not be opened
      */
-    private class Listener implements Runnable {
-        private final Socket socket;
-        private int id = -1;
-        private String username;
+    private MutationLog loadUsers() throws IOException {
+        List<User> loaded = new ArrayList<>();
+        List<Group> loadedGroups = new ArrayList<>();
+        long sequence = UsersFile.read(Paths.get(defaultUsersFileName), usernames, loaded, store, loadedGroups);
+        for (User user : loaded) {
+            users.add(id -> user);
+        }
+        for (Group group : loadedGroups) {
+            groups.add(group);
+        }
+        snapshotSequence = sequence;
+        sequence = MutationLog.replay(defaultLogFileName, sequence, new Replayer(false));
+        MutationLog log = new MutationLog(defaultLogFileName, sequence);
+        log.onFailure(this::logFailed);
+        for (int id = 0; id < users.size(); id++) {
+            users.get(id).attach(id, following ? null : log, store, sweeper, workers);
+        }
+        groups.setLog(following ? null : log);
+        return log;
+    }
 
-        Listener(Socket socket) {
-            this.socket = socket;
+    /**
+     * Applies changes replayed from log to users data.
+     * Skips changes that users already contain since they were saved after change was logged.
+     * Changes replicated from primary are applied in users' mailboxes, since users are already attached.
+     * Changes of groups are applied at once, since groups are guarded by their own locks.
+     */
+    private class Replayer implements MutationVisitor {
+        /**
+         * Flag that indicates that changes are replicated from primary to attached users.
+         */
+        private final boolean live;
+        /**
+         * Results of replicated changes posted to users' mailboxes.
+         */
+        private final List<CompletableFuture<Void>> applied = new ArrayList<>();
+        /**
+         * Sequence number of replayed record.
+         */
+        private long sequence;
+
+        /**
+         * Constructs replayer.
+         *
+         * @param live true if changes are replicated from primary to attached users, false on load
+         */
+        private Replayer(boolean live) {
+            this.live = live;
         }
 
         @Override
-        public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 OutputStreamWriter out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
-                while (!socket.isInputShutdown()) {
-                    if (acceptUser(in, out)) {
-                        getUser(id).setUserLoggedIn(socket, out);
-                        break;
-                    }
-                }
-                while (!socket.isInputShutdown()) {
-                    String buffer = in.readLine();
-                    if (buffer == null)
-                        break;
-                    processReceivedMessage(buffer);
-                }
-            } catch (IOException ignored) {
-            } finally {
-                if (id != -1)
-                    getUser(id).closeSocket(socket);
-                System.out.println("socket closed: " + id);
-            }
+        public void begin(long sequence) {
+            this.sequence = sequence;
         }
 
         /**
-         * Processes received message from user.
+         * Applies replayed change to user with specified id unless it already contains change.
+         * Replicated change is posted to user's mailbox.
          *
-         * @param msg message from user
-         * @throws IOException if error occured while working with tcp connection
-         */
-        private void processReceivedMessage(String msg) throws IOException {
-            String[] buffer = msg.split(" ", 2);
-            String[] localBuffer;
-            switch (buffer[0]) {
-                case "GetFriendsRequestsList":
-                    getUser(id).sendFriendsRequestsList();
-                    break;
-                case "AcceptRequest":
-                    try {
-                        int friendsId = Integer.parseInt(buffer[1]);
-                        getUser(id).acceptFriendsRequest(friendsId);
-                        getUser(friendsId).friendsRequestAccepted(id, username);
-                    } catch (NumberFormatException ignored) {
-                    }
-                    break;
-                case "SendRequest":
-                    try {
-                        UserInfo info = getUserInfo(buffer[1]);
-                        if (info != null && getUser(id).isAbleToSendRequestToUser(info.id)
-                                && !buffer[1].equals(username)) {
-                            getUser(info.id).addNewFriendsRequest(id, username);
-                            getUser(id).notify("Friends request sent to " + buffer[1] + "\n");
-                        }
-                    } catch (NumberFormatException ignored) {
-                    }
-                    break;
-                case "SendMessage":
-                    localBuffer = buffer[1].split(" ", 2);
-                    try {
-                        int friendsId = Integer.parseInt(localBuffer[0]);
-
-                        getUser(friendsId).saveMessageFrom(id, localBuffer[1]);
-                    } catch (NumberFormatException ignored) {
-                    }
-                    break;
-                case "GetMessageFrom":
-                    try {
-                        int friendsId = Integer.parseInt(buffer[1]);
-                        getUser(id).sendFirstMessageFrom(friendsId);
-                    } catch (NumberFormatException ignored) {
-                    }
-                    break;
+         * @param id     user's id
+         * @param change change
+         * @throws IOException if change failed while replaying on load
+         */
+        private void apply(int id, User.Action change) throws IOException {
+            User user = users.get(id);
+            long sequence = this.sequence;
+            if (!live) {
+                if (user.replay(sequence))
+                    change.run(user);
+                return;
             }
+            applied.add(user.ask(target -> {
+                if (target.replay(sequence))
+                    change.run(target);
+                return null;
+            }));
         }
 
         /**
-         * Returns true if user logged in or registered successfully, otherwise false.
-         * Sends answer to user.
+         * Waits until replicated changes are applied.
          *
-         * @param in  input stream to get users messages
-         * @param out output stream to send messages to user
-         * @return true if user logged in or registered successfully, otherwise false.
-         * @throws IOException if error occurred while working with
-         */
-        private boolean acceptUser(BufferedReader in, OutputStreamWriter out) throws IOException {
-            String msg = in.readLine();
-            if (msg == null)
-                return writeResponse(out, "Error receiving request\n", false);
-            String[] buffer = msg.split(" ", 3);
-            if (buffer.length != 3)
-                return writeResponse(out, "Wrong format\n", false);
-            UserInfo user = getUserInfo(buffer[1]);
-            if (buffer[0].equals("auth")) {
-                if (user != null) {
-                    if (user.password.equals(buffer[2])) {
-                        id = user.id;
-                        username = buffer[1];
-                        return writeResponse(out, "Accepted\n", true);
-                    }
-                    return writeResponse(out, "Wrong password\n", false);
-                }
-                return writeResponse(out, "No such user\n", false);
-            } else if (buffer[0].equals("reg")) {
-                if (user == null) {
-                    if (buffer[1].matches("^[a-zA-Z]+[\\w]{2,}$")) {
-                        if (buffer[2].length() > 2) {
-                            username = buffer[1];
-                            id = addUser(username, buffer[2]);
-                            return writeResponse(out, "Accepted\n", true);
-                        }
-                        return this.writeResponse(out, "Password should be at least 3 characters long\n",
-                                false);
-                    }
-                    return this.writeResponse(out, "Wrong username format, should: " +
-                            "start with letter, " +
-                            "be at 3 characters long " +
-                            "and consist only of letters, digits and underscores\n", false);
+         * @throws IOException if change failed
+         */
+        private void await() throws IOException {
+            try {
+                for (CompletableFuture<Void> change : applied) {
+                    change.join();
                 }
-                return writeResponse(out, "Username exists\n", false);
+            } catch (CompletionException e) {
+                throw new IOException("Unable to apply replicated change", e.getCause());
+            } finally {
+                applied.clear();
             }
-            return writeResponse(out, "Wrong format\n", false);
         }
 
         /**
-         * Writes authentication response to specified output stream and returns passed return value.
-         *
-         * @param out output stream
-         * @param msg authentication response
-         * @param r   return value
-         * @return passed return value
-         * @throws IOException if error occurred while writing to output stream
+         * Registrations may be logged out of order of users' ids,
+         * so users with skipped ids are added too and get their usernames from their own records.
          */
-        private boolean writeResponse(OutputStreamWriter out, String msg, boolean r) throws IOException {
-            out.write(msg);
-            out.flush();
-            return r;
+        @Override
+        public void userAdded(int id, String username, String password) {
+            while (users.size() <= id) {
+                users.add(userId -> {
+                    User user = new User();
+                    if (live)
+                        user.attach(userId, null, store, sweeper, workers);
+                    return user;
+                });
+            }
+            usernames.put(username, new UserInfo(id, password));
+        }
+
+        @Override
+        public void friendsRequestAdded(int id, int fromId, String username) throws IOException {
+            apply(id, user -> user.addNewFriendsRequest(fromId, username));
+        }
+
+        @Override
+        public void friendsRequestAccepted(int id, int fromId) throws IOException {
+            apply(id, user -> user.acceptFriendsRequest(fromId));
+        }
+
+        @Override
+        public void friendAdded(int id, int friendId, String username) throws IOException {
+            apply(id, user -> user.friendsRequestAccepted(friendId, username));
+        }
+
+        @Override
+        public void messageSaved(int id, int fromId, String msg, long time) throws IOException {
+            apply(id, user -> user.saveMessageFrom(fromId, msg, time));
+        }
+
+        @Override
+        public void messageTaken(int id, int fromId) throws IOException {
+            apply(id, user -> user.sendFirstMessageFrom(fromId));
+        }
+
+        @Override
+        public void messagesTaken(int id, int fromId, int count) throws IOException {
+            apply(id, user -> user.sendMessagesFrom(fromId, count));
+        }
+
+        @Override
+        public void messagesExpired(int id, int fromId, int count) throws IOException {
+            apply(id, user -> user.removeExpiredMessages(fromId, count));
+        }
+
+        @Override
+        public void retentionSet(int id, int friendId, int maxAge, int maxCount) throws IOException {
+            apply(id, user -> user.setRetention(friendId, maxAge, maxCount));
+        }
+
+        @Override
+        public void userHandedOff(int id) throws IOException {
+            apply(id, User::discard);
+        }
+
+        @Override
+        public void userTakenOver(int id, byte[] data) throws IOException {
+            apply(id, user -> user.takeOver(data));
+        }
+
+        @Override
+        public void groupCreated(int groupId, int ownerId, String name) {
+            groups.created(sequence, groupId, ownerId, name);
+        }
+
+        @Override
+        public void groupMemberAdded(int groupId, int memberId) {
+            groups.memberAdded(sequence, groupId, memberId);
+        }
+
+        @Override
+        public void groupMemberRemoved(int groupId, int memberId) {
+            groups.memberRemoved(sequence, groupId, memberId);
+        }
+
+        @Override
+        public void groupMessageSaved(int groupId, int fromId, String msg, long time) {
+            groups.messageSaved(sequence, groupId, fromId, msg, time);
+        }
+
+        @Override
+        public void groupMessagesRead(int groupId, int memberId, long number) {
+            groups.messagesRead(sequence, groupId, memberId, number);
         }
     }
 
     /**
-     * Returns UserInfo class with information about user with passed username.
-     * Returns null if no user found.
+     * Binds server's socket if it is not bound yet, starts timer wheel that checks connections for idleness,
+     * joins cluster in cluster mode, accepts followers if replication is enabled
+     * and creates thread that listens server socket or starts event loops in selector mode.
      *
-     * @param username username that user's information should return for
-     * @return information about user or null if user not found
+     * @throws IOException if socket can not be bound, event loops can not be started, cluster can not be joined
+     *                     or replication's socket can not be opened
      */
-    private UserInfo getUserInfo(String username) {
-        synchronized (usernames) {
-            return usernames.get(username);
+    public void run() throws IOException {
+        if (serverChannel != null && serverChannel.getLocalAddress() == null)
+            serverChannel.bind(new InetSocketAddress(port));
+        else if (serverSocket != null && !serverSocket.isBound())
+            serverSocket.bind(new InetSocketAddress(port));
+        timers = new TimerWheel("heartbeats", 100, 512);
+        sweeper.start();
+        presence.start();
+        if (cluster != null)
+            cluster.start();
+        if (replication != null)
+            replication.start();
+        startSnapshots();
+        if (serverChannel != null) {
+            runEventLoops();
+            return;
         }
+        mainThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket newSocket = serverSocket.accept();
+                    if (executor != null) {
+                        executor.execute(new SocketListener(newSocket));
+                        continue;
+                    }
+                    Thread thread = new Thread(new SocketListener(newSocket));
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                if (executor != null)
+                    executor.shutdown();
+                shutdown();
+                System.out.println("Server died: " + e.getMessage());
+            }
+        });
+        mainThread.start();
     }
 
     /**
-     * Returns User with specified id.
-     * Returns null if no user found.
-     *
-     * @param id user's id
-     * @return User with specified id or null
+     * Starts background saves of users data unless they are disabled or already started.
      */
-    private User getUser(int id) {
-        synchronized (users) {
-            return users.get(id);
-        }
+    private synchronized void startSnapshots() {
+        if (snapshotInterval <= 0 || snapshotter != null)
+            return;
+        snapshotter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::saveUsersIfChanged,
+                snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
     }
 
-    private int addUser(String username, String password) {
-        int id;
-        synchronized (users) {
-            id = users.size();
-            users.add(id, new User());
-        }
-        synchronized (usernames) {
-            usernames.put(username, new UserInfo(id, password));
+    /**
+     * Starts background saves of users data while server follows primary without serving clients.
+     */
+    void follow() {
+        startSnapshots();
+    }
+
+    /**
+     * Promotes following server to primary: starts new term of log, lets users log their changes
+     * and starts serving clients.
+     *
+     * @throws IOException if history can not be saved or server can not be started
+     */
+    void promote() throws IOException {
+        history.startTerm(log.lastSequence() + 1);
+        following = false;
+        for (int id = 0; id < users.size(); id++) {
+            users.get(id).post(user -> user.setLog(log));
         }
-        return id;
+        groups.setLog(log);
+        run();
     }
 
     /**
-     * Saves users information to default file
+     * Starts event loops and registers server channel to the first of them.
+     * Accepted connections are distributed between loops in round-robin order.
+     *
+     * @throws IOException if event loop can not be created
      */
-    private void saveUsers() {
-        Path path = Paths.get(defaultUsersFileName);
-        try (ObjectOutputStream out = new ObjectOutputStream(
-                Files.newOutputStream(path))) {
-            synchronized (usernames) {
-                out.writeObject(usernames);
+    private void runEventLoops() throws IOException {
+        loops = new EventLoop[Math.max(1, eventLoopsCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("event-loop-" + i);
+            loops[i].start();
+        }
+        serverChannel.configureBlocking(false);
+        loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, new EventLoop.Handler() {
+            private int next = 0;
+
+            @Override
+            public void ready(SelectionKey key) throws IOException {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    EventLoop loop = loops[next];
+                    next = (next + 1) % loops.length;
+                    ChannelConnection connection = new ChannelConnection(channel, loop);
+                    connection.start(new Listener(connection));
+                }
             }
-            synchronized (users) {
-                out.writeObject(users);
+
+            @Override
+            public void close() {
+                try {
+                    serverChannel.close();
+                } catch (IOException ignored) {
+                }
             }
-        } catch (IOException e) {
+        });
+    }
+
+    /**
+     * Stops thread that listens server socket and waits until it saves users data.
+     * In selector mode stops event loops and saves users data after they die.
+     * Server that was not run, for example follower, closes its socket and saves users data at once.
+     */
+    public void stop() {
+        if (mainThread == null && loops == null) {
             try {
-                Files.deleteIfExists(path);
+                if (serverSocket != null)
+                    serverSocket.close();
+                else
+                    serverChannel.close();
             } catch (IOException ignored) {
             }
+            shutdown();
+            return;
+        }
+        if (mainThread != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                mainThread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.stop();
+            }
+            try {
+                for (EventLoop loop : loops) {
+                    loop.join();
+                }
+            } catch (InterruptedException ignored) {
+            }
+            shutdown();
+        }
+    }
+
+    /**
+     * Leaves cluster, stops background saves, idleness checks and expiry of messages, closes log,
+     * lets followers apply its last records, saves users data, deletes cache of evicted users data
+     * and stops users' mailboxes.
+     */
+    void shutdown() {
+        if (cluster != null)
+            cluster.stop();
+        if (snapshotter != null)
+            snapshotter.shutdown();
+        if (timers != null)
+            timers.stop();
+        sweeper.stop();
+        presence.stop();
+        log.close();
+        if (replication != null)
+            replication.stop();
+        saveUsers();
+        store.close();
+        workers.shutdown();
+    }
+
+    /**
+     * This class is constructed for each new socket to listen it in separate thread.
+     */
+    private class SocketListener implements Runnable {
+        private final Socket socket;
+
+        SocketListener(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            Listener listener = null;
+            try (InputStream in = socket.getInputStream()) {
+                SocketConnection connection = new SocketConnection(socket, writers);
+                listener = new Listener(connection);
+                RequestBuffer requests = new RequestBuffer();
+                while (!socket.isInputShutdown()) {
+                    ByteBuffer buffer = requests.buffer();
+                    int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                    if (n < 0)
+                        break;
+                    Metrics.bytesIn.add(n);
+                    listener.received();
+                    buffer.position(buffer.position() + n);
+                    requests.process(connection, listener);
+                }
+            } catch (IOException ignored) {
+            } finally {
+                if (listener != null)
+                    listener.closed();
+            }
+        }
+    }
+
+    /**
+     * This class is constructed for each new connection to process requests decoded from it.
+     * Requests are posted to mailboxes of users they concern, so listener never waits for other users.
+     * Request with id is acknowledged with its status after it is processed and its changes are written to disk:
+     * "ok" if it is done, "rejected" if it is not applicable, "malformed" if it can not be parsed
+     * and "unauthorized" if it requires authentication.
+     * Connection that is not authenticated within login timeout is closed.
+     * If heartbeats are negotiated, authenticated connection that sent nothing during ping interval is pinged
+     * and closed if it sends nothing within pong timeout, so half-open connections are reclaimed.
+     */
+    class Listener implements RequestHandler {
+        private final Connection connection;
+        private volatile int id = -1;
+        private String username;
+        /**
+         * True if capabilities were negotiated.
+         */
+        private boolean negotiated = false;
+        /**
+         * True if new messages should be pushed to connection.
+         */
+        private boolean push = false;
+        /**
+         * True if connection should be pinged when it is idle.
+         */
+        private volatile boolean heartbeats = false;
+        /**
+         * True if friends' presence changes should be sent to connection.
+         */
+        private boolean presenceUpdates = false;
+        /**
+         * Id of request that is being processed, -1 if request has no id.
+         */
+        private int requestId = -1;
+        /**
+         * Time of last bytes received from connection.
+         */
+        private volatile long lastReceived = System.nanoTime();
+        /**
+         * Lock that guards state of idleness checks.
+         */
+        private final ReentrantLock idleLock = new ReentrantLock();
+        /**
+         * Time of last ping, meaningful only while ping is not answered, accessed only under idle lock.
+         */
+        private long pingSent = 0;
+        /**
+         * True if ping was sent and nothing was received after it, accessed only under idle lock.
+         */
+        private boolean pinged = false;
+        /**
+         * Next idleness check of connection, accessed only under idle lock.
+         */
+        private TimerWheel.Timeout idleCheck = null;
+        /**
+         * Flag that indicates that connection was closed, accessed only under idle lock.
+         */
+        private boolean closed = false;
+
+        Listener(Connection connection) {
+            this.connection = connection;
+            Metrics.connectionsOpened.increment();
+            if (loginTimeout > 0)
+                checkIdleAfter(TimeUnit.SECONDS.toNanos(loginTimeout));
+        }
+
+        /**
+         * Called when bytes are received from connection.
+         */
+        void received() {
+            lastReceived = System.nanoTime();
+        }
+
+        /**
+         * Schedules next idleness check after specified delay.
+         *
+         * @param nanos delay in nanoseconds
+         */
+        private void checkIdleAfter(long nanos) {
+            idleLock.lock();
+            try {
+                if (!closed)
+                    idleCheck = timers.schedule(this::checkIdle, nanos, TimeUnit.NANOSECONDS);
+            } finally {
+                idleLock.unlock();
+            }
+        }
+
+        /**
+         * Checks connection for idleness, called by timer wheel.
+         * Closes connection that is not authenticated within login timeout or did not answer ping in time,
+         * pings authenticated connection that sent nothing during ping interval if heartbeats are negotiated.
+         * Schedules next check when connection may become idle. Connection is closed or pinged after lock is released.
+         */
+        private void checkIdle() {
+            boolean close = false;
+            boolean ping = false;
+            idleLock.lock();
+            try {
+                if (closed)
+                    return;
+                long now = System.nanoTime();
+                long idle = now - lastReceived;
+                if (id == -1) {
+                    long timeout = TimeUnit.SECONDS.toNanos(loginTimeout);
+                    if (loginTimeout <= 0)
+                        return;
+                    if (idle >= timeout)
+                        close = true;
+                    else
+                        checkIdleAfter(timeout - idle);
+                } else if (heartbeats && pingInterval > 0) {
+                    long interval = TimeUnit.SECONDS.toNanos(pingInterval);
+                    long timeout = TimeUnit.SECONDS.toNanos(pongTimeout);
+                    if (pinged && lastReceived - pingSent < 0) {
+                        if (now - pingSent >= timeout)
+                            close = true;
+                        else
+                            checkIdleAfter(pingSent + timeout - now);
+                    } else if (idle < interval) {
+                        pinged = false;
+                        checkIdleAfter(interval - idle);
+                    } else {
+                        pinged = true;
+                        pingSent = now;
+                        ping = true;
+                        checkIdleAfter(timeout);
+                    }
+                }
+            } finally {
+                idleLock.unlock();
+            }
+            if (close) {
+                Metrics.idleConnections.increment();
+                connection.close();
+            } else if (ping) {
+                try {
+                    connection.send(connection.protocol().ping());
+                    Metrics.pingsSent.increment();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Replaces scheduled idleness check with immediate one, called after authentication.
+         */
+        private void recheckIdle() {
+            idleLock.lock();
+            try {
+                if (idleCheck != null)
+                    idleCheck.cancel();
+                checkIdleAfter(0);
+            } finally {
+                idleLock.unlock();
+            }
+        }
+
+        /**
+         * Called when connection closed.
+         */
+        void closed() {
+            idleLock.lock();
+            try {
+                closed = true;
+                if (idleCheck != null)
+                    idleCheck.cancel();
+            } finally {
+                idleLock.unlock();
+            }
+            int id = this.id;
+            if (id != -1) {
+                getUser(id).post(user -> {
+                    if (user.closeSocket(connection)) {
+                        groups.offline(id);
+                        presence.offline(id, user.friendIds());
+                    }
+                });
+            }
+            Metrics.connectionsClosed.increment();
+            System.out.println("socket closed: " + id);
+        }
+
+        @Override
+        public void requestId(int id) {
+            requestId = id;
+        }
+
+        /**
+         * Sends acknowledgement of request with specified id and status if request has id.
+         * Called from any thread, errors are ignored since closed connection is handled by its listener.
+         *
+         * @param requestId request's id or -1 if request has no id
+         * @param status    request's status
+         */
+        private void ack(int requestId, String status) {
+            if (requestId == -1)
+                return;
+            try {
+                connection.send(connection.protocol().ack(requestId, status));
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Sends acknowledgement of request with specified id and status after user's last change is written to disk.
+         *
+         * @param requestId request's id or -1 if request has no id
+         * @param status    request's status
+         * @param user      user whose changes should be written
+         */
+        private void ack(int requestId, String status, User user) {
+            if (requestId != -1)
+                user.whenDurable(() -> ack(requestId, status), () -> ack(requestId, "failed"));
+        }
+
+        /**
+         * Sends "ok" acknowledgement of request with specified id after group's last change is written to disk.
+         *
+         * @param requestId request's id or -1 if request has no id
+         * @param group     group whose changes should be written
+         */
+        private void ack(int requestId, Group group) {
+            if (requestId != -1)
+                group.whenDurable(() -> ack(requestId, "ok"), () -> ack(requestId, "failed"));
+        }
+
+        /**
+         * Returns callback that acknowledges request with specified id with status it receives.
+         *
+         * @param requestId request's id or -1 if request has no id
+         * @return callback or null if request has no id
+         */
+        private Consumer<String> acknowledger(int requestId) {
+            return requestId != -1 ? status -> ack(requestId, status) : null;
+        }
+
+        /**
+         * Answers with error and acknowledges current request as unauthorized if user is not authenticated.
+         *
+         * @return true if user is authenticated, otherwise false
+         * @throws IOException if error occurred while sending answer
+         */
+        private boolean authenticated() throws IOException {
+            if (id != -1)
+                return true;
+            connection.send(connection.protocol().error("Wrong format"));
+            ack(requestId, "unauthorized");
+            return false;
+        }
+
+        /**
+         * Checks that user is authenticated and groups are supported.
+         * Answers with notification and acknowledges current request as rejected in cluster mode,
+         * since members of group may be owned by different nodes.
+         *
+         * @return true if group request can be handled, otherwise false
+         * @throws IOException if error occurred while sending answer
+         */
+        private boolean groupsSupported() throws IOException {
+            if (!authenticated())
+                return false;
+            if (cluster == null)
+                return true;
+            connection.send(connection.protocol().notification("Groups are not supported in cluster mode"));
+            ack(requestId, "rejected");
+            return false;
+        }
+
+        /**
+         * Enables requested capabilities that are supported by server
+         * and answers in text protocol with enabled capabilities in format "Hello( capability)*".
+         * Switches connection to binary protocol after answer if it is enabled
+         * and starts compression of following messages if "deflate" is enabled.
+         * Capability "ack" only confirms that requests with ids are acknowledged.
+         * Capability "ping" enables heartbeats: idle connection is pinged and closed if it does not answer.
+         * Capability "presence" enables batched updates of friends' presence.
+         * Allowed only once before authentication.
+         *
+         * @param capabilities requested capabilities
+         * @throws IOException if error occurred while sending answer
+         */
+        @Override
+        public void hello(String[] capabilities) throws IOException {
+            Metrics.Command.HELLO.received();
+            if (negotiated || id != -1) {
+                malformed();
+                return;
+            }
+            negotiated = true;
+            boolean binary = false;
+            boolean deflate = false;
+            boolean ack = false;
+            StringBuilder sb = new StringBuilder("Hello");
+            for (String capability : capabilities) {
+                if (capability.equals("push") && !push) {
+                    push = true;
+                    sb.append(" ").append(capability);
+                } else if (capability.equals("binary") && !binary) {
+                    binary = true;
+                    sb.append(" ").append(capability);
+                } else if (capability.equals("deflate") && !deflate) {
+                    deflate = true;
+                    sb.append(" ").append(capability);
+                } else if (capability.equals("ack") && !ack) {
+                    ack = true;
+                    sb.append(" ").append(capability);
+                } else if (capability.equals("ping") && !heartbeats) {
+                    heartbeats = true;
+                    sb.append(" ").append(capability);
+                } else if (capability.equals("presence") && !presenceUpdates) {
+                    presenceUpdates = true;
+                    sb.append(" ").append(capability);
+                }
+            }
+            sb.append("\n");
+            connection.send(sb.toString().getBytes(StandardCharsets.UTF_8));
+            if (binary)
+                connection.setProtocol(Protocol.binary);
+            if (deflate)
+                connection.startCompression();
+            ack(requestId, "ok");
+        }
+
+        /**
+         * Answers with error if user is not authenticated yet, otherwise ignores request.
+         * Acknowledges request as malformed.
+         *
+         * @throws IOException if error occurred while sending answer
+         */
+        @Override
+        public void malformed() throws IOException {
+            Metrics.Command.MALFORMED.received();
+            if (id == -1)
+                connection.send(connection.protocol().error("Wrong format"));
+            ack(requestId, "malformed");
+        }
+
+        @Override
+        public void getFriendsRequestsList() throws IOException {
+            Metrics.Command.GET_FRIENDS_REQUESTS_LIST.received();
+            if (!authenticated())
+                return;
+            int requestId = this.requestId;
+            getUser(id).post(user -> {
+                user.sendFriendsRequestsList();
+                ack(requestId, "ok");
+            });
+        }
+
+        @Override
+        public void acceptRequest(int friendsId) throws IOException {
+            Metrics.Command.ACCEPT_REQUEST.received();
+            if (!authenticated())
+                return;
+            int id = this.id;
+            String username = this.username;
+            int requestId = this.requestId;
+            if (getUser(friendsId) == null) {
+                ack(requestId, "rejected");
+                return;
+            }
+            getUser(id).post(user -> {
+                if (user.acceptFriendsRequest(friendsId)) {
+                    deliver(Cluster.REQUEST_ACCEPTED, friendsId, id, username, acknowledger(requestId));
+                    presence.befriended(id, friendsId);
+                } else {
+                    ack(requestId, "rejected");
+                }
+            });
+        }
+
+        @Override
+        public void sendRequest(String friendsUsername) throws IOException {
+            Metrics.Command.SEND_REQUEST.received();
+            if (!authenticated())
+                return;
+            int id = this.id;
+            String username = this.username;
+            int requestId = this.requestId;
+            UserInfo info = getUserInfo(friendsUsername);
+            if (info == null || friendsUsername.equals(username)) {
+                ack(requestId, "rejected");
+                return;
+            }
+            getUser(id).post(user -> {
+                if (user.isAbleToSendRequestToUser(info.id)) {
+                    deliver(Cluster.FRIENDS_REQUEST, info.id, id, username, acknowledger(requestId));
+                    user.notify("Friends request sent to " + friendsUsername);
+                } else {
+                    ack(requestId, "rejected");
+                }
+            });
+        }
+
+        @Override
+        public void sendMessage(int friendsId, String msg) throws IOException {
+            Metrics.Command.SEND_MESSAGE.received();
+            if (!authenticated())
+                return;
+            deliver(Cluster.MESSAGE, friendsId, id, msg, acknowledger(requestId));
+        }
+
+        @Override
+        public void setRetention(int friendsId, int maxAge, int maxCount) throws IOException {
+            Metrics.Command.SET_RETENTION.received();
+            if (!authenticated())
+                return;
+            int requestId = this.requestId;
+            if (maxAge < 0 || maxCount < 0) {
+                ack(requestId, "rejected");
+                return;
+            }
+            getUser(id).post(user ->
+                    ack(requestId, user.setRetention(friendsId, maxAge, maxCount) ? "ok" : "rejected", user));
+        }
+
+        @Override
+        public void getMessageFrom(int friendsId) throws IOException {
+            Metrics.Command.GET_MESSAGE_FROM.received();
+            if (!authenticated())
+                return;
+            int requestId = this.requestId;
+            getUser(id).post(user -> {
+                user.sendFirstMessageFrom(friendsId);
+                ack(requestId, "ok", user);
+            });
+        }
+
+        @Override
+        public void getMessagesFrom(int friendsId, int max) throws IOException {
+            Metrics.Command.GET_MESSAGES_FROM.received();
+            if (!authenticated())
+                return;
+            int requestId = this.requestId;
+            if (max == 0) {
+                ack(requestId, "ok");
+                return;
+            }
+            getUser(id).post(user -> {
+                user.sendMessagesFrom(friendsId, max);
+                ack(requestId, "ok", user);
+            });
+        }
+
+        @Override
+        public void createGroup(String name) throws IOException {
+            Metrics.Command.CREATE_GROUP.received();
+            if (!groupsSupported())
+                return;
+            int requestId = this.requestId;
+            if (!Group.isValidName(name)) {
+                ack(requestId, "rejected");
+                return;
+            }
+            ack(requestId, addGroup(id, name));
+        }
+
+        /**
+         * Adds friend of requesting member to group, friendship is checked in requester's mailbox.
+         */
+        @Override
+        public void addToGroup(int groupId, int memberId) throws IOException {
+            Metrics.Command.ADD_TO_GROUP.received();
+            if (!groupsSupported())
+                return;
+            int id = this.id;
+            int requestId = this.requestId;
+            Group group = groups.get(groupId);
+            if (group == null || getUser(memberId) == null) {
+                ack(requestId, "rejected");
+                return;
+            }
+            getUser(id).post(user -> {
+                if (user.isFriend(memberId) && group.add(id, memberId))
+                    ack(requestId, group);
+                else
+                    ack(requestId, "rejected");
+            });
+        }
+
+        @Override
+        public void removeFromGroup(int groupId, int memberId) throws IOException {
+            Metrics.Command.REMOVE_FROM_GROUP.received();
+            if (!groupsSupported())
+                return;
+            int requestId = this.requestId;
+            Group group = groups.get(groupId);
+            if (group != null && group.remove(id, memberId))
+                ack(requestId, group);
+            else
+                ack(requestId, "rejected");
+        }
+
+        @Override
+        public void sendGroupMessage(int groupId, String msg) throws IOException {
+            Metrics.Command.SEND_GROUP_MESSAGE.received();
+            if (!groupsSupported())
+                return;
+            int requestId = this.requestId;
+            Group group = groups.get(groupId);
+            if (group != null && group.send(id, msg, System.currentTimeMillis()))
+                ack(requestId, group);
+            else
+                ack(requestId, "rejected");
+        }
+
+        @Override
+        public void getGroupMessages(int groupId, int max) throws IOException {
+            Metrics.Command.GET_GROUP_MESSAGES.received();
+            if (!groupsSupported())
+                return;
+            int requestId = this.requestId;
+            Group group = groups.get(groupId);
+            if (group == null) {
+                ack(requestId, "rejected");
+                return;
+            }
+            getUser(id).post(user -> {
+                if (user.sendGroupMessages(group, max))
+                    ack(requestId, group);
+                else
+                    ack(requestId, "rejected");
+            });
+        }
+
+        @Override
+        public void getGroupMembers(int groupId) throws IOException {
+            Metrics.Command.GET_GROUP_MEMBERS.received();
+            if (!groupsSupported())
+                return;
+            int requestId = this.requestId;
+            Group group = groups.get(groupId);
+            if (group == null) {
+                ack(requestId, "rejected");
+                return;
+            }
+            getUser(id).post(user -> ack(requestId, user.sendGroupMembers(group) ? "ok" : "rejected"));
+        }
+
+        @Override
+        public void setPresence(byte state) throws IOException {
+            Metrics.Command.SET_PRESENCE.received();
+            if (!authenticated())
+                return;
+            int id = this.id;
+            int requestId = this.requestId;
+            if (state != Presence.ONLINE && state != Presence.AWAY) {
+                ack(requestId, "rejected");
+                return;
+            }
+            getUser(id).post(user ->
+                    ack(requestId, presence.set(id, state, user.friendIds()) ? "ok" : "rejected"));
+        }
+
+        /**
+         * Answers with pong, allowed before authentication.
+         *
+         * @throws IOException if error occurred while sending answer
+         */
+        @Override
+        public void ping() throws IOException {
+            Metrics.Command.PING.received();
+            connection.send(connection.protocol().pong());
+        }
+
+        @Override
+        public void pong() {
+            Metrics.Command.PONG.received();
+        }
+
+        /**
+         * Logs user in or registers user and sends answer.
+         * On success sets user connected to this connection.
+         * In cluster mode registration is done by coordinator and client of user owned by other node
+         * is redirected to it instead, such request is acknowledged as "redirected".
+         * Rejected if user is already authenticated.
+         *
+         * @param register true for registration, false for login
+         * @param name     user's username
+         * @param password user's password
+         * @throws IOException if error occurred while sending answer
+         */
+        @Override
+        public void authenticate(boolean register, String name, String password) throws IOException {
+            (register ? Metrics.Command.REGISTRATION : Metrics.Command.LOGIN).received();
+            int requestId = this.requestId;
+            if (id != -1) {
+                ack(requestId, "rejected");
+                return;
+            }
+            UserInfo user = getUserInfo(name);
+            if (!register) {
+                if (user == null)
+                    reject("No such user", requestId);
+                else if (!user.password.equals(password))
+                    reject("Wrong password", requestId);
+                else
+                    logIn(user.id, name, requestId);
+                return;
+            }
+            if (user != null) {
+                reject("Username exists", requestId);
+            } else if (!name.matches("^[a-zA-Z]+[\\w]{2,}$")) {
+                reject("Wrong username format, should: " +
+                        "start with letter, " +
+                        "be at 3 characters long " +
+                        "and consist only of letters, digits and underscores", requestId);
+            } else if (password.length() <= 2) {
+                reject("Password should be at least 3 characters long", requestId);
+            } else if (cluster != null) {
+                cluster.register(name, password, newId -> registered(newId, name, requestId));
+            } else {
+                registered(addUser(name, password), name, requestId);
+            }
+        }
+
+        /**
+         * Logs registered user in or sends error if registration failed.
+         *
+         * @param newId     new user's id, -1 if username is taken or -2 if registration is unavailable
+         * @param name      user's username
+         * @param requestId registration's request id or -1 if request has no id
+         */
+        private void registered(int newId, String name, int requestId) {
+            try {
+                if (newId == -1)
+                    reject("Username exists", requestId);
+                else if (newId < 0)
+                    reject("Registration is unavailable", requestId);
+                else
+                    logIn(newId, name, requestId);
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Sends authentication error and acknowledges request as rejected.
+         *
+         * @param msg       error's description
+         * @param requestId request's id or -1 if request has no id
+         * @throws IOException if error occurred while sending answer
+         */
+        private void reject(String msg, int requestId) throws IOException {
+            Metrics.authFailures.increment();
+            writeResponse(msg, false);
+            ack(requestId, "rejected");
+        }
+
+        /**
+         * Sets authenticated user connected to this connection, or redirects client to node that owns user.
+         *
+         * @param userId    user's id
+         * @param name      user's username
+         * @param requestId request's id or -1 if request has no id
+         * @throws IOException if error occurred while sending answer
+         */
+        private void logIn(int userId, String name, int requestId) throws IOException {
+            NodeInfo owner = cluster != null ? cluster.redirect(userId) : null;
+            if (owner != null) {
+                connection.send(connection.protocol().redirect(owner.host, owner.port));
+                ack(requestId, "redirected");
+                return;
+            }
+            id = userId;
+            username = name;
+            writeResponse(null, true);
+            recheckIdle();
+            boolean push = this.push;
+            boolean presenceUpdates = this.presenceUpdates;
+            long sequence = log.lastSequence();
+            Runnable login = () -> getUser(userId).post(user -> {
+                user.setUserLoggedIn(connection, push);
+                presence.online(userId, user.friendIds(), presenceUpdates);
+                List<Group> userGroups = groups.online(userId);
+                if (!userGroups.isEmpty())
+                    user.sendGroupsList(userGroups);
+                if (requestId != -1)
+                    log.whenDurable(sequence, () -> ack(requestId, "ok"), () -> ack(requestId, "failed"));
+            });
+            if (cluster != null)
+                cluster.whenLocal(userId, login);
+            else
+                login.run();
+        }
+
+        /**
+         * Sends authentication response to connection and returns passed return value.
+         *
+         * @param msg error's description or null if authentication succeeded
+         * @param r   return value
+         * @return passed return value
+         * @throws IOException if error occurred while sending response
+         */
+        private boolean writeResponse(String msg, boolean r) throws IOException {
+            Protocol protocol = connection.protocol();
+            connection.send(msg == null ? protocol.accepted() : protocol.error(msg));
+            return r;
+        }
+    }
+
+    /**
+     * Returns UserInfo class with information about user with passed username.
+     * Returns null if no user found.
+     *
+     * @param username username that user's information should return for
+     * @return information about user or null if user not found
+     */
+    private UserInfo getUserInfo(String username) {
+        return usernames.get(username);
+    }
+
+    /**
+     * Returns User with specified id.
+     * Returns null if no user found.
+     *
+     * @param id user's id
+     * @return User with specified id or null
+     */
+    User getUser(int id) {
+        return users.get(id);
+    }
+
+    /**
+     * Returns number of registered users.
+     *
+     * @return number of users
+     */
+    int usersCount() {
+        return users.size();
+    }
+
+    /**
+     * Returns usernames with information of users which ids are not less than specified one, ordered by ids.
+     *
+     * @param fromId first id
+     * @return usernames with users' information
+     */
+    List<Map.Entry<String, UserInfo>> registrations(int fromId) {
+        List<Map.Entry<String, UserInfo>> registrations = new ArrayList<>();
+        for (Map.Entry<String, UserInfo> entry : usernames.entrySet()) {
+            if (entry.getValue().id >= fromId)
+                registrations.add(Map.entry(entry.getKey(), entry.getValue()));
+        }
+        registrations.sort(Comparator.comparingInt(entry -> entry.getValue().id));
+        return registrations;
+    }
+
+    /**
+     * Registers new user with passed username and password if username is not taken.
+     * Concurrent registrations with different usernames do not wait for each other.
+     *
+     * @param username new user's username
+     * @param password new user's password
+     * @return new user's id or -1 if username is taken
+     */
+    int addUser(String username, String password) {
+        int[] id = {-1};
+        registrationLock.readLock().lock();
+        try {
+            usernames.computeIfAbsent(username, name -> {
+                id[0] = users.add(userId -> {
+                    User user = new User();
+                    user.attach(userId, log, store, sweeper, workers);
+                    return user;
+                });
+                log.userAdded(id[0], username, password);
+                return new UserInfo(id[0], password);
+            });
+        } finally {
+            registrationLock.readLock().unlock();
+        }
+        return id[0];
+    }
+
+    /**
+     * Publishes that user is offline to its friends after its connection was closed by hand-off.
+     * Called from user's mailbox.
+     *
+     * @param id      user's id
+     * @param friends ids of user's friends before hand-off
+     */
+    void userLeft(int id, List<Integer> friends) {
+        presence.offline(id, friends);
+    }
+
+    /**
+     * Creates group with specified owner under registration lock,
+     * so saved users data contain all groups which creation is logged before log's rotation.
+     *
+     * @param ownerId owner's id
+     * @param name    group's name
+     * @return new group
+     */
+    private Group addGroup(int ownerId, String name) {
+        registrationLock.readLock().lock();
+        try {
+            return groups.create(ownerId, name);
+        } finally {
+            registrationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds user registered by coordinator of cluster with specified id unless it is already added.
+     * Registrations may arrive out of order of ids, so users with skipped ids are added too
+     * and get their usernames when their registrations arrive.
+     *
+     * @param id       user's id
+     * @param username user's username
+     * @param password user's password
+     */
+    void addRemoteUser(int id, String username, String password) {
+        registrationLock.readLock().lock();
+        try {
+            remoteRegistrationLock.lock();
+            try {
+                while (users.size() <= id) {
+                    users.add(userId -> {
+                        User user = new User();
+                        user.attach(userId, log, store, sweeper, workers);
+                        return user;
+                    });
+                }
+                if (usernames.putIfAbsent(username, new UserInfo(id, password)) == null)
+                    log.userAdded(id, username, password);
+            } finally {
+                remoteRegistrationLock.unlock();
+            }
+        } finally {
+            registrationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies request from sender to receiver in receiver's mailbox if this node owns receiver,
+     * otherwise forwards request to receiver's owner. Request that reaches mailbox after receiver moved
+     * to other node is forwarded from there.
+     *
+     * @param operation request's type: Cluster.MESSAGE, Cluster.FRIENDS_REQUEST or Cluster.REQUEST_ACCEPTED
+     * @param toId      receiver's id
+     * @param fromId    sender's id
+     * @param text      message or sender's username
+     * @param done      receives request's status after receiver's change is written to disk,
+     *                  null if status is not needed
+     */
+    void deliver(byte operation, int toId, int fromId, String text, Consumer<String> done) {
+        User receiver = getUser(toId);
+        if (receiver == null) {
+            if (done != null)
+                done.accept("rejected");
+            return;
+        }
+        if (cluster == null) {
+            receiver.post(user -> apply(user, operation, fromId, text, done));
+            return;
+        }
+        if (!cluster.owns(toId)) {
+            cluster.forward(operation, toId, fromId, text, done);
+            return;
+        }
+        cluster.whenLocal(toId, () -> receiver.post(user -> {
+            if (cluster.owns(toId))
+                apply(user, operation, fromId, text, done);
+            else
+                cluster.forward(operation, toId, fromId, text, done);
+        }));
+    }
+
+    /**
+     * Applies request from sender to receiver, called from receiver's mailbox.
+     *
+     * @param user      receiver
+     * @param operation request's type
+     * @param fromId    sender's id
+     * @param text      message or sender's username
+     * @param done      receives request's status after receiver's change is written to disk, may be null
+     * @throws IOException if i/o error occurred while notifying receiver
+     */
+    private static void apply(User user, byte operation, int fromId, String text, Consumer<String> done)
+            throws IOException {
+        boolean applied;
+        switch (operation) {
+            case Cluster.MESSAGE:
+                applied = user.saveMessageFrom(fromId, text);
+                break;
+            case Cluster.FRIENDS_REQUEST:
+                applied = user.addNewFriendsRequest(fromId, text);
+                break;
+            case Cluster.REQUEST_ACCEPTED:
+                user.friendsRequestAccepted(fromId, text);
+                applied = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+        if (done != null)
+            user.whenDurable(() -> done.accept(applied ? "ok" : "rejected"), () -> done.accept("failed"));
+    }
+
+    /**
+     * Returns sequence number of last record of log.
+     *
+     * @return sequence number
+     */
+    long lastSequence() {
+        return log.lastSequence();
+    }
+
+    /**
+     * Returns history of terms of log.
+     *
+     * @return history
+     */
+    ReplicationHistory history() {
+        return history;
+    }
+
+    /**
+     * Appends records received from primary to log and applies them to users,
+     * waits until users apply them, so saved users data contain all records before log's rotation.
+     *
+     * @param records records in form they are stored in log
+     * @return number of records
+     * @throws IOException if records are malformed, do not continue log or can not be applied
+     */
+    int replicate(byte[] records) throws IOException {
+        Replayer replayer = new Replayer(true);
+        registrationLock.readLock().lock();
+        try {
+            int count = log.replicate(records, replayer);
+            replayer.await();
+            return count;
+        } finally {
+            registrationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Saves users data and opens saved file for copying to follower.
+     * Log's segments with changes made after users data were saved are retained until holder releases them.
+     *
+     * @param holder holder of retained segments
+     * @return channel of users data file
+     * @throws IOException if file can not be opened
+     */
+    FileChannel openSnapshot(Object holder) throws IOException {
+        snapshotLock.lock();
+        try {
+            saveUsers();
+            FileChannel channel = FileChannel.open(Paths.get(defaultUsersFileName), StandardOpenOption.READ);
+            log.retain(holder, snapshotSequence);
+            return channel;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Saves users information if log contains changes that are not saved yet.
+     */
+    private void saveUsersIfChanged() {
+        if (log.lastSequence() > snapshotSequence)
+            saveUsers();
+    }
+
+    /**
+     * Stops server after log failed to write records to disk and exits,
+     * so server is restarted from saved users data and records that were written.
+     * Users data is not saved, since it contains changes that were not logged and were acknowledged as failed.
+     */
+    private void logFailed() {
+        logFailed = true;
+        System.out.println("Stopping server after log failure");
+        stop();
+        System.exit(1);
+    }
+
+    /**
+     * Saves users information to default file and deletes log's segments with changes contained in it.
+     * Users are not stopped while information is saved: new log's segment is started,
+     * then each user and group is written under its own lock with sequence number of its last change,
+     * so changes from new segment are replayed on load only to users and groups that were written before them.
+     * Does nothing after log failed.
+     */
+    void saveUsers() {
+        if (logFailed)
+            return;
+        snapshotLock.lock();
+        long start = System.nanoTime();
+        try {
+            long sequence;
+            Map<String, UserInfo> usernamesCopy;
+            int count;
+            List<Group> groupsCopy;
+            registrationLock.writeLock().lock();
+            try {
+                sequence = log.rotate();
+                usernamesCopy = new HashMap<>(usernames);
+                count = users.size();
+                groupsCopy = new ArrayList<>(groups.all());
+            } finally {
+                registrationLock.writeLock().unlock();
+            }
+            UsersFile.write(Paths.get(defaultUsersFileName), sequence, usernamesCopy, count, this::getUser,
+                    groupsCopy);
+            snapshotSequence = sequence;
+            log.truncate(sequence);
+            Metrics.snapshot.recordSince(start);
+        } catch (IOException e) {
+            System.out.println("Unable to save users data: " + e.getMessage());
+        } finally {
+            snapshotLock.unlock();
         }
     }
 }
\ No newline at end of file
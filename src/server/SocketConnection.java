@@ -0,0 +1,82 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Connection over blocking socket.
+ * Queued messages are written by separate writer task, so slow client blocks only its writer.
+ */
+public class SocketConnection extends QueuedConnection {
+    /**
+     * Connection's socket.
+     */
+    private final Socket socket;
+    /**
+     * Socket's output stream.
+     */
+    private final OutputStream out;
+    /**
+     * Executor that runs writer tasks.
+     */
+    private final Executor writers;
+
+    /**
+     * Constructs connection with specified socket which messages are written by specified executor.
+     *
+     * @param socket  socket
+     * @param writers executor for writer tasks
+     * @throws IOException if socket's output stream can not be opened
+     */
+    public SocketConnection(Socket socket, Executor writers) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        this.writers = writers;
+    }
+
+    @Override
+    protected void scheduleFlush() {
+        try {
+            writers.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes queued messages to socket until queue is empty.
+     * Messages queued meanwhile are written together with one flush.
+     * Closes connection if i/o error occurred.
+     */
+    private void flush() {
+        Encoder batch = new Encoder();
+        try {
+            do {
+                while (!closed) {
+                    poll(batch);
+                    if (batch.size() == 0)
+                        break;
+                    out.write(batch.bytes(), 0, batch.size());
+                    out.flush();
+                    written(batch.size());
+                    batch.reset();
+                }
+            } while (flushed());
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        clear();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
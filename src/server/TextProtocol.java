@@ -0,0 +1,444 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protocol with requests and messages as UTF-8 lines with space-separated fields.
+ * Messages can not contain line breaks.
+ */
+public class TextProtocol extends Protocol {
+    /**
+     * Names of requests in UTF-8.
+     */
+    private static final byte[] HELLO = bytes("Hello");
+    private static final byte[] AUTH = bytes("auth");
+    private static final byte[] REG = bytes("reg");
+    private static final byte[] GET_FRIENDS_REQUESTS_LIST = bytes("GetFriendsRequestsList");
+    private static final byte[] ACCEPT_REQUEST = bytes("AcceptRequest");
+    private static final byte[] SEND_REQUEST = bytes("SendRequest");
+    private static final byte[] SEND_MESSAGE = bytes("SendMessage");
+    private static final byte[] GET_MESSAGE_FROM = bytes("GetMessageFrom");
+    private static final byte[] GET_MESSAGES_FROM = bytes("GetMessagesFrom");
+    private static final byte[] SET_RETENTION = bytes("SetRetention");
+    private static final byte[] CREATE_GROUP = bytes("CreateGroup");
+    private static final byte[] ADD_TO_GROUP = bytes("AddToGroup");
+    private static final byte[] REMOVE_FROM_GROUP = bytes("RemoveFromGroup");
+    private static final byte[] SEND_GROUP_MESSAGE = bytes("SendGroupMessage");
+    private static final byte[] GET_GROUP_MESSAGES = bytes("GetGroupMessages");
+    private static final byte[] GET_GROUP_MEMBERS = bytes("GetGroupMembers");
+    private static final byte[] SET_PRESENCE = bytes("SetPresence");
+    private static final byte[] PING = bytes("Ping");
+    private static final byte[] PONG = bytes("Pong");
+
+    /**
+     * Returns UTF-8 form of string.
+     *
+     * @param s string
+     * @return bytes
+     */
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes request line directly from received bytes.
+     * Request's name and ids are parsed in place, only strings passed to handler are copied,
+     * so decoding does not create intermediate strings or arrays.
+     */
+    @Override
+    public int decode(byte[] buf, int offset, int length, RequestHandler handler) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            if (buf[i] == '\n') {
+                int end = i > offset && buf[i - 1] == '\r' ? i - 1 : i;
+                process(buf, offset, end, handler);
+                return i + 1 - offset;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Parses request line with optional id in format "#<id> " and passes it to handler.
+     *
+     * @param buf     array with line
+     * @param start   position of line's first byte
+     * @param end     position after line's last byte
+     * @param handler handler of request
+     * @throws IOException if handler failed
+     */
+    private static void process(byte[] buf, int start, int end, RequestHandler handler) throws IOException {
+        int requestId = -1;
+        if (start < end && buf[start] == '#') {
+            int idEnd = indexOfSpace(buf, start + 1, end);
+            requestId = parseId(buf, start + 1, idEnd);
+            if (requestId < 0) {
+                handler.requestId(-1);
+                handler.malformed();
+                return;
+            }
+            start = Math.min(idEnd + 1, end);
+        }
+        handler.requestId(requestId);
+        int nameEnd = indexOfSpace(buf, start, end);
+        int argument = nameEnd + 1;
+        if (argument > end) {
+            if (is(GET_FRIENDS_REQUESTS_LIST, buf, start, nameEnd)) {
+                handler.getFriendsRequestsList();
+                return;
+            }
+            if (is(HELLO, buf, start, nameEnd)) {
+                handler.hello(new String[0]);
+                return;
+            }
+            if (is(PING, buf, start, nameEnd)) {
+                handler.ping();
+                return;
+            }
+            if (is(PONG, buf, start, nameEnd)) {
+                handler.pong();
+                return;
+            }
+        } else if (is(SEND_MESSAGE, buf, start, nameEnd)) {
+            int idEnd = indexOfSpace(buf, argument, end);
+            int id = parseId(buf, argument, idEnd);
+            if (id >= 0 && idEnd < end) {
+                handler.sendMessage(id, string(buf, idEnd + 1, end));
+                return;
+            }
+        } else if (is(GET_MESSAGES_FROM, buf, start, nameEnd)) {
+            int idEnd = indexOfSpace(buf, argument, end);
+            int id = parseId(buf, argument, idEnd);
+            int max = idEnd < end ? parseId(buf, idEnd + 1, end) : -1;
+            if (id >= 0 && max >= 0) {
+                handler.getMessagesFrom(id, max);
+                return;
+            }
+        } else if (is(SET_RETENTION, buf, start, nameEnd)) {
+            int idEnd = indexOfSpace(buf, argument, end);
+            int ageEnd = indexOfSpace(buf, Math.min(idEnd + 1, end), end);
+            int id = parseId(buf, argument, idEnd);
+            int maxAge = idEnd < end ? parseId(buf, idEnd + 1, ageEnd) : -1;
+            int maxCount = ageEnd < end ? parseId(buf, ageEnd + 1, end) : -1;
+            if (id >= 0 && maxAge >= 0 && maxCount >= 0) {
+                handler.setRetention(id, maxAge, maxCount);
+                return;
+            }
+        } else if (is(SEND_GROUP_MESSAGE, buf, start, nameEnd)) {
+            int idEnd = indexOfSpace(buf, argument, end);
+            int id = parseId(buf, argument, idEnd);
+            if (id >= 0 && idEnd < end) {
+                handler.sendGroupMessage(id, string(buf, idEnd + 1, end));
+                return;
+            }
+        } else if (is(GET_GROUP_MESSAGES, buf, start, nameEnd)) {
+            int idEnd = indexOfSpace(buf, argument, end);
+            int id = parseId(buf, argument, idEnd);
+            int max = idEnd < end ? parseId(buf, idEnd + 1, end) : -1;
+            if (id >= 0 && max >= 0) {
+                handler.getGroupMessages(id, max);
+                return;
+            }
+        } else if (is(ADD_TO_GROUP, buf, start, nameEnd) || is(REMOVE_FROM_GROUP, buf, start, nameEnd)) {
+            int idEnd = indexOfSpace(buf, argument, end);
+            int id = parseId(buf, argument, idEnd);
+            int memberId = idEnd < end ? parseId(buf, idEnd + 1, end) : -1;
+            if (id >= 0 && memberId >= 0) {
+                if (is(ADD_TO_GROUP, buf, start, nameEnd))
+                    handler.addToGroup(id, memberId);
+                else
+                    handler.removeFromGroup(id, memberId);
+                return;
+            }
+        } else if (is(GET_GROUP_MEMBERS, buf, start, nameEnd)) {
+            int id = parseId(buf, argument, end);
+            if (id >= 0) {
+                handler.getGroupMembers(id);
+                return;
+            }
+        } else if (is(SET_PRESENCE, buf, start, nameEnd)) {
+            byte state = Presence.parse(string(buf, argument, end));
+            if (state >= 0) {
+                handler.setPresence(state);
+                return;
+            }
+        } else if (is(CREATE_GROUP, buf, start, nameEnd)) {
+            handler.createGroup(string(buf, argument, end));
+            return;
+        } else if (is(GET_MESSAGE_FROM, buf, start, nameEnd)) {
+            int id = parseId(buf, argument, end);
+            if (id >= 0) {
+                handler.getMessageFrom(id);
+                return;
+            }
+        } else if (is(ACCEPT_REQUEST, buf, start, nameEnd)) {
+            int id = parseId(buf, argument, end);
+            if (id >= 0) {
+                handler.acceptRequest(id);
+                return;
+            }
+        } else if (is(SEND_REQUEST, buf, start, nameEnd)) {
+            handler.sendRequest(string(buf, argument, end));
+            return;
+        } else if (is(GET_FRIENDS_REQUESTS_LIST, buf, start, nameEnd)) {
+            handler.getFriendsRequestsList();
+            return;
+        } else if (is(AUTH, buf, start, nameEnd) || is(REG, buf, start, nameEnd)) {
+            int usernameEnd = indexOfSpace(buf, argument, end);
+            if (usernameEnd < end) {
+                handler.authenticate(is(REG, buf, start, nameEnd), string(buf, argument, usernameEnd),
+                        string(buf, usernameEnd + 1, end));
+                return;
+            }
+        } else if (is(HELLO, buf, start, nameEnd)) {
+            handler.hello(string(buf, argument, end).split(" "));
+            return;
+        }
+        handler.malformed();
+    }
+
+    /**
+     * Returns position of first space in range or end of range if there is no space.
+     *
+     * @param buf   array
+     * @param start position of range's first byte
+     * @param end   position after range's last byte
+     * @return position of space or end
+     */
+    private static int indexOfSpace(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == ' ')
+                return i;
+        }
+        return end;
+    }
+
+    /**
+     * Returns true if range contains specified name.
+     *
+     * @param name  name in UTF-8
+     * @param buf   array
+     * @param start position of range's first byte
+     * @param end   position after range's last byte
+     * @return true if range equals name, otherwise false
+     */
+    private static boolean is(byte[] name, byte[] buf, int start, int end) {
+        return Arrays.equals(name, 0, name.length, buf, start, end);
+    }
+
+    /**
+     * Parses non-negative decimal number from range.
+     *
+     * @param buf   array
+     * @param start position of range's first byte
+     * @param end   position after range's last byte
+     * @return number or -1 if range is empty, contains not only digits or number does not fit into int
+     */
+    private static int parseId(byte[] buf, int start, int end) {
+        if (start >= end)
+            return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE)
+                return -1;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Copies range to string.
+     *
+     * @param buf   array with UTF-8 bytes
+     * @param start position of range's first byte
+     * @param end   position after range's last byte
+     * @return string
+     */
+    private static String string(byte[] buf, int start, int end) {
+        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces line breaks in message with spaces, since they can not be transferred in text protocol.
+     *
+     * @param msg message
+     * @return message without line breaks
+     */
+    private static String oneLine(String msg) {
+        return msg.indexOf('\n') < 0 && msg.indexOf('\r') < 0 ? msg : msg.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Encodes line.
+     *
+     * @param line line without line break
+     * @return encoded line
+     */
+    private static byte[] line(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] accepted() {
+        return line("Accepted");
+    }
+
+    @Override
+    public byte[] redirect(String host, int port) {
+        return line("Redirect " + host + " " + port);
+    }
+
+    @Override
+    public byte[] error(String msg) {
+        return line(msg);
+    }
+
+    @Override
+    public byte[] friendsList(Collection<Friend> friends) {
+        StringBuilder sb = new StringBuilder("FriendsList ");
+        sb.append(friends.size());
+        for (Friend friend : friends) {
+            sb.append(" ");
+            sb.append(friend.username);
+            sb.append(" ");
+            sb.append(friend.id);
+            sb.append(" ");
+            sb.append(friend.messages.size());
+        }
+        return line(sb.toString());
+    }
+
+    @Override
+    public byte[] requestsList(Map<Integer, String> requests) {
+        StringBuilder sb = new StringBuilder("RequestsList ");
+        sb.append(requests.size());
+        requests.forEach((id, username) -> {
+            sb.append(" ");
+            sb.append(username);
+            sb.append(" ");
+            sb.append(id);
+        });
+        return line(sb.toString());
+    }
+
+    @Override
+    public byte[] numberOfRequests(int count) {
+        return line("NumberOfRequests " + count);
+    }
+
+    @Override
+    public byte[] newFriend(String username, int id) {
+        return line("NewFriend " + username + " " + id);
+    }
+
+    @Override
+    public byte[] unreadMessages(int id, int count) {
+        return line("UnreadMessages " + id + " " + count);
+    }
+
+    @Override
+    public byte[] newMessage(int id, String msg) {
+        return line("NewMessage " + id + " " + oneLine(msg));
+    }
+
+    @Override
+    public byte[] newMessages(int id, List<String> messages) {
+        StringBuilder sb = new StringBuilder("NewMessages ");
+        sb.append(id).append(" ").append(messages.size());
+        for (String msg : messages) {
+            sb.append(" ").append(msg.length()).append(" ").append(oneLine(msg));
+        }
+        return line(sb.toString());
+    }
+
+    @Override
+    public byte[] presence(Map<Integer, Byte> changes) {
+        StringBuilder sb = new StringBuilder("Presence ");
+        sb.append(changes.size());
+        changes.forEach((id, state) -> sb.append(" ").append(id).append(" ").append(Presence.name(state)));
+        return line(sb.toString());
+    }
+
+    @Override
+    public byte[] groupsList(Collection<Group> groups, int memberId) {
+        StringBuilder sb = new StringBuilder("GroupsList ");
+        sb.append(groups.size());
+        for (Group group : groups) {
+            sb.append(" ");
+            sb.append(group.name);
+            sb.append(" ");
+            sb.append(group.id);
+            sb.append(" ");
+            sb.append(Math.max(group.unread(memberId), 0));
+        }
+        return line(sb.toString());
+    }
+
+    @Override
+    public byte[] newGroup(String name, int id) {
+        return line("NewGroup " + name + " " + id);
+    }
+
+    @Override
+    public byte[] leftGroup(int id) {
+        return line("LeftGroup " + id);
+    }
+
+    @Override
+    public byte[] groupMembers(int id, List<Integer> members) {
+        StringBuilder sb = new StringBuilder("GroupMembers ");
+        sb.append(id).append(" ").append(members.size());
+        for (int memberId : members) {
+            sb.append(" ").append(memberId);
+        }
+        return line(sb.toString());
+    }
+
+    @Override
+    public byte[] unreadGroupMessages(int id, int count) {
+        return line("UnreadGroupMessages " + id + " " + count);
+    }
+
+    @Override
+    public byte[] newGroupMessage(int id, int fromId, String msg) {
+        return line("NewGroupMessage " + id + " " + fromId + " " + oneLine(msg));
+    }
+
+    @Override
+    public byte[] newGroupMessages(int id, List<Group.Message> messages) {
+        StringBuilder sb = new StringBuilder("NewGroupMessages ");
+        sb.append(id).append(" ").append(messages.size());
+        for (Group.Message message : messages) {
+            sb.append(" ").append(message.fromId).append(" ").append(message.text.length())
+                    .append(" ").append(oneLine(message.text));
+        }
+        return line(sb.toString());
+    }
+
+    @Override
+    public byte[] notification(String msg) {
+        return line("Notification " + msg);
+    }
+
+    @Override
+    public byte[] ack(int requestId, String status) {
+        return line("Ack " + requestId + " " + status);
+    }
+
+    @Override
+    public byte[] ping() {
+        return line("Ping");
+    }
+
+    @Override
+    public byte[] pong() {
+        return line("Pong");
+    }
+}
@@ -0,0 +1,162 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel that runs many timeouts from one thread with constant cost of scheduling and cancelling.
+ * Time is divided into ticks, timeout is put into bucket of tick it expires at modulo wheel's size,
+ * so each tick visits only one bucket and timeout is visited once per rotation of wheel.
+ * Timeouts expire up to one tick later than requested. Tasks run on wheel's thread and must not block.
+ */
+public class TimerWheel {
+    /**
+     * Duration of tick in nanoseconds.
+     */
+    private final long tickNanos;
+    /**
+     * Buckets of timeouts by ticks they expire at modulo wheel's size, accessed only by wheel's thread.
+     */
+    private final List<Timeout>[] wheel;
+    /**
+     * Timeouts scheduled since previous tick that are not put into buckets yet.
+     */
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    /**
+     * Time wheel was started at.
+     */
+    private final long startTime = System.nanoTime();
+    /**
+     * Wheel's thread.
+     */
+    private final Thread thread;
+    /**
+     * Number of current tick since start, accessed only by wheel's thread.
+     */
+    private long tick = 0;
+    /**
+     * Flag that indicates that wheel was stopped.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Timeout that runs its task once unless it is cancelled.
+     */
+    public static class Timeout {
+        /**
+         * Task run when timeout expires.
+         */
+        private final Runnable task;
+        /**
+         * Tick timeout expires at.
+         */
+        private final long deadline;
+        /**
+         * Flag that indicates that timeout was cancelled.
+         */
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels timeout, its task will not run if it is not running yet.
+         * Cancelled timeout is removed when wheel visits its bucket.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Starts wheel with specified name of its thread, tick duration and number of buckets.
+     *
+     * @param name          name of wheel's thread
+     * @param tickMillis    duration of tick in milliseconds
+     * @param ticksPerWheel number of buckets, rounded up to power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(String name, long tickMillis, int ticksPerWheel) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        wheel = new List[Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules task to run after specified delay. Can be called from any thread.
+     *
+     * @param task  task that must not block
+     * @param delay delay
+     * @param unit  unit of delay
+     * @return timeout that can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long at = System.nanoTime() + unit.toNanos(Math.max(0, delay)) - startTime;
+        Timeout timeout = new Timeout(task, (at + tickNanos - 1) / tickNanos);
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops wheel, pending timeouts never expire.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Wheel's loop: waits for start of each tick, puts scheduled timeouts into buckets
+     * and runs tasks of timeouts from tick's bucket that expire in this rotation.
+     */
+    private void run() {
+        while (!stopped) {
+            long sleep;
+            while ((sleep = startTime + tick * tickNanos - System.nanoTime()) > 0 && !stopped) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (!timeout.cancelled)
+                    wheel[(int) (Math.max(timeout.deadline, tick) & (wheel.length - 1))].add(timeout);
+            }
+            expire(wheel[(int) (tick & (wheel.length - 1))]);
+            tick++;
+        }
+    }
+
+    /**
+     * Runs tasks of bucket's timeouts that expire at current tick, keeps timeouts of later rotations
+     * and drops cancelled ones.
+     *
+     * @param bucket bucket of current tick
+     */
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled)
+                continue;
+            if (timeout.deadline > tick) {
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Timer task failed: " + e.getMessage());
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+}
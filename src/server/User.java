@@ -1,32 +1,618 @@
 package server;
 
-import java.io.OutputStreamWriter;
 import java.io.IOException;
 import java.io.Serializable;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 /**
  * User representation class.
+ * User's state is changed and messages are sent to user's connection only by actions from user's mailbox,
+ * which are run one at a time in order of posting by shared executor, so user's state needs no locks
+ * and threads of other users only enqueue actions instead of waiting for user.
+ * Methods that access user's state must be called from user's actions
+ * or before user is attached, while users data is loaded.
+ * User's friends, requests and messages may be evicted to storage while user is offline,
+ * in that case they are loaded back on first access.
  */
 public class User implements Serializable {
     /**
-     * Output stream to user.
+     * Version of user's serialized form, same as in users data saved with java serialization by older versions.
      */
-    private transient OutputStreamWriter out = null;
+    private static final long serialVersionUID = -4172019967059027064L;
     /**
-     * User's socket.
+     * Maximum number of actions run in a row before mailbox yields executor's thread to other users.
      */
-    private transient Socket socket = null;
+    private static final int mailboxBatchSize = 64;
     /**
-     * User's friends list.
+     * Estimated memory size in bytes of user's maps without entries.
      */
-    private final Map<Integer, Friend> friends = new HashMap<>();
+    private static final int userSize = 160;
     /**
-     * User's friends requests.
+     * Estimated memory size in bytes of friend without username and messages.
      */
-    private final Map<Integer, String> friendsRequests = new HashMap<>();
+    private static final int friendSize = 160;
+    /**
+     * Estimated memory size in bytes of friends request without username.
+     */
+    private static final int requestSize = 100;
+    /**
+     * Total length of messages in batch after which no more messages are added to it.
+     */
+    private static final int maxBatchLength = 1 << 16;
+    /**
+     * Actions waiting to be run.
+     */
+    private final transient ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    /**
+     * True while mailbox is scheduled to run or running.
+     */
+    private final transient AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * Executor that runs mailbox, null until user is attached.
+     */
+    private transient Executor executor = null;
+    /**
+     * User's connection.
+     */
+    private transient Connection connection = null;
+    /**
+     * True if messages are pushed to user's connection instead of being queued until requested.
+     */
+    private transient boolean push = false;
+    /**
+     * User's id.
+     */
+    private transient int userId;
+    /**
+     * Log that user's changes are appended to, null while changes are replayed from log.
+     */
+    private transient MutationLog log = null;
+    /**
+     * Storage that user's data is evicted to, null until user is attached.
+     */
+    private transient UserStore store = null;
+    /**
+     * Sweeper that expires user's messages, null until user is attached.
+     */
+    private transient MessageSweeper sweeper = null;
+    /**
+     * Time first messages of user which data is not loaded yet expire at, Long.MAX_VALUE if they never expire.
+     */
+    private transient long expiresAt = Long.MAX_VALUE;
+    /**
+     * User's record in storage, null if user's data was never stored.
+     */
+    private transient UserStore.Record record = null;
+    /**
+     * Estimated memory size in bytes of user's data, 0 while data is evicted.
+     */
+    private transient long size = 0;
+    /**
+     * Estimated memory size in bytes of user's messages that are not spilled to storage.
+     */
+    private transient long messageBytes = 0;
+    /**
+     * True if user's data was accessed since evictor visited user.
+     */
+    private transient boolean referenced = false;
+    /**
+     * User's friends list, null while user's data is evicted.
+     */
+    private Map<Integer, Friend> friends;
+    /**
+     * User's friends requests, null while user's data is evicted.
+     */
+    private Map<Integer, String> friendsRequests;
+    /**
+     * Sequence number of log's record with last change of user.
+     */
+    private long sequence = 0;
+
+    /**
+     * Action with user that is run from user's mailbox.
+     */
+    public interface Action {
+        /**
+         * Runs action.
+         *
+         * @param user user
+         * @throws IOException if i/o error occurred while sending message to user
+         */
+        void run(User user) throws IOException;
+    }
+
+    /**
+     * Action with user that is run from user's mailbox and returns result.
+     *
+     * @param <T> result's type
+     */
+    public interface Query<T> {
+        /**
+         * Runs action.
+         *
+         * @param user user
+         * @return result
+         * @throws IOException if i/o error occurred
+         */
+        T run(User user) throws IOException;
+    }
+
+    /**
+     * Constructs user without friends and requests.
+     */
+    public User() {
+        friends = new HashMap<>();
+        friendsRequests = new HashMap<>();
+    }
+
+    /**
+     * Constructs user which data is loaded from storage on first access.
+     * Time user's messages expire at is taken from record's header,
+     * so user is indexed by sweeper without loading its data.
+     *
+     * @param record    user's record in storage
+     * @param expiresAt time first messages expire at by record's header, 0 if they never expire
+     * @param firstTime time first message was saved at by record's header, 0 if user has no messages
+     */
+    public User(UserStore.Record record, long expiresAt, long firstTime) {
+        this.record = record;
+        sequence = record.sequence;
+        if (expiresAt > 0)
+            this.expiresAt = expiresAt;
+        long maxAge = MessageSweeper.maxAgeMillis(0);
+        if (firstTime > 0 && maxAge > 0)
+            this.expiresAt = Math.min(this.expiresAt, firstTime + maxAge);
+    }
+
+    /**
+     * Sets user's id, log that user's changes should be appended to, storage that user's data is evicted to,
+     * sweeper that expires user's messages and executor that runs user's mailbox.
+     * Must be called before any action is posted to user from other threads.
+     *
+     * @param id       user's id
+     * @param log      log for user's changes
+     * @param store    storage for user's data
+     * @param sweeper  sweeper for user's messages
+     * @param executor executor for user's mailbox
+     */
+    public void attach(int id, MutationLog log, UserStore store, MessageSweeper sweeper, Executor executor) {
+        userId = id;
+        this.log = log;
+        this.store = store;
+        this.sweeper = sweeper;
+        if (friends != null) {
+            messageBytes = residentMessages();
+            size = estimateSize();
+            store.resized(size);
+            spillMessages();
+            scheduleExpiry(nextExpiry());
+        } else {
+            scheduleExpiry(expiresAt);
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Sets log that user's changes are appended to, called from user's mailbox
+     * when server that applied changes replicated from primary is promoted to primary.
+     *
+     * @param log log for user's changes
+     */
+    public void setLog(MutationLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Posts action to user's mailbox and returns without waiting for it.
+     * If action fails to send message to user, user's connection is closed.
+     * Action is run in calling thread if user is not attached yet.
+     *
+     * @param action action
+     */
+    public void post(Action action) {
+        mailbox.add(() -> {
+            try {
+                action.run(this);
+            } catch (IOException e) {
+                if (connection != null)
+                    connection.close();
+            }
+        });
+        schedule();
+    }
+
+    /**
+     * Posts action to user's mailbox and returns future result of it.
+     * Action is run in calling thread if user is not attached yet.
+     *
+     * @param query action
+     * @param <T>   result's type
+     * @return future result
+     */
+    public <T> CompletableFuture<T> ask(Query<T> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        mailbox.add(() -> {
+            try {
+                result.complete(query.run(this));
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        schedule();
+        return result;
+    }
+
+    /**
+     * Schedules mailbox to run if it is not scheduled yet.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            if (executor != null)
+                executor.execute(this::runMailbox);
+            else
+                runMailbox();
+        }
+    }
+
+    /**
+     * Runs limited number of actions from mailbox, then reschedules it if more actions were posted.
+     */
+    private void runMailbox() {
+        Runnable action;
+        for (int i = 0; i < mailboxBatchSize && (action = mailbox.poll()) != null; i++) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                System.out.println("User " + userId + " action failed: " + e);
+            }
+        }
+        scheduled.set(false);
+        if (!mailbox.isEmpty())
+            schedule();
+    }
+
+    /**
+     * Returns user's data with sequence number of its last change and times its messages expire at
+     * and first message was saved at in format read by read method.
+     * Evicted data is copied from storage without loading it.
+     *
+     * @return encoded data
+     * @throws IOException if evicted data can not be read
+     */
+    public byte[] encode() throws IOException {
+        if (friends == null)
+            return record.read();
+        Encoder out = new Encoder();
+        encode(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes user's data while data is loaded, spilled messages are copied from storage.
+     *
+     * @param out encoder
+     * @throws IOException if spilled messages can not be read
+     */
+    private void encode(Encoder out) throws IOException {
+        out.writeVarint(sequence);
+        long expiresAt = nextExpiry();
+        long firstTime = Long.MAX_VALUE;
+        for (Friend friend : friends.values()) {
+            firstTime = Math.min(firstTime, friend.messages.firstTime());
+        }
+        out.writeVarint(expiresAt != Long.MAX_VALUE ? expiresAt : 0);
+        out.writeVarint(firstTime != Long.MAX_VALUE ? firstTime : 0);
+        out.writeVarint(friends.size());
+        for (Friend friend : friends.values()) {
+            friend.write(out, store);
+        }
+        out.writeVarint(friendsRequests.size());
+        friendsRequests.forEach((id, username) -> {
+            out.writeVarint(id);
+            out.writeString(username);
+        });
+    }
+
+    /**
+     * Reads user's data written by encode method to users data of specified version.
+     * Versions before 3 have no times in record's header.
+     *
+     * @param in      decoder
+     * @param version version of users data's format
+     * @return user
+     * @throws IOException if record is malformed
+     */
+    public static User read(Decoder in, int version) throws IOException {
+        User user = new User();
+        user.sequence = in.readVarint();
+        if (version > 2) {
+            in.readVarint();
+            in.readVarint();
+        }
+        user.decode(in, version);
+        return user;
+    }
+
+    /**
+     * Reads user's friends and requests that follow record's header written by encode method.
+     *
+     * @param in      decoder
+     * @param version version of users data's format
+     * @throws IOException if record is malformed
+     */
+    private void decode(Decoder in, int version) throws IOException {
+        int count = in.readVarintInt();
+        for (int i = 0; i < count; i++) {
+            Friend friend = Friend.read(in, version);
+            friends.put(friend.id, friend);
+        }
+        count = in.readVarintInt();
+        for (int i = 0; i < count; i++) {
+            friendsRequests.put(in.readVarintInt(), in.readString());
+        }
+    }
+
+    /**
+     * Loads user's data from storage if it is evicted and marks it as recently used.
+     * Must be called before user's data is accessed.
+     *
+     * @throws UncheckedIOException if data can not be read from storage
+     */
+    private void load() {
+        referenced = true;
+        if (friends != null)
+            return;
+        long start = System.nanoTime();
+        try {
+            Decoder in = new Decoder(record.read());
+            in.readVarint();
+            in.readVarint();
+            in.readVarint();
+            friends = new HashMap<>();
+            friendsRequests = new HashMap<>();
+            decode(in, UsersFile.version);
+            Metrics.userLoad.recordSince(start);
+        } catch (IOException e) {
+            friends = null;
+            friendsRequests = null;
+            throw new UncheckedIOException("Unable to load user's data", e);
+        }
+        messageBytes = residentMessages();
+        resized(estimateSize());
+        spillMessages();
+        scheduleExpiry(nextExpiry());
+    }
+
+    /**
+     * Evicts user's data to storage if user is offline and was not accessed since previous call.
+     * Data is written to storage only if it changed since it was loaded.
+     *
+     * @return null
+     * @throws IOException if data can not be written to storage
+     */
+    public Void evict() throws IOException {
+        if (friends == null || connection != null)
+            return null;
+        if (referenced) {
+            referenced = false;
+            return null;
+        }
+        if (record == null || record.sequence != sequence) {
+            Encoder out = new Encoder();
+            encode(out);
+            record = store.append(out, sequence, record);
+        }
+        for (Friend friend : friends.values()) {
+            friend.messages.release(store);
+        }
+        messageBytes = 0;
+        friends = null;
+        friendsRequests = null;
+        resized(-size);
+        return null;
+    }
+
+    /**
+     * Moves user's record to storage's file that new records are appended to.
+     *
+     * @return null
+     * @throws IOException if record can not be copied
+     */
+    public Void relocate() throws IOException {
+        if (record != null)
+            record = store.relocate(record);
+        if (friends != null) {
+            for (Friend friend : friends.values()) {
+                friend.messages.relocate(store);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes user's connection before user's data is handed off to other node of cluster,
+     * so user reconnects to new owner and does not change data that is being sent.
+     */
+    public void disconnect() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+            push = false;
+        }
+    }
+
+    /**
+     * Forgets user's data after it was handed off to other node of cluster and closes user's connection
+     * if it is still open. User stays registered with empty data.
+     */
+    public void handOff() {
+        disconnect();
+        discard();
+        if (log != null)
+            sequence = log.userHandedOff(userId);
+        Metrics.usersHandedOff.increment();
+    }
+
+    /**
+     * Replaces user's data with data handed off by other node of cluster.
+     *
+     * @param data user's data in format written by encode method
+     * @throws IOException if data is malformed
+     */
+    public void takeOver(byte[] data) throws IOException {
+        Decoder in = new Decoder(data);
+        in.readVarint();
+        in.readVarint();
+        in.readVarint();
+        discard();
+        decode(in, UsersFile.version);
+        if (log != null)
+            sequence = log.userTakenOver(userId, data);
+        referenced = true;
+        messageBytes = residentMessages();
+        resized(estimateSize() - size);
+        spillMessages();
+        scheduleExpiry(nextExpiry());
+        Metrics.usersTakenOver.increment();
+    }
+
+    /**
+     * Releases user's data in memory and storage and leaves user without friends, requests and messages.
+     */
+    public void discard() {
+        if (friends != null && store != null) {
+            for (Friend friend : friends.values()) {
+                friend.messages.release(store);
+            }
+        }
+        if (record != null && store != null)
+            store.release(record);
+        record = null;
+        expiresAt = Long.MAX_VALUE;
+        friends = new HashMap<>();
+        friendsRequests = new HashMap<>();
+        messageBytes = 0;
+        resized(estimateSize() - size);
+    }
+
+    /**
+     * Changes estimated memory size of user's data.
+     *
+     * @param delta change of size
+     */
+    private void resized(long delta) {
+        size += delta;
+        if (store != null)
+            store.resized(delta);
+    }
+
+    /**
+     * Changes estimated memory size of user's messages that are not spilled.
+     *
+     * @param delta change of size
+     */
+    private void messagesResized(long delta) {
+        messageBytes += delta;
+        resized(delta);
+    }
+
+    /**
+     * Returns estimated memory size of user's data while data is loaded.
+     *
+     * @return size in bytes
+     */
+    private long estimateSize() {
+        long size = userSize + residentMessages();
+        for (Friend friend : friends.values()) {
+            size += friendSize + friend.username.length();
+        }
+        for (String username : friendsRequests.values()) {
+            size += requestSize + username.length();
+        }
+        return size;
+    }
+
+    /**
+     * Returns estimated memory size of user's messages that are not spilled while data is loaded.
+     *
+     * @return size in bytes
+     */
+    private long residentMessages() {
+        long size = 0;
+        for (Friend friend : friends.values()) {
+            size += friend.messages.resident();
+        }
+        return size;
+    }
+
+    /**
+     * Spills messages of all friends whose queues are long enough while user is over budget.
+     */
+    private void spillMessages() {
+        for (Friend friend : friends.values()) {
+            spillMessages(friend);
+        }
+    }
+
+    /**
+     * Spills messages from specified friend to storage except queue's head if user's messages
+     * or messages of all users exceed their budgets and queue is long enough.
+     * Messages stay in memory if they can not be written.
+     *
+     * @param from friend
+     */
+    private void spillMessages(Friend from) {
+        if (store == null || from.messages.spillable() < MessageQueue.minSpillBytes)
+            return;
+        if ((MessageQueue.userBudget <= 0 || messageBytes <= MessageQueue.userBudget)
+                && !MessageQueue.overGlobalBudget())
+            return;
+        long resident = from.messages.resident();
+        try {
+            from.messages.spill(store);
+        } catch (IOException e) {
+            System.out.println("Unable to spill messages of user " + userId + ": " + e.getMessage());
+        } finally {
+            messagesResized(from.messages.resident() - resident);
+        }
+    }
+
+    /**
+     * Replaces user read from users data saved with java serialization by older versions
+     * with normally constructed one, since deserialization does not create user's mailbox.
+     *
+     * @return user with same data
+     */
+    private Object readResolve() {
+        User user = new User();
+        user.friends.putAll(friends);
+        user.friendsRequests.putAll(friendsRequests);
+        user.sequence = sequence;
+        return user;
+    }
+
+    /**
+     * Returns true if change from log's record with specified sequence number is not applied to user yet
+     * and should be replayed, marks user as changed by this record in that case.
+     *
+     * @param sequence record's sequence number
+     * @return true if change should be replayed, otherwise false
+     */
+    public boolean replay(long sequence) {
+        if (sequence <= this.sequence)
+            return false;
+        this.sequence = sequence;
+        return true;
+    }
 
     /**
      * Sends notification to user if user is connected.
@@ -34,26 +620,24 @@ public class User implements Serializable {
      * @param msg notification message
      * @throws IOException if i/o error occurred while sending notification.
      */
-    public synchronized void notify(String msg) throws IOException {
-        send("Notification " + msg);
+    public void notify(String msg) throws IOException {
+        send(protocol -> protocol.notification(msg));
     }
 
     /**
      * Sets user connected to server and sends friends list answer.
      *
-     * @param newSocket user's socket
-     * @param out       user's output stream
+     * @param newConnection user's connection
+     * @param push          true if new messages should be pushed to connection
      * @throws IOException if i/o error occurred while sending answer.
      */
-    public synchronized void setUserLoggedIn(Socket newSocket, OutputStreamWriter out) throws IOException {
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException ignored) {
-            }
+    public void setUserLoggedIn(Connection newConnection, boolean push) throws IOException {
+        load();
+        if (connection != null) {
+            connection.close();
         }
-        socket = newSocket;
-        this.out = out;
+        connection = newConnection;
+        this.push = push;
         sendFriendsList();
         sendNumberOfRequests();
     }
@@ -61,17 +645,38 @@ public class User implements Serializable {
     /**
      * Closes user's connection.
      *
-     * @param socket user's socket
+     * @param connection user's connection
+     * @return true if it was user's current connection, so user is disconnected now, otherwise false
      */
-    public synchronized void closeSocket(Socket socket) {
-        try {
-            socket.close();
-        } catch (IOException ignored) {
-        }
-        if (this.socket == socket) {
-            this.socket = null;
-            out = null;
+    public boolean closeSocket(Connection connection) {
+        connection.close();
+        if (this.connection == connection) {
+            this.connection = null;
+            push = false;
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Returns true if specified user is user's friend.
+     *
+     * @param id user's id
+     * @return true if user is friend, otherwise false
+     */
+    public boolean isFriend(int id) {
+        load();
+        return friends.containsKey(id);
+    }
+
+    /**
+     * Returns ids of user's friends.
+     *
+     * @return friends' ids
+     */
+    public List<Integer> friendIds() {
+        load();
+        return new ArrayList<>(friends.keySet());
     }
 
     /**
@@ -80,7 +685,8 @@ public class User implements Serializable {
      * @param id user's id
      * @return true if user is able to send friends request to specified user, otherwise false.
      */
-    public synchronized boolean isAbleToSendRequestToUser(int id) {
+    public boolean isAbleToSendRequestToUser(int id) {
+        load();
         return !friends.containsKey(id) && !friendsRequests.containsKey(id);
     }
 
@@ -90,13 +696,19 @@ public class User implements Serializable {
      *
      * @param id       sender's id
      * @param username sender's username
+     * @return true if request was added, otherwise false
      * @throws IOException if i/o error occurred while notifying user.
      */
-    public synchronized void addNewFriendsRequest(int id, String username) throws IOException {
+    public boolean addNewFriendsRequest(int id, String username) throws IOException {
         if (isAbleToSendRequestToUser(id)) {
             friendsRequests.put(id, username);
+            resized(requestSize + username.length());
+            if (log != null)
+                sequence = log.friendsRequestAdded(userId, id, username);
             sendNumberOfRequests();
+            return true;
         }
+        return false;
     }
 
     /**
@@ -104,16 +716,22 @@ public class User implements Serializable {
      * Notifies user about new friend if user is connected.
      *
      * @param id sender's id
+     * @return true if sender is user's friend after accepting, otherwise false
      * @throws IOException if i/o error occurred while notifying user.
      */
-    public synchronized void acceptFriendsRequest(int id) throws IOException {
+    public boolean acceptFriendsRequest(int id) throws IOException {
+        load();
         String username = friendsRequests.get(id);
         if (username != null && !friends.containsKey(id)) {
             friendsRequests.remove(id);
             friends.put(id, new Friend(id, username));
+            resized(friendSize - requestSize);
+            if (log != null)
+                sequence = log.friendsRequestAccepted(userId, id);
         }
-        send("NewFriend " + username + " " + id + "\n");
+        send(protocol -> protocol.newFriend(username, id));
         sendNumberOfRequests();
+        return friends.containsKey(id);
     }
 
     /**
@@ -124,11 +742,15 @@ public class User implements Serializable {
      * @param username new friend's username
      * @throws IOException if i/o error occurred while notifying user.
      */
-    public synchronized void friendsRequestAccepted(int id, String username) throws IOException {
+    public void friendsRequestAccepted(int id, String username) throws IOException {
+        load();
         if (!friendsRequests.containsKey(id) && !friends.containsKey(id)) {
             friends.put(id, new Friend(id, username));
+            resized(friendSize + username.length());
+            if (log != null)
+                sequence = log.friendAdded(userId, id, username);
         }
-        send("NewFriend " + username + " " + id + "\n");
+        send(protocol -> protocol.newFriend(username, id));
     }
 
     /**
@@ -136,17 +758,9 @@ public class User implements Serializable {
      *
      * @throws IOException if i/o error occurred while sending message to user.
      */
-    public synchronized void sendFriendsRequestsList() throws IOException {
-        StringBuilder sb = new StringBuilder("RequestsList ");
-        sb.append(friendsRequests.size());
-        friendsRequests.forEach((id, username) -> {
-            sb.append(" ");
-            sb.append(username);
-            sb.append(" ");
-            sb.append(id);
-        });
-        sb.append("\n");
-        send(sb.toString());
+    public void sendFriendsRequestsList() throws IOException {
+        load();
+        send(protocol -> protocol.requestsList(friendsRequests));
     }
 
     /**
@@ -154,39 +768,283 @@ public class User implements Serializable {
      *
      * @throws IOException if i/o error occurred while sending message to user.
      */
-    public synchronized void sendNumberOfRequests() throws IOException {
-        send("NumberOfRequests " + friendsRequests.size() + "\n");
+    public void sendNumberOfRequests() throws IOException {
+        load();
+        send(protocol -> protocol.numberOfRequests(friendsRequests.size()));
     }
 
     /**
-     * Saves passed message received from user with specified id.
+     * Saves passed message received now from user with specified id.
+     * If user is connected in push mode and has no unread messages from sender, sends message to user instead.
      *
      * @param id  sender's id
      * @param msg message
+     * @return true if message was saved or sent, false if sender is not user's friend
      */
-    public synchronized void saveMessageFrom(int id, String msg) {
+    public boolean saveMessageFrom(int id, String msg) {
+        return saveMessageFrom(id, msg, System.currentTimeMillis());
+    }
+
+    /**
+     * Saves passed message received from user with specified id at specified time.
+     * If user is connected in push mode and has no unread messages from sender, sends message to user instead,
+     * otherwise message is queued after unread ones, so messages are received in order.
+     * Oldest messages from sender over conversation's maximum number are expired.
+     *
+     * @param id   sender's id
+     * @param msg  message
+     * @param time time message was received at in milliseconds since epoch
+     * @return true if message was saved or sent, false if sender is not user's friend
+     */
+    public boolean saveMessageFrom(int id, String msg, long time) {
+        load();
         Friend from = friends.get(id);
-        if (from != null) {
-            from.messages.add(msg);
-            sendUnreadMessagesCount(from);
+        if (from == null)
+            return false;
+        if (push && connection != null && from.messages.isEmpty()) {
+            try {
+                connection.send(connection.protocol().newMessage(id, msg));
+                Metrics.messagesPushed.increment();
+                return true;
+            } catch (IOException ignored) {
+            }
+        }
+        boolean first = from.messages.isEmpty();
+        long resident = from.messages.resident();
+        from.messages.add(msg, time);
+        messagesResized(from.messages.resident() - resident);
+        if (log != null) {
+            sequence = log.messageSaved(userId, id, msg, time);
+            Metrics.messagesQueued.increment();
+            if (from.messages.size() > MessageSweeper.maxCount(from.maxCount))
+                expireMessages(from, time);
+        }
+        if (first)
+            scheduleExpiry(expiry(from, time));
+        spillMessages(from);
+        sendUnreadMessagesCount(from);
+        return true;
+    }
+
+    /**
+     * Sets retention settings of messages from specified friend and expires messages that exceed them.
+     *
+     * @param id       friend's id
+     * @param maxAge   maximum age of messages in seconds, 0 to use server's limit
+     * @param maxCount maximum number of messages, 0 to use server's limit
+     * @return true if settings were changed, false if user has no such friend
+     */
+    public boolean setRetention(int id, int maxAge, int maxCount) {
+        load();
+        Friend from = friends.get(id);
+        if (from == null)
+            return false;
+        from.maxAge = maxAge;
+        from.maxCount = maxCount;
+        if (log != null) {
+            sequence = log.retentionSet(userId, id, maxAge, maxCount);
+            long now = System.currentTimeMillis();
+            if (expireMessages(from, now))
+                sendUnreadMessagesCount(from);
+            scheduleExpiry(expiry(from, now));
+        }
+        return true;
+    }
+
+    /**
+     * Expires messages that exceed retention settings of their conversations
+     * and indexes user by time its next messages expire at. Posted by sweeper when user is due.
+     */
+    public void expireMessages() {
+        load();
+        long now = System.currentTimeMillis();
+        for (Friend friend : friends.values()) {
+            if (!friend.messages.isEmpty() && expireMessages(friend, now))
+                sendUnreadMessagesCount(friend);
+        }
+        scheduleExpiry(nextExpiry());
+    }
+
+    /**
+     * Removes specified number of first messages from specified friend, replaying their expiry from log.
+     *
+     * @param id    friend's id
+     * @param count number of messages
+     * @throws IOException if spilled messages can not be read
+     */
+    public void removeExpiredMessages(int id, int count) throws IOException {
+        load();
+        Friend from = friends.get(id);
+        if (from == null)
+            return;
+        long resident = from.messages.resident();
+        try {
+            from.messages.expire(Long.MIN_VALUE, from.messages.size() - count, store);
+        } finally {
+            messagesResized(from.messages.resident() - resident);
         }
     }
 
+    /**
+     * Expires messages from specified friend that are older than conversation's maximum age
+     * or exceed its maximum number and logs their removal.
+     * Messages stay in queue if spilled messages can not be read.
+     *
+     * @param from friend
+     * @param now  current time in milliseconds since epoch
+     * @return true if messages were removed, so user's unread messages counter should be updated
+     */
+    private boolean expireMessages(Friend from, long now) {
+        long maxAge = MessageSweeper.maxAgeMillis(from.maxAge);
+        int size = from.messages.size();
+        long resident = from.messages.resident();
+        try {
+            from.messages.expire(maxAge > 0 ? now - maxAge : Long.MIN_VALUE,
+                    MessageSweeper.maxCount(from.maxCount), store);
+        } catch (IOException e) {
+            System.out.println("Unable to expire messages of user " + userId + ": " + e.getMessage());
+        } finally {
+            messagesResized(from.messages.resident() - resident);
+        }
+        int count = size - from.messages.size();
+        if (count == 0)
+            return false;
+        sequence = log.messagesExpired(userId, from.id, count);
+        Metrics.messagesExpired.add(count);
+        return true;
+    }
+
+    /**
+     * Returns time first messages from specified friend expire at.
+     *
+     * @param friend friend
+     * @param now    current time in milliseconds since epoch
+     * @return time in milliseconds since epoch, current time if friend has too many messages
+     * or Long.MAX_VALUE if messages never expire
+     */
+    private static long expiry(Friend friend, long now) {
+        if (friend.messages.isEmpty())
+            return Long.MAX_VALUE;
+        if (friend.messages.size() > MessageSweeper.maxCount(friend.maxCount))
+            return now;
+        long maxAge = MessageSweeper.maxAgeMillis(friend.maxAge);
+        return maxAge > 0 ? friend.messages.firstTime() + maxAge : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns time first messages of user expire at while data is loaded.
+     *
+     * @return time in milliseconds since epoch or Long.MAX_VALUE if messages never expire
+     */
+    private long nextExpiry() {
+        long now = System.currentTimeMillis();
+        long deadline = Long.MAX_VALUE;
+        for (Friend friend : friends.values()) {
+            deadline = Math.min(deadline, expiry(friend, now));
+        }
+        return deadline;
+    }
+
+    /**
+     * Indexes user in sweeper by time its first messages expire at if user is attached.
+     *
+     * @param deadline time in milliseconds since epoch or Long.MAX_VALUE
+     */
+    private void scheduleExpiry(long deadline) {
+        if (sweeper != null)
+            sweeper.schedule(userId, deadline);
+    }
+
+    /**
+     * Runs action when user's last change is written to disk.
+     * Action is run at once while changes are replayed from log.
+     *
+     * @param action action that should not block
+     * @param failed action that is run instead if change will not be written because log failed
+     */
+    public void whenDurable(Runnable action, Runnable failed) {
+        if (log == null)
+            action.run();
+        else
+            log.whenDurable(sequence, action, failed);
+    }
+
     /**
      * Sends first message from specified friend to user.
      *
      * @param id friend's id
      * @throws IOException if i/o error occurred while sending message to user.
      */
-    public synchronized void sendFirstMessageFrom(int id) throws IOException {
+    public void sendFirstMessageFrom(int id) throws IOException {
+        load();
         Friend from = friends.get(id);
         if (from != null && !from.messages.isEmpty()) {
-            send("NewMessage " + from.id + " " + from.messages.getFirst() + "\n");
-            from.messages.removeFirst();
+            String msg = peekMessages(from, 1, 1).get(0);
+            send(protocol -> protocol.newMessage(from.id, msg));
+            removeMessages(from, 1);
+            if (log != null) {
+                sequence = log.messageTaken(userId, id);
+                Metrics.messagesTaken.increment();
+            }
             sendUnreadMessagesCount(from);
         }
     }
 
+    /**
+     * Sends up to specified number of first messages from specified friend to user in one response,
+     * followed by one update of unread messages counter.
+     * Response is cut after message that makes it longer than batch length.
+     *
+     * @param id  friend's id
+     * @param max maximum number of messages
+     * @throws IOException if i/o error occurred while sending message to user.
+     */
+    public void sendMessagesFrom(int id, int max) throws IOException {
+        load();
+        Friend from = friends.get(id);
+        if (from == null || from.messages.isEmpty())
+            return;
+        List<String> batch = peekMessages(from, max, maxBatchLength);
+        int count = batch.size();
+        send(protocol -> protocol.newMessages(from.id, batch));
+        removeMessages(from, count);
+        if (log != null) {
+            sequence = log.messagesTaken(userId, id, count);
+            Metrics.messagesTaken.add(count);
+        }
+        sendUnreadMessagesCount(from);
+    }
+
+    /**
+     * Returns first messages from specified friend without removing them, paging spilled messages in if needed.
+     *
+     * @param from      friend
+     * @param max       maximum number of messages
+     * @param maxLength total length after which no more messages are returned
+     * @return first messages
+     * @throws IOException if spilled messages can not be read
+     */
+    private List<String> peekMessages(Friend from, int max, long maxLength) throws IOException {
+        long resident = from.messages.resident();
+        try {
+            return from.messages.peek(max, maxLength, store);
+        } finally {
+            messagesResized(from.messages.resident() - resident);
+        }
+    }
+
+    /**
+     * Removes specified number of first messages from specified friend returned by previous peek.
+     *
+     * @param from  friend
+     * @param count number of messages
+     */
+    private void removeMessages(Friend from, int count) {
+        long resident = from.messages.resident();
+        from.messages.remove(count);
+        messagesResized(from.messages.resident() - resident);
+    }
+
     /**
      * Sends number of unread messages from specified friend.
      *
@@ -194,46 +1052,148 @@ public class User implements Serializable {
      */
     private void sendUnreadMessagesCount(Friend from) {
         try {
-            send("UnreadMessages " + from.id + " " + from.messages.size() + "\n");
+            send(protocol -> protocol.unreadMessages(from.id, from.messages.size()));
         } catch (IOException ignored) {
         }
     }
 
     /**
-     * Sends friends list to user.
+     * Sends batch of friends' presence changes to user if user is connected.
      *
+     * @param changes states by friends' ids
      * @throws IOException if i/o error occurred while sending message to user.
      */
-    private void sendFriendsList() throws IOException {
-        StringBuilder sb = new StringBuilder("FriendsList ");
-        sb.append(friends.size());
-        friends.forEach((id, friend) -> {
-            sb.append(" ");
-            sb.append(friend.username);
-            sb.append(" ");
-            sb.append(friend.id);
-            sb.append(" ");
-            sb.append(friend.messages.size());
-        });
-        sb.append("\n");
-        send(sb.toString());
+    public void sendPresence(Map<Integer, Byte> changes) throws IOException {
+        if (connection == null)
+            return;
+        connection.send(connection.protocol().presence(changes));
+        Metrics.presenceFrames.increment();
     }
 
     /**
-     * Sends passed message to user if user is connected.
+     * Notifies user about group user joined if user is connected.
      *
-     * @param msg message
+     * @param group group
+     * @return true if user is connected, otherwise false
+     * @throws IOException if i/o error occurred while notifying user.
+     */
+    public boolean joinedGroup(Group group) throws IOException {
+        send(protocol -> protocol.newGroup(group.name, group.id));
+        return connection != null;
+    }
+
+    /**
+     * Notifies user about group user left or was removed from if user is connected.
+     *
+     * @param groupId group's id
+     * @throws IOException if i/o error occurred while notifying user.
+     */
+    public void leftGroup(int groupId) throws IOException {
+        send(protocol -> protocol.leftGroup(groupId));
+    }
+
+    /**
+     * Sends list of user's groups with numbers of unread messages to user.
+     *
+     * @param groups groups user is member of
      * @throws IOException if i/o error occurred while sending message to user.
      */
-    private void send(String msg) throws IOException {
-        if (out != null) {
-            out.write(msg);
-            out.flush();
-        }
+    public void sendGroupsList(List<Group> groups) throws IOException {
+        send(protocol -> protocol.groupsList(groups, userId));
     }
-}
 
+    /**
+     * Sends list of group's members to user.
+     *
+     * @param group group
+     * @return true if list was sent, false if user is not member
+     * @throws IOException if i/o error occurred while sending message to user.
+     */
+    public boolean sendGroupMembers(Group group) throws IOException {
+        if (!group.isMember(userId))
+            return false;
+        List<Integer> members = group.members();
+        send(protocol -> protocol.groupMembers(group.id, members));
+        return true;
+    }
 
+    /**
+     * Pushes message sent to group if user is connected in push mode and received all previous messages,
+     * otherwise sends number of unread messages of group.
+     * Pushed frame is shared with other members that use the same protocol.
+     *
+     * @param delivery message sent to group
+     * @throws IOException if i/o error occurred while sending message to user.
+     */
+    public void receiveGroupMessage(Group.Delivery delivery) throws IOException {
+        if (connection == null)
+            return;
+        Group group = delivery.group;
+        long number = delivery.message.number;
+        if (push && group.cursor(userId) == number - 1) {
+            connection.send(delivery.frame(connection.protocol()));
+            group.delivered(userId, number);
+            Metrics.groupMessagesPushed.increment();
+            return;
+        }
+        sendUnreadGroupMessages(group);
+    }
 
+    /**
+     * Sends up to specified number of unread messages of group to user in one response,
+     * followed by one update of unread messages counter, and marks them read.
+     * Response is cut after message that makes it longer than batch length.
+     *
+     * @param group group
+     * @param max   maximum number of messages
+     * @return true if messages were sent, false if user is not member
+     * @throws IOException if i/o error occurred while sending message to user.
+     */
+    public boolean sendGroupMessages(Group group, int max) throws IOException {
+        List<Group.Message> batch = group.peek(userId, max, maxBatchLength);
+        if (batch == null)
+            return false;
+        if (!batch.isEmpty()) {
+            send(protocol -> protocol.newGroupMessages(group.id, batch));
+            group.read(userId, batch.get(batch.size() - 1).number);
+        }
+        sendUnreadGroupMessages(group);
+        return true;
+    }
 
+    /**
+     * Sends number of unread messages of group if user is its member.
+     *
+     * @param group group
+     */
+    private void sendUnreadGroupMessages(Group group) {
+        int count = group.unread(userId);
+        if (count < 0)
+            return;
+        try {
+            send(protocol -> protocol.unreadGroupMessages(group.id, count));
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Sends friends list to user.
+     *
+     * @throws IOException if i/o error occurred while sending message to user.
+     */
+    private void sendFriendsList() throws IOException {
+        send(protocol -> protocol.friendsList(friends.values()));
+    }
 
+    /**
+     * Sends message encoded by connection's protocol to user if user is connected.
+     *
+     * @param message function that encodes message with specified protocol
+     * @throws IOException if i/o error occurred while sending message to user.
+     */
+    private void send(Function<Protocol, byte[]> message) throws IOException {
+        if (connection != null) {
+            connection.send(message.apply(connection.protocol()));
+        }
+    }
+}
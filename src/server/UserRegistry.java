@@ -0,0 +1,93 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+/**
+ * Registry of users by their ids that is read without locks.
+ * Users are stored in segments which sizes double starting from 1024,
+ * so registry grows without copying and segments are never replaced.
+ * Ids are allocated with atomic counter and users are published in order of their ids,
+ * so all users with ids less than registry's size are always present.
+ */
+public class UserRegistry {
+    /**
+     * Base-2 logarithm of first segment's size.
+     */
+    private static final int firstSegmentBits = 10;
+    /**
+     * Maximum number of users.
+     */
+    public static final int maxSize = Integer.MAX_VALUE - (1 << firstSegmentBits);
+
+    /**
+     * Segments with users, segment with index i contains 2^(i + firstSegmentBits) users.
+     */
+    private final AtomicReferenceArray<AtomicReferenceArray<User>> segments =
+            new AtomicReferenceArray<>(Integer.SIZE - 1 - firstSegmentBits);
+    /**
+     * Id that will be allocated to next added user.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+    /**
+     * Number of published users.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Returns number of users.
+     *
+     * @return number of users
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns user with specified id or null if there is no such user.
+     * Slots are read without memory barriers, since reading of size synchronizes with publishing of user.
+     *
+     * @param id user's id
+     * @return user or null
+     */
+    public User get(int id) {
+        if (id < 0 || id >= size.get())
+            return null;
+        int position = id + (1 << firstSegmentBits);
+        int segment = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(position) - firstSegmentBits;
+        return segments.getPlain(segment).getPlain(position - (1 << (segment + firstSegmentBits)));
+    }
+
+    /**
+     * Allocates id for new user, stores user created for this id and publishes it
+     * after all users with smaller ids are published.
+     * User is published even if factory throws exception, in that case its slot stays empty.
+     *
+     * @param factory function that creates user with specified id
+     * @return new user's id
+     * @throws IllegalStateException if registry is full
+     */
+    public int add(IntFunction<User> factory) {
+        int id = next.getAndIncrement();
+        if (id < 0 || id >= maxSize)
+            throw new IllegalStateException("Too many users");
+        int position = id + (1 << firstSegmentBits);
+        int segment = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(position) - firstSegmentBits;
+        AtomicReferenceArray<User> slots = segments.get(segment);
+        if (slots == null) {
+            segments.compareAndSet(segment, null, new AtomicReferenceArray<>(1 << (segment + firstSegmentBits)));
+            slots = segments.get(segment);
+        }
+        User user = null;
+        try {
+            user = factory.apply(id);
+        } finally {
+            slots.setPlain(position - (1 << (segment + firstSegmentBits)), user);
+            while (!size.compareAndSet(id, id + 1)) {
+                Thread.onSpinWait();
+            }
+        }
+        return id;
+    }
+}
@@ -0,0 +1,457 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+/**
+ * Storage that keeps in memory only data of recently used users.
+ * Data of other users is kept in cache file as records encoded by User's write method
+ * and is loaded on first access.
+ * When estimated size of users data in memory exceeds budget, separate evictor thread
+ * walks over users in clock order and asks their mailboxes to write data of offline users
+ * that were not used since previous walk to cache file.
+ * Cache file also keeps messages spilled from long queues of users that are in memory.
+ * Cache file is not needed for recovery, since saved users data and log contain all changes,
+ * so it is recreated on each start and rewritten when most of it is occupied by stale records.
+ */
+public class UserStore {
+    /**
+     * Maximum number of users which mailboxes are asked to evict or relocate data at once.
+     */
+    private static final int batchSize = 256;
+    /**
+     * Minimum size of stale records that cache file should contain to be rewritten.
+     */
+    private static final long minCompactionSize = 16 << 20;
+
+    /**
+     * Path that cache files' names start with.
+     */
+    private final String basePath;
+    /**
+     * Maximum estimated size in bytes of users data in memory, 0 if data is never evicted.
+     */
+    private final long budget;
+    /**
+     * Returns number of users.
+     */
+    private final IntSupplier count;
+    /**
+     * Returns user with specified id.
+     */
+    private final IntFunction<User> users;
+    /**
+     * Thread that evicts users data and rewrites cache file.
+     */
+    private final ExecutorService evictor;
+    /**
+     * True while eviction is scheduled or running.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    /**
+     * Estimated size in bytes of users data in memory.
+     */
+    private final AtomicLong resident = new AtomicLong();
+    /**
+     * Total length of records in cache files.
+     */
+    private final AtomicLong stored = new AtomicLong();
+    /**
+     * Total length of records in cache files that were replaced by newer ones.
+     */
+    private final AtomicLong stale = new AtomicLong();
+    /**
+     * Cache file that new records are appended to.
+     */
+    private volatile Segment segment;
+    /**
+     * Cache files that still contain records in use, accessed only by evictor thread.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+    /**
+     * Number of next cache file.
+     */
+    private int nextSegment = 0;
+    /**
+     * Id of user that evictor starts next walk from.
+     */
+    private int hand = 0;
+
+    /**
+     * Creates storage with cache files starting with specified path.
+     * Deletes cache files left by previous start.
+     *
+     * @param basePath path that cache files' names start with
+     * @param budget   maximum estimated size in bytes of users data in memory, 0 to keep all data in memory
+     * @param count    function that returns number of users
+     * @param users    function that returns user with specified id
+     * @throws IOException if cache file can not be created
+     */
+    public UserStore(String basePath, long budget, IntSupplier count, IntFunction<User> users) throws IOException {
+        this.basePath = basePath;
+        this.budget = budget;
+        this.count = count;
+        this.users = users;
+        Path base = Paths.get(basePath).toAbsolutePath();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(base.getParent(), base.getFileName() + ".*")) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+        segment = openSegment();
+        evictor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "user-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates new cache file.
+     *
+     * @return cache file
+     * @throws IOException if file can not be created
+     */
+    private Segment openSegment() throws IOException {
+        Segment segment = new Segment(Paths.get(basePath + "." + nextSegment++));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Writes block of users' records written by User's write method, each prefixed with varint length,
+     * to cache file and returns users which data is loaded from it on first access.
+     * Safe to call from several threads at once.
+     *
+     * @param block block of records
+     * @param count number of records
+     * @return users in order of records
+     * @throws IOException if block is malformed or can not be written
+     */
+    public List<User> load(byte[] block, int count) throws IOException {
+        Segment segment = this.segment;
+        long offset = segment.write(block, 0, block.length);
+        stored.addAndGet(block.length);
+        Decoder in = new Decoder(block);
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = in.readVarintInt();
+            int position = in.position();
+            long sequence = in.readVarint();
+            long expiresAt = in.readVarint();
+            long firstTime = in.readVarint();
+            in.skip(length - (in.position() - position));
+            users.add(new User(new Record(segment, offset + position, length, sequence), expiresAt, firstTime));
+        }
+        return users;
+    }
+
+    /**
+     * Appends user's record to cache file, previous user's record becomes stale.
+     *
+     * @param out      encoded record
+     * @param sequence sequence number of user's last change contained in record
+     * @param previous previous user's record or null
+     * @return appended record
+     * @throws IOException if record can not be written
+     */
+    public Record append(Encoder out, long sequence, Record previous) throws IOException {
+        return append(out.bytes(), out.size(), sequence, previous);
+    }
+
+    /**
+     * Appends user's record to cache file, previous user's record becomes stale.
+     *
+     * @param bytes    array that starts with encoded record
+     * @param length   record's length
+     * @param sequence sequence number of user's last change contained in record
+     * @param previous previous user's record or null
+     * @return appended record
+     * @throws IOException if record can not be written
+     */
+    private Record append(byte[] bytes, int length, long sequence, Record previous) throws IOException {
+        Segment segment = this.segment;
+        Record record = new Record(segment, segment.write(bytes, 0, length), length, sequence);
+        stored.addAndGet(length);
+        if (previous != null)
+            stale.addAndGet(previous.length);
+        return record;
+    }
+
+    /**
+     * Appends record that is not user's data, such as spilled messages, to cache file.
+     *
+     * @param out encoded record
+     * @return appended record
+     * @throws IOException if record can not be written
+     */
+    public Record write(Encoder out) throws IOException {
+        return append(out.bytes(), out.size(), 0, null);
+    }
+
+    /**
+     * Marks record that is no longer used as stale.
+     * Schedules rewriting of cache file if most of it is stale.
+     *
+     * @param record record
+     */
+    public void release(Record record) {
+        long stale = this.stale.addAndGet(record.length);
+        if (stale > minCompactionSize && stale > stored.get() - stale && evicting.compareAndSet(false, true))
+            evictor.execute(this::evict);
+    }
+
+    /**
+     * Returns specified record if it is in cache file that new records are appended to,
+     * otherwise copies it to that file.
+     *
+     * @param record user's record
+     * @return record in current cache file
+     * @throws IOException if record can not be copied
+     */
+    public Record relocate(Record record) throws IOException {
+        if (record.segment == segment)
+            return record;
+        byte[] bytes = record.read();
+        return append(bytes, bytes.length, record.sequence, record);
+    }
+
+    /**
+     * Changes estimated size of users data in memory by specified number of bytes.
+     * Schedules eviction if size exceeds budget.
+     *
+     * @param delta change of size
+     */
+    public void resized(long delta) {
+        if (resident.addAndGet(delta) > budget && budget > 0 && evicting.compareAndSet(false, true))
+            evictor.execute(this::evict);
+    }
+
+    /**
+     * Evicts data of users that were not used recently until estimated size of users data
+     * drops below nine tenths of budget or all users are visited twice,
+     * then rewrites cache file if most of it is stale.
+     */
+    private void evict() {
+        try {
+            long target = budget - budget / 10;
+            int count = this.count.getAsInt();
+            List<CompletableFuture<Void>> batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < 2 * count && resident.get() > target; ) {
+                for (; batch.size() < batchSize && i < 2 * count; i++) {
+                    if (hand >= count)
+                        hand = 0;
+                    batch.add(users.apply(hand++).ask(User::evict));
+                }
+                join(batch);
+            }
+            long stale = this.stale.get();
+            if (stale > minCompactionSize && stale > stored.get() - stale)
+                compact();
+        } catch (IOException e) {
+            System.out.println("Unable to evict users data: " + e.getMessage());
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Starts new cache file, copies records of all users to it and deletes previous cache files.
+     * Users that are evicted meanwhile are appended to new file too.
+     *
+     * @throws IOException if cache file can not be created or record can not be copied
+     */
+    private void compact() throws IOException {
+        Segment next = openSegment();
+        segment = next;
+        int count = this.count.getAsInt();
+        List<CompletableFuture<Void>> batch = new ArrayList<>(batchSize);
+        for (int id = 0; id < count; id++) {
+            batch.add(users.apply(id).ask(User::relocate));
+            if (batch.size() == batchSize)
+                join(batch);
+        }
+        join(batch);
+        for (Segment segment : segments) {
+            if (segment != next)
+                segment.close();
+        }
+        segments.clear();
+        segments.add(next);
+        stored.set(next.end.get());
+        stale.set(0);
+    }
+
+    /**
+     * Waits for users' mailboxes to complete actions and clears list of their results.
+     *
+     * @param batch results of actions
+     * @throws IOException if any action failed
+     */
+    private static void join(List<CompletableFuture<Void>> batch) throws IOException {
+        try {
+            for (CompletableFuture<Void> result : batch) {
+                result.join();
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops evictor and deletes cache files.
+     * Must be called only after users data were saved.
+     */
+    public void close() {
+        evictor.shutdown();
+        try {
+            evictor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ignored) {
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Cache file with users' records.
+     */
+    private static class Segment {
+        /**
+         * File's path.
+         */
+        private final Path path;
+        /**
+         * File's channel.
+         */
+        private final FileChannel channel;
+        /**
+         * Length of file including reserved but not yet written records.
+         */
+        private final AtomicLong end = new AtomicLong();
+
+        /**
+         * Creates empty cache file.
+         *
+         * @param path file's path
+         * @throws IOException if file can not be created
+         */
+        Segment(Path path) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Writes bytes to the end of file, safe to call from several threads at once.
+         *
+         * @param bytes  array with bytes
+         * @param offset position of first byte in array
+         * @param length number of bytes
+         * @return position in file that bytes are written to
+         * @throws IOException if bytes can not be written
+         */
+        long write(byte[] bytes, int offset, int length) throws IOException {
+            long position = end.getAndAdd(length);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position() - offset);
+            }
+            return position;
+        }
+
+        /**
+         * Reads bytes from file.
+         *
+         * @param position position of first byte in file
+         * @param length   number of bytes
+         * @return bytes
+         * @throws IOException if bytes can not be read
+         */
+        byte[] read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of cache file");
+            }
+            return buffer.array();
+        }
+
+        /**
+         * Closes and deletes file.
+         */
+        void close() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Location of user's record in cache file.
+     */
+    public static class Record {
+        /**
+         * Cache file with record.
+         */
+        private final Segment segment;
+        /**
+         * Record's position in file.
+         */
+        private final long offset;
+        /**
+         * Record's length.
+         */
+        private final int length;
+        /**
+         * Sequence number of user's last change contained in record.
+         */
+        public final long sequence;
+
+        /**
+         * Constructs record's location.
+         *
+         * @param segment  cache file with record
+         * @param offset   record's position in file
+         * @param length   record's length
+         * @param sequence sequence number of user's last change contained in record
+         */
+        private Record(Segment segment, long offset, int length, long sequence) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Reads record from cache file.
+         *
+         * @return record's bytes
+         * @throws IOException if record can not be read
+         */
+        public byte[] read() throws IOException {
+            return segment.read(offset, length);
+        }
+    }
+}
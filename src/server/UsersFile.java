@@ -0,0 +1,364 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntFunction;
+
+/**
+ * Binary file with users data.
+ * File starts with magic number, format's version and sequence number of last log's record
+ * which change it contains, followed by blocks of usernames' and users' records.
+ * Each block is prefixed with its section, number of records and length in bytes,
+ * so blocks are decoded in parallel while file is still being read.
+ * Users' ids are their positions in users' section.
+ * Since version 2 each user's record is prefixed with its length,
+ * so users' blocks are copied to users storage without decoding.
+ * Since version 3 user's record starts with times its messages expire at and first message was saved at,
+ * followed by retention settings of each friend and time of each message.
+ * Since version 4 file contains blocks of groups' records with their members and messages.
+ */
+public class UsersFile {
+    /**
+     * Number that file starts with.
+     */
+    private static final int magic = 0x544a4d55;
+    /**
+     * Current format's version.
+     */
+    public static final int version = 4;
+    private static final byte END = 0;
+    private static final byte USERNAMES = 1;
+    private static final byte USERS = 2;
+    private static final byte GROUPS = 3;
+    /**
+     * Maximum number of records in block.
+     */
+    public static int blockSize = 1024;
+
+    /**
+     * Writes users data to temporary file, forces it to disk and moves it to specified path.
+     * Users of each block are encoded by their mailboxes in parallel.
+     *
+     * @param path       file's path
+     * @param sequence   sequence number of last log's record which change is contained in data
+     * @param usernames  information about registered users
+     * @param usersCount number of users
+     * @param users      function that returns user with specified id
+     * @throws IOException if file can not be written
+     */
+    public static void write(Path path, long sequence, Map<String, UserInfo> usernames,
+                             int usersCount, IntFunction<User> users) throws IOException {
+        write(path, sequence, usernames, usersCount, users, List.of());
+    }
+
+    /**
+     * Writes users data with groups to temporary file, forces it to disk and moves it to specified path.
+     * Users of each block are encoded by their mailboxes in parallel, groups are encoded under their locks.
+     *
+     * @param path       file's path
+     * @param sequence   sequence number of last log's record which change is contained in data
+     * @param usernames  information about registered users
+     * @param usersCount number of users
+     * @param users      function that returns user with specified id
+     * @param groups     groups
+     * @throws IOException if file can not be written
+     */
+    public static void write(Path path, long sequence, Map<String, UserInfo> usernames,
+                             int usersCount, IntFunction<User> users, Collection<Group> groups) throws IOException {
+        Path tmpPath = Paths.get(path + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmpPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(sequence);
+            Encoder block = new Encoder();
+            int count = 0;
+            for (Map.Entry<String, UserInfo> entry : usernames.entrySet()) {
+                block.writeString(entry.getKey());
+                block.writeVarint(entry.getValue().id);
+                block.writeString(entry.getValue().password);
+                if (++count == blockSize) {
+                    writeBlock(out, USERNAMES, count, block);
+                    count = 0;
+                }
+            }
+            writeBlock(out, USERNAMES, count, block);
+            count = 0;
+            List<CompletableFuture<byte[]>> records = new ArrayList<>(blockSize);
+            for (int first = 0; first < usersCount; first += blockSize) {
+                for (int id = first; id < Math.min(first + blockSize, usersCount); id++) {
+                    records.add(users.apply(id).ask(User::encode));
+                }
+                try {
+                    for (CompletableFuture<byte[]> record : records) {
+                        byte[] bytes = record.join();
+                        block.writeVarint(bytes.length);
+                        block.write(bytes, 0, bytes.length);
+                    }
+                } catch (CompletionException e) {
+                    throw new IOException("Unable to encode user", e.getCause());
+                }
+                writeBlock(out, USERS, records.size(), block);
+                records.clear();
+            }
+            for (Group group : groups) {
+                group.write(block);
+                if (++count == blockSize) {
+                    writeBlock(out, GROUPS, count, block);
+                    count = 0;
+                }
+            }
+            writeBlock(out, GROUPS, count, block);
+            out.writeByte(END);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes block with encoded records to stream and resets encoder.
+     * Does nothing if block is empty.
+     *
+     * @param out     stream
+     * @param section block's section
+     * @param count   number of records in block
+     * @param block   encoded records
+     * @throws IOException if i/o error occurred
+     */
+    private static void writeBlock(DataOutputStream out, byte section, int count, Encoder block) throws IOException {
+        if (count == 0)
+            return;
+        out.writeByte(section);
+        out.writeInt(count);
+        out.writeInt(block.size());
+        out.write(block.bytes(), 0, block.size());
+        block.reset();
+    }
+
+    /**
+     * Reads users data from file at specified path to passed containers.
+     * Users' records are copied to specified storage and users are loaded from it on first access,
+     * if storage is null or file has version older than 3 users are loaded to memory.
+     * Reads data saved with java serialization by older versions as well.
+     * Leaves containers empty if file does not exist.
+     *
+     * @param path      file's path
+     * @param usernames container for information about registered users
+     * @param users     container for users
+     * @param store     storage for users' records or null
+     * @return sequence number of last log's record which change is contained in data
+     * @throws IOException if file exists but can not be read
+     */
+    public static long read(Path path, Map<String, UserInfo> usernames, List<User> users, UserStore store)
+            throws IOException {
+        return read(path, usernames, users, store, null);
+    }
+
+    /**
+     * Reads users data with groups from file at specified path to passed containers.
+     * Users' records are copied to specified storage and users are loaded from it on first access,
+     * if storage is null or file has version older than 3 users are loaded to memory.
+     * Reads data saved with java serialization by older versions as well.
+     * Leaves containers empty if file does not exist.
+     *
+     * @param path      file's path
+     * @param usernames container for information about registered users
+     * @param users     container for users
+     * @param store     storage for users' records or null
+     * @param groups    container for groups that are not attached to registry or null if groups are skipped
+     * @return sequence number of last log's record which change is contained in data
+     * @throws IOException if file exists but can not be read
+     */
+    public static long read(Path path, Map<String, UserInfo> usernames, List<User> users, UserStore store,
+                            List<Group> groups) throws IOException {
+        if (!Files.exists(path))
+            return 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            in.mark(4);
+            if (in.readInt() != magic) {
+                in.reset();
+                return readSerialized(in, usernames, users);
+            }
+            int fileVersion = in.readInt();
+            if (fileVersion < 1 || fileVersion > version)
+                throw new IOException("Unsupported users data version: " + fileVersion);
+            long sequence = in.readLong();
+            List<CompletableFuture<Map<String, UserInfo>>> usernamesBlocks = new ArrayList<>();
+            List<CompletableFuture<List<User>>> usersBlocks = new ArrayList<>();
+            List<CompletableFuture<List<Group>>> groupsBlocks = new ArrayList<>();
+            byte section;
+            while ((section = in.readByte()) != END) {
+                int count = in.readInt();
+                int length = in.readInt();
+                if (count < 0 || length < 0)
+                    throw new IOException("Malformed users data block");
+                byte[] block = new byte[length];
+                in.readFully(block);
+                if (section == USERNAMES)
+                    usernamesBlocks.add(CompletableFuture.supplyAsync(() -> decodeUsernames(block, count)));
+                else if (section == USERS)
+                    usersBlocks.add(CompletableFuture.supplyAsync(() -> decodeUsers(block, count, fileVersion, store)));
+                else if (section == GROUPS && fileVersion > 3) {
+                    if (groups != null)
+                        groupsBlocks.add(CompletableFuture.supplyAsync(() -> decodeGroups(block, count)));
+                } else
+                    throw new IOException("Unknown users data section: " + section);
+            }
+            try {
+                for (CompletableFuture<Map<String, UserInfo>> block : usernamesBlocks) {
+                    usernames.putAll(block.join());
+                }
+                for (CompletableFuture<List<User>> block : usersBlocks) {
+                    users.addAll(block.join());
+                }
+                for (CompletableFuture<List<Group>> block : groupsBlocks) {
+                    groups.addAll(block.join());
+                }
+            } catch (CompletionException e) {
+                throw new IOException("Unable to read users data block", e.getCause());
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * Reads sequence number of last log's record which change is contained in users data file.
+     *
+     * @param channel file's channel
+     * @return sequence number or -1 if file is not in binary format
+     * @throws IOException if file can not be read
+     */
+    public static long readSequence(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+        }
+        if (header.hasRemaining() || header.getInt(0) != magic)
+            return -1;
+        return header.getLong(8);
+    }
+
+    /**
+     * Decodes block of usernames' records.
+     *
+     * @param block block's bytes
+     * @param count number of records
+     * @return information about users by their usernames
+     * @throws CompletionException if block is malformed
+     */
+    private static Map<String, UserInfo> decodeUsernames(byte[] block, int count) {
+        Decoder in = new Decoder(block);
+        Map<String, UserInfo> usernames = new HashMap<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                String username = in.readString();
+                usernames.put(username, new UserInfo(in.readVarintInt(), in.readString()));
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        return usernames;
+    }
+
+    /**
+     * Decodes block of users' records or copies it to storage.
+     *
+     * @param block       block's bytes
+     * @param count       number of records
+     * @param fileVersion version of file's format
+     * @param store       storage for users' records or null
+     * @return users in order of their ids
+     * @throws CompletionException if block is malformed or can not be copied
+     */
+    private static List<User> decodeUsers(byte[] block, int count, int fileVersion, UserStore store) {
+        try {
+            if (fileVersion > 2 && store != null)
+                return store.load(block, count);
+            Decoder in = new Decoder(block);
+            List<User> users = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (fileVersion > 1)
+                    in.readVarint();
+                users.add(User.read(in, fileVersion));
+            }
+            return users;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Decodes block of groups' records.
+     *
+     * @param block block's bytes
+     * @param count number of records
+     * @return groups that are not attached to registry
+     * @throws CompletionException if block is malformed
+     */
+    private static List<Group> decodeGroups(byte[] block, int count) {
+        Decoder in = new Decoder(block);
+        List<Group> groups = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                groups.add(Group.read(in));
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        return groups;
+    }
+
+    /**
+     * Reads users data saved with java serialization.
+     *
+     * @param stream    file's stream
+     * @param usernames container for information about registered users
+     * @param users     container for users
+     * @return sequence number of last log's record which change is contained in data
+     * @throws IOException if data can not be read
+     */
+    @SuppressWarnings("unchecked")
+    public static long readSerialized(InputStream stream, Map<String, UserInfo> usernames, List<User> users)
+            throws IOException {
+        try {
+            ObjectInputStream in = new ObjectInputStream(stream);
+            usernames.putAll((Map<String, UserInfo>) in.readObject());
+            Object next = in.readObject();
+            if (next instanceof List) {
+                // users data saved before log was introduced
+                users.addAll((List<User>) next);
+                return 0;
+            }
+            long sequence = (Long) next;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                users.add((User) in.readObject());
+            }
+            return sequence;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Malformed users data", e);
+        }
+    }
+}